@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.ESIndexFacade;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-lived BulkProcessor shared by every indexing on a domain index.
+ *
+ * Requests from concurrent callers are grouped into bulks according to the
+ * configured bulk actions, bulk size and flush interval. A caller that must
+ * know when its own requests are indexed gets an Acknowledgement, which is
+ * completed by the bulk responses. The acknowledgement also waits for the
+ * bulks that were in flight when it was requested, so a caller can add most
+ * of its requests without waiting and only wait for the last ones.
+ *
+ */
+public class ESBulkIndexer {
+
+	static final Logger logger = LoggerFactory.getLogger(ESBulkIndexer.class);
+
+	private String indexName;
+
+	private BulkProcessor processor;
+
+	// the acknowledgement waiting for each pending request
+	private Map<Object, Acknowledgement> pending = Collections
+			.synchronizedMap(new IdentityHashMap<Object, Acknowledgement>());
+
+	// metrics
+	private long created = System.currentTimeMillis();
+	private AtomicLong bulkCount = new AtomicLong(0);
+	private AtomicLong indexedCount = new AtomicLong(0);
+	private AtomicLong failedCount = new AtomicLong(0);
+	private AtomicLong rejectedCount = new AtomicLong(0);
+	private AtomicLong bulkTimeInMs = new AtomicLong(0);
+	private Map<Long, Long> bulkStart = new ConcurrentHashMap<Long, Long>();// in flight
+	private Object bulkLock = new Object();
+
+	public ESBulkIndexer(Client client, String indexName, ESIndexFacadeConfiguration config) {
+		this.indexName = indexName;
+		this.processor = BulkProcessor.builder(client, new Listener()).setName("bulk-" + indexName)
+				.setBulkActions(config.getBulkActions())
+				.setBulkSize(new ByteSizeValue(config.getBulkSizeInMB(), ByteSizeUnit.MB))
+				.setFlushInterval(TimeValue.timeValueMillis(config.getBulkFlushIntervalInMs()))
+				.setConcurrentRequests(config.getBulkConcurrentRequests()).build();
+		logger.info("new bulk processor for index " + indexName + " with bulkActions=" + config.getBulkActions()
+				+ " bulkSize=" + config.getBulkSizeInMB() + "MB flushInterval=" + config.getBulkFlushIntervalInMs()
+				+ "ms concurrentRequests=" + config.getBulkConcurrentRequests());
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	/**
+	 * add the requests to the processor
+	 * 
+	 * @param requests
+	 * @param wait
+	 *            if true, flush the processor so that the requests don't wait
+	 *            for the next interval, and return an acknowledgement for them
+	 *            and for the bulks already in flight
+	 * @return the acknowledgement, or null if wait is false or there is no
+	 *         request
+	 */
+	public Acknowledgement add(List<IndexRequest> requests, boolean wait) {
+		Acknowledgement ack = null;
+		if (wait && !requests.isEmpty()) {
+			ack = new Acknowledgement(requests.size(), requests.get(requests.size() - 1));
+			for (IndexRequest req : requests) {
+				pending.put(req, ack);
+			}
+		}
+		for (IndexRequest req : requests) {
+			processor.add(req);
+		}
+		if (ack != null) {
+			processor.flush();
+			// the previous requests are now either indexed or in flight
+			ack.inFlight(this, new HashSet<Long>(bulkStart.keySet()));
+		}
+		return ack;
+	}
+
+	/**
+	 * flush the pending requests and release the processor
+	 */
+	public void close() {
+		processor.close();
+		logger.info("closed bulk processor for index " + indexName + ": " + getStats());
+	}
+
+	public Stats getStats() {
+		return new Stats(bulkCount.get(), indexedCount.get(), failedCount.get(), rejectedCount.get(),
+				bulkTimeInMs.get(), System.currentTimeMillis() - created);
+	}
+
+	private void endBulk(long executionId) {
+		bulkCount.incrementAndGet();
+		Long start = bulkStart.remove(executionId);
+		if (start != null) {
+			bulkTimeInMs.addAndGet(System.currentTimeMillis() - start);
+		}
+		synchronized (bulkLock) {
+			bulkLock.notifyAll();
+		}
+	}
+
+	private void awaitBulks(Set<Long> executionIds, long deadline) throws InterruptedException, TimeoutException {
+		synchronized (bulkLock) {
+			while (!Collections.disjoint(bulkStart.keySet(), executionIds)) {
+				long timeout = deadline - System.currentTimeMillis();
+				if (timeout <= 0) {
+					throw new TimeoutException("bulks still in flight on index " + indexName);
+				}
+				bulkLock.wait(timeout);
+			}
+		}
+	}
+
+	private class Listener implements BulkProcessor.Listener {
+
+		@Override
+		public void beforeBulk(long executionId, BulkRequest request) {
+			bulkStart.put(executionId, System.currentTimeMillis());
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+			endBulk(executionId);
+			List<?> requests = request.requests();
+			for (BulkItemResponse item : response.getItems()) {
+				if (item.isFailed()) {
+					failedCount.incrementAndGet();
+					String failure = item.getFailureMessage();
+					if (failure != null && failure.contains(EsRejectedExecutionException.class.getSimpleName())) {
+						rejectedCount.incrementAndGet();
+					}
+				} else {
+					indexedCount.incrementAndGet();
+				}
+				Object req = requests.get(item.getItemId());
+				Acknowledgement ack = pending.remove(req);
+				if (ack != null) {
+					ack.done(req, item.getId(), item.isFailed());
+				}
+			}
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+			endBulk(executionId);
+			failedCount.addAndGet(request.numberOfActions());
+			if (failure instanceof EsRejectedExecutionException) {
+				rejectedCount.addAndGet(request.numberOfActions());
+			}
+			logger.error("bulk indexing failed for index " + indexName + ": " + failure.getMessage());
+			for (Object req : request.requests()) {
+				Acknowledgement ack = pending.remove(req);
+				if (ack != null) {
+					ack.done(req, null, true);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * completed when every request of a caller got its bulk response
+	 *
+	 */
+	public static class Acknowledgement {
+
+		private CountDownLatch finish;
+		private Object lastRequest;
+
+		private ESBulkIndexer indexer = null;
+		private Set<Long> inFlight = Collections.emptySet();
+
+		private volatile String lastId;
+		private volatile boolean withError = false;
+
+		public Acknowledgement(int size, Object lastRequest) {
+			this.finish = new CountDownLatch(size);
+			this.lastRequest = lastRequest;
+		}
+
+		private void inFlight(ESBulkIndexer indexer, Set<Long> executionIds) {
+			this.indexer = indexer;
+			this.inFlight = executionIds;
+		}
+
+		private void done(Object request, String id, boolean failed) {
+			if (failed) {
+				withError = true;
+			}
+			if (request == lastRequest) {
+				lastId = id;
+			}
+			finish.countDown();
+		}
+
+		/**
+		 * wait for the bulk responses, including the ones of the bulks that
+		 * were in flight when the acknowledgement was requested
+		 * 
+		 * @param timeoutInMs
+		 * @return the id of the last request
+		 * @throws InterruptedException
+		 * @throws TimeoutException
+		 *             if some responses are still missing after the timeout
+		 */
+		public String await(long timeoutInMs) throws InterruptedException, TimeoutException {
+			long deadline = System.currentTimeMillis() + timeoutInMs;
+			if (!finish.await(timeoutInMs, TimeUnit.MILLISECONDS)) {
+				throw new TimeoutException(
+						finish.getCount() + " bulk responses still missing after " + timeoutInMs + "ms");
+			}
+			if (indexer != null) {
+				indexer.awaitBulks(inFlight, deadline);
+			}
+			return lastId;
+		}
+
+		public boolean isWithError() {
+			return withError;
+		}
+
+	}
+
+	/**
+	 * bulk indexing metrics
+	 *
+	 */
+	public static class Stats {
+
+		private long bulkCount;
+		private long indexedCount;
+		private long failedCount;
+		private long rejectedCount;
+		private long bulkTimeInMs;
+		private long elapsedInMs;
+
+		public Stats(long bulkCount, long indexedCount, long failedCount, long rejectedCount, long bulkTimeInMs,
+				long elapsedInMs) {
+			this.bulkCount = bulkCount;
+			this.indexedCount = indexedCount;
+			this.failedCount = failedCount;
+			this.rejectedCount = rejectedCount;
+			this.bulkTimeInMs = bulkTimeInMs;
+			this.elapsedInMs = elapsedInMs;
+		}
+
+		public long getBulkCount() {
+			return bulkCount;
+		}
+
+		public long getIndexedCount() {
+			return indexedCount;
+		}
+
+		public long getFailedCount() {
+			return failedCount;
+		}
+
+		public long getRejectedCount() {
+			return rejectedCount;
+		}
+
+		public long getBulkTimeInMs() {
+			return bulkTimeInMs;
+		}
+
+		public long getElapsedInMs() {
+			return elapsedInMs;
+		}
+
+		/**
+		 * @return indexed documents per second since the processor creation
+		 */
+		public double getThroughput() {
+			return elapsedInMs > 0 ? (indexedCount * 1000.0) / elapsedInMs : 0;
+		}
+
+		@Override
+		public String toString() {
+			return "bulks=" + bulkCount + " indexed=" + indexedCount + " failed=" + failedCount + " rejected="
+					+ rejectedCount + " bulkTime=" + bulkTimeInMs + "ms throughput=" + Math.round(getThroughput())
+					+ "doc/s";
+		}
+
+	}
+
+}
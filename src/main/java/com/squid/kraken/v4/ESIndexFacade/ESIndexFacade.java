@@ -32,7 +32,12 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
@@ -48,7 +53,6 @@ import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
 import org.elasticsearch.action.admin.indices.recovery.RecoveryRequest;
 import org.elasticsearch.action.admin.indices.recovery.RecoveryResponse;
 import org.elasticsearch.action.admin.indices.recovery.ShardRecoveryResponse;
-import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.count.CountResponse;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
@@ -94,22 +98,124 @@ public class ESIndexFacade implements IESIndexFacade {
 	private Client client;
 	private Node node;
 
+	private ESIndexFacadeConfiguration config;
+
+	// one long-lived bulk processor per domain index
+	private Map<String, ESBulkIndexer> bulkIndexers = new ConcurrentHashMap<String, ESBulkIndexer>();
+
+	private ScheduledExecutorService statsLogger;
+
 	private static int MIN_NGRAM = 1;
 	private static int MAX_NGRAM = 6;
 
 	public ESIndexFacade() {
+		this(new ESIndexFacadeConfiguration());
+	}
+
+	public ESIndexFacade(ESIndexFacadeConfiguration config) {
+		this.config = config;
 	}
 
 	public void start(Node n) {
 		this.node = n;
 		client = node.client();
+		startStatsLogger();
 	}
 
 	public void stop() {
+		if (statsLogger != null) {
+			statsLogger.shutdownNow();
+			statsLogger = null;
+		}
+		for (ESBulkIndexer indexer : bulkIndexers.values()) {
+			indexer.close();
+		}
+		bulkIndexers.clear();
 		this.client.close();
 		node.close();
 	}
 
+	private ESBulkIndexer getBulkIndexer(String domainName) {
+		ESBulkIndexer indexer = bulkIndexers.get(domainName);
+		if (indexer == null) {
+			synchronized (bulkIndexers) {
+				indexer = bulkIndexers.get(domainName);
+				if (indexer == null) {
+					indexer = new ESBulkIndexer(client, domainName, config);
+					bulkIndexers.put(domainName, indexer);
+				}
+			}
+		}
+		return indexer;
+	}
+
+	/**
+	 * log the bulk indexing metrics periodically, for the indexes that got
+	 * some bulks since the last report
+	 */
+	private void startStatsLogger() {
+		long period = config.getBulkStatsLogIntervalInMs();
+		if (period <= 0) {
+			return;
+		}
+		final Map<String, Long> reported = new HashMap<String, Long>();
+		statsLogger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "es-bulk-stats");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		statsLogger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				for (Map.Entry<String, ESBulkIndexer.Stats> entry : getBulkIndexingStats().entrySet()) {
+					long bulkCount = entry.getValue().getBulkCount();
+					Long previous = reported.put(entry.getKey(), bulkCount);
+					if (previous == null || previous != bulkCount) {
+						logger.info("bulk indexing for index " + entry.getKey() + ": " + entry.getValue());
+					}
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the bulk indexing metrics, by domain index
+	 */
+	public Map<String, ESBulkIndexer.Stats> getBulkIndexingStats() {
+		HashMap<String, ESBulkIndexer.Stats> stats = new HashMap<String, ESBulkIndexer.Stats>();
+		for (ESBulkIndexer indexer : bulkIndexers.values()) {
+			stats.put(indexer.getIndexName(), indexer.getStats());
+		}
+		return stats;
+	}
+
+	/**
+	 * index the requests through the domain bulk processor
+	 * 
+	 * @return the id of the last request if wait is true, or an empty string
+	 */
+	private String addBatch(String domainName, List<IndexRequest> requests, boolean wait)
+			throws ESIndexFacadeException, InterruptedException {
+		ESBulkIndexer.Acknowledgement ack = getBulkIndexer(domainName).add(requests, wait);
+		if (ack == null) {
+			return "";
+		}
+		String lastId;
+		try {
+			lastId = ack.await(config.getBulkAckTimeoutInMs());
+		} catch (TimeoutException e) {
+			throw new ESIndexFacadeException("Indexation timed out on " + domainName + ": " + e.getMessage(), e);
+		}
+		if (ack.isWithError()) {
+			throw new ESIndexFacadeException("Indexation ended with error " + domainName);
+		} else {
+			return lastId;
+		}
+	}
+
 	// one index per domain
 
 	@Override
@@ -182,6 +288,10 @@ public class ESIndexFacade implements IESIndexFacade {
 
 	@Override
 	public void removeDomain(String domainName) throws ESIndexFacadeException {
+		ESBulkIndexer indexer = bulkIndexers.remove(domainName);
+		if (indexer != null) {
+			indexer.close();
+		}
 		try {
 			DeleteIndexResponse delete = client.admin().indices().delete(new DeleteIndexRequest(domainName))
 					.actionGet();
@@ -547,41 +657,13 @@ public class ESIndexFacade implements IESIndexFacade {
 			throws ESIndexFacadeException {
 		try {
 
-			CountDownLatch finish = new CountDownLatch(1);
-			BulkProcessor.Listener listener;
-			if (wait) {
-				listener = new BulkIndexingNotifyListener(finish);
-			} else {
-				listener = new SimpleIndexingListener();
-			}
-
-			BulkProcessor bulkProcessor = BulkProcessor.builder(client, listener).build();
-			// }).setBulkActions(bulkSize).setConcurrentRequests(maxConcurrentBulk).build();
-
+			ArrayList<IndexRequest> requests = new ArrayList<IndexRequest>(members.size());
 			for (HashMap<String, Object> attributes : members) {
 				IndexRequest req = new IndexRequest().index(domainName).type(dimensionName)
 						.id(attributes.get(idName).toString()).source(attributes);
-				// System.out.println(req.toString());
-				bulkProcessor.add(req);
-			}
-			bulkProcessor.close();
-			if (wait) {
-				BulkIndexingNotifyListener l = (BulkIndexingNotifyListener) listener;
-				try {
-					finish.await();
-				} catch (InterruptedException e) {
-					throw new ESIndexFacadeException(
-							"Dimension Indexation ended with error " + domainName + "/" + dimensionName);
-				}
-				if (l.withError) {
-					throw new ESIndexFacadeException(
-							"Dimension Indexation ended with error " + domainName + "/" + dimensionName);
-				} else {
-					return l.lastId;
-				}
-			} else {
-				return "";
+				requests.add(req);
 			}
+			return addBatch(domainName, requests, wait);
 
 		} catch (Exception e) {
 			throw new ESIndexFacadeException("failed adding members for " + domainName + "/" + dimensionName, e);
@@ -822,42 +904,21 @@ public class ESIndexFacade implements IESIndexFacade {
 			Collection<List<DimensionMember>> ids, HashMap<String, ESMapping> mappings, boolean wait)
 			throws ESIndexFacadeException {
 
-		CountDownLatch finish = new CountDownLatch(1);
-
-		BulkProcessor.Listener listener;
-		if (wait) {
-			listener = new BulkIndexingNotifyListener(finish);
-		} else {
-			listener = new SimpleIndexingListener();
-		}
-
-		BulkProcessor bulkProcessor = BulkProcessor.builder(client, listener).build();
-		// }).setBulkActions(bulkSize).setConcurrentRequests(maxConcurrentBulk).build();
-
+		ArrayList<IndexRequest> requests = new ArrayList<IndexRequest>(ids.size());
 		for (List<DimensionMember> corr : ids) {
 			if (types.size() != corr.size()) {
 				continue;
 			}
 			HashMap<String, Object> source = ESIndexFacadeUtilities.buildSourceIDs(types, corr, mappings);
 
-			IndexRequest req = new IndexRequest().index(domainName).type(hierarchyName).source(source);
-			bulkProcessor.add(req);
+			IndexRequest req = new IndexRequest().index(domainName).type(hierarchyName)
+					.id(ESIndexFacadeUtilities.buildCorrelationID(source)).source(source);
+			requests.add(req);
 		}
-		bulkProcessor.close();
-		if (wait) {
-			BulkIndexingNotifyListener l = (BulkIndexingNotifyListener) listener;
-			try {
-				finish.await();
-			} catch (InterruptedException e) {
-				throw new ESIndexFacadeException("Correlation Indexation ended with error ");
-			}
-			if (l.withError) {
-				throw new ESIndexFacadeException("Correlation Indexation ended with error ");
-			} else {
-				return l.lastId;
-			}
-		} else {
-			return "";
+		try {
+			return addBatch(domainName, requests, wait);
+		} catch (InterruptedException e) {
+			throw new ESIndexFacadeException("Correlation Indexation ended with error ");
 		}
 	};
 
@@ -870,7 +931,8 @@ public class ESIndexFacade implements IESIndexFacade {
 					"parameters " + types.toString() + " and " + corr.toString() + " do not match");
 		}
 		HashMap<String, Object> source = ESIndexFacadeUtilities.buildSourceIDs(types, corr, mappings);
-		IndexRequest req = new IndexRequest().index(domainName).type(hierarchyName).source(source);
+		IndexRequest req = new IndexRequest().index(domainName).type(hierarchyName)
+				.id(ESIndexFacadeUtilities.buildCorrelationID(source)).source(source);
 		// logger.info(req.toString());
 		IndexResponse resp = client.index(req).actionGet();
 		return resp.getId();
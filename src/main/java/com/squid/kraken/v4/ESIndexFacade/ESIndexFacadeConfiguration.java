@@ -28,12 +28,23 @@ import java.io.IOException;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.squid.kraken.v4.KrakenConfig;
 
 public class ESIndexFacadeConfiguration {
 
 	private boolean embedded;
 	private String clustername;
 
+	// bulk indexing settings, shared by every index
+	private int bulkActions = 5000;
+	private int bulkSizeInMB = 5;
+	private long bulkFlushIntervalInMs = 1000;
+	private int bulkConcurrentRequests = 2;
+	// max time to wait for the bulk responses of a flush
+	private long bulkAckTimeoutInMs = 600000;
+	// period to log the bulk indexing metrics, 0 to disable
+	private long bulkStatsLogIntervalInMs = 300000;
+
 	public ESIndexFacadeConfiguration() {
 		this.embedded = true;
 	}
@@ -43,6 +54,29 @@ public class ESIndexFacadeConfiguration {
 		this.clustername = clustername;
 	}
 
+	/**
+	 * create the configuration from the elastic.* properties
+	 * 
+	 * @return
+	 * @throws NumberFormatException
+	 *             if a bulk setting is not a number
+	 */
+	public static ESIndexFacadeConfiguration fromKrakenConfig() {
+		boolean embedded = KrakenConfig.getProperty("elastic.local", "true").equals("true");
+		ESIndexFacadeConfiguration config = new ESIndexFacadeConfiguration(embedded, null);
+		config.setBulkActions(Integer.parseInt(KrakenConfig.getProperty("elastic.bulk.actions", "5000")));
+		config.setBulkSizeInMB(Integer.parseInt(KrakenConfig.getProperty("elastic.bulk.size.mb", "5")));
+		config.setBulkFlushIntervalInMs(
+				Long.parseLong(KrakenConfig.getProperty("elastic.bulk.flush.interval.ms", "1000")));
+		config.setBulkConcurrentRequests(
+				Integer.parseInt(KrakenConfig.getProperty("elastic.bulk.concurrent.requests", "2")));
+		config.setBulkAckTimeoutInMs(
+				Long.parseLong(KrakenConfig.getProperty("elastic.bulk.ack.timeout.ms", "600000")));
+		config.setBulkStatsLogIntervalInMs(
+				Long.parseLong(KrakenConfig.getProperty("elastic.bulk.stats.log.interval.ms", "300000")));
+		return config;
+	}
+
 	public boolean isEmbedded() {
 		return embedded;
 	}
@@ -59,6 +93,54 @@ public class ESIndexFacadeConfiguration {
 		this.clustername = clustername;
 	}
 
+	public int getBulkActions() {
+		return bulkActions;
+	}
+
+	public void setBulkActions(int bulkActions) {
+		this.bulkActions = bulkActions;
+	}
+
+	public int getBulkSizeInMB() {
+		return bulkSizeInMB;
+	}
+
+	public void setBulkSizeInMB(int bulkSizeInMB) {
+		this.bulkSizeInMB = bulkSizeInMB;
+	}
+
+	public long getBulkFlushIntervalInMs() {
+		return bulkFlushIntervalInMs;
+	}
+
+	public void setBulkFlushIntervalInMs(long bulkFlushIntervalInMs) {
+		this.bulkFlushIntervalInMs = bulkFlushIntervalInMs;
+	}
+
+	public int getBulkConcurrentRequests() {
+		return bulkConcurrentRequests;
+	}
+
+	public void setBulkConcurrentRequests(int bulkConcurrentRequests) {
+		this.bulkConcurrentRequests = bulkConcurrentRequests;
+	}
+
+	public long getBulkAckTimeoutInMs() {
+		return bulkAckTimeoutInMs;
+	}
+
+	public void setBulkAckTimeoutInMs(long bulkAckTimeoutInMs) {
+		this.bulkAckTimeoutInMs = bulkAckTimeoutInMs;
+	}
+
+	public long getBulkStatsLogIntervalInMs() {
+		return bulkStatsLogIntervalInMs;
+	}
+
+	public void setBulkStatsLogIntervalInMs(long bulkStatsLogIntervalInMs) {
+		this.bulkStatsLogIntervalInMs = bulkStatsLogIntervalInMs;
+	}
+
 	public String toJson() throws JsonProcessingException {
 		ObjectMapper mapper = new ObjectMapper();
 		String res = mapper.enable(SerializationFeature.INDENT_OUTPUT)
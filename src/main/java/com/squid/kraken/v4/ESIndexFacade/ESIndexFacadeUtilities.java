@@ -28,6 +28,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
 
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.FilterBuilders;
@@ -85,6 +88,22 @@ public class ESIndexFacadeUtilities {
 		return source;
 	}
 
+	/**
+	 * compute the document id of a correlation from its member ids, so that
+	 * indexing the same correlation again overwrites the same document
+	 * 
+	 * @param source
+	 *            the correlation source, as built by buildSourceIDs()
+	 * @return
+	 */
+	public static String buildCorrelationID(Map<String, Object> source) {
+		StringBuilder key = new StringBuilder();
+		for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(source).entrySet()) {
+			key.append(entry.getKey()).append('\u0000').append(entry.getValue()).append('\u0001');
+		}
+		return DigestUtils.sha256Hex(key.toString());
+	}
+
 	public static String escapeQueryStringQuery(String toEscape) {
 		String res = toEscape;
 		res = res.replace("\\", "\\\\");
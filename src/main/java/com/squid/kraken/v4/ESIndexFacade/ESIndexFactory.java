@@ -49,7 +49,7 @@ public class ESIndexFactory {
   
     public static synchronized void init(ESIndexFacadeConfiguration config) {
         if (INSTANCE==null) {
-            ESIndexFacade elastic = new ESIndexFacade();
+            ESIndexFacade elastic = new ESIndexFacade(config);
             NodeBuilder node = nodeBuilder();
             try {
             	if (config.isEmbedded()) {
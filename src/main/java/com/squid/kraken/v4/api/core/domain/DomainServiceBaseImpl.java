@@ -272,7 +272,7 @@ public class DomainServiceBaseImpl extends GenericServiceImpl<Domain, DomainPK>
 				// refresh the domain too
 				RedisCacheManager.getInstance().refresh(
 						space.getDomain().getId().toUUID());
-				DomainHierarchyManager.INSTANCE.invalidate(new DomainPK( projectId, domainId));
+				DomainHierarchyManager.INSTANCE.refreshData(new DomainPK( projectId, domainId));
 				return true;
 			}
 		} catch (ScopeException e) {
@@ -44,6 +44,7 @@ import com.squid.kraken.v4.caching.redis.queryworkerserver.MockQueryWorker;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerFactory;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerRestService;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerServer;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.rpc.QueryWorkerRpcServer;
 
 @Path("/cache")
 public class CacheInitPoint {
@@ -74,6 +75,10 @@ public class CacheInitPoint {
 	            CacheInitPoint.isWorker= true; 
 	    		IQueryWorkerServer  worker = QueryWorkerFactory.INSTANCE.getNewQueryWorkerServer(conf, new ServerID("localhost", -1), true);
 	    		worker.start();
+	    		if (QueryWorkerRpcServer.isEnabled(conf)) {
+	    			new QueryWorkerRpcServer(worker, conf.getWorkerRpcBindAddress(), conf.getWorkerRpcPort(),
+	    					conf.getWorkerRpcSecret()).start();
+	    		}
 	       	}
 	        if (facets.contains("keysserver")){  
 	        	logger.info("Facet : keys server");
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squid.kraken.v4.caching.redis.datastruct.ChunkRef;
+import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
+import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValue;
+import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
+
+/**
+ * Iterate over the chunks of a RedisCacheValuesList, in order.
+ * 
+ * The chunks are fetched by batch of prefetch keys using a single multi-get,
+ * and only the current batch is kept in memory. If the list is still being
+ * computed, the iterator waits for the worker to publish an update of the
+ * list.
+ *
+ */
+public class ChunkedRawMatrixIterator implements Iterator<RawMatrix> {
+
+	static final Logger logger = LoggerFactory.getLogger(ChunkedRawMatrixIterator.class);
+
+	public static final int DEFAULT_PREFETCH = 4;
+
+	// check the list anyway in case an update notification is lost
+	private static final long UPDATE_TIMEOUT_IN_MS = 10 * 1000;
+
+	private IRedisCacheProxy redis;
+
+	private String key;
+
+	private RedisCacheValuesList refList;
+
+	private int prefetch;
+
+	private int nbChunksFetched = 0;
+
+	private int nbChunksRead = 0;
+
+	private ArrayDeque<RawMatrix> buffer = new ArrayDeque<RawMatrix>();
+
+	private boolean eof = false;
+
+	public ChunkedRawMatrixIterator(IRedisCacheProxy redis, RedisCacheValuesList refList) {
+		this(redis, refList, DEFAULT_PREFETCH);
+	}
+
+	public ChunkedRawMatrixIterator(IRedisCacheProxy redis, RedisCacheValuesList refList, int prefetch) {
+		this.redis = redis;
+		this.refList = refList;
+		this.key = refList.getRedisKey();
+		this.prefetch = Math.max(1, prefetch);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (buffer.isEmpty() && !eof) {
+			fetch();
+		}
+		return !buffer.isEmpty();
+	}
+
+	@Override
+	public RawMatrix next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		nbChunksRead++;
+		return buffer.poll();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the number of chunks returned so far
+	 */
+	public int getNbChunksRead() {
+		return nbChunksRead;
+	}
+
+	private void fetch() {
+		try {
+			List<String> chunkKeys = getNextChunkKeys();
+			if (chunkKeys.isEmpty()) {
+				logger.info("Full matrix retrieve from cache, " + nbChunksRead + " chunks");
+				eof = true;
+				return;
+			}
+			List<byte[]> values = redis.get(chunkKeys);
+			for (int i = 0; i < chunkKeys.size(); i++) {
+				String chunkKey = chunkKeys.get(i);
+				byte[] serialized = values.get(i);
+				if (serialized == null) {
+					throw new RedisCacheException("Error retrieving chunk " + chunkKey + " from redis");
+				}
+				RedisCacheValue val = RedisCacheValue.deserialize(serialized);
+				RawMatrix chunk;
+				if (val instanceof RawMatrix) {
+					chunk = (RawMatrix) val;
+					chunk.setRedisKey(chunkKey);
+				} else {
+					// not a plain chunk, let the proxy resolve it
+					chunk = redis.getRawMatrix(chunkKey);
+					if (chunk == null) {
+						throw new RedisCacheException("Error retrieving chunk " + chunkKey + " from redis");
+					}
+				}
+				buffer.add(chunk);
+			}
+			nbChunksFetched += chunkKeys.size();
+		} catch (InterruptedException e) {
+			// keep the interrupt so that the caller can stop
+			Thread.currentThread().interrupt();
+			throw new RedisCacheException("Interrupted while waiting for the chunks of " + key, e);
+		} catch (ClassNotFoundException | IOException e) {
+			throw new RedisCacheException("Error retrieving chunks of " + key + " from redis: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * return the keys of the next batch of chunks, waiting for them if the
+	 * list is not complete yet; return an empty list if there is no more chunk
+	 */
+	private List<String> getNextChunkKeys() throws ClassNotFoundException, IOException, InterruptedException {
+		if (refList.getReferenceKeys().size() <= nbChunksFetched && refList.isOngoing()) {
+			// watch before reading the list again so that no update is missed
+			try (RedisKeyNotifier.Watch watch = redis.watch(key)) {
+				refreshList();
+				while (refList.getReferenceKeys().size() <= nbChunksFetched && refList.isOngoing()) {
+					watch.await(UPDATE_TIMEOUT_IN_MS);
+					refreshList();
+				}
+			}
+		}
+		if (refList.getReferenceKeys().size() <= nbChunksFetched) {
+			// done or error
+			return new ArrayList<String>();
+		}
+		List<ChunkRef> refs = refList.getReferenceKeys();
+		int end = Math.min(refs.size(), nbChunksFetched + prefetch);
+		List<String> chunkKeys = new ArrayList<String>(end - nbChunksFetched);
+		for (int i = nbChunksFetched; i < end; i++) {
+			chunkKeys.add(refs.get(i).referencedKey);
+		}
+		return chunkKeys;
+	}
+
+	private void refreshList() throws ClassNotFoundException, IOException {
+		byte[] serialized = redis.get(key);
+		RedisCacheValue val = serialized != null ? RedisCacheValue.deserialize(serialized) : null;
+		if (val instanceof RedisCacheValuesList) {
+			this.refList = (RedisCacheValuesList) val;
+		} else {
+			throw new RedisCacheException("could not retrieve chunk list");
+		}
+	}
+
+}
@@ -28,8 +28,10 @@ import java.util.List;
 
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValue;
+import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
 import com.squid.kraken.v4.caching.redis.generationalkeysserver.RedisKey;
 import com.squid.kraken.v4.caching.redis.queriesserver.IQueriesServer;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
 import com.squid.kraken.v4.model.ProjectPK;
 
 public interface IRedisCacheManager {
@@ -60,6 +62,9 @@ public interface IRedisCacheManager {
 	public RedisCacheValue getRedisCacheValue(String userID, String login, ProjectPK projectPK, String SQLQuery, List<String> dependencies, String jobId,
 			String RSjdbcURL, String username, String pwd, int TTLinSec, long limit) throws InterruptedException;
 
+	public RedisCacheValue getRedisCacheValue(String userID, String login, ProjectPK projectPK, String SQLQuery, List<String> dependencies, String jobId,
+			String RSjdbcURL, String username, String pwd, int TTLinSec, long limit, Priority priority) throws InterruptedException;
+
 	public RedisKey getKey(String key, Collection<String> dependencies);
 
 	public RedisKey getKey(String key, String... dependencies);
@@ -76,6 +81,14 @@ public interface IRedisCacheManager {
 
 	public RawMatrix getRawMatrix(String k);
 
+	/**
+	 * rebuild the RawMatrix from an already fetched chunk list
+	 * 
+	 * @param refList
+	 * @return
+	 */
+	public RawMatrix getRawMatrix(RedisCacheValuesList refList);
+
 	public String addCacheReference(String sqlNoLimit, List<String> dependencies, String referencedKey);
 
 	public IQueriesServer getQueryServer();
@@ -23,8 +23,11 @@
  *******************************************************************************/
 package com.squid.kraken.v4.caching.redis;
 
+import java.util.List;
+
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValue;
+import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
 import com.squid.kraken.v4.caching.redis.generationalkeysserver.RedisKey;
 
 public interface IRedisCacheProxy {
@@ -37,10 +40,59 @@ public interface IRedisCacheProxy {
 
 	public boolean put(byte[] k, byte[] v);
 
+	/**
+	 * set the value and its time to live in one command
+	 * 
+	 * @param k
+	 * @param v
+	 * @param ttl
+	 *            in seconds, no expiration if not positive
+	 * @return
+	 */
+	public boolean put(String k, byte[] v, int ttl);
+
+	/**
+	 * set several values in one round-trip
+	 * 
+	 * @param keys
+	 * @param values
+	 * @param ttls
+	 *            the time to live of each value, in seconds, no expiration if
+	 *            not positive
+	 * @return true if all the values were set
+	 */
+	public boolean put(List<String> keys, List<byte[]> values, int[] ttls);
+
+	/**
+	 * set the value only if the key does not exist yet
+	 * 
+	 * @param k
+	 * @param v
+	 * @return true if the value was set
+	 */
+	public boolean putIfAbsent(String k, byte[] v);
+
 	public RawMatrix getRawMatrix(String key);
 
+	/**
+	 * merge the chunks of the list into a single matrix, up to the proxy max
+	 * size
+	 * 
+	 * @param refList
+	 * @return
+	 */
+	public RawMatrix getRawMatrix(RedisCacheValuesList refList);
+
 	public byte[] get(String key);
 
+	/**
+	 * get several values in one round-trip
+	 * 
+	 * @param keys
+	 * @return the values in the keys order, null if a key is not in the cache
+	 */
+	public List<byte[]> get(List<String> keys);
+
 	public boolean inCache(RedisKey k);
 
 	public boolean inCache(String key);
@@ -51,5 +103,49 @@ public interface IRedisCacheProxy {
 
 	public void setTTL(String key, int ttl);
 
+	/**
+	 * set the lock if it does not exist (SET NX PX)
+	 * 
+	 * @return true if the lock was acquired
+	 */
+	public boolean tryLock(String key, String token, long leaseInMs);
+
+	/**
+	 * extend the lock expiration if it is still owned by the token
+	 */
+	public boolean renewLock(String key, String token, long leaseInMs);
+
+	/**
+	 * give the lock to a new owner if it is still owned by the token
+	 */
+	public boolean transferLock(String key, String token, String newToken, long leaseInMs);
+
+	/**
+	 * delete the lock if it is still owned by the token
+	 */
+	public boolean unlock(String key, String token);
+
 	public RedisCacheValue getRawOrList(String key );
+
+	/**
+	 * notify the watchers that the key value has been updated
+	 * 
+	 * @param key
+	 */
+	public void publishUpdate(String key);
+
+	/**
+	 * watch the key updates; the returned watch must be closed
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public RedisKeyNotifier.Watch watch(String key);
+
+	/**
+	 * listen to all the key updates, from any process
+	 * 
+	 * @param listener
+	 */
+	public void addUpdateListener(RedisKeyNotifier.UpdateListener listener);
 }
\ No newline at end of file
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
+
+/**
+ * A process-local cache of deserialized RawMatrix sitting in front of Redis.
+ *
+ * Entries are keyed by the generational cache key, so a new dependency version
+ * always produces a cache miss; in addition an entry is evicted as soon as one
+ * of its dependencies is refreshed on this node.
+ *
+ * The cache is bounded by an estimate of the heap size of the decoded matrices
+ * (in bytes); the serialized size is not a good proxy since the chunks may be
+ * compressed.
+ *
+ */
+public class RawMatrixNearCache {
+
+	static final Logger logger = LoggerFactory.getLogger(RawMatrixNearCache.class);
+
+	private Cache<String, Entry> cache;
+
+	private long maxSizeInByte;
+
+	private AtomicLong sizeInByte = new AtomicLong(0);
+
+	public RawMatrixNearCache(long maxSizeInByte) {
+		this.maxSizeInByte = maxSizeInByte;
+		this.cache = CacheBuilder.newBuilder()
+				.maximumWeight(maxSizeInByte)
+				.weigher(new EntryWeigher())
+				.removalListener(new EntryRemovalListener())
+				.recordStats()
+				.build();
+		logger.info("new RawMatrix near-cache with max size of " + maxSizeInByte + " bytes");
+	}
+
+	private static class Entry {
+
+		private RawMatrix matrix;
+		private Set<String> dependencies;
+		private int weight;
+
+		public Entry(RawMatrix matrix, Set<String> dependencies, int weight) {
+			this.matrix = matrix;
+			this.dependencies = dependencies;
+			this.weight = weight;
+		}
+
+	}
+
+	private class EntryWeigher implements Weigher<String, Entry> {
+
+		@Override
+		public int weigh(String key, Entry entry) {
+			return entry.weight;
+		}
+
+	}
+
+	private class EntryRemovalListener implements RemovalListener<String, Entry> {
+
+		@Override
+		public void onRemoval(RemovalNotification<String, Entry> notif) {
+			Entry entry = notif.getValue();
+			if (entry != null) {
+				sizeInByte.addAndGet(-entry.weight);
+			}
+		}
+
+	}
+
+	/**
+	 * return a copy of the cached matrix, or null if the key is not in the
+	 * near-cache
+	 *
+	 * @param key
+	 * @return
+	 */
+	public RawMatrix get(String key) {
+		Entry entry = cache.getIfPresent(key);
+		if (entry != null) {
+			// the caller is free to sort or merge the matrix, so never share the row list
+			return entry.matrix.copy();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * add the matrix to the near-cache; the matrix must not be modified by the caller afterward
+	 *
+	 * @param key
+	 * @param matrix
+	 * @param dependencies
+	 *            the dependencies used to build the key, or null if unknown
+	 */
+	public void put(String key, RawMatrix matrix, Collection<String> dependencies) {
+		long size = matrix.getHeapSize();
+		if (size <= 0 || size > maxSizeInByte || size > Integer.MAX_VALUE) {
+			// empty or too big to fit
+			return;
+		}
+		Set<String> deps;
+		if (dependencies == null || dependencies.isEmpty()) {
+			deps = Collections.emptySet();
+		} else {
+			deps = new HashSet<String>(dependencies);
+		}
+		sizeInByte.addAndGet(size);
+		cache.put(key, new Entry(matrix, deps, (int) size));
+	}
+
+	/**
+	 * evict every matrix that depends on one of the given dependencies
+	 *
+	 * @param dependencies
+	 */
+	public void invalidate(Collection<String> dependencies) {
+		for (Map.Entry<String, Entry> item : cache.asMap().entrySet()) {
+			for (String dep : dependencies) {
+				if (item.getValue().dependencies.contains(dep)) {
+					cache.invalidate(item.getKey());
+					break;
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		cache.invalidateAll();
+	}
+
+	public NearCacheStats getStats() {
+		CacheStats stats = cache.stats();
+		return new NearCacheStats(cache.size(), sizeInByte.get(), maxSizeInByte, stats.hitCount(),
+				stats.missCount(), stats.evictionCount());
+	}
+
+	/**
+	 * near-cache metrics
+	 *
+	 */
+	public static class NearCacheStats {
+
+		private long entries;
+		private long sizeInByte;
+		private long maxSizeInByte;
+		private long hitCount;
+		private long missCount;
+		private long evictionCount;
+
+		public NearCacheStats(long entries, long sizeInByte, long maxSizeInByte, long hitCount, long missCount,
+				long evictionCount) {
+			this.entries = entries;
+			this.sizeInByte = sizeInByte;
+			this.maxSizeInByte = maxSizeInByte;
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.evictionCount = evictionCount;
+		}
+
+		public long getEntries() {
+			return entries;
+		}
+
+		public long getSizeInByte() {
+			return sizeInByte;
+		}
+
+		public long getMaxSizeInByte() {
+			return maxSizeInByte;
+		}
+
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		public long getMissCount() {
+			return missCount;
+		}
+
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+
+		@Override
+		public String toString() {
+			return "entries=" + entries + " size=" + sizeInByte + "/" + maxSizeInByte + " hits=" + hitCount
+					+ " misses=" + missCount + " evictions=" + evictionCount;
+		}
+
+	}
+
+}
@@ -48,18 +48,46 @@ public class RedisCacheConfig {
 	private ServerID queriesServerID = new ServerID();
 	
 	private ArrayList<ServerID> workers;
+
+	private ServerID workerID;// the address of this worker, as declared in the workers list
+
+	private int workerLoadReportPeriodInMs = 1000;
+
+	private int workerRpcPort = 0;// 0 to use the REST API between the queries server and the workers
+
+	private int workerRpcPoolSize = 4;
+
+	private String workerRpcBindAddress = "127.0.0.1";// the address the worker binary protocol listens on
+
+	private String workerRpcSecret;// shared by the queries server and the workers, required to enable the binary protocol
+
+	private int workerRpcFetchTimeoutInSec = 3600;
 	
 	private boolean debug;
 
 	private String appName="";
 
-	private int querieServerThreadPoolSize = 5;
+	private int querieServerThreadPoolSize = 5;// initial number of concurrent queries per datasource
+
+	private int querieServerMaxThreadPoolSize = 20;
+
+	private int querieServerMaxQueueSize = 200;
+
+	private int querieServerMaxQueueWaitInSec = 300;
 
 	
 	private int ttlInSecond = 24*60*60;
 	
 	private int maxChunkSizeInMByte= 10;
 
+	private int minChunkSizeInKByte = 512;// the size of the first chunk
+
+	private int chunkTargetDurationInMs = 2000;// 0 to split the results by size only
+
+	private int nearCacheSizeInMByte = 256;// 0 to disable the local cache
+
+	private boolean compressCacheValues = true;
+
 	public RedisCacheConfig(){
 		
 	}
@@ -129,6 +157,108 @@ public class RedisCacheConfig {
 	public void setQuerieServerThreadPoolSize(int querieServerThreadPoolSize) {
 		this.querieServerThreadPoolSize = querieServerThreadPoolSize;
 	}
+
+	public int getQuerieServerMaxThreadPoolSize() {
+		return querieServerMaxThreadPoolSize;
+	}
+
+	public void setQuerieServerMaxThreadPoolSize(int querieServerMaxThreadPoolSize) {
+		this.querieServerMaxThreadPoolSize = querieServerMaxThreadPoolSize;
+	}
+
+	public int getQuerieServerMaxQueueSize() {
+		return querieServerMaxQueueSize;
+	}
+
+	public void setQuerieServerMaxQueueSize(int querieServerMaxQueueSize) {
+		this.querieServerMaxQueueSize = querieServerMaxQueueSize;
+	}
+
+	/**
+	 * the address of this worker, as declared in the workers list of the
+	 * queries server; used to publish the worker load. If not set, the only
+	 * worker of the list running on this host is used
+	 */
+	public ServerID getWorkerID() {
+		return workerID;
+	}
+
+	public void setWorkerID(ServerID workerID) {
+		this.workerID = workerID;
+	}
+
+	public int getWorkerLoadReportPeriodInMs() {
+		return workerLoadReportPeriodInMs;
+	}
+
+	public void setWorkerLoadReportPeriodInMs(int workerLoadReportPeriodInMs) {
+		this.workerLoadReportPeriodInMs = workerLoadReportPeriodInMs;
+	}
+
+	/**
+	 * the port of the workers binary protocol, or 0 to use the REST API
+	 */
+	public int getWorkerRpcPort() {
+		return workerRpcPort;
+	}
+
+	public void setWorkerRpcPort(int workerRpcPort) {
+		this.workerRpcPort = workerRpcPort;
+	}
+
+	/**
+	 * number of connections to each worker
+	 */
+	public int getWorkerRpcPoolSize() {
+		return workerRpcPoolSize;
+	}
+
+	public void setWorkerRpcPoolSize(int workerRpcPoolSize) {
+		this.workerRpcPoolSize = workerRpcPoolSize;
+	}
+
+	/**
+	 * the address the worker binary protocol listens on; loopback by default
+	 */
+	public String getWorkerRpcBindAddress() {
+		return workerRpcBindAddress;
+	}
+
+	public void setWorkerRpcBindAddress(String workerRpcBindAddress) {
+		this.workerRpcBindAddress = workerRpcBindAddress;
+	}
+
+	/**
+	 * the secret used to authenticate the connections of the binary protocol;
+	 * the protocol stays off until it is set
+	 */
+	public String getWorkerRpcSecret() {
+		return workerRpcSecret;
+	}
+
+	public void setWorkerRpcSecret(String workerRpcSecret) {
+		this.workerRpcSecret = workerRpcSecret;
+	}
+
+	/**
+	 * how long the queries server waits for a worker to start returning a
+	 * result through the binary protocol
+	 */
+	public int getWorkerRpcFetchTimeoutInSec() {
+		return workerRpcFetchTimeoutInSec;
+	}
+
+	public void setWorkerRpcFetchTimeoutInSec(int workerRpcFetchTimeoutInSec) {
+		this.workerRpcFetchTimeoutInSec = workerRpcFetchTimeoutInSec;
+	}
+
+	public int getQuerieServerMaxQueueWaitInSec() {
+		return querieServerMaxQueueWaitInSec;
+	}
+
+	public void setQuerieServerMaxQueueWaitInSec(int querieServerMaxQueueWaitInSec) {
+		this.querieServerMaxQueueWaitInSec = querieServerMaxQueueWaitInSec;
+	}
 	
 	public int getTtlInSecond() {
 		return ttlInSecond;
@@ -138,6 +268,29 @@ public class RedisCacheConfig {
 		this.ttlInSecond = ttlInSecond;
 	}
 
+	/**
+	 * the min size of the chunks of a result larger than maxChunkSizeInMByte
+	 */
+	public int getMinChunkSizeInKByte() {
+		return minChunkSizeInKByte;
+	}
+
+	public void setMinChunkSizeInKByte(int minChunkSizeInKByte) {
+		this.minChunkSizeInKByte = minChunkSizeInKByte;
+	}
+
+	/**
+	 * the expected time to read one chunk of a result larger than
+	 * maxChunkSizeInMByte; the chunk size adapts to the read throughput
+	 */
+	public int getChunkTargetDurationInMs() {
+		return chunkTargetDurationInMs;
+	}
+
+	public void setChunkTargetDurationInMs(int chunkTargetDurationInMs) {
+		this.chunkTargetDurationInMs = chunkTargetDurationInMs;
+	}
+
 	public int getMaxChunkSizeInMByte() {
 		return maxChunkSizeInMByte;
 	}
@@ -146,6 +299,22 @@ public class RedisCacheConfig {
 		this.maxChunkSizeInMByte = maxChunkSizeInMByte;
 	}
 
+	public int getNearCacheSizeInMByte() {
+		return nearCacheSizeInMByte;
+	}
+
+	public void setNearCacheSizeInMByte(int nearCacheSizeInMByte) {
+		this.nearCacheSizeInMByte = nearCacheSizeInMByte;
+	}
+
+	public boolean isCompressCacheValues() {
+		return compressCacheValues;
+	}
+
+	public void setCompressCacheValues(boolean compressCacheValues) {
+		this.compressCacheValues = compressCacheValues;
+	}
+
 	public static RedisCacheConfig loadFromjson(String filename) throws IOException{
 	
         File file = new File(filename);
@@ -43,6 +43,7 @@ import com.squid.kraken.v4.caching.redis.generationalkeysserver.RedisKey;
 import com.squid.kraken.v4.caching.redis.queriesserver.IQueriesServer;
 import com.squid.kraken.v4.caching.redis.queriesserver.QueriesServerFactory;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
 import com.squid.kraken.v4.model.ProjectPK;
 
 public class RedisCacheManager implements IRedisCacheManager {
@@ -57,6 +58,7 @@ public class RedisCacheManager implements IRedisCacheManager {
 	private RedisCacheConfig conf;
 	private IQueriesServer queriesServ;
 	private IGenerationalKeysServer genkeysServ;
+	private RawMatrixNearCache nearCache;
 
 	// constructors
 
@@ -93,6 +95,11 @@ public class RedisCacheManager implements IRedisCacheManager {
 
 		this.redis = RedisCacheProxy.getInstance(conf.getRedisID());
 
+		RawMatrix.setCompression(conf.isCompressCacheValues());
+
+		if (conf.getNearCacheSizeInMByte() > 0) {
+			this.nearCache = new RawMatrixNearCache(conf.getNearCacheSizeInMByte() * 1048576L);
+		}
 	}
 
 	@Override
@@ -101,18 +108,18 @@ public class RedisCacheManager implements IRedisCacheManager {
 		// generate the key by adding projectID and SQL
 		String k = buildCacheKey(SQLQuery, dependencies);
 
-		RawMatrix res = getRawMatrix(k);
+		RawMatrix res = getRawMatrix(k, dependencies);
 		if (res != null) {
 			logger.debug("cache hit for key = " + k);
 			res.setFromCache(true);
 		} else {
-			int queryNum = this.fetch(userID, login, projectPK, k, SQLQuery, jobId, RSjdbcURL, username, pwd, TTLinSec, limit);
+			int queryNum = this.fetch(userID, login, projectPK, k, SQLQuery, jobId, RSjdbcURL, username, pwd, TTLinSec, limit, Priority.INTERACTIVE);
 			if (queryNum == -1) {
 				logger.info(
 						"failed to fetch result for job :" + jobId + "\nSQLQuery:\n " + SQLQuery + "\nfetch failed");
 				return null;
 			}
-			res = getRawMatrix(k);
+			res = getRawMatrix(k, dependencies);
 			res.setFromCache(false);
 		}
 
@@ -122,7 +129,7 @@ public class RedisCacheManager implements IRedisCacheManager {
 	public RawMatrix getDataLazy(String SQLQuery, List<String> dependencies, String RSjdbcURL, String username,
 			String pwd, int TTLinSec) {
 		String k = buildCacheKey(SQLQuery, dependencies);
-		RawMatrix res = getRawMatrix(k);
+		RawMatrix res = getRawMatrix(k, dependencies);
 		if (res != null) {
 			logger.debug("cache hit for key = " + k);
 			res.setFromCache(true);
@@ -136,7 +143,7 @@ public class RedisCacheManager implements IRedisCacheManager {
 	public RedisCacheValue getRedisCacheValueLazy(String SQLQuery, List<String> dependencies, String RSjdbcURL,
 			String username, String pwd, int TTLinSec) {
 		String k = buildCacheKey(SQLQuery, dependencies);
-		RedisCacheValue val = this.redis.getRawOrList(k);
+		RedisCacheValue val = getRawOrList(k, dependencies);
 
 		if (val!=null) {
 			val.setFromCache(true);
@@ -153,8 +160,14 @@ public class RedisCacheManager implements IRedisCacheManager {
 	@Override
 	public RedisCacheValue getRedisCacheValue(String userID, String login, ProjectPK projectPK, String SQLQuery, List<String> dependencies, String jobId,
 			String RSjdbcURL, String username, String pwd, int TTLinSec, long limit) throws InterruptedException {
+		return getRedisCacheValue(userID, login, projectPK, SQLQuery, dependencies, jobId, RSjdbcURL, username, pwd, TTLinSec, limit, Priority.INTERACTIVE);
+	}
+
+	@Override
+	public RedisCacheValue getRedisCacheValue(String userID, String login, ProjectPK projectPK, String SQLQuery, List<String> dependencies, String jobId,
+			String RSjdbcURL, String username, String pwd, int TTLinSec, long limit, Priority priority) throws InterruptedException {
 		String k = buildCacheKey(SQLQuery, dependencies);
-		RedisCacheValue val = this.redis.getRawOrList(k);
+		RedisCacheValue val = getRawOrList(k, dependencies);
 		if (val != null) {
 			val.setFromCache(true);
 			if(val instanceof RedisCacheValuesList){
@@ -168,12 +181,12 @@ public class RedisCacheManager implements IRedisCacheManager {
 				return val;
 			}
 		}
-		int queryId = this.fetch(userID, login, projectPK, k, SQLQuery, jobId, RSjdbcURL, username, pwd, TTLinSec, limit);
+		int queryId = this.fetch(userID, login, projectPK, k, SQLQuery, jobId, RSjdbcURL, username, pwd, TTLinSec, limit, priority);
 		if (queryId == -1) {
 			logger.info("failed to fetch result for job :" + jobId + "\nSQLQuery:\n " + SQLQuery + "\nfetch failed");
 			return null;
 		}
-		val = this.redis.getRawOrList(k);
+		val = getRawOrList(k, dependencies);
 		if (val instanceof RedisCacheValuesList) {
 			return validateCacheList((RedisCacheValuesList) val);
 		} else {
@@ -191,7 +204,9 @@ public class RedisCacheManager implements IRedisCacheManager {
 			return null;
 		}
 		if (list.isOngoing()) {
-			boolean isOngoing = this.queriesServ.isQueryOngoing(list.getRedisKey());
+			// the query may be computed by another node as long as it holds the lease
+			boolean isOngoing = this.queriesServ.isQueryOngoing(list.getRedisKey())
+					|| this.redis.inCache(RedisLease.getLeaseKey(list.getRedisKey()));
 			if (isOngoing) {
 				logger.debug("really ongoing");
 				return list;
@@ -227,13 +242,10 @@ public class RedisCacheManager implements IRedisCacheManager {
 		try {
 			String k = buildCacheKey(sqlNoLimit, dependencies);
 			if (!k.equals(referencedKey)) {// T1948
-				if (!this.redis.inCache(k)) {
+				RedisCacheReference ref = new RedisCacheReference(referencedKey);
+				if (this.redis.putIfAbsent(k, ref.serialize())) {
 					logger.debug("Add reference key : " + k + "    " + referencedKey);
-					RedisCacheReference ref = new RedisCacheReference(referencedKey);
-					boolean ok = this.redis.put(k, ref.serialize());
-					if (ok) {
-						return k;
-					}
+					return k;
 				} else {
 					logger.debug("Invalid cache reference key : " + k + ": already defined");
 				}
@@ -261,18 +273,24 @@ public class RedisCacheManager implements IRedisCacheManager {
 	public void clear() {
 		logger.info("Clearing SQL cache");
 		this.redis.clear();
+		if (this.nearCache != null) {
+			this.nearCache.clear();
+		}
 	}
 
 	public void refresh(String... dependencies) {
-		this.genkeysServ.refresh(Arrays.asList(dependencies));
+		refresh(Arrays.asList(dependencies));
 	}
 
 	public void refresh(List<String> dependencies) {
 		this.genkeysServ.refresh(dependencies);
+		if (this.nearCache != null) {
+			this.nearCache.invalidate(dependencies);
+		}
 	}
 
 	public void refresh(String key) {
-		this.genkeysServ.refresh(Collections.singletonList(key));
+		refresh(Collections.singletonList(key));
 	}
 
 	public RedisKey getKey(String key) {
@@ -317,14 +335,74 @@ public class RedisCacheManager implements IRedisCacheManager {
 	}
 
 	private int fetch(String userID, String login, ProjectPK projectPK, String k, String SQLQuery, String jobId, String RSjdbcURL, String username, String pwd, int ttl,
-			long limit) throws InterruptedException {
+			long limit, Priority priority) throws InterruptedException {
 		QueryWorkerJobRequest request = new QueryWorkerJobRequest(userID, login, projectPK, k, SQLQuery, jobId, RSjdbcURL, username, pwd, ttl, limit);
+		request.setPriority(priority);
 		return this.queriesServ.fetch(request);
 	}
 
 	public RawMatrix getRawMatrix(String k) {
-		RawMatrix r = this.redis.getRawMatrix(k);
-		return r;
+		return getRawMatrix(k, null);
+	}
+
+	private RawMatrix getRawMatrix(String k, Collection<String> dependencies) {
+		RedisCacheValue val = getRawOrList(k, dependencies);
+		if (val == null) {
+			return null;
+		} else if (val instanceof RawMatrix) {
+			return (RawMatrix) val;
+		} else {
+			// chunked result, rebuild from redis
+			RawMatrix merged = this.redis.getRawMatrix(k);
+			if (this.nearCache != null && merged != null) {
+				// all the chunks have been read, the merged matrix won't change
+				this.nearCache.put(k, merged, dependencies);
+				return merged.copy();
+			}
+			return merged;
+		}
+	}
+
+	public RawMatrix getRawMatrix(RedisCacheValuesList refList) {
+		return this.redis.getRawMatrix(refList);
+	}
+
+	/**
+	 * lookup the near-cache first, then redis; only single RawMatrix values
+	 * are kept in the near-cache since chunk lists can still be updated (see
+	 * getRawMatrix() for the merged chunks)
+	 * 
+	 * @param k
+	 * @param dependencies
+	 * @return
+	 */
+	private RedisCacheValue getRawOrList(String k, Collection<String> dependencies) {
+		if (this.nearCache != null) {
+			RawMatrix local = this.nearCache.get(k);
+			if (local != null) {
+				return local;
+			}
+		}
+		RedisCacheValue val = this.redis.getRawOrList(k);
+		if (this.nearCache != null && val instanceof RawMatrix) {
+			this.nearCache.put(k, (RawMatrix) val, dependencies);
+			// keep the cached instance private
+			return ((RawMatrix) val).copy();
+		}
+		return val;
+	}
+
+	/**
+	 * return the near-cache metrics, or null if it is disabled
+	 * 
+	 * @return
+	 */
+	public RawMatrixNearCache.NearCacheStats getNearCacheStats() {
+		if (this.nearCache != null) {
+			return this.nearCache.getStats();
+		} else {
+			return null;
+		}
 	}
 	
 	@Override
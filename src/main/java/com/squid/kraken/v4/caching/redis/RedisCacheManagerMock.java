@@ -34,12 +34,14 @@ import org.slf4j.LoggerFactory;
 
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValue;
+import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
 import com.squid.kraken.v4.caching.redis.generationalkeysserver.GenerationalKeysServerMock;
 import com.squid.kraken.v4.caching.redis.generationalkeysserver.IGenerationalKeysServer;
 import com.squid.kraken.v4.caching.redis.generationalkeysserver.RedisKey;
 import com.squid.kraken.v4.caching.redis.queriesserver.IQueriesServer;
 import com.squid.kraken.v4.caching.redis.queriesserver.QueriesServerFactory;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
 import com.squid.kraken.v4.model.ProjectPK;
 
 public class RedisCacheManagerMock implements IRedisCacheManager {
@@ -164,6 +166,10 @@ public class RedisCacheManagerMock implements IRedisCacheManager {
 		return r;
 	}
 
+	public RawMatrix getRawMatrix(RedisCacheValuesList refList) {
+		return this.redis.getRawMatrix(refList);
+	}
+
 	@Override
 	public RawMatrix getDataLazy(String SQLQuery, List<String> dependencies, String RSjdbcURL, String username,
 			String pwd, int TTLinSec) throws InterruptedException {
@@ -190,6 +196,12 @@ public class RedisCacheManagerMock implements IRedisCacheManager {
 		// TODO Auto-generated method stub
 		return null;
 	}
+
+	@Override
+	public RedisCacheValue getRedisCacheValue(String userID, String login, ProjectPK projectPK, String SQLQuery, List<String> dependencies, String jobId,
+			String RSjdbcURL, String username, String pwd, int TTLinSec, long limit, Priority priority) throws InterruptedException {
+		return getRedisCacheValue(userID, login, projectPK, SQLQuery, dependencies, jobId, RSjdbcURL, username, pwd, TTLinSec, limit);
+	}
 	
 	@Override
 	public IQueriesServer getQueryServer() {
@@ -48,6 +48,17 @@ public class RedisCacheManagerRestService {
 		RedisCacheManager.getInstance().refresh(dependencies);	
 	}
 	
+	@GET
+	@Path("/nearcache")
+	public RawMatrixNearCache.NearCacheStats getNearCacheStats(){
+		IRedisCacheManager manager = RedisCacheManager.getInstance();
+		if (manager instanceof RedisCacheManager) {
+			return ((RedisCacheManager) manager).getNearCacheStats();
+		} else {
+			return null;
+		}
+	}
+	
 	@GET
 	@Path("/getData")
 	public Object getData(
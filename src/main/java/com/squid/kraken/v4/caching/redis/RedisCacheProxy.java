@@ -24,7 +24,11 @@
 package com.squid.kraken.v4.caching.redis;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +43,8 @@ import com.squid.kraken.v4.core.analysis.engine.processor.ComputingException;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 public class RedisCacheProxy implements IRedisCacheProxy {
 
@@ -51,6 +57,7 @@ public class RedisCacheProxy implements IRedisCacheProxy {
 	private String REDIShost ="localhost" ;
 	private int REDISport =6379 ;
 	private JedisPool pool;
+	private RedisKeyNotifier notifier;
 	
 	private int maxSizeInByte = 52428800 ;  //50Megabytes
 	
@@ -93,6 +100,7 @@ public class RedisCacheProxy implements IRedisCacheProxy {
 		JedisPoolConfig config = new JedisPoolConfig();
 		config.setTestOnBorrow(true);
 		this.pool = new JedisPool(config, this.REDIShost, this.REDISport);
+		this.notifier = new RedisKeyNotifier(this.pool, this.REDIShost, this.REDISport);
 	}
 
 	public RedisCacheProxy(ServerID redisID){
@@ -102,6 +110,7 @@ public class RedisCacheProxy implements IRedisCacheProxy {
 		JedisPoolConfig config = new JedisPoolConfig();
 		config.setTestOnBorrow(true);
 		this.pool = new JedisPool(config, this.REDIShost, this.REDISport);
+		this.notifier = new RedisKeyNotifier(this.pool, this.REDIShost, this.REDISport);
 	}
 
 	/*	public void start(){
@@ -138,6 +147,50 @@ public class RedisCacheProxy implements IRedisCacheProxy {
 		} 
 	}
 
+	public boolean put(String k, byte[] v, int ttl){
+
+		try(Jedis jedis  = getResourceFromPool()) {
+			String res;
+			if (ttl > 0) {
+				res = jedis.setex(k.getBytes(), ttl, v);
+			} else {
+				res = jedis.set(k.getBytes(), v);
+			}
+			return res != null;
+		} 
+	}
+
+	public boolean put(List<String> keys, List<byte[]> values, int[] ttls){
+
+		try(Jedis jedis  = getResourceFromPool()) {
+			Pipeline pipeline = jedis.pipelined();
+			List<Response<String>> responses = new ArrayList<Response<String>>(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				byte[] k = keys.get(i).getBytes();
+				if (ttls[i] > 0) {
+					responses.add(pipeline.setex(k, ttls[i], values.get(i)));
+				} else {
+					responses.add(pipeline.set(k, values.get(i)));
+				}
+			}
+			pipeline.sync();
+			for (Response<String> response : responses) {
+				if (response.get() == null) {
+					return false;
+				}
+			}
+			return true;
+		} 
+	}
+
+	public boolean putIfAbsent(String k, byte[] v){
+
+		try(Jedis jedis  = getResourceFromPool()) {
+			Long res = jedis.setnx(k.getBytes(), v);
+			return res != null && res.longValue() == 1;
+		} 
+	}
+
 	//GET
 
 	public RawMatrix getRawMatrix(String key){
@@ -157,12 +210,20 @@ public class RedisCacheProxy implements IRedisCacheProxy {
 				}
 			}
 			
-		} catch (RuntimeException | ClassNotFoundException | IOException | ComputingException e) {
+		} catch (RuntimeException | ComputingException e) {
 			logger.error("failed to getRawMatrix() on key="+key);
 			throw new RuntimeException("Jedis: getRawMatrix() failed on key="+key, e);
 		} 
 	}
 
+	public RawMatrix getRawMatrix(RedisCacheValuesList refList){
+		try {
+			return this.buildChunkedRawMatrix(refList.getRedisKey(), refList);
+		} catch (RuntimeException | ComputingException e) {
+			logger.error("failed to getRawMatrix() on key="+refList.getRedisKey());
+			throw new RuntimeException("Jedis: getRawMatrix() failed on key="+refList.getRedisKey(), e);
+		} 
+	}
 	
 	public RedisCacheValue getRawOrList(String key ){
 		try (Jedis jedis  = getResourceFromPool()){	
@@ -212,41 +273,13 @@ public class RedisCacheProxy implements IRedisCacheProxy {
 	
 	
 	
-	private RawMatrix buildChunkedRawMatrix (String key, RedisCacheValuesList refList ) throws ComputingException, ClassNotFoundException, IOException{
-		try (Jedis jedis  = getResourceFromPool()){	
-			
-			logger.info("Rebuilding chunked matrix from cache");
-			RedisCacheValuesList  currRef = refList;
-			int nbChunks= 0 ;
-			RawMatrix res = null;
-			boolean done = false;
-			long size= 0 ;
-			
-			while (!done){
-				int nbChunksDone = nbChunks;
-				for(int i = nbChunksDone;  i <currRef.getReferenceKeys().size() ; i ++){
-					String chunkKey  = currRef.getReferenceKeys().get(nbChunks).referencedKey;
-					logger.info("chunk key " + chunkKey);
-					RawMatrix chunk = this.getRawMatrix(chunkKey) ;
-					res = RawMatrix.mergeMatrices(res, chunk);				
-					nbChunks ++ ;
-				}
-				if (currRef.isDone()){
-					done = true;
-				}else{
-					byte[] serialized = jedis.get(key.getBytes());
-					size+=serialized.length;
-					RedisCacheValue  val = RedisCacheValue.deserialize(serialized);
-					currRef = (RedisCacheValuesList) val;
-				}
-				if (size>= maxSizeInByte ){
-					logger.info("Max size of "+ maxSizeInByte  +" bytes reached, for more data please use export");
-					done = true ;
-				}
-			}
+	private RawMatrix buildChunkedRawMatrix (String key, RedisCacheValuesList refList ) throws ComputingException{
+		logger.info("Rebuilding chunked matrix from cache");
+		RawMatrix res = RawMatrix.mergeChunks(new ChunkedRawMatrixIterator(this, refList), maxSizeInByte);
+		if (res != null) {
 			res.setRedisKey(key);
-			return res; 
 		}
+		return res;
 	}
 
 	public byte[] get(String key){	
@@ -260,6 +293,36 @@ public class RedisCacheProxy implements IRedisCacheProxy {
 		} 
 	}
 
+	public List<byte[]> get(List<String> keys){
+		if (keys.isEmpty()) {
+			return Collections.emptyList();
+		}
+		byte[][] bkeys = new byte[keys.size()][];
+		for (int i = 0; i < bkeys.length; i++) {
+			bkeys[i] = keys.get(i).getBytes();
+		}
+		try(Jedis jedis  = getResourceFromPool()) {
+			return jedis.mget(bkeys);
+		} catch (RuntimeException e) {
+			logger.error("failed to get() on keys="+keys);
+			throw new RuntimeException("Jedis: get() failed on keys="+keys, e);
+		} 
+	}
+
+	// notifications
+
+	public void publishUpdate(String key){
+		notifier.publish(key);
+	}
+
+	public RedisKeyNotifier.Watch watch(String key){
+		return notifier.watch(key);
+	}
+
+	public void addUpdateListener(RedisKeyNotifier.UpdateListener listener){
+		notifier.addListener(listener);
+	}
+
 	// in cache
 
 	public boolean inCache(RedisKey k){
@@ -304,6 +367,37 @@ public class RedisCacheProxy implements IRedisCacheProxy {
 		} 
 	}
 
+	// locks
+
+	private static final String RENEW_LOCK_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+	private static final String TRANSFER_LOCK_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then redis.call('set', KEYS[1], ARGV[2], 'PX', ARGV[3]) return 1 else return 0 end";
+	private static final String UNLOCK_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+	public boolean tryLock(String key, String token, long leaseInMs){
+		try(Jedis jedis  = getResourceFromPool()) {
+			return "OK".equals(jedis.set(key, token, "NX", "PX", leaseInMs));
+		}
+	}
+
+	public boolean renewLock(String key, String token, long leaseInMs){
+		return evalLockScript(RENEW_LOCK_SCRIPT, key, token, Long.toString(leaseInMs));
+	}
+
+	public boolean transferLock(String key, String token, String newToken, long leaseInMs){
+		return evalLockScript(TRANSFER_LOCK_SCRIPT, key, token, newToken, Long.toString(leaseInMs));
+	}
+
+	public boolean unlock(String key, String token){
+		return evalLockScript(UNLOCK_SCRIPT, key, token);
+	}
+
+	private boolean evalLockScript(String script, String key, String... args){
+		try(Jedis jedis  = getResourceFromPool()) {
+			Object res = jedis.eval(script, Collections.singletonList(key), Arrays.asList(args));
+			return res instanceof Long && ((Long) res).longValue() == 1;
+		}
+	}
+
 	private Jedis getResourceFromPool() {
 		try {
 			return pool.getResource();
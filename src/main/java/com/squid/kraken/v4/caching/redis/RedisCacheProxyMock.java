@@ -25,7 +25,9 @@ package com.squid.kraken.v4.caching.redis;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -33,12 +35,16 @@ import org.slf4j.LoggerFactory;
 
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValue;
+import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
+import com.squid.kraken.v4.core.analysis.engine.processor.ComputingException;
 import com.squid.kraken.v4.caching.redis.generationalkeysserver.RedisKey;
 
 public class RedisCacheProxyMock implements IRedisCacheProxy{
 
 	Map<ByteBuffer, byte[]> cache = new HashMap<ByteBuffer, byte[]>();
 
+	RedisKeyNotifier notifier = new RedisKeyNotifier();
+
 	static final Logger logger = LoggerFactory
 			.getLogger(RedisCacheProxyMock.class);
 
@@ -69,6 +75,25 @@ public class RedisCacheProxyMock implements IRedisCacheProxy{
 		return true;
 	}
 
+	public boolean put(String k, byte[] v, int ttl) {
+		return this.put(k.getBytes(), v);
+	}
+
+	public boolean put(List<String> keys, List<byte[]> values, int[] ttls) {
+		for (int i = 0; i < keys.size(); i++) {
+			this.put(keys.get(i).getBytes(), values.get(i));
+		}
+		return true;
+	}
+
+	public boolean putIfAbsent(String k, byte[] v) {
+		if (inCache(k)) {
+			return false;
+		} else {
+			return this.put(k.getBytes(), v);
+		}
+	}
+
 	public RawMatrix getRawMatrix(String key) {
 		byte[] serialized = cache.get(ByteBuffer.wrap(key.getBytes()));
 		try {
@@ -81,11 +106,32 @@ public class RedisCacheProxyMock implements IRedisCacheProxy{
 		}
 	}
 
+	public RawMatrix getRawMatrix(RedisCacheValuesList refList) {
+		try {
+			RawMatrix res = RawMatrix.mergeChunks(new ChunkedRawMatrixIterator(this, refList), Long.MAX_VALUE);
+			if (res != null) {
+				res.setRedisKey(refList.getRedisKey());
+			}
+			return res;
+		} catch (ComputingException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	public byte[] get(String key) {
 		byte[] res = cache.get(ByteBuffer.wrap(key.getBytes()));
 		return res;
 	}
 
+	public List<byte[]> get(List<String> keys) {
+		List<byte[]> res = new ArrayList<byte[]>(keys.size());
+		for (String key : keys) {
+			res.add(get(key));
+		}
+		return res;
+	}
+
 	public boolean inCache(RedisKey k) {
 		return this.inCache(k.toString());
 	}
@@ -107,10 +153,57 @@ public class RedisCacheProxyMock implements IRedisCacheProxy{
 		// jedis.expire(key.getBytes(), ttl);
 	}
 
+	// locks never expire in the mock
+
+	public synchronized boolean tryLock(String key, String token, long leaseInMs) {
+		return putIfAbsent(key, token.getBytes());
+	}
+
+	public synchronized boolean renewLock(String key, String token, long leaseInMs) {
+		return isLockOwner(key, token);
+	}
+
+	public synchronized boolean transferLock(String key, String token, String newToken, long leaseInMs) {
+		if (isLockOwner(key, token)) {
+			return put(key, newToken.getBytes());
+		} else {
+			return false;
+		}
+	}
+
+	public synchronized boolean unlock(String key, String token) {
+		if (isLockOwner(key, token)) {
+			cache.remove(ByteBuffer.wrap(key.getBytes()));
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	private boolean isLockOwner(String key, String token) {
+		byte[] owner = get(key);
+		return owner != null && token.equals(new String(owner));
+	}
+
 	@Override
 	public RedisCacheValue getRawOrList(String key) {
 		// TODO Auto-generated method stub
 		return null;
 	}
 
+	@Override
+	public void publishUpdate(String key) {
+		notifier.publish(key);
+	}
+
+	@Override
+	public RedisKeyNotifier.Watch watch(String key) {
+		return notifier.watch(key);
+	}
+
+	@Override
+	public void addUpdateListener(RedisKeyNotifier.UpdateListener listener) {
+		notifier.addListener(listener);
+	}
+
 }
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * Notify readers that a cache value has been updated, e.g. a new chunk was
+ * added to a RedisCacheValuesList.
+ * 
+ * Updates are published on a per-key channel; a single subscriber thread (one
+ * dedicated connection) is started the first time a key is watched, and
+ * dispatches the notifications to the local watchers.
+ * 
+ * Pub/sub delivery is not guaranteed, so watchers should always wait with a
+ * timeout and check the value again; listeners are reset each time the
+ * subscription is (re)established since updates may have been missed.
+ *
+ */
+public class RedisKeyNotifier {
+
+	static final Logger logger = LoggerFactory.getLogger(RedisKeyNotifier.class);
+
+	public static final String CHANNEL_PREFIX = "kraken:update:";
+
+	private JedisPool pool;
+	private String host;
+	private int port;
+
+	private Thread subscriber = null;
+
+	private ConcurrentHashMap<String, Set<Watch>> watches = new ConcurrentHashMap<String, Set<Watch>>();
+
+	private List<UpdateListener> listeners = new CopyOnWriteArrayList<UpdateListener>();
+
+	/**
+	 * receive every key update
+	 *
+	 */
+	public interface UpdateListener {
+
+		public void onUpdate(String key);
+
+		/**
+		 * the subscription was (re)established, some updates may have been
+		 * lost
+		 */
+		public void onReset();
+
+	}
+
+	/**
+	 * create a notifier for a single process (no redis)
+	 */
+	public RedisKeyNotifier() {
+	}
+
+	public RedisKeyNotifier(JedisPool pool, String host, int port) {
+		this.pool = pool;
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * notify the watchers of the key, in every process
+	 * 
+	 * @param key
+	 */
+	public void publish(String key) {
+		if (pool == null) {
+			dispatch(key);
+		} else {
+			try (Jedis jedis = pool.getResource()) {
+				jedis.publish(CHANNEL_PREFIX + key, key);
+			} catch (RuntimeException e) {
+				// readers will catch up on their next timeout
+				logger.warn("failed to publish update for key=" + key + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * start watching the key; the watch must be closed when done
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public Watch watch(String key) {
+		ensureSubscribed();
+		final Watch watch = new Watch(key);
+		watches.compute(key, (k, set) -> {
+			if (set == null) {
+				set = ConcurrentHashMap.newKeySet();
+			}
+			set.add(watch);
+			return set;
+		});
+		return watch;
+	}
+
+	/**
+	 * register a listener for all the key updates
+	 * 
+	 * @param listener
+	 */
+	public void addListener(UpdateListener listener) {
+		listeners.add(listener);
+		ensureSubscribed();
+	}
+
+	private void unwatch(Watch watch) {
+		watches.computeIfPresent(watch.key, (k, set) -> {
+			set.remove(watch);
+			return set.isEmpty() ? null : set;
+		});
+	}
+
+	private void dispatch(String key) {
+		for (UpdateListener listener : listeners) {
+			listener.onUpdate(key);
+		}
+		Set<Watch> set = watches.get(key);
+		if (set != null) {
+			for (Watch watch : set) {
+				watch.signal();
+			}
+		}
+	}
+
+	private synchronized void ensureSubscribed() {
+		if (subscriber == null && pool != null) {
+			subscriber = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					subscribe();
+				}
+			}, "redis-key-notifier");
+			subscriber.setDaemon(true);
+			subscriber.start();
+		}
+	}
+
+	private void subscribe() {
+		Listener listener = new Listener();
+		while (true) {
+			// use a dedicated connection, it is blocked while subscribed
+			try (Jedis jedis = new Jedis(host, port)) {
+				logger.info("subscribing to redis key updates on " + host + " " + port);
+				jedis.psubscribe(listener, CHANNEL_PREFIX + "*");
+			} catch (RuntimeException e) {
+				logger.warn("redis key updates subscription failed: " + e.getMessage());
+			}
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private class Listener extends JedisPubSub {
+
+		@Override
+		public void onMessage(String channel, String message) {
+			dispatch(message);
+		}
+
+		@Override
+		public void onPMessage(String pattern, String channel, String message) {
+			dispatch(message);
+		}
+
+		@Override
+		public void onSubscribe(String channel, int subscribedChannels) {
+		}
+
+		@Override
+		public void onUnsubscribe(String channel, int subscribedChannels) {
+		}
+
+		@Override
+		public void onPUnsubscribe(String pattern, int subscribedChannels) {
+		}
+
+		@Override
+		public void onPSubscribe(String pattern, int subscribedChannels) {
+			for (UpdateListener listener : listeners) {
+				listener.onReset();
+			}
+		}
+
+	}
+
+	/**
+	 * a registration to the updates of a key
+	 *
+	 */
+	public class Watch implements AutoCloseable {
+
+		private String key;
+
+		private Semaphore updates = new Semaphore(0);
+
+		private Watch(String key) {
+			this.key = key;
+		}
+
+		private void signal() {
+			updates.release();
+		}
+
+		/**
+		 * wait for an update of the key since the watch was created or the
+		 * last call to await
+		 * 
+		 * @param timeoutInMs
+		 * @return true if the key was updated, false on timeout
+		 * @throws InterruptedException
+		 */
+		public boolean await(long timeoutInMs) throws InterruptedException {
+			if (updates.tryAcquire(timeoutInMs, TimeUnit.MILLISECONDS)) {
+				updates.drainPermits();
+				return true;
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public void close() {
+			unwatch(this);
+		}
+
+	}
+
+}
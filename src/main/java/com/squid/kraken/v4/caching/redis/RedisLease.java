@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A lease on a cache key, used to make sure that only one node computes a
+ * given result at a time (single-flight).
+ * 
+ * The lease is a redis key set with NX and a short expiration; it is renewed
+ * by a heartbeat as long as the owner is alive, and can be transferred to
+ * another owner (e.g. the worker that keeps on fetching the chunks). Releasing
+ * or transferring the lease notifies the nodes waiting for it.
+ * 
+ * When the owner fails, the lease is kept for a short time with a failure
+ * token, so that the nodes already waiting report the error instead of each
+ * running the query again in turn; a new request can take the failed lease
+ * over.
+ *
+ */
+public class RedisLease {
+
+	static final Logger logger = LoggerFactory.getLogger(RedisLease.class);
+
+	public static final String LEASE_PREFIX = "lease-";
+
+	public static final long LEASE_IN_MS = 30 * 1000;
+
+	public static final long FAILURE_IN_MS = 5 * 1000;
+
+	private static final String FAILED_TOKEN = "failed";
+
+	private static final ScheduledExecutorService heartbeat = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "redis-lease-heartbeat");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private IRedisCacheProxy redis;
+	private String leaseKey;
+	private String token;
+	private ScheduledFuture<?> renewal;
+
+	private RedisLease(IRedisCacheProxy redis, String leaseKey, String token) {
+		this.redis = redis;
+		this.leaseKey = leaseKey;
+		this.token = token;
+		long period = LEASE_IN_MS / 3;
+		this.renewal = heartbeat.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				renew();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param key
+	 *            the cache key
+	 * @return the redis key holding the lease on the cache key
+	 */
+	public static String getLeaseKey(String key) {
+		return LEASE_PREFIX + key;
+	}
+
+	/**
+	 * try to acquire the lease on the cache key, or to take it over if its
+	 * last owner failed
+	 * 
+	 * @param redis
+	 * @param key
+	 * @return the lease, or null if it is already owned
+	 */
+	public static RedisLease tryAcquire(IRedisCacheProxy redis, String key) {
+		String leaseKey = getLeaseKey(key);
+		String token = UUID.randomUUID().toString();
+		if (redis.tryLock(leaseKey, token, LEASE_IN_MS)
+				|| redis.transferLock(leaseKey, FAILED_TOKEN, token, LEASE_IN_MS)) {
+			return new RedisLease(redis, leaseKey, token);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * take over the lease on the cache key from its current owner
+	 * 
+	 * @param redis
+	 * @param key
+	 * @param token
+	 *            the current owner token
+	 * @return the lease, or null if the token does not own the lease anymore
+	 */
+	public static RedisLease transfer(IRedisCacheProxy redis, String key, String token) {
+		if (token == null) {
+			return null;
+		}
+		String leaseKey = getLeaseKey(key);
+		String newToken = UUID.randomUUID().toString();
+		if (redis.transferLock(leaseKey, token, newToken, LEASE_IN_MS)) {
+			redis.publishUpdate(leaseKey);
+			return new RedisLease(redis, leaseKey, newToken);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * @param redis
+	 * @param key
+	 *            the cache key
+	 * @return true if the last owner of the lease failed to compute the key
+	 */
+	public static boolean isFailed(IRedisCacheProxy redis, String key) {
+		byte[] value = redis.get(getLeaseKey(key));
+		return value != null && FAILED_TOKEN.equals(new String(value));
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	private void renew() {
+		try {
+			if (!redis.renewLock(leaseKey, token, LEASE_IN_MS)) {
+				// lost or transferred
+				renewal.cancel(false);
+			}
+		} catch (RuntimeException e) {
+			logger.warn("failed to renew lease " + leaseKey + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * flag the lease as failed if it is still owned, and notify the waiting
+	 * nodes; the flag expires after FAILURE_IN_MS
+	 */
+	public void fail() {
+		renewal.cancel(false);
+		try {
+			if (redis.transferLock(leaseKey, token, FAILED_TOKEN, FAILURE_IN_MS)) {
+				redis.publishUpdate(leaseKey);
+			}
+		} catch (RuntimeException e) {
+			// it will expire anyway
+			logger.warn("failed to flag lease " + leaseKey + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * release the lease if it is still owned, and notify the waiting nodes
+	 */
+	public void release() {
+		renewal.cancel(false);
+		try {
+			if (redis.unlock(leaseKey, token)) {
+				redis.publishUpdate(leaseKey);
+			}
+		} catch (RuntimeException e) {
+			// it will expire anyway
+			logger.warn("failed to release lease " + leaseKey + ": " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+/**
+ * Decide where a streamed result is split into chunks, and how many rows the
+ * driver should fetch per round-trip.
+ * 
+ * The first chunk is the min chunk size, so the first rows are available
+ * quickly. The next chunks are sized from the observed read throughput so that
+ * each one takes about the target duration to read, between the min and the
+ * max chunk size. A chunk is also closed when it has been read for longer than
+ * the target duration, so a slow database still delivers rows regularly.
+ * 
+ * The chunk sizes are encoded sizes. While a chunk is read its size is only
+ * estimated (see RawColumnsBuilder); the estimate is calibrated with the
+ * actual encoded size of each chunk, which depends on the data and on the
+ * compression.
+ * 
+ * A policy is stateful and must be used for a single query.
+ *
+ */
+public class ChunkSizePolicy {
+
+	private static final int MIN_FETCH_SIZE = 100;
+
+	// used until the row size is known, when the driver reports no fetch size
+	private static final int DEFAULT_FETCH_SIZE = 1000;
+
+	private static final int ROUND_TRIPS_PER_CHUNK = 4;
+
+	private long minChunkSizeInBytes;
+	private long maxChunkSizeInBytes;
+	private long targetDurationInMs;
+
+	private long chunkSizeInBytes;
+	private long bytesPerRow = 0;
+
+	// calibration of the estimated size
+	private long estimatedInBytes = 0;
+	private long encodedInBytes = 0;
+
+	/**
+	 * @param minChunkSizeInBytes
+	 *            the size of the first chunk, and the min size of the next ones
+	 * @param maxChunkSizeInBytes
+	 * @param targetDurationInMs
+	 *            the expected time to read a chunk, 0 to split by size only
+	 */
+	public ChunkSizePolicy(long minChunkSizeInBytes, long maxChunkSizeInBytes, long targetDurationInMs) {
+		this.maxChunkSizeInBytes = maxChunkSizeInBytes;
+		this.minChunkSizeInBytes = Math.min(minChunkSizeInBytes, maxChunkSizeInBytes);
+		this.targetDurationInMs = targetDurationInMs;
+		this.chunkSizeInBytes = this.minChunkSizeInBytes;
+	}
+
+	/**
+	 * split by size only, every chunk up to the max size
+	 */
+	public static ChunkSizePolicy fixed(long maxChunkSizeInBytes) {
+		return new ChunkSizePolicy(maxChunkSizeInBytes, maxChunkSizeInBytes, 0);
+	}
+
+	/**
+	 * @return the encoded size of the current chunk
+	 */
+	public long getChunkSizeInBytes() {
+		return chunkSizeInBytes;
+	}
+
+	/**
+	 * @return the estimated size at which the current chunk is full, i.e. the
+	 *         chunk size converted with the ratio observed on the previous
+	 *         chunks
+	 */
+	public long getEstimatedSizeLimit() {
+		if (estimatedInBytes == 0 || encodedInBytes == 0) {
+			// nothing encoded yet
+			return chunkSizeInBytes;
+		}
+		return (long) Math.max(1, (double) chunkSizeInBytes * estimatedInBytes / encodedInBytes);
+	}
+
+	/**
+	 * @param elapsedInMs
+	 *            the time spent reading the current chunk
+	 * @return true if the chunk should be closed regardless of its size
+	 */
+	public boolean isLate(long elapsedInMs) {
+		return targetDurationInMs > 0 && elapsedInMs >= targetDurationInMs;
+	}
+
+	/**
+	 * record a completed chunk and size the next one
+	 * 
+	 * @param estimatedSizeInBytes
+	 *            the size of the chunk as estimated while reading it
+	 * @param encodedSizeInBytes
+	 *            the actual size of the encoded chunk
+	 * @param nbRows
+	 * @param durationInMs
+	 *            the time spent reading the chunk
+	 */
+	public void record(long estimatedSizeInBytes, long encodedSizeInBytes, long nbRows, long durationInMs) {
+		if (estimatedSizeInBytes > 0 && encodedSizeInBytes > 0) {
+			estimatedInBytes += estimatedSizeInBytes;
+			encodedInBytes += encodedSizeInBytes;
+		}
+		if (nbRows > 0) {
+			bytesPerRow = Math.max(1, encodedSizeInBytes / nbRows);
+		}
+		long next = maxChunkSizeInBytes;
+		if (targetDurationInMs > 0 && durationInMs > 0) {
+			next = (encodedSizeInBytes * targetDurationInMs) / durationInMs;
+		}
+		chunkSizeInBytes = Math.max(minChunkSizeInBytes, Math.min(maxChunkSizeInBytes, next));
+	}
+
+	/**
+	 * compute the fetch size so that a chunk takes a few round-trips
+	 * 
+	 * @param current
+	 *            the current fetch size, 0 if the driver uses its default
+	 * @param vendorMax
+	 *            the max fetch size for the database, see getMaxFetchSize()
+	 * @return the new fetch size, or current if it should not change
+	 */
+	public int getFetchSize(int current, int vendorMax) {
+		if (vendorMax <= 0) {
+			// leave it to the driver
+			return current;
+		}
+		if (bytesPerRow == 0) {
+			// nothing read yet; the driver default may be to fetch all the
+			// rows at once
+			return current > 0 ? current : Math.min(vendorMax, DEFAULT_FETCH_SIZE);
+		}
+		long rows = chunkSizeInBytes / bytesPerRow / ROUND_TRIPS_PER_CHUNK;
+		return (int) Math.max(MIN_FETCH_SIZE, Math.min(vendorMax, rows));
+	}
+	/**
+	 * the upper bound of the fetch size by database product; 0 when the fetch
+	 * size has a special meaning for the driver and must be left as is (e.g.
+	 * MySQL streaming)
+	 * 
+	 * @param productName
+	 *            the database product name
+	 */
+	public static int getMaxFetchSize(String productName) {
+		if (productName == null) {
+			return 0;
+		}
+		String name = productName.toLowerCase();
+		if (name.contains("postgres") || name.contains("redshift") || name.contains("greenplum")
+				|| name.contains("vertica")) {
+			// cursor based, the rows are kept in the worker memory
+			return 50000;
+		} else if (name.contains("oracle") || name.contains("teradata") || name.contains("sql server")) {
+			return 10000;
+		} else if (name.contains("mysql") || name.contains("mariadb") || name.contains("spark")
+				|| name.contains("hive") || name.contains("drill")) {
+			return 0;
+		} else {
+			return 10000;
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import com.squid.core.jdbc.formatter.IJDBCDataFormatter;
+
+/**
+ * Read one column of the current ResultSet row. The decoder is chosen once
+ * per column from its normalized type: integer, long and double values can be
+ * read with the primitive getters and appended unboxed, the other types go
+ * through getObject() and the vendor formatter.
+ * 
+ * The primitive getters are only used once the first value of the column has
+ * shown that the driver returns the expected type and that the formatter
+ * leaves it unchanged; otherwise (e.g. an unsigned integer returned as a Long,
+ * or a formatter converting the value) the column keeps using the formatter.
+ *
+ */
+public abstract class ColumnDecoder {
+
+	protected int col;// 0-based column in the matrix
+
+	protected ColumnDecoder(int col) {
+		this.col = col;
+	}
+
+	/**
+	 * @param colTypes
+	 *            the normalized column types
+	 * @param formatter
+	 * @return a decoder for each column
+	 */
+	public static ColumnDecoder[] create(int[] colTypes, IJDBCDataFormatter formatter) {
+		ColumnDecoder[] decoders = new ColumnDecoder[colTypes.length];
+		for (int i = 0; i < colTypes.length; i++) {
+			switch (colTypes[i]) {
+			case Types.INTEGER:
+				decoders[i] = new IntDecoder(i, colTypes[i], formatter);
+				break;
+			case Types.BIGINT:
+				decoders[i] = new LongDecoder(i, colTypes[i], formatter);
+				break;
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				decoders[i] = new DoubleDecoder(i, colTypes[i], formatter);
+				break;
+			default:
+				decoders[i] = new ObjectDecoder(i, colTypes[i], formatter);
+			}
+		}
+		return decoders;
+	}
+
+	/**
+	 * append the column value of the current row to the builder
+	 */
+	public abstract void decode(ResultSet result, RawColumnsBuilder builder) throws SQLException;
+
+	/**
+	 * @return the column value of the current row
+	 */
+	public abstract Object read(ResultSet result) throws SQLException;
+
+	static class ObjectDecoder extends ColumnDecoder {
+
+		protected int colType;
+		protected IJDBCDataFormatter formatter;
+
+		ObjectDecoder(int col, int colType, IJDBCDataFormatter formatter) {
+			super(col);
+			this.colType = colType;
+			this.formatter = formatter;
+		}
+
+		@Override
+		public void decode(ResultSet result, RawColumnsBuilder builder) throws SQLException {
+			builder.add(col, read(result));
+		}
+
+		@Override
+		public Object read(ResultSet result) throws SQLException {
+			return formatter.unboxJDBCObject(result.getObject(col + 1), colType);
+		}
+
+	}
+
+	/**
+	 * read through the formatter until the first value tells if the primitive
+	 * getter can be used instead
+	 */
+	static abstract class PrimitiveDecoder extends ObjectDecoder {
+
+		private static final int UNKNOWN = 0;
+		private static final int PRIMITIVE = 1;
+		private static final int FORMATTER = 2;
+
+		private Class<?> type;
+		private int mode = UNKNOWN;
+
+		PrimitiveDecoder(int col, int colType, IJDBCDataFormatter formatter, Class<?> type) {
+			super(col, colType, formatter);
+			this.type = type;
+		}
+
+		protected abstract void decodePrimitive(ResultSet result, RawColumnsBuilder builder) throws SQLException;
+
+		protected abstract Object readPrimitive(ResultSet result) throws SQLException;
+
+		/**
+		 * @return true if the primitive getter is used
+		 */
+		public boolean isPrimitive() {
+			return mode == PRIMITIVE;
+		}
+
+		@Override
+		public void decode(ResultSet result, RawColumnsBuilder builder) throws SQLException {
+			if (mode == PRIMITIVE) {
+				decodePrimitive(result, builder);
+			} else {
+				builder.add(col, read(result));
+			}
+		}
+
+		@Override
+		public Object read(ResultSet result) throws SQLException {
+			if (mode == PRIMITIVE) {
+				return readPrimitive(result);
+			}
+			Object raw = result.getObject(col + 1);
+			Object value = formatter.unboxJDBCObject(raw, colType);
+			if (mode == UNKNOWN && raw != null) {
+				if (raw.getClass() == type && value != null && value.getClass() == type && value.equals(raw)) {
+					mode = PRIMITIVE;
+				} else {
+					mode = FORMATTER;
+				}
+			}
+			return value;
+		}
+
+	}
+
+	static class IntDecoder extends PrimitiveDecoder {
+
+		IntDecoder(int col, int colType, IJDBCDataFormatter formatter) {
+			super(col, colType, formatter, Integer.class);
+		}
+
+		@Override
+		protected void decodePrimitive(ResultSet result, RawColumnsBuilder builder) throws SQLException {
+			int value = result.getInt(col + 1);
+			if (result.wasNull()) {
+				builder.addNull(col);
+			} else {
+				builder.addInt(col, value);
+			}
+		}
+
+		@Override
+		protected Object readPrimitive(ResultSet result) throws SQLException {
+			int value = result.getInt(col + 1);
+			return result.wasNull() ? null : value;
+		}
+
+	}
+
+	static class LongDecoder extends PrimitiveDecoder {
+
+		LongDecoder(int col, int colType, IJDBCDataFormatter formatter) {
+			super(col, colType, formatter, Long.class);
+		}
+
+		@Override
+		protected void decodePrimitive(ResultSet result, RawColumnsBuilder builder) throws SQLException {
+			long value = result.getLong(col + 1);
+			if (result.wasNull()) {
+				builder.addNull(col);
+			} else {
+				builder.addLong(col, value);
+			}
+		}
+
+		@Override
+		protected Object readPrimitive(ResultSet result) throws SQLException {
+			long value = result.getLong(col + 1);
+			return result.wasNull() ? null : value;
+		}
+
+	}
+
+	static class DoubleDecoder extends PrimitiveDecoder {
+
+		DoubleDecoder(int col, int colType, IJDBCDataFormatter formatter) {
+			super(col, colType, formatter, Double.class);
+		}
+
+		@Override
+		protected void decodePrimitive(ResultSet result, RawColumnsBuilder builder) throws SQLException {
+			double value = result.getDouble(col + 1);
+			if (result.wasNull()) {
+				builder.addNull(col);
+			} else {
+				builder.addDouble(col, value);
+			}
+		}
+
+		@Override
+		protected Object readPrimitive(ResultSet result) throws SQLException {
+			double value = result.getDouble(col + 1);
+			return result.wasNull() ? null : value;
+		}
+
+	}
+
+}
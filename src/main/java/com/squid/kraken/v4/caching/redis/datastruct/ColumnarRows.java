@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.RandomAccess;
+
+/**
+ * A list of RawRow backed by columns. The DataMatrix reads the cells directly
+ * from the columns using getValue(); a row is only materialized when accessed
+ * through the List interface, so the matrix retains the columnar footprint.
+ * 
+ * The list can be reordered either using a permutation (reorder) or using
+ * rows obtained from the same list (Collections.sort, set), which only
+ * updates an index permutation; adding or removing rows is not supported,
+ * use select() or range() to create a new list with a subset of the rows.
+ *
+ */
+public class ColumnarRows extends AbstractList<RawRow> implements RandomAccess {
+
+	private RawColumn[] columns;
+
+	private int[] order;// the row permutation, null for identity
+
+	private int size;
+
+	public ColumnarRows(RawColumn[] columns, int size) {
+		this(columns, null, size);
+	}
+
+	private ColumnarRows(RawColumn[] columns, int[] order, int size) {
+		this.columns = columns;
+		this.order = order;
+		this.size = size;
+	}
+
+	/**
+	 * a row materialized from the columns
+	 *
+	 */
+	public static class ColumnarRow extends RawRow {
+
+		private static final long serialVersionUID = -1606478522183244811L;
+
+		private transient RawColumn[] owner;
+		private int index;
+
+		private ColumnarRow(Object[] data, RawColumn[] owner, int index) {
+			super(data);
+			this.owner = owner;
+			this.index = index;
+		}
+
+		/**
+		 * @return the physical index of the row in its columns
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+	}
+
+	public RawColumn[] getColumns() {
+		return columns;
+	}
+
+	public RawColumn getColumn(int col) {
+		return columns[col];
+	}
+
+	/**
+	 * @param row
+	 *            the logical row position
+	 * @return the physical index of the row in the columns
+	 */
+	public int getIndex(int row) {
+		return order == null ? row : order[row];
+	}
+
+	/**
+	 * read a single cell without materializing the row
+	 * 
+	 * @param col
+	 * @param row
+	 *            the logical row position
+	 * @return
+	 */
+	public Object getValue(int col, int row) {
+		return columns[col].get(getIndex(row));
+	}
+
+	@Override
+	public RawRow get(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Index: " + row + ", Size: " + size);
+		}
+		int index = getIndex(row);
+		Object[] data = new Object[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			data[i] = columns[i].get(index);
+		}
+		return new ColumnarRow(data, columns, index);
+	}
+
+	/**
+	 * move the row at this position; note that the previous row is not
+	 * materialized, so this always returns null
+	 */
+	@Override
+	public RawRow set(int row, RawRow element) {
+		if (!(element instanceof ColumnarRow) || ((ColumnarRow) element).owner != columns) {
+			throw new UnsupportedOperationException("ColumnarRows can only be reordered");
+		}
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Index: " + row + ", Size: " + size);
+		}
+		if (order == null) {
+			order = identity(size);
+		}
+		order[row] = ((ColumnarRow) element).index;
+		return null;
+	}
+
+	/**
+	 * reorder the rows in place
+	 * 
+	 * @param positions
+	 *            the new order, as a permutation of the current logical
+	 *            positions
+	 */
+	public void reorder(int[] positions) {
+		if (positions.length != size) {
+			throw new IllegalArgumentException("invalid permutation size " + positions.length + ", Size: " + size);
+		}
+		this.order = toIndexes(positions, positions.length);
+	}
+
+	/**
+	 * @param positions
+	 *            the logical positions of the rows to keep, in the new order
+	 * @param count
+	 *            the number of positions to use
+	 * @return a new list sharing the columns with only the given rows
+	 */
+	public ColumnarRows select(int[] positions, int count) {
+		return new ColumnarRows(columns, toIndexes(positions, count), count);
+	}
+
+	/**
+	 * @param selection
+	 *            the logical positions of the rows to keep
+	 * @return a new list sharing the columns with only the selected rows, in
+	 *         the current order
+	 */
+	public ColumnarRows select(BitSet selection) {
+		int[] indexes = new int[selection.cardinality()];
+		int k = 0;
+		for (int i = selection.nextSetBit(0); i >= 0 && i < size; i = selection.nextSetBit(i + 1)) {
+			indexes[k++] = getIndex(i);
+		}
+		return new ColumnarRows(columns, indexes, k);
+	}
+
+	/**
+	 * @param from
+	 *            inclusive
+	 * @param to
+	 *            exclusive
+	 * @return a new list sharing the columns with only the rows in the range
+	 */
+	public ColumnarRows range(int from, int to) {
+		if (from < 0 || to > size || from > to) {
+			throw new IndexOutOfBoundsException("Range: " + from + "-" + to + ", Size: " + size);
+		}
+		int[] indexes = new int[to - from];
+		for (int i = from; i < to; i++) {
+			indexes[i - from] = getIndex(i);
+		}
+		return new ColumnarRows(columns, indexes, indexes.length);
+	}
+
+	private int[] toIndexes(int[] positions, int count) {
+		int[] indexes = new int[count];
+		for (int i = 0; i < count; i++) {
+			indexes[i] = getIndex(positions[i]);
+		}
+		return indexes;
+	}
+
+	private static int[] identity(int size) {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		return order;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return a new list sharing the columns but with its own ordering
+	 */
+	public ColumnarRows copy() {
+		return new ColumnarRows(columns, order == null ? null : order.clone(), size);
+	}
+
+}
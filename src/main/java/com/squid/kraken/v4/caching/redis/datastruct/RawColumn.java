@@ -0,0 +1,600 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A typed column of a RawMatrix. Integer, long and double values are stored
+ * unboxed with a null bitmap; strings are stored as int codes in the matrix
+ * dictionary (the string table written with each chunk); any other value is
+ * kept as an Object.
+ * 
+ * A column is built by appending values; if a value does not fit the column
+ * type the column is promoted to a more generic one, so use the returned
+ * column for the next append.
+ *
+ */
+public abstract class RawColumn {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// heap size estimates, in bytes
+	private static final int OBJECT_HEADER = 16;
+	private static final int REFERENCE = 8;
+
+	protected int size = 0;
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param row
+	 * @return the value at this row, boxed
+	 */
+	public abstract Object get(int row);
+
+	/**
+	 * @param value
+	 * @return true if the value can be appended without promoting the column
+	 */
+	protected abstract boolean accept(Object value);
+
+	protected abstract void append(Object value);
+
+	/**
+	 * release the unused capacity once the column is complete
+	 */
+	protected abstract void trim();
+
+	public boolean isNull(int row) {
+		return get(row) == null;
+	}
+
+	/**
+	 * @return an estimate of the column heap size in bytes, not counting the
+	 *         string dictionary which is shared by the columns of a chunk
+	 */
+	public abstract long getHeapSize();
+
+	protected static long getArraySize(int length, int elementSize) {
+		return OBJECT_HEADER + (long) length * elementSize;
+	}
+
+	protected static long getBitSetSize(BitSet bits) {
+		return 2 * OBJECT_HEADER + bits.size() / 8;
+	}
+
+	/**
+	 * @param value
+	 * @return an estimate of the heap size of a boxed value, in bytes
+	 */
+	public static long getHeapSize(Object value) {
+		if (value == null) {
+			return 0;
+		} else if (value instanceof String) {
+			return 2 * OBJECT_HEADER + 8 + 2L * ((String) value).length();
+		} else if (value instanceof Long || value instanceof Double) {
+			return OBJECT_HEADER + 8;
+		} else if (value instanceof Number || value instanceof Boolean) {
+			return value instanceof BigDecimal ? 4 * OBJECT_HEADER + ((BigDecimal) value).precision() / 2
+					: OBJECT_HEADER;
+		} else if (value instanceof Timestamp) {
+			return OBJECT_HEADER + 16;
+		} else if (value instanceof Date) {
+			return OBJECT_HEADER + 8;
+		} else {
+			return 2 * OBJECT_HEADER;
+		}
+	}
+
+	protected static int grow(int capacity, int required) {
+		int newCapacity = capacity + (capacity >> 1);
+		return Math.max(Math.max(newCapacity, required), INITIAL_CAPACITY);
+	}
+
+	/**
+	 * append the value to the column
+	 * 
+	 * @param column
+	 *            the current column, or null if nothing has been appended yet
+	 * @param value
+	 * @return the column to use for the next append
+	 */
+	public static RawColumn append(RawColumn column, Object value) {
+		if (column == null) {
+			column = new NullColumn();
+		}
+		if (column.accept(value)) {
+			column.append(value);
+			return column;
+		}
+		RawColumn promoted;
+		if (column instanceof NullColumn) {
+			promoted = create(value);
+			for (int i = 0; i < column.size; i++) {
+				promoted.append(null);
+			}
+		} else {
+			promoted = new ObjectColumn(column);
+		}
+		promoted.append(value);
+		return promoted;
+	}
+
+	/**
+	 * append a dictionary string to the column
+	 * 
+	 * @param column
+	 *            the current column, or null if nothing has been appended yet
+	 * @param code
+	 *            the string index in the dictionary
+	 * @param dictionary
+	 * @return the column to use for the next append
+	 */
+	public static RawColumn appendString(RawColumn column, int code, List<String> dictionary) {
+		if (column instanceof StringColumn && ((StringColumn) column).dictionary == dictionary) {
+			((StringColumn) column).appendCode(code);
+			return column;
+		}
+		if (column == null || column instanceof NullColumn) {
+			StringColumn strings = new StringColumn(dictionary);
+			for (int i = 0; column != null && i < column.size; i++) {
+				strings.append(null);
+			}
+			strings.appendCode(code);
+			return strings;
+		}
+		return append(column, dictionary.get(code));
+	}
+
+	/**
+	 * append an int without boxing when the column is already an int column
+	 * 
+	 * @return the column to use for the next append
+	 */
+	public static RawColumn appendInt(RawColumn column, int value) {
+		if (column instanceof IntColumn) {
+			((IntColumn) column).appendInt(value);
+			return column;
+		}
+		return append(column, value);
+	}
+
+	/**
+	 * @see #appendInt(RawColumn, int)
+	 */
+	public static RawColumn appendLong(RawColumn column, long value) {
+		if (column instanceof LongColumn) {
+			((LongColumn) column).appendLong(value);
+			return column;
+		}
+		return append(column, value);
+	}
+
+	/**
+	 * @see #appendInt(RawColumn, int)
+	 */
+	public static RawColumn appendDouble(RawColumn column, double value) {
+		if (column instanceof DoubleColumn) {
+			((DoubleColumn) column).appendDouble(value);
+			return column;
+		}
+		return append(column, value);
+	}
+
+	private static RawColumn create(Object value) {
+		if (value instanceof Integer) {
+			return new IntColumn();
+		} else if (value instanceof Long) {
+			return new LongColumn();
+		} else if (value instanceof Double) {
+			return new DoubleColumn();
+		} else {
+			return new ObjectColumn();
+		}
+	}
+
+	/**
+	 * a column with only null values so far
+	 */
+	public static class NullColumn extends RawColumn {
+
+		public NullColumn() {
+		}
+
+		public NullColumn(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public Object get(int row) {
+			return null;
+		}
+
+		@Override
+		public long getHeapSize() {
+			return OBJECT_HEADER;
+		}
+
+		@Override
+		protected boolean accept(Object value) {
+			return value == null;
+		}
+
+		@Override
+		protected void append(Object value) {
+			size++;
+		}
+
+		@Override
+		protected void trim() {
+		}
+
+	}
+
+	public static class IntColumn extends RawColumn {
+
+		private int[] values = new int[0];
+		private BitSet nulls = new BitSet();
+
+		public IntColumn() {
+		}
+
+		public IntColumn(int[] values, BitSet nulls, int size) {
+			this.values = values;
+			this.nulls = nulls;
+			this.size = size;
+		}
+
+		public BitSet getNulls() {
+			return nulls;
+		}
+
+		@Override
+		public Object get(int row) {
+			return nulls.get(row) ? null : values[row];
+		}
+
+		@Override
+		public long getHeapSize() {
+			return OBJECT_HEADER + getArraySize(values.length, 4) + getBitSetSize(nulls);
+		}
+
+		public int getInt(int row) {
+			return values[row];
+		}
+
+		@Override
+		public boolean isNull(int row) {
+			return nulls.get(row);
+		}
+
+		@Override
+		protected boolean accept(Object value) {
+			return value == null || value instanceof Integer;
+		}
+
+		@Override
+		protected void append(Object value) {
+			if (value == null) {
+				ensureCapacity();
+				nulls.set(size++);
+			} else {
+				appendInt((Integer) value);
+			}
+		}
+
+		protected void appendInt(int value) {
+			ensureCapacity();
+			values[size++] = value;
+		}
+
+		private void ensureCapacity() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+			}
+		}
+
+		@Override
+		protected void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+
+	}
+
+	public static class LongColumn extends RawColumn {
+
+		private long[] values = new long[0];
+		private BitSet nulls = new BitSet();
+
+		public LongColumn() {
+		}
+
+		public LongColumn(long[] values, BitSet nulls, int size) {
+			this.values = values;
+			this.nulls = nulls;
+			this.size = size;
+		}
+
+		public BitSet getNulls() {
+			return nulls;
+		}
+
+		@Override
+		public Object get(int row) {
+			return nulls.get(row) ? null : values[row];
+		}
+
+		@Override
+		public long getHeapSize() {
+			return OBJECT_HEADER + getArraySize(values.length, 8) + getBitSetSize(nulls);
+		}
+
+		public long getLong(int row) {
+			return values[row];
+		}
+
+		@Override
+		public boolean isNull(int row) {
+			return nulls.get(row);
+		}
+
+		@Override
+		protected boolean accept(Object value) {
+			return value == null || value instanceof Long;
+		}
+
+		@Override
+		protected void append(Object value) {
+			if (value == null) {
+				ensureCapacity();
+				nulls.set(size++);
+			} else {
+				appendLong((Long) value);
+			}
+		}
+
+		protected void appendLong(long value) {
+			ensureCapacity();
+			values[size++] = value;
+		}
+
+		private void ensureCapacity() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+			}
+		}
+
+		@Override
+		protected void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+
+	}
+
+	public static class DoubleColumn extends RawColumn {
+
+		private double[] values = new double[0];
+		private BitSet nulls = new BitSet();
+
+		public DoubleColumn() {
+		}
+
+		public DoubleColumn(double[] values, BitSet nulls, int size) {
+			this.values = values;
+			this.nulls = nulls;
+			this.size = size;
+		}
+
+		public BitSet getNulls() {
+			return nulls;
+		}
+
+		@Override
+		public Object get(int row) {
+			return nulls.get(row) ? null : values[row];
+		}
+
+		@Override
+		public long getHeapSize() {
+			return OBJECT_HEADER + getArraySize(values.length, 8) + getBitSetSize(nulls);
+		}
+
+		public double getDouble(int row) {
+			return values[row];
+		}
+
+		@Override
+		public boolean isNull(int row) {
+			return nulls.get(row);
+		}
+
+		@Override
+		protected boolean accept(Object value) {
+			return value == null || value instanceof Double;
+		}
+
+		@Override
+		protected void append(Object value) {
+			if (value == null) {
+				ensureCapacity();
+				nulls.set(size++);
+			} else {
+				appendDouble((Double) value);
+			}
+		}
+
+		protected void appendDouble(double value) {
+			ensureCapacity();
+			values[size++] = value;
+		}
+
+		private void ensureCapacity() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+			}
+		}
+
+		@Override
+		protected void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+
+	}
+
+	/**
+	 * dictionary encoded strings; a negative code stands for null
+	 */
+	public static class StringColumn extends RawColumn {
+
+		private int[] codes = new int[0];
+		private List<String> dictionary;
+
+		public StringColumn(List<String> dictionary) {
+			this.dictionary = dictionary;
+		}
+
+		public StringColumn(int[] codes, List<String> dictionary, int size) {
+			this.codes = codes;
+			this.dictionary = dictionary;
+			this.size = size;
+		}
+
+		@Override
+		public Object get(int row) {
+			int code = codes[row];
+			return code < 0 ? null : dictionary.get(code);
+		}
+
+		@Override
+		public long getHeapSize() {
+			return OBJECT_HEADER + getArraySize(codes.length, 4);
+		}
+
+		public int getCode(int row) {
+			return codes[row];
+		}
+
+		public List<String> getDictionary() {
+			return dictionary;
+		}
+
+		@Override
+		public boolean isNull(int row) {
+			return codes[row] < 0;
+		}
+
+		@Override
+		protected boolean accept(Object value) {
+			// strings are only appended by code
+			return value == null;
+		}
+
+		@Override
+		protected void append(Object value) {
+			appendCode(-1);
+		}
+
+		protected void appendCode(int code) {
+			if (size == codes.length) {
+				codes = Arrays.copyOf(codes, grow(codes.length, size + 1));
+			}
+			codes[size++] = code;
+		}
+
+		@Override
+		protected void trim() {
+			codes = Arrays.copyOf(codes, size);
+		}
+
+	}
+
+	public static class ObjectColumn extends RawColumn {
+
+		private Object[] values;
+
+		public ObjectColumn() {
+			this.values = new Object[0];
+		}
+
+		public ObjectColumn(Object[] values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+
+		/**
+		 * promote a typed column
+		 * 
+		 * @param column
+		 */
+		public ObjectColumn(RawColumn column) {
+			this.values = new Object[grow(column.size, column.size + 1)];
+			for (int i = 0; i < column.size; i++) {
+				values[i] = column.get(i);
+			}
+			this.size = column.size;
+		}
+
+		@Override
+		public Object get(int row) {
+			return values[row];
+		}
+
+		@Override
+		public long getHeapSize() {
+			long heapSize = OBJECT_HEADER + getArraySize(values.length, REFERENCE);
+			for (int i = 0; i < size; i++) {
+				heapSize += getHeapSize(values[i]);
+			}
+			return heapSize;
+		}
+
+		@Override
+		protected boolean accept(Object value) {
+			return true;
+		}
+
+		@Override
+		protected void append(Object value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, grow(values.length, size + 1));
+			}
+			values[size++] = value;
+		}
+
+		@Override
+		protected void trim() {
+			values = Arrays.copyOf(values, size);
+		}
+
+	}
+
+}
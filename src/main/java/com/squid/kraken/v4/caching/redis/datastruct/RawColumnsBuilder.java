@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import java.util.ArrayList;
+
+/**
+ * Accumulate rows into typed columns, sharing one string dictionary between
+ * all the columns.
+ *
+ */
+public class RawColumnsBuilder {
+
+	private RawColumn[] columns;
+
+	private StringTable strings = new StringTable();
+
+	private ArrayList<String> dictionary = strings.getValues();
+
+	private int nbRows = 0;
+
+	private long estimatedSize = 0;
+
+	public RawColumnsBuilder(int nbColumns) {
+		this.columns = new RawColumn[nbColumns];
+	}
+
+	/**
+	 * add a value for the column in the current row
+	 * 
+	 * @param col
+	 * @param value
+	 */
+	public void add(int col, Object value) {
+		if (value instanceof String) {
+			addString(col, (String) value);
+		} else {
+			columns[col] = RawColumn.append(columns[col], value);
+			estimatedSize += 8;
+		}
+	}
+
+	public void addString(int col, String value) {
+		int size = strings.size();
+		int code = strings.add(value);
+		if (code == size) {
+			// new in the dictionary
+			estimatedSize += value.length() + 4;
+		}
+		columns[col] = RawColumn.appendString(columns[col], code, dictionary);
+		estimatedSize += 4;
+	}
+
+	public void addInt(int col, int value) {
+		columns[col] = RawColumn.appendInt(columns[col], value);
+		estimatedSize += 4;
+	}
+
+	public void addLong(int col, long value) {
+		columns[col] = RawColumn.appendLong(columns[col], value);
+		estimatedSize += 8;
+	}
+
+	public void addDouble(int col, double value) {
+		columns[col] = RawColumn.appendDouble(columns[col], value);
+		estimatedSize += 8;
+	}
+
+	public void addNull(int col) {
+		columns[col] = RawColumn.append(columns[col], null);
+		estimatedSize += 1;
+	}
+
+	/**
+	 * close the current row
+	 */
+	public void endRow() {
+		nbRows++;
+	}
+
+	public int getNbRows() {
+		return nbRows;
+	}
+
+	/**
+	 * @return the approximate encoded size in bytes of the rows added so far
+	 */
+	public long getEstimatedSize() {
+		return estimatedSize;
+	}
+
+	public ArrayList<String> getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * complete the columns; the builder must not be used afterward
+	 * 
+	 * @return
+	 */
+	public RawColumn[] build() {
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i] == null) {
+				columns[i] = new RawColumn.NullColumn(nbRows);
+			} else {
+				columns[i].trim();
+			}
+		}
+		dictionary.trimToSize();
+		strings = null;
+		return columns;
+	}
+
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Column-at-a-time encoding of the RawMatrix data, used since
+ * RedisCacheValue.VERSION 4.
+ * 
+ * Serialization format
+ * 
+ * - compression flag (byte): NO_COMPRESSION or DEFLATE
+ * 
+ * - size of the block (varint), and if compressed the size of the compressed
+ * block (varint)
+ * 
+ * - the block: number of rows (varint), the string dictionary (varint size
+ * then the strings), then for each column an encoding flag followed by the
+ * encoded column.
+ * 
+ * The columns encoding are: nothing for null columns; a null bitmap followed
+ * by zigzag varint deltas for integers, longs and dates (timestamps also
+ * store their nanos); the null bitmap followed by the raw values for doubles;
+ * the dictionary code + 1 (0 for null) as varint for strings; and Kryo
+ * class+object for anything else.
+ *
+ */
+public class RawColumnsCodec {
+
+	public static final int NO_COMPRESSION = 0;
+	public static final int DEFLATE = 1;
+
+	private static final int ENCODING_NULL = 0;
+	private static final int ENCODING_INT = 1;
+	private static final int ENCODING_LONG = 2;
+	private static final int ENCODING_DOUBLE = 3;
+	private static final int ENCODING_STRING = 4;
+	private static final int ENCODING_DATE = 5;
+	private static final int ENCODING_TIMESTAMP = 6;
+	private static final int ENCODING_OBJECT = 7;
+
+	public static void write(Output out, Kryo kryo, RawColumn[] columns, int nbRows, List<String> dictionary,
+			boolean compress) {
+		Output block = new Output(65536, -1);
+		block.writeInt(nbRows, true);
+		block.writeInt(dictionary.size(), true);
+		for (String s : dictionary) {
+			block.writeString(s);
+		}
+		for (RawColumn column : columns) {
+			writeColumn(block, kryo, column, nbRows);
+		}
+		byte[] data = block.toBytes();
+		block.close();
+		//
+		if (compress) {
+			byte[] compressed = deflate(data);
+			out.writeByte(DEFLATE);
+			out.writeInt(data.length, true);
+			out.writeInt(compressed.length, true);
+			out.writeBytes(compressed);
+		} else {
+			out.writeByte(NO_COMPRESSION);
+			out.writeInt(data.length, true);
+			out.writeBytes(data);
+		}
+	}
+
+	/**
+	 * read the (uncompressed) block from the stream
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] readBlock(Input in) throws IOException {
+		int compression = in.readByte();
+		int length = in.readInt(true);
+		if (compression == DEFLATE) {
+			int compressedLength = in.readInt(true);
+			return inflate(in.readBytes(compressedLength), length);
+		} else if (compression == NO_COMPRESSION) {
+			return in.readBytes(length);
+		} else {
+			throw new IOException("invalid stream state: unknown compression " + compression);
+		}
+	}
+
+	/**
+	 * decode the columns from a block returned by readBlock()
+	 * 
+	 * @param block
+	 * @param kryo
+	 * @param nbColumns
+	 * @return
+	 * @throws IOException
+	 */
+	public static ColumnarRows readColumns(byte[] block, Kryo kryo, int nbColumns) throws IOException {
+		Input in = new Input(block);
+		try {
+			int nbRows = in.readInt(true);
+			int dictionarySize = in.readInt(true);
+			ArrayList<String> dictionary = new ArrayList<String>(dictionarySize);
+			for (int i = 0; i < dictionarySize; i++) {
+				dictionary.add(in.readString());
+			}
+			RawColumn[] columns = new RawColumn[nbColumns];
+			for (int i = 0; i < nbColumns; i++) {
+				columns[i] = readColumn(in, kryo, nbRows, dictionary);
+			}
+			return new ColumnarRows(columns, nbRows);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeColumn(Output out, Kryo kryo, RawColumn column, int nbRows) {
+		if (column instanceof RawColumn.NullColumn) {
+			out.writeByte(ENCODING_NULL);
+		} else if (column instanceof RawColumn.IntColumn) {
+			RawColumn.IntColumn ints = (RawColumn.IntColumn) column;
+			out.writeByte(ENCODING_INT);
+			writeNulls(out, ints.getNulls());
+			int previous = 0;
+			for (int i = 0; i < nbRows; i++) {
+				if (!ints.isNull(i)) {
+					int value = ints.getInt(i);
+					out.writeInt(value - previous, false);
+					previous = value;
+				}
+			}
+		} else if (column instanceof RawColumn.LongColumn) {
+			RawColumn.LongColumn longs = (RawColumn.LongColumn) column;
+			out.writeByte(ENCODING_LONG);
+			writeNulls(out, longs.getNulls());
+			writeLongDeltas(out, longs, nbRows);
+		} else if (column instanceof RawColumn.DoubleColumn) {
+			RawColumn.DoubleColumn doubles = (RawColumn.DoubleColumn) column;
+			out.writeByte(ENCODING_DOUBLE);
+			writeNulls(out, doubles.getNulls());
+			for (int i = 0; i < nbRows; i++) {
+				if (!doubles.isNull(i)) {
+					out.writeDouble(doubles.getDouble(i));
+				}
+			}
+		} else if (column instanceof RawColumn.StringColumn) {
+			RawColumn.StringColumn strings = (RawColumn.StringColumn) column;
+			out.writeByte(ENCODING_STRING);
+			for (int i = 0; i < nbRows; i++) {
+				out.writeInt(strings.getCode(i) + 1, true);
+			}
+		} else {
+			Class<?> type = getUniqueType(column, nbRows);
+			if (type == java.sql.Date.class) {
+				out.writeByte(ENCODING_DATE);
+				writeDates(out, column, nbRows, false);
+			} else if (type == Timestamp.class) {
+				out.writeByte(ENCODING_TIMESTAMP);
+				writeDates(out, column, nbRows, true);
+			} else {
+				out.writeByte(ENCODING_OBJECT);
+				for (int i = 0; i < nbRows; i++) {
+					kryo.writeClassAndObject(out, column.get(i));
+				}
+			}
+		}
+	}
+
+	private static RawColumn readColumn(Input in, Kryo kryo, int nbRows, List<String> dictionary)
+			throws IOException {
+		int encoding = in.readByte();
+		switch (encoding) {
+		case ENCODING_NULL:
+			return new RawColumn.NullColumn(nbRows);
+		case ENCODING_INT: {
+			BitSet nulls = readNulls(in);
+			int[] values = new int[nbRows];
+			int previous = 0;
+			for (int i = 0; i < nbRows; i++) {
+				if (!nulls.get(i)) {
+					previous += in.readInt(false);
+					values[i] = previous;
+				}
+			}
+			return new RawColumn.IntColumn(values, nulls, nbRows);
+		}
+		case ENCODING_LONG: {
+			BitSet nulls = readNulls(in);
+			long[] values = new long[nbRows];
+			long previous = 0;
+			for (int i = 0; i < nbRows; i++) {
+				if (!nulls.get(i)) {
+					previous += in.readLong(false);
+					values[i] = previous;
+				}
+			}
+			return new RawColumn.LongColumn(values, nulls, nbRows);
+		}
+		case ENCODING_DOUBLE: {
+			BitSet nulls = readNulls(in);
+			double[] values = new double[nbRows];
+			for (int i = 0; i < nbRows; i++) {
+				if (!nulls.get(i)) {
+					values[i] = in.readDouble();
+				}
+			}
+			return new RawColumn.DoubleColumn(values, nulls, nbRows);
+		}
+		case ENCODING_STRING: {
+			int[] codes = new int[nbRows];
+			for (int i = 0; i < nbRows; i++) {
+				codes[i] = in.readInt(true) - 1;
+				if (codes[i] >= dictionary.size()) {
+					throw new IOException("invalid stream state");
+				}
+			}
+			return new RawColumn.StringColumn(codes, dictionary, nbRows);
+		}
+		case ENCODING_DATE:
+		case ENCODING_TIMESTAMP: {
+			BitSet nulls = readNulls(in);
+			Object[] values = new Object[nbRows];
+			long previous = 0;
+			for (int i = 0; i < nbRows; i++) {
+				if (!nulls.get(i)) {
+					previous += in.readLong(false);
+					if (encoding == ENCODING_DATE) {
+						values[i] = new java.sql.Date(previous);
+					} else {
+						Timestamp timestamp = new Timestamp(previous);
+						timestamp.setNanos(in.readInt(true));
+						values[i] = timestamp;
+					}
+				}
+			}
+			return new RawColumn.ObjectColumn(values, nbRows);
+		}
+		case ENCODING_OBJECT: {
+			Object[] values = new Object[nbRows];
+			for (int i = 0; i < nbRows; i++) {
+				values[i] = kryo.readClassAndObject(in);
+			}
+			return new RawColumn.ObjectColumn(values, nbRows);
+		}
+		default:
+			throw new IOException("invalid stream state: unknown column encoding " + encoding);
+		}
+	}
+
+	private static void writeLongDeltas(Output out, RawColumn.LongColumn longs, int nbRows) {
+		long previous = 0;
+		for (int i = 0; i < nbRows; i++) {
+			if (!longs.isNull(i)) {
+				long value = longs.getLong(i);
+				out.writeLong(value - previous, false);
+				previous = value;
+			}
+		}
+	}
+
+	private static void writeDates(Output out, RawColumn column, int nbRows, boolean withNanos) {
+		BitSet nulls = new BitSet(nbRows);
+		for (int i = 0; i < nbRows; i++) {
+			if (column.get(i) == null) {
+				nulls.set(i);
+			}
+		}
+		writeNulls(out, nulls);
+		long previous = 0;
+		for (int i = 0; i < nbRows; i++) {
+			Object value = column.get(i);
+			if (value != null) {
+				long time = ((java.util.Date) value).getTime();
+				out.writeLong(time - previous, false);
+				previous = time;
+				if (withNanos) {
+					out.writeInt(((Timestamp) value).getNanos(), true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the class of the column values if they all share the same one,
+	 *         null otherwise
+	 */
+	private static Class<?> getUniqueType(RawColumn column, int nbRows) {
+		Class<?> type = null;
+		for (int i = 0; i < nbRows; i++) {
+			Object value = column.get(i);
+			if (value != null) {
+				if (type == null) {
+					type = value.getClass();
+				} else if (type != value.getClass()) {
+					return null;
+				}
+			}
+		}
+		return type;
+	}
+
+	private static void writeNulls(Output out, BitSet nulls) {
+		long[] words = nulls.toLongArray();
+		out.writeInt(words.length, true);
+		for (long word : words) {
+			out.writeLong(word);
+		}
+	}
+
+	private static BitSet readNulls(Input in) {
+		int length = in.readInt(true);
+		long[] words = new long[length];
+		for (int i = 0; i < length; i++) {
+			words[i] = in.readLong();
+		}
+		return BitSet.valueOf(words);
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream baout = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+			byte[] buffer = new byte[65536];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				baout.write(buffer, 0, count);
+			}
+			return baout.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data, int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			byte[] res = new byte[length];
+			int position = 0;
+			while (position < length) {
+				int count = inflater.inflate(res, position, length - position);
+				if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("invalid stream state: truncated compressed block");
+				}
+				position += count;
+			}
+			return res;
+		} catch (DataFormatException e) {
+			throw new IOException("invalid stream state: " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
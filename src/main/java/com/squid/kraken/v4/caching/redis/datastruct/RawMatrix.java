@@ -30,8 +30,13 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.slf4j.Logger;
@@ -52,7 +57,7 @@ import com.squid.kraken.v4.core.analysis.engine.processor.ComputingException;
 
 public class RawMatrix extends RedisCacheValue {
 
-	private transient ArrayList<RawRow> rows;
+	private transient List<RawRow> rows;
 	private transient ArrayList<Integer> colTypes;
 	private transient ArrayList<String> colNames;
 	private transient boolean moreData;
@@ -64,6 +69,8 @@ public class RawMatrix extends RedisCacheValue {
 	private transient HashMap<String, Integer> registration;
 
 	private transient static int maxChunkSizeInMB = 10;
+
+	private transient static boolean compression = true;
 		
 	static final Logger logger = LoggerFactory.getLogger(RawMatrix.class);
 
@@ -114,10 +121,52 @@ public class RawMatrix extends RedisCacheValue {
 		this.executionDate = executionDate;
 	}
 
-	public ArrayList<RawRow> getRows() {
+	/**
+	 * the matrix rows; if the matrix was read from the cache the list is
+	 * backed by columns (see ColumnarRows) and can only be reordered
+	 * 
+	 * @return
+	 */
+	public List<RawRow> getRows() {
 		return rows;
 	}
 
+	/**
+	 * estimate the heap size of the decoded matrix, in bytes; this can be far
+	 * above the serialized size once the chunks are compressed
+	 * 
+	 * @return
+	 */
+	public long getHeapSize() {
+		long size = 0;
+		if (rows instanceof ColumnarRows) {
+			// the dictionary is shared by the string columns
+			Set<List<String>> dictionaries = Collections
+					.newSetFromMap(new IdentityHashMap<List<String>, Boolean>());
+			for (RawColumn column : ((ColumnarRows) rows).getColumns()) {
+				size += column.getHeapSize();
+				if (column instanceof RawColumn.StringColumn) {
+					List<String> dictionary = ((RawColumn.StringColumn) column).getDictionary();
+					if (dictionaries.add(dictionary)) {
+						for (String value : dictionary) {
+							size += 8 + RawColumn.getHeapSize(value);
+						}
+					}
+				}
+			}
+			// the row ordering
+			size += 4L * rows.size();
+		} else if (rows != null) {
+			for (RawRow row : rows) {
+				size += 32 + 8L * row.data.length;
+				for (Object value : row.data) {
+					size += RawColumn.getHeapSize(value);
+				}
+			}
+		}
+		return size;
+	}
+
 	public ArrayList<String> getColNames() {
 		return this.colNames;
 	}
@@ -127,9 +176,19 @@ public class RawMatrix extends RedisCacheValue {
 	}
 
 	public void addRow(RawRow e) {
+		ensureRowStorage();
 		this.rows.add(e);
 	}
 
+	/**
+	 * switch from columnar to row storage so that rows can be added
+	 */
+	private void ensureRowStorage() {
+		if (!(this.rows instanceof ArrayList)) {
+			this.rows = new ArrayList<RawRow>(this.rows);
+		}
+	}
+
 	public boolean hasMoreData() {
 		return this.moreData;
 	}
@@ -154,6 +213,38 @@ public class RawMatrix extends RedisCacheValue {
 		maxChunkSizeInMB = size;
 	}
 
+	/**
+	 * enable/disable the compression of the serialized data (since VERSION 4)
+	 * 
+	 * @param compress
+	 */
+	public static void setCompression(boolean compress) {
+		compression = compress;
+	}
+
+	/**
+	 * create a shallow copy of this matrix: the rows are shared but the row list is not, so the copy can be sorted or
+	 * extended without affecting the original.
+	 * 
+	 * @return
+	 */
+	public RawMatrix copy() {
+		RawMatrix copy = new RawMatrix(this.version, this.registration);
+		if (this.rows instanceof ColumnarRows) {
+			copy.rows = ((ColumnarRows) this.rows).copy();
+		} else {
+			copy.rows = new ArrayList<RawRow>(this.rows);
+		}
+		copy.colTypes = new ArrayList<Integer>(this.colTypes);
+		copy.colNames = new ArrayList<String>(this.colNames);
+		copy.moreData = this.moreData;
+		copy.executionDate = this.executionDate;
+		copy.setRedisKey(getRedisKey());
+		copy.setFromCache(isFromCache());
+		copy.setSerializedSize(getSerializedSize());
+		return copy;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (obj == null)
@@ -224,6 +315,11 @@ public class RawMatrix extends RedisCacheValue {
 				i++;
 			}
 
+			ColumnDecoder[] decoders = ColumnDecoder.create(normalizedTypes, formatter);
+			// only probe the shared dictionary once per distinct value
+			StringTable strings = new StringTable();
+			ArrayList<String> refs = new ArrayList<String>();
+
 			int count = 0;
 			matrix.moreData = false;
 			//
@@ -232,11 +328,14 @@ public class RawMatrix extends RedisCacheValue {
 
 				i = 0;
 				while (i < nbColumns) {
-					Object value = result.getObject(i + 1);
-					Object unbox = formatter.unboxJDBCObject(value, matrix.colTypes.get(i));
+					Object unbox = decoders[i].read(result);
 					if (unbox instanceof String) {
 						String stringVal = (String) unbox;
-						rawrow[i] = DimensionValuesDictionary.INSTANCE.getRef(stringVal);
+						int code = strings.add(stringVal);
+						if (code == refs.size()) {
+							refs.add(DimensionValuesDictionary.INSTANCE.getRef(stringVal));
+						}
+						rawrow[i] = refs.get(code);
 					} else {
 						rawrow[i] = unbox;
 					}
@@ -271,18 +370,22 @@ public class RawMatrix extends RedisCacheValue {
 	 * 
 	 * - the column type (int list)
 	 * 
-	 * - for each serialized row, 3 a boolean flag set to true (so that the
-	 * deserialize still more rows if the object to be serialized is a String,
-	 * we try to optimize if this is the first occurrence of this string value,
-	 * we associated an id to it a flag indicating that this is a first time
-	 * encountered value the serialized String else a flag indicating that this
-	 * is a reference to a previously encountered String (int) the id (int) else
-	 * a flag indicating that its not a string value (int) the serialized object
+	 * - since VERSION 4: the data block, encoded column by column and
+	 * optionally compressed (see RawColumnsCodec)
 	 * 
-	 * - a boolean set to false (no more rows)
+	 * - before VERSION 4: for each serialized row, 3 a boolean flag set to true
+	 * (so that the deserialize still more rows if the object to be serialized
+	 * is a String, we try to optimize if this is the first occurrence of this
+	 * string value, we associated an id to it a flag indicating that this is a
+	 * first time encountered value the serialized String else a flag
+	 * indicating that this is a reference to a previously encountered String
+	 * (int) the id (int) else a flag indicating that its not a string value
+	 * (int) the serialized object; then a boolean set to false (no more rows)
 	 * 
 	 * - a boolean indicating if there are more rows to be read from the result
 	 * set
+	 * 
+	 * - the execution date (long)
 	 */
 
 	private static final int MEMBER_REFERENCE = 1;// this is reference in the
@@ -293,6 +396,22 @@ public class RawMatrix extends RedisCacheValue {
 
 	public static RawMatrixStreamExecRes streamExecutionItemToByteArray(IExecutionItem item,
 			long nbLinesExpectedLeft) throws IOException, SQLException {
+		return streamExecutionItemToByteArray(item, nbLinesExpectedLeft,
+				ChunkSizePolicy.fixed(maxChunkSizeInMB * 1048576L));
+	}
+
+	/**
+	 * serialize the next chunk of the result set
+	 * 
+	 * @param item
+	 * @param nbLinesExpectedLeft
+	 *            the number of lines left to read, -1 if no limit
+	 * @param policy
+	 *            decides where the chunk stops; it must be the same for all
+	 *            the chunks of a query
+	 */
+	public static RawMatrixStreamExecRes streamExecutionItemToByteArray(IExecutionItem item,
+			long nbLinesExpectedLeft, ChunkSizePolicy policy) throws IOException, SQLException {
 
 		RawMatrixStreamExecRes res = new RawMatrixStreamExecRes();
 		long metter_start = System.currentTimeMillis();
@@ -377,45 +496,34 @@ public class RawMatrix extends RedisCacheValue {
 		for (Integer t : colTypes)
 			kout.writeInt(t);
 
+		// tune the number of rows per round-trip from the previous chunks
+		int fetchSize = result.getFetchSize();
+		int newFetchSize = policy.getFetchSize(fetchSize,
+				ChunkSizePolicy.getMaxFetchSize(item.getDatabase().getProductName()));
+		if (newFetchSize != fetchSize) {
+			try {
+				result.setFetchSize(newFetchSize);
+			} catch (SQLException e) {
+				// just a hint
+				logger.debug("cannot change the fetch size: " + e.getMessage());
+			}
+		}
+
 		// rows
-		// we need a different dictionary to check for first occurences
-		HashMap<String, Integer> tempsDict = new HashMap<String, Integer>();
+		ColumnDecoder[] decoders = ColumnDecoder.create(colTypes, formatter);
+		RawColumnsBuilder builder = new RawColumnsBuilder(nbColumns);
+		long chunkSizeInBytes = policy.getChunkSizeInBytes();
+		// the chunk size is an encoded size, compare it to the calibrated estimate
+		long estimatedSizeLimit = policy.getEstimatedSizeLimit();
 		int count = 0;
-		int index = 0;
 		boolean moreData = false;
 		boolean maxSizeReached = false;
 
 		while ((!maxSizeReached) && (moreData = result.next())) {
-			i = 0;
-			kout.writeBoolean(true);
-			while (i < nbColumns) {
-				Object value = result.getObject(i + 1);
-				Object unbox = formatter.unboxJDBCObject(value, colTypes[i]);
-				// if(logger.isDebugEnabled()){logger.debug(("unbox value is
-				// "+unbox));}
-				if (unbox instanceof String) {
-					String stringVal = (String) unbox;
-					// System.out.println(stringVal);
-					Integer ref = tempsDict.get(stringVal);
-					if (ref != null) {
-						kout.write(MEMBER_REFERENCE);// 4
-						kout.writeInt(ref);// 5
-					} else {
-						kout.write(MEMBER_DEFINITION);// 4
-						kout.writeString(stringVal);
-						tempsDict.put(stringVal, new Integer(index));
-						index++;
-					}
-				} else {
-					kout.write(MEMBER_VALUE);// 4
-					// if(logger.isDebugEnabled()){logger.debug(("member
-					// unbox " + unbox.toString()));}
-					// if(logger.isDebugEnabled()){logger.debug(("member
-					// value " + value.toString()));}
-					kryo.writeClassAndObject(kout, unbox);
-				}
-				i++;
+			for (ColumnDecoder decoder : decoders) {
+				decoder.decode(result, builder);
 			}
+			builder.endRow();
 
 			count++;
 
@@ -428,13 +536,13 @@ public class RawMatrix extends RedisCacheValue {
 						+ ((intermediate - metter_start)) + " error=false status=running queryid=" + item.getID());
 
 			}
-			// if max chunk size of 50MB reached, stop 
-			if(count % 100 ==0){	
-				float size = Math.round(baout.size() / 1048576);
-				if (size >= maxChunkSizeInMB) {
-					logger.info("Max size of " + maxChunkSizeInMB+ "MB for one chunk reached");
-					maxSizeReached = true;
-				}
+			// stop when the chunk is full, or when it took too long to read
+			if (builder.getEstimatedSize() >= estimatedSizeLimit) {
+				logger.info("Size of " + chunkSizeInBytes + " bytes for this chunk reached");
+				maxSizeReached = true;
+			} else if ((count & 63) == 0 && policy.isLate(System.currentTimeMillis() - metter_start)) {
+				logger.info("Read duration for this chunk reached with " + builder.getEstimatedSize() + " bytes");
+				maxSizeReached = true;
 			}
 
 			// DEBUG CODE TO CREATE SMALLER CHUNKS
@@ -444,8 +552,13 @@ public class RawMatrix extends RedisCacheValue {
 			}  */
 		}
 
-		// WRITE moredata
-		kout.writeBoolean(false);// close the data stream, begin metadata
+		long readDuration = System.currentTimeMillis() - metter_start;
+		long estimatedSize = builder.getEstimatedSize();
+
+		// WRITE data
+		long encodedStart = kout.total();
+		RawColumnsCodec.write(kout, kryo, builder.build(), builder.getNbRows(), builder.getDictionary(), compression);
+		policy.record(estimatedSize, kout.total() - encodedStart, count, readDuration);
 		
 		
 		//we stop either if maxSize was reach or if there were no more data to read
@@ -561,35 +674,16 @@ public class RawMatrix extends RedisCacheValue {
 			out.writeInt(t);
 
 		// WRITE data
-
-		// we need a different dictionary to check for first occurences
-		HashMap<String, Integer> tempsDict = new HashMap<String, Integer>();
-
-		int count = 0;
+		RawColumnsBuilder builder = new RawColumnsBuilder(this.colNames.size());
 		for (RawRow row : this.rows) {
-			out.writeBoolean(true);
-			for (Object value : row.data) {
-				if (value instanceof String) {
-					String svalue = (String) value;
-					Integer ref = tempsDict.get(svalue);
-					if (ref != null) {
-						out.write(MEMBER_REFERENCE);// 4
-						out.writeInt(ref);// 5
-					} else {
-						out.write(MEMBER_DEFINITION);// 4
-						out.writeString(svalue);
-						tempsDict.put(svalue, new Integer(count));
-						count++;
-					}
-				} else {
-					out.write(MEMBER_VALUE);// 4
-					kryo.writeClassAndObject(out, value);
-				}
+			for (int i = 0; i < row.data.length; i++) {
+				builder.add(i, row.data[i]);
 			}
+			builder.endRow();
 		}
+		RawColumnsCodec.write(out, kryo, builder.build(), builder.getNbRows(), builder.getDictionary(), compression);
 
 		// WRITE more data to be fetch
-		out.writeBoolean(false);// close the data stream, begin metadata
 		out.writeBoolean(this.moreData);// 1
 		// V1
 		if (version >= 1) {
@@ -619,15 +713,11 @@ public class RawMatrix extends RedisCacheValue {
 		kryo.setRegistrationRequired(true);
 		kryo.setReferences(false);
 
-		this.rows = new ArrayList<RawRow>();
 		this.colNames = new ArrayList<String>();
 		this.colTypes = new ArrayList<Integer>();
 
 		long start = new Date().getTime();
 
-		// we need a different dictionary to check for first occurences
-		HashMap<Integer, Object> tempDict = new HashMap<Integer, Object>();
-
 		for (String className : this.registration.keySet()) {
 			kryo.register(Class.forName(className), this.registration.get(className).intValue());
 		}
@@ -643,53 +733,73 @@ public class RawMatrix extends RedisCacheValue {
 		for (int i = 0; i < rowSize; i++)
 			this.colTypes.add(in.readInt());
 
-		// READ data
-		int count = 0;
-		// int iter =0;
+		if (version >= 4) {
+			// READ data block
+			byte[] block = RawColumnsCodec.readBlock(in);
+			this.rows = RawColumnsCodec.readColumns(block, kryo, rowSize);
+			// the heap footprint is closer to the uncompressed size
+			setSerializedSize(block.length);
+		} else {
+			readRows(in, kryo, rowSize);
+		}
+
+		this.moreData = in.readBoolean();
+		if (version >= 1) {
+			this.executionDate = new Date(in.readLong());
+		}
+
+		long complete = new Date().getTime();
+		if (logger.isDebugEnabled()) {
+			logger.debug(
+					("deserialized  complete in " + (complete - start) + "ms, with " + this.rows.size() + " rows"));
+		}
+	}
+
+	/**
+	 * read the row by row data format used before VERSION 4
+	 */
+	private void readRows(Input in, Kryo kryo, int rowSize) throws IOException {
+		// the chunk string table, indexed by order of definition; it is shared
+		// by the string columns
+		ArrayList<String> dictionary = new ArrayList<String>();
+
+		// READ data, column by column
+		RawColumn[] columns = new RawColumn[rowSize];
+		int nbRows = 0;
 		while (in.readBoolean()) {
-			Object[] rawrow = new Object[rowSize];
 			for (int ia = 0; ia < rowSize; ia++) {
 				int type = in.read();// 4
 				switch (type) {
 				case MEMBER_REFERENCE:
 					int ref = in.readInt();// 5
-					rawrow[ia] = tempDict.get(ref);
+					if (ref < 0 || ref >= dictionary.size()) {
+						throw new IOException("invalid stream state");
+					}
+					columns[ia] = RawColumn.appendString(columns[ia], ref, dictionary);
 					break;
 				case MEMBER_DEFINITION:
 					String value = in.readString();// 6
-					// String refString =
-					// DimensionValuesDictionary.INSTANCE.getRef(value);
-					if (tempDict.get(value) == null) {
-						tempDict.put(new Integer(count), value);
-						count++;
-					} else {
-						throw new IOException("invalid stream state");// SFA: we
-						// should
-						// not
-						// get
-						// there
-					}
-					rawrow[ia] = value;
+					dictionary.add(value);
+					columns[ia] = RawColumn.appendString(columns[ia], dictionary.size() - 1, dictionary);
 					break;
 				case MEMBER_VALUE:
-					rawrow[ia] = kryo.readClassAndObject(in);// 7
+					columns[ia] = RawColumn.append(columns[ia], kryo.readClassAndObject(in));// 7
 					break;
+				default:
+					throw new IOException("invalid stream state");
 				}
 			}
-			RawRow row = new RawRow(rawrow);
-			this.addRow(row);
+			nbRows++;
 		}
-
-		this.moreData = in.readBoolean();
-		if (version >= 1) {
-			this.executionDate = new Date(in.readLong());
-		}
-
-		long complete = new Date().getTime();
-		if (logger.isDebugEnabled()) {
-			logger.debug(
-					("deserialized  complete in " + (complete - start) + "ms, with " + this.rows.size() + " rows"));
+		for (int ia = 0; ia < rowSize; ia++) {
+			if (columns[ia] == null) {
+				columns[ia] = new RawColumn.NullColumn();
+			} else {
+				columns[ia].trim();
+			}
 		}
+		dictionary.trimToSize();
+		this.rows = new ColumnarRows(columns, nbRows);
 	}
 
 	public static RawMatrix deserialize(byte[] serializedMatrix) throws IOException, ClassNotFoundException {
@@ -732,6 +842,9 @@ public class RawMatrix extends RedisCacheValue {
 			if (type == RedisCacheType.RAW_MATRIX.ordinal()) {
 				RawMatrix res = new RawMatrix(version, registration);
 				res.readObject(in);
+				if (res.getSerializedSize() == 0) {
+					res.setSerializedSize(serializedMatrix.length);
+				}
 				return res;
 			} else {
 				throw new ClassNotFoundException("Could not deserialize");
@@ -844,6 +957,7 @@ public class RawMatrix extends RedisCacheValue {
 			&&  (mergeInto.getColNames().equals(toMerge.getColNames())))){ 
 			throw new ComputingException("Trying to merge matrices with difference signature types");
 		}
+		mergeInto.ensureRowStorage();
 		mergeInto.getRows().addAll(toMerge.getRows());
 		mergeInto.setExecutionDate(toMerge.getExecutionDate());
 		mergeInto.setFromCache(toMerge.isFromCache());
@@ -851,6 +965,32 @@ public class RawMatrix extends RedisCacheValue {
 		mergeInto.setRedisKey(null);
 		return mergeInto;
 	}
+
+	/**
+	 * merge the chunks into a single matrix, stopping once maxSizeInByte of
+	 * (serialized) chunks have been read; in that case the matrix is flagged
+	 * with more data.
+	 * 
+	 * @param chunks
+	 * @param maxSizeInByte
+	 * @return the merged matrix or null if there is no chunk
+	 * @throws ComputingException
+	 */
+	public static RawMatrix mergeChunks(Iterator<RawMatrix> chunks, long maxSizeInByte) throws ComputingException {
+		RawMatrix res = null;
+		long size = 0;
+		while (chunks.hasNext()) {
+			RawMatrix chunk = chunks.next();
+			size += chunk.getSerializedSize();
+			res = mergeMatrices(res, chunk);
+			if (size >= maxSizeInByte) {
+				logger.info("Max size of " + maxSizeInByte + " bytes reached, for more data please use export");
+				res.setMoreData(true);
+				break;
+			}
+		}
+		return res;
+	}
 	
 	
 }
@@ -35,11 +35,13 @@ public class RedisCacheValue {
 		RAW_MATRIX, CACHE_REFERENCE, CACHE_REFERENCE_LIST
 	}
 	
-	public static final int VERSION = 3;
+	public static final int VERSION = 4;// V4: columnar and compressed RawMatrix data
 	
 	private transient String redisKey = null;
 
 	private transient boolean fromCache = false;
+
+	private transient int serializedSize = 0;
 	
 	public RedisCacheValue(){
 	}
@@ -65,6 +67,17 @@ public class RedisCacheValue {
 	public void setRedisKey(String redisKey) {
 		this.redisKey = redisKey;
 	}
+
+	/**
+	 * @return the size in bytes of the serialized value this object was read from (before compression), or 0 if it was not read from the cache
+	 */
+	public int getSerializedSize() {
+		return serializedSize;
+	}
+
+	public void setSerializedSize(int serializedSize) {
+		this.serializedSize = serializedSize;
+	}
 	
     public static RedisCacheValue deserialize(byte[] serializedVal) throws IOException, ClassNotFoundException{
         Input in = new Input( new ByteArrayInputStream(serializedVal));
@@ -107,6 +120,9 @@ public class RedisCacheValue {
 		    if (type == RedisCacheType.RAW_MATRIX.ordinal()){
 		        RawMatrix res =  new RawMatrix(version, registration );
 		        res.readObject(in) ;
+		        if (res.getSerializedSize() == 0) {
+		        	res.setSerializedSize(serializedVal.length);
+		        }
 		        in.close();
 		        return res;
 		
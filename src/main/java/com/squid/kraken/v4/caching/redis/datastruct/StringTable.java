@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import java.util.ArrayList;
+
+/**
+ * Map strings to their index in a dictionary. This is an open-addressing
+ * table with linear probing over int arrays, so adding a value that is
+ * already known does not allocate anything, unlike a HashMap lookup.
+ *
+ */
+public class StringTable {
+
+	private static final int INITIAL_CAPACITY = 256;// must be a power of 2
+
+	private ArrayList<String> values;
+
+	private int[] slots;// code + 1, 0 if the slot is free
+	private int[] hashes;
+	private int mask;
+
+	public StringTable() {
+		this.values = new ArrayList<String>();
+		this.slots = new int[INITIAL_CAPACITY];
+		this.hashes = new int[INITIAL_CAPACITY];
+		this.mask = INITIAL_CAPACITY - 1;
+	}
+
+	/**
+	 * @param value
+	 *            not null
+	 * @return the index of the value in the dictionary, it is added if needed
+	 */
+	public int add(String value) {
+		int hash = mix(value.hashCode());
+		int i = hash & mask;
+		while (true) {
+			int slot = slots[i];
+			if (slot == 0) {
+				int code = values.size();
+				values.add(value);
+				slots[i] = code + 1;
+				hashes[i] = hash;
+				if (values.size() * 2 > slots.length) {
+					rehash();
+				}
+				return code;
+			}
+			if (hashes[i] == hash && values.get(slot - 1).equals(value)) {
+				return slot - 1;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	public String get(int code) {
+		return values.get(code);
+	}
+
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * @return the dictionary, indexed by code
+	 */
+	public ArrayList<String> getValues() {
+		return values;
+	}
+
+	private void rehash() {
+		int[] oldSlots = slots;
+		int[] oldHashes = hashes;
+		slots = new int[oldSlots.length * 2];
+		hashes = new int[oldSlots.length * 2];
+		mask = slots.length - 1;
+		for (int j = 0; j < oldSlots.length; j++) {
+			if (oldSlots[j] != 0) {
+				int i = oldHashes[j] & mask;
+				while (slots[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				slots[i] = oldSlots[j];
+				hashes[i] = oldHashes[j];
+			}
+		}
+	}
+
+	private static int mix(int hash) {
+		// spread the String hash so that linear probing does not cluster
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
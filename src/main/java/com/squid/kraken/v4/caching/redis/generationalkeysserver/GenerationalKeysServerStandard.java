@@ -23,22 +23,30 @@
  *******************************************************************************/
 package com.squid.kraken.v4.caching.redis.generationalkeysserver;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.squid.kraken.v4.caching.redis.IRedisCacheProxy;
+import com.squid.kraken.v4.caching.redis.RedisKeyNotifier;
 import com.squid.kraken.v4.caching.redis.ServerID;
 
 /**
  * abstract version to be used by both actual and mockup
+ * 
+ * The keys are cached locally; every key update is published through redis
+ * so that all the nodes drop their stale copy.
+ * 
  * @author sergefantino
  *
  */
@@ -54,9 +62,36 @@ public abstract class GenerationalKeysServerStandard implements IGenerationalKey
 
     private ConcurrentHashMap<String, RedisKey> keys;
 
+    // count the evictions, so that a key read from redis before an eviction
+    // is not kept locally afterward
+    private final AtomicLong evictions = new AtomicLong();
+
     public GenerationalKeysServerStandard(ServerID redisID) {
         this.keys = new ConcurrentHashMap<String, RedisKey>();
         this.redis = initRedisService(redisID);
+        this.redis.addUpdateListener(new KeyUpdateListener());
+    }
+
+    /**
+     * evict the local copy of a key as soon as it is updated by any node
+     */
+    private class KeyUpdateListener implements RedisKeyNotifier.UpdateListener {
+
+        @Override
+        public void onUpdate(String key) {
+            if (key.startsWith(REDISKEY_PREFIX)) {
+                evictions.incrementAndGet();
+                keys.remove(key.substring(REDISKEY_PREFIX.length()));
+            }
+        }
+
+        @Override
+        public void onReset() {
+            // we may have missed some updates
+            evictions.incrementAndGet();
+            keys.clear();
+        }
+
     }
     
     protected abstract IRedisCacheProxy initRedisService(ServerID redisID);
@@ -136,48 +171,67 @@ public abstract class GenerationalKeysServerStandard implements IGenerationalKey
     private RedisKey getExistingKey(String name){
     	RedisKey k = this.keys.get(name);
     	if (k!=null) {// got a key
-    		if (!k.getName().equals(name)) {
-    			// alert, it's not valid
-    			logger.error("inconsistent genkey found for key=" + name);
-    			return null;
+    		return checkLocalKey(name, k);
+    	} else {
+    		// k==null, check if the key is in Redis (a single GET)
+    		long generation = this.evictions.get();
+    		byte[] b = this.redis.get(REDISKEY_PREFIX + name);
+    		if (b != null) {
+    			// got it
+    			return this.readKey(name, b, generation);
     		} else {
-    			// the normal way
-    			return k;
+    			// unknown key
+    			return null;
     		}
-    	} else if (redis.inCache(REDISKEY_PREFIX + name)) { // k==null
-    		// the key is in Redis
-    		try {
-    			// got it
-				return this.retrieveKeyFromRedis(name);
-			} catch (GenKeyException e) {
-				// some error
-				logger.error("cannot retrieve genkey found for key=" + name, e);
-				return null;
-			}
-    	} else {
-    		// unknown key
-    		return null;
     	}
     }
     
+    private RedisKey checkLocalKey(String name, RedisKey k) {
+		if (!k.getName().equals(name)) {
+			// alert, it's not valid
+			logger.error("inconsistent genkey found for key=" + name);
+			return null;
+		} else {
+			// the normal way
+			return k;
+		}
+    }
+    
     private HashMap<String, Integer> getGenDeps(Collection<String> names) throws GenKeyException {
     	if (names == null)
     		return null;
         
     	HashMap<String, Integer> res = new HashMap<String, Integer>();
-        
-    	if (names!=null) {
-	        HashSet<String> doneDeps = new HashSet<String>(names);
-	        for (String name: names) {
-	        	doneDeps.add(name);
-	        	RedisKey dep = this.getExistingKey(name);
-	        	if (dep == null)
-	        	{
-	                dep = this.createKey(name, null) ;
-	            }
-	        	res.put(name, new Integer(dep.getVersion())); 
-	        }
-    	}
+    	
+    	// first use the local keys, then get all the missing ones in one round-trip
+    	List<String> missing = new ArrayList<String>();
+        for (String name: names) {
+        	RedisKey dep = this.keys.get(name);
+        	if (dep != null) {
+        		dep = checkLocalKey(name, dep);
+        	}
+        	if (dep != null) {
+        		res.put(name, new Integer(dep.getVersion()));
+        	} else if (!missing.contains(name)) {
+        		missing.add(name);
+        	}
+        }
+        if (!missing.isEmpty()) {
+        	List<String> redisKeys = new ArrayList<String>(missing.size());
+        	for (String name : missing) {
+        		redisKeys.add(REDISKEY_PREFIX + name);
+        	}
+        	long generation = this.evictions.get();
+        	List<byte[]> values = this.redis.get(redisKeys);
+        	for (int i = 0; i < missing.size(); i++) {
+        		String name = missing.get(i);
+        		RedisKey dep = values.get(i) != null ? this.readKey(name, values.get(i), generation) : null;
+        		if (dep == null) {
+        			dep = this.createKey(name, null);
+        		}
+        		res.put(name, new Integer(dep.getVersion()));
+        	}
+        }
         
         return res;
     }
@@ -186,6 +240,7 @@ public abstract class GenerationalKeysServerStandard implements IGenerationalKey
         String key = REDISKEY_PREFIX + toSave.getName();
         try {
             this.redis.put(key, toSave.toJson());
+            this.redis.publishUpdate(key);
         } catch (JsonProcessingException e) {
             logger.error("failed to save key to redis: " + e.getMessage());
             throw new RuntimeException(e);
@@ -195,12 +250,24 @@ public abstract class GenerationalKeysServerStandard implements IGenerationalKey
     
     //private ConcurrentHashMap<String, RedisKey> reverseCheck = new ConcurrentHashMap<>();
 
-    private RedisKey retrieveKeyFromRedis(String name) throws GenKeyException {
-        String key = REDISKEY_PREFIX + name;
-        byte[] b = this.redis.get(key);
-        if (b != null) {
-        	RedisKey k = RedisKey.fromJson(new String(b)) ;
-        	this.keys.put(name, k);
+    /**
+     * read the key and cache it locally
+     * 
+     * @param name
+     * @param b
+     *            the key value as read from redis
+     * @param generation
+     *            the evictions count before reading the value
+     * @return
+     */
+    private RedisKey readKey(String name, byte[] b, long generation) {
+        RedisKey k = RedisKey.fromJson(new String(b)) ;
+        if (k != null) {
+        	this.cacheKey(name, k);
+        	if (this.evictions.get() != generation) {
+        		// the key may have been updated while we were reading it
+        		this.keys.remove(name, k);
+        	}
         	/*
         	RedisKey check = reverseCheck.get(k.getStringKey());
         	if (check!=null && !check.getName().equals(name)) {
@@ -212,7 +279,31 @@ public abstract class GenerationalKeysServerStandard implements IGenerationalKey
         	*/
             return k;
         } else {
-            throw new GenKeyException("cannot find redisKey '" + name +"'");
+            logger.error("cannot read genkey found for key=" + name);
+            return null;
+        }
+    }
+
+    /**
+     * cache a key read from redis, unless we already have a newer version of
+     * it
+     * 
+     * @param name
+     * @param k
+     */
+    private void cacheKey(String name, RedisKey k) {
+        while (true) {
+            RedisKey local = this.keys.putIfAbsent(name, k);
+            if (local == null) {
+                return;
+            }
+            if (k.getUniqueID() != null && k.getUniqueID().equals(local.getUniqueID())
+                    && local.getVersion() >= k.getVersion()) {
+                return;
+            }
+            if (this.keys.replace(name, local, k)) {
+                return;
+            }
         }
     }
 
@@ -28,22 +28,45 @@ import java.util.concurrent.Callable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.squid.kraken.v4.caching.redis.IRedisCacheProxy;
+import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.RedisKeyNotifier;
+import com.squid.kraken.v4.caching.redis.RedisLease;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.IQueryWorkerServer;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest;
 
-public class CallableFetch implements Callable<Integer> {
+/**
+ * Run the query on a worker, unless another node is already computing the same
+ * key: only the node holding the key lease executes the query, the others wait
+ * for its result. The scheduler slot is given back while waiting.
+ *
+ */
+public class CallableFetch implements Callable<Integer>, QueryScheduler.SlotAware {
+
+	/**
+	 * returned when the result has been computed by another node
+	 */
+	public static final int COMPUTED_ELSEWHERE = 0;
 
 	private QueryWorkerJobRequest request;
 	private IQueryWorkerServer worker;
+	private IRedisCacheProxy redis;
+	private QueryScheduler.Slot slot = null;
 
 	static final Logger logger = LoggerFactory.getLogger(CallableFetch.class);
 
-	public CallableFetch(QueryWorkerJobRequest request, IQueryWorkerServer w) {
+	public CallableFetch(QueryWorkerJobRequest request, IQueryWorkerServer w, IRedisCacheProxy redis) {
 		if (logger.isDebugEnabled()) {
 			logger.debug(("new  callablefetch " + request.getJdbcURL() + " " + request.getUsername()));
 		}
 		this.request = request;
 		this.worker = w;
+		this.redis = redis;
+	}
+
+	@Override
+	public void setSlot(QueryScheduler.Slot slot) {
+		this.slot = slot;
 	}
 
 	@Override
@@ -51,6 +74,57 @@ public class CallableFetch implements Callable<Integer> {
 		if (logger.isDebugEnabled()) {
 			logger.debug(("callablefetch " + request.getJdbcURL() + " " + request.getUsername()));
 		}
-		return worker.fetch(request);
+		String leaseKey = RedisLease.getLeaseKey(request.getKey());
+		boolean takeover = false;
+		while (true) {
+			RedisLease lease = RedisLease.tryAcquire(redis, request.getKey());
+			if (lease != null) {
+				try {
+					if (takeover && redis.inCache(request.getKey())) {
+						// the result showed up while we were acquiring the lease
+						return COMPUTED_ELSEWHERE;
+					}
+					request.setLeaseToken(lease.getToken());
+					return worker.fetch(request);
+				} catch (RuntimeException e) {
+					// the nodes waiting for the lease must not run the query again
+					lease.fail();
+					throw e;
+				} finally {
+					// no-op if the worker took the lease over
+					lease.release();
+				}
+			}
+			// another node is computing the same query, wait for its result
+			logger.info("jobId " + request.getJobId() + " is already computed by another node, waiting for key "
+					+ request.getKey());
+			if (slot != null) {
+				// we don't need the datasource while waiting
+				slot.suspend();
+			}
+			try (RedisKeyNotifier.Watch watch = redis.watch(leaseKey)) {
+				while (redis.inCache(leaseKey)) {
+					if (redis.inCache(request.getKey())) {
+						return COMPUTED_ELSEWHERE;
+					}
+					if (RedisLease.isFailed(redis, request.getKey())) {
+						throw new RedisCacheException(
+								"jobId " + request.getJobId() + " failed on the node computing it, please retry");
+					}
+					watch.await(RedisLease.LEASE_IN_MS / 3);
+				}
+				if (redis.inCache(request.getKey())) {
+					return COMPUTED_ELSEWHERE;
+				}
+				// the lease was released or expired without a result, try to compute it
+				if (slot != null) {
+					slot.resume();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RedisCacheException("interrupted while waiting for the result of jobId " + request.getJobId());
+			}
+			takeover = true;
+		}
 	}
 }
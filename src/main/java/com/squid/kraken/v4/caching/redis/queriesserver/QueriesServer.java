@@ -27,20 +27,21 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.squid.kraken.v4.caching.redis.IRedisCacheProxy;
 import com.squid.kraken.v4.caching.redis.RedisCacheConfig;
 import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.RedisCacheProxy;
 import com.squid.kraken.v4.caching.redis.ServerID;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.IQueryWorkerServer;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerFactory;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobStatus;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerLoad;
 
 public class QueriesServer implements IQueriesServer {
 
@@ -50,8 +51,11 @@ public class QueriesServer implements IQueriesServer {
 		ROUND_ROBIN, LESS_LOADED
 	}
 
-	private HashMap<String, ExecutorService> executors;
+	private HashMap<String, QueryScheduler> schedulers;
 	private ArrayList<IQueryWorkerServer> workers;
+	private ArrayList<String> workerKeys;// registry key of each worker
+	private WorkerLoadRegistry loadRegistry;
+	private long loadRefreshPeriodInMs = 1000;
 	private boolean debug;
 
 	private int nextWorker = 0;
@@ -59,29 +63,42 @@ public class QueriesServer implements IQueriesServer {
 	private LoadDistributionPolicy policy = LoadDistributionPolicy.LESS_LOADED;
 
 	private int threadPoolSize = 5;
+	private int maxThreadPoolSize = 20;
+	private int maxQueueSize = 200;
+	private int maxQueueWaitInSec = 300;
 
 	private HashMap<String, Future<Integer>> ongoingQueries;
 
+	private IRedisCacheProxy redis;
+
 	public QueriesServer() {
-		executors = new HashMap<String, ExecutorService>();
+		schedulers = new HashMap<String, QueryScheduler>();
 		ongoingQueries = new HashMap<String, Future<Integer>>();
 		this.workers = new ArrayList<IQueryWorkerServer>();
+		this.workerKeys = new ArrayList<String>();
 		logger.info("new Queries server");
 	}
 
 	public QueriesServer(RedisCacheConfig conf) {
 		this();
 		this.debug = conf.getDebug();
+		this.redis = RedisCacheProxy.getInstance(conf.getRedisID());
 		this.threadPoolSize = conf.getQuerieServerThreadPoolSize();
+		this.maxThreadPoolSize = conf.getQuerieServerMaxThreadPoolSize();
+		this.maxQueueSize = conf.getQuerieServerMaxQueueSize();
+		this.maxQueueWaitInSec = conf.getQuerieServerMaxQueueWaitInSec();
 		if (conf.getWorkers() == null) {
 			// create local worker
-			this.workers.add(
-					QueryWorkerFactory.INSTANCE.getNewQueryWorkerServer(conf, new ServerID("localhost", -1), false));
+			ServerID local = new ServerID("localhost", -1);
+			this.workers.add(QueryWorkerFactory.INSTANCE.getNewQueryWorkerServer(conf, local, false));
+			this.workerKeys.add(QueryWorkerLoad.getRegistryKey(local));
 		} else {
 			for (ServerID w : conf.getWorkers()) {
 				this.workers.add(QueryWorkerFactory.INSTANCE.getNewQueryWorkerServer(conf, w, false));
+				this.workerKeys.add(QueryWorkerLoad.getRegistryKey(w));
 			}
 		}
+		this.loadRefreshPeriodInMs = conf.getWorkerLoadReportPeriodInMs();
 	}
 
 	public String hello() {
@@ -93,32 +110,20 @@ public class QueriesServer implements IQueriesServer {
 		for (IQueryWorkerServer s : this.workers) {
 			s.start();
 		}
+		if (this.workers.size() > 1) {
+			this.loadRegistry = new WorkerLoadRegistry(this.redis, this.workerKeys);
+			this.loadRegistry.start(this.loadRefreshPeriodInMs);
+		}
 	}
 
-	private IQueryWorkerServer getNextWorker() {
+	private IQueryWorkerServer getNextWorker(QueryWorkerJobRequest request) {
 		if (this.workers.size() == 1) {
 			return this.workers.get(0);
 		} else {
 
-			if (this.policy == LoadDistributionPolicy.LESS_LOADED) {
-				IQueryWorkerServer bestWorkerServ = this.workers.get(0);
-				int minimumLoad = bestWorkerServ.getLoad();
-				if (minimumLoad == 0) {
-					return bestWorkerServ;
-				}
-				for (int i = 1; i < this.workers.size(); i++) {
-					int nextLoad = this.workers.get(i).getLoad();
-					if (nextLoad == 0) {
-						return this.workers.get(i); //
-					} else {
-						if (nextLoad < minimumLoad) {
-							minimumLoad = nextLoad;
-							bestWorkerServ = this.workers.get(i);
-						}
-					}
-				}
-				return bestWorkerServ;
-
+			if (this.policy == LoadDistributionPolicy.LESS_LOADED && this.loadRegistry != null) {
+				// use the last reported load, no round-trip here
+				return this.workers.get(this.loadRegistry.choose(request.getJdbcURL()));
 			} else {
 				// defaul policy Round Robin
 				IQueryWorkerServer nextWorkerServ = this.workers.get(this.nextWorker);
@@ -136,18 +141,19 @@ public class QueriesServer implements IQueriesServer {
 		Future<Integer> processingQuery;
 		boolean isFirst = false;
 
-		String executorKey;
-		ExecutorService executor;
+		String schedulerKey;
+		QueryScheduler scheduler;
 		if (this.debug)
-			executorKey = "debug";
+			schedulerKey = "debug";
 		else
-			executorKey = request.getJdbcURL();
-
-		synchronized (this.executors) {
-			executor = this.executors.get(executorKey);
-			if (executor == null) {
-				executor = Executors.newFixedThreadPool(threadPoolSize);
-				executors.put(executorKey, executor);
+			schedulerKey = request.getJdbcURL();
+
+		synchronized (this.schedulers) {
+			scheduler = this.schedulers.get(schedulerKey);
+			if (scheduler == null) {
+				scheduler = new QueryScheduler(schedulerKey, threadPoolSize, maxThreadPoolSize, maxQueueSize,
+						maxQueueWaitInSec * 1000L);
+				schedulers.put(schedulerKey, scheduler);
 			}
 		}
 
@@ -158,8 +164,9 @@ public class QueriesServer implements IQueriesServer {
 					logger.debug(("new query " + request.getSQLQuery()));
 				}
 				isFirst = true;
-				CallableFetch cf = new CallableFetch(request, this.getNextWorker());
-				processingQuery = (Future<Integer>) executor.submit(cf);
+				CallableFetch cf = new CallableFetch(request, this.getNextWorker(request), this.redis);
+				// may throw if the datasource queue is full
+				processingQuery = scheduler.submit(cf, request.getPriority());
 				this.ongoingQueries.put(request.getKey(), processingQuery);
 			} else {
 				if (logger.isDebugEnabled()) {
@@ -188,6 +195,30 @@ public class QueriesServer implements IQueriesServer {
 		}
 	}
 
+	/**
+	 * @return the last load reported by each worker
+	 */
+	public List<QueryWorkerLoad> getWorkersLoad() {
+		if (this.loadRegistry != null) {
+			return this.loadRegistry.getReports();
+		} else {
+			return new ArrayList<QueryWorkerLoad>();
+		}
+	}
+
+	/**
+	 * @return the admission control metrics for each datasource
+	 */
+	public List<QuerySchedulerStats> getSchedulerStats() {
+		ArrayList<QuerySchedulerStats> stats = new ArrayList<QuerySchedulerStats>();
+		synchronized (this.schedulers) {
+			for (QueryScheduler scheduler : this.schedulers.values()) {
+				stats.add(scheduler.getStats());
+			}
+		}
+		return stats;
+	}
+
 	@Override
 	public boolean isQueryOngoing(String key) {
 		for (IQueryWorkerServer worker : this.workers) {
@@ -31,6 +31,7 @@ import javax.ws.rs.QueryParam;
 
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobStatus;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerLoad;
 
 public class QueriesServerRestService {
 
@@ -59,6 +60,18 @@ public class QueriesServerRestService {
 		return this.delegate.getOngoingQueries(customerId);
 	}
 
+	@GET
+	@Path("/scheduler")
+	public List<QuerySchedulerStats> scheduler() {
+		return this.delegate.getSchedulerStats();
+	}
+
+	@GET
+	@Path("/workers")
+	public List<QueryWorkerLoad> workers() {
+		return this.delegate.getWorkersLoad();
+	}
+
 	@GET
 	@Path("/hello")
 	public String hello() {
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queriesserver;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
+import com.squid.kraken.v4.core.analysis.engine.processor.ComputingException;
+
+/**
+ * Admission control for the queries sent to one datasource.
+ * 
+ * The number of concurrent queries is adapted using AIMD: it grows by one
+ * every "limit" successful queries, and shrinks when the datasource fails or
+ * a query is much slower than the average latency. The other failures (cache,
+ * worker, cancellation) do not change the limit. Waiting queries are ordered by priority;
+ * the priority acts as a delay so that exports are not starved by a constant
+ * flow of interactive queries. A query waiting for longer than the max wait is
+ * dropped, and new queries are rejected when the queue is full.
+ * 
+ * A running query can give its slot back while it waits for something else
+ * than the datasource (see Slot); the waiting time is not counted in its
+ * latency.
+ *
+ */
+public class QueryScheduler {
+
+	/**
+	 * the slot used by a running query
+	 */
+	public interface Slot {
+
+		/**
+		 * give the slot back while waiting for something else than the
+		 * datasource
+		 */
+		public void suspend();
+
+		/**
+		 * take a slot again, waiting for one to be available; the suspended
+		 * queries have precedence over the queued ones
+		 * 
+		 * @throws InterruptedException
+		 */
+		public void resume() throws InterruptedException;
+
+	}
+
+	/**
+	 * implemented by the callables that want to manage their slot
+	 */
+	public interface SlotAware {
+
+		public void setSlot(Slot slot);
+
+	}
+
+	static final Logger logger = LoggerFactory.getLogger(QueryScheduler.class);
+
+	private static final double ERROR_DECREASE = 0.75;
+	private static final double LATENCY_DECREASE = 0.9;
+	private static final double SLOW_FACTOR = 2.0;// slow if latency > SLOW_FACTOR * average
+	private static final double LATENCY_SMOOTHING = 0.1;
+	private static final int MAX_CAUSE_DEPTH = 16;
+
+	private String name;
+
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	private PriorityQueue<Task> queue = new PriorityQueue<Task>();
+
+	private double limit;
+	private int maxLimit;
+	private int maxQueueSize;
+	private long maxWaitInMs;
+
+	private int running = 0;
+	private int resuming = 0;
+	private long sequence = 0;
+	private double averageLatency = -1;
+
+	// metrics
+	private long submitted = 0;
+	private long completed = 0;
+	private long failed = 0;
+	private long rejected = 0;
+	private long dropped = 0;
+	private long totalWaitInMs = 0;
+	private long maxObservedWaitInMs = 0;
+
+	public QueryScheduler(String name, int initialLimit, int maxLimit, int maxQueueSize, long maxWaitInMs) {
+		this.name = name;
+		this.maxLimit = Math.max(1, maxLimit);
+		this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+		this.maxQueueSize = maxQueueSize;
+		this.maxWaitInMs = maxWaitInMs;
+	}
+
+	/**
+	 * queue the query
+	 * 
+	 * @param callable
+	 * @param priority
+	 * @return
+	 * @throws RedisCacheException
+	 *             if the queue is full
+	 */
+	public synchronized Future<Integer> submit(Callable<Integer> callable, Priority priority) {
+		long now = System.currentTimeMillis();
+		dropExpired(now);
+		if (queue.size() >= maxQueueSize) {
+			rejected++;
+			throw new RedisCacheException(
+					"too many queries waiting for " + name + " (" + queue.size() + "), please retry later");
+		}
+		Task task = new Task(callable, priority, now, sequence++);
+		queue.add(task);
+		submitted++;
+		dispatch(now);
+		return task;
+	}
+
+	private void dispatch(long now) {
+		while (running + resuming < (int) limit && !queue.isEmpty()) {
+			Task task = queue.poll();
+			long wait = now - task.enqueued;
+			if (wait > maxWaitInMs) {
+				drop(task, wait);
+			} else {
+				totalWaitInMs += wait;
+				maxObservedWaitInMs = Math.max(maxObservedWaitInMs, wait);
+				running++;
+				task.started = now;
+				executor.execute(task);
+			}
+		}
+	}
+
+	private void dropExpired(long now) {
+		Iterator<Task> iter = queue.iterator();
+		while (iter.hasNext()) {
+			Task task = iter.next();
+			long wait = now - task.enqueued;
+			if (wait > maxWaitInMs) {
+				iter.remove();
+				drop(task, wait);
+			}
+		}
+	}
+
+	private void drop(Task task, long wait) {
+		dropped++;
+		logger.info("dropping query for " + name + " after waiting " + wait + " ms");
+		task.drop(new RedisCacheException(
+				"the query was dropped after waiting " + (wait / 1000) + "s for " + name + ", please retry later"));
+	}
+
+	/**
+	 * check if a failure comes from the datasource, i.e. if the cause chain
+	 * holds a SQLException or a ComputingException
+	 * 
+	 * @param e
+	 * @return
+	 */
+	public static boolean isDatasourceError(Throwable e) {
+		Throwable cause = e;
+		for (int depth = 0; cause != null && depth < MAX_CAUSE_DEPTH; depth++) {
+			if (cause instanceof SQLException || cause instanceof ComputingException) {
+				return true;
+			}
+			cause = cause.getCause();
+		}
+		return false;
+	}
+
+	private synchronized void complete(Task task, boolean error, boolean datasourceError) {
+		long now = System.currentTimeMillis();
+		if (task.suspended) {
+			// completed without using the datasource
+			completed++;
+			dispatch(now);
+			return;
+		}
+		running--;
+		notifyAll();
+		long latency = now - task.started - task.suspendedInMs;
+		if (error) {
+			failed++;
+			if (datasourceError) {
+				limit = Math.max(1, limit * ERROR_DECREASE);
+			}
+		} else {
+			completed++;
+			if (averageLatency >= 0 && latency > SLOW_FACTOR * averageLatency) {
+				limit = Math.max(1, limit * LATENCY_DECREASE);
+			} else {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			if (averageLatency < 0) {
+				averageLatency = latency;
+			} else {
+				averageLatency += LATENCY_SMOOTHING * (latency - averageLatency);
+			}
+		}
+		dropExpired(now);
+		dispatch(now);
+	}
+
+	public synchronized QuerySchedulerStats getStats() {
+		long now = System.currentTimeMillis();
+		long oldestWaitInMs = 0;
+		for (Task task : queue) {
+			oldestWaitInMs = Math.max(oldestWaitInMs, now - task.enqueued);
+		}
+		long started = submitted - queue.size() - dropped;
+		return new QuerySchedulerStats(name, limit, running, queue.size(), oldestWaitInMs,
+				started > 0 ? totalWaitInMs / started : 0, maxObservedWaitInMs, (long) Math.max(0, averageLatency),
+				submitted, completed, failed, rejected, dropped);
+	}
+
+	private synchronized void suspend(Task task) {
+		if (!task.suspended) {
+			long now = System.currentTimeMillis();
+			task.suspended = true;
+			task.suspendedAt = now;
+			running--;
+			notifyAll();
+			dispatch(now);
+		}
+	}
+
+	private synchronized void resume(Task task) throws InterruptedException {
+		if (task.suspended) {
+			resuming++;
+			try {
+				while (running >= (int) limit) {
+					wait();
+				}
+			} finally {
+				resuming--;
+			}
+			running++;
+			task.suspended = false;
+			task.suspendedInMs += System.currentTimeMillis() - task.suspendedAt;
+		}
+	}
+
+	private class Task extends FutureTask<Integer> implements Comparable<Task>, Slot {
+
+		private long enqueued;
+		private long rank;
+		private long seq;
+		private long started;
+		private boolean suspended = false;
+		private long suspendedAt;
+		private long suspendedInMs = 0;
+
+		public Task(Callable<Integer> callable, Priority priority, long enqueued, long seq) {
+			super(callable);
+			this.enqueued = enqueued;
+			this.rank = enqueued + priority.getDelayInMs();
+			this.seq = seq;
+			if (callable instanceof SlotAware) {
+				((SlotAware) callable).setSlot(this);
+			}
+		}
+
+		@Override
+		public void suspend() {
+			QueryScheduler.this.suspend(this);
+		}
+
+		@Override
+		public void resume() throws InterruptedException {
+			QueryScheduler.this.resume(this);
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				boolean error = false;
+				boolean datasourceError = false;
+				try {
+					get();
+				} catch (ExecutionException e) {
+					error = true;
+					datasourceError = isDatasourceError(e.getCause());
+				} catch (InterruptedException | CancellationException e) {
+					// not a datasource issue
+				}
+				complete(this, error, datasourceError);
+			}
+		}
+
+		public void drop(Exception e) {
+			setException(e);
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			int res = Long.compare(rank, o.rank);
+			return res != 0 ? res : Long.compare(seq, o.seq);
+		}
+
+	}
+
+}
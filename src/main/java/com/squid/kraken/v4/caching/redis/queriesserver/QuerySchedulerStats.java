@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queriesserver;
+
+/**
+ * QueryScheduler metrics for one datasource
+ *
+ */
+public class QuerySchedulerStats {
+
+	private String name;
+	private double limit;
+	private int running;
+	private int queued;
+	private long oldestWaitInMs;
+	private long averageWaitInMs;
+	private long maxWaitInMs;
+	private long averageLatencyInMs;
+	private long submitted;
+	private long completed;
+	private long failed;
+	private long rejected;
+	private long dropped;
+
+	public QuerySchedulerStats(String name, double limit, int running, int queued, long oldestWaitInMs,
+			long averageWaitInMs, long maxWaitInMs, long averageLatencyInMs, long submitted, long completed,
+			long failed, long rejected, long dropped) {
+		this.name = name;
+		this.limit = limit;
+		this.running = running;
+		this.queued = queued;
+		this.oldestWaitInMs = oldestWaitInMs;
+		this.averageWaitInMs = averageWaitInMs;
+		this.maxWaitInMs = maxWaitInMs;
+		this.averageLatencyInMs = averageLatencyInMs;
+		this.submitted = submitted;
+		this.completed = completed;
+		this.failed = failed;
+		this.rejected = rejected;
+		this.dropped = dropped;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the current concurrency limit
+	 */
+	public double getLimit() {
+		return limit;
+	}
+
+	public int getRunning() {
+		return running;
+	}
+
+	public int getQueued() {
+		return queued;
+	}
+
+	public long getOldestWaitInMs() {
+		return oldestWaitInMs;
+	}
+
+	public long getAverageWaitInMs() {
+		return averageWaitInMs;
+	}
+
+	public long getMaxWaitInMs() {
+		return maxWaitInMs;
+	}
+
+	public long getAverageLatencyInMs() {
+		return averageLatencyInMs;
+	}
+
+	public long getSubmitted() {
+		return submitted;
+	}
+
+	public long getCompleted() {
+		return completed;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": limit=" + limit + " running=" + running + " queued=" + queued + " oldestWait="
+				+ oldestWaitInMs + "ms avgWait=" + averageWaitInMs + "ms";
+	}
+
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queriesserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squid.kraken.v4.caching.redis.IRedisCacheProxy;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerLoad;
+
+/**
+ * Keep a local copy of the load reports published by the query workers, so
+ * that choosing a worker does not cost any round-trip.
+ * 
+ * The workers are chosen with the power-of-two-choices: pick two workers at
+ * random and keep the less loaded one. Dispatches made since the last refresh
+ * are added to the reported load so that a burst does not pile up on the same
+ * worker.
+ *
+ */
+public class WorkerLoadRegistry {
+
+	static final Logger logger = LoggerFactory.getLogger(WorkerLoadRegistry.class);
+
+	private IRedisCacheProxy redis;
+
+	private List<String> keys;
+
+	private volatile Map<String, QueryWorkerLoad> reports = new HashMap<String, QueryWorkerLoad>();
+
+	private Map<String, AtomicInteger> dispatched = new HashMap<String, AtomicInteger>();
+
+	private ScheduledExecutorService refresher;
+
+	/**
+	 * @param redis
+	 * @param workerIds
+	 *            the registry keys of the workers, see
+	 *            QueryWorkerLoad.getRegistryKey()
+	 */
+	public WorkerLoadRegistry(IRedisCacheProxy redis, List<String> workerIds) {
+		this.redis = redis;
+		this.keys = new ArrayList<String>(workerIds);
+		for (String key : workerIds) {
+			dispatched.put(key, new AtomicInteger(0));
+		}
+	}
+
+	public void start(long refreshPeriodInMs) {
+		refresh();
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "worker-load-registry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, refreshPeriodInMs, refreshPeriodInMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * reload every report in a single round-trip
+	 */
+	public void refresh() {
+		try {
+			List<byte[]> values = redis.get(keys);
+			HashMap<String, QueryWorkerLoad> update = new HashMap<String, QueryWorkerLoad>();
+			for (int i = 0; i < keys.size(); i++) {
+				byte[] value = values.get(i);
+				if (value != null) {
+					update.put(keys.get(i), QueryWorkerLoad.deserialize(value));
+				}
+				dispatched.get(keys.get(i)).set(0);
+			}
+			reports = update;
+		} catch (RuntimeException e) {
+			// keep the previous reports
+			logger.warn("failed to refresh the workers load: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * choose a worker for the datasource
+	 * 
+	 * @param jdbcURL
+	 * @return the index of the chosen worker
+	 */
+	public int choose(String jdbcURL) {
+		int size = keys.size();
+		if (size == 1) {
+			return 0;
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(size);
+		int second = random.nextInt(size - 1);
+		if (second >= first) {
+			second++;
+		}
+		Map<String, QueryWorkerLoad> current = reports;
+		int choice = compare(current, first, second, jdbcURL) <= 0 ? first : second;
+		dispatched.get(keys.get(choice)).incrementAndGet();
+		return choice;
+	}
+
+	private int compare(Map<String, QueryWorkerLoad> current, int first, int second, String jdbcURL) {
+		int res = Long.compare(getScore(current, first, jdbcURL), getScore(current, second, jdbcURL));
+		if (res == 0) {
+			QueryWorkerLoad firstLoad = current.get(keys.get(first));
+			QueryWorkerLoad secondLoad = current.get(keys.get(second));
+			if (firstLoad != null && secondLoad != null) {
+				res = Long.compare(firstLoad.getBytesInFlight(), secondLoad.getBytesInFlight());
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * the score is the number of active queries plus the number of queries on
+	 * the same datasource, so that a datasource is spread across workers; a
+	 * worker without a recent report may be down and comes last
+	 */
+	private long getScore(Map<String, QueryWorkerLoad> current, int index, String jdbcURL) {
+		String key = keys.get(index);
+		QueryWorkerLoad load = current.get(key);
+		if (load == null) {
+			return Integer.MAX_VALUE;
+		}
+		return (long) load.getActiveQueries() + load.getConnections(jdbcURL) + dispatched.get(key).get();
+	}
+
+	/**
+	 * @return the last known report of each worker
+	 */
+	public List<QueryWorkerLoad> getReports() {
+		return new ArrayList<QueryWorkerLoad>(reports.values());
+	}
+
+}
@@ -32,7 +32,9 @@ import org.slf4j.LoggerFactory;
 
 import com.squid.core.jdbc.engine.IExecutionItem;
 import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.RedisLease;
 import com.squid.kraken.v4.caching.redis.datastruct.ChunkRef;
+import com.squid.kraken.v4.caching.redis.datastruct.ChunkSizePolicy;
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrixStreamExecRes;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
@@ -59,12 +61,15 @@ class CallableChunkedMatrixFetch implements Callable<Boolean> {
 	private QueryWorkerServer server;
 	private String workerId;
 	private long start;
+	private RedisLease lease;
+	private ChunkWriter writer;
+	private ChunkSizePolicy chunkSize;
 	
 	private volatile boolean cancel = false;
 
 	public CallableChunkedMatrixFetch(QueryWorkerServer server, QueryWorkerJobRequest request,
 			RedisCacheValuesList valuesList, 
-			IExecutionItem item, long nbLinesRead, long start) {
+			IExecutionItem item, long nbLinesRead, long start, ChunkWriter writer, ChunkSizePolicy chunkSize) {
 		this.server = server;
 		this.request = request;
 		this.item = item;
@@ -75,6 +80,16 @@ class CallableChunkedMatrixFetch implements Callable<Boolean> {
 		this.nbBatches = 1;
 		this.workerId = this.server.getWorkerId();
 		this.start = start;
+		this.writer = writer;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * the lease to release once the fetch is over, or null
+	 * @param lease
+	 */
+	public void setLease(RedisLease lease) {
+		this.lease = lease;
 	}
 
 	@Override
@@ -84,37 +99,45 @@ class CallableChunkedMatrixFetch implements Callable<Boolean> {
 		boolean error = false;
 		long end = System.currentTimeMillis();
 		try {
-			server.incrementLoad();
 			do {
 				try {
-					nextBatch = RawMatrix.streamExecutionItemToByteArray(item, nbLinesLeftToRead);
+					nextBatch = RawMatrix.streamExecutionItemToByteArray(item, nbLinesLeftToRead, chunkSize);
 					end = System.currentTimeMillis();
 				} catch (IOException | SQLException e) {
 					error = true;
 				}
+				if (writer.hasFailed()) {
+					error = true;
+				}
 				if (error || cancel) {
 					valuesList.setError();
+					writer.writeList(valuesList);
 				} else {
 					nbLinesLeftToRead -= nextBatch.getNbLines();
 					batchLowerBound = batchUpperBound;
 					batchUpperBound = batchLowerBound + nextBatch.getNbLines();
 					String batchKey = request.getKey() + "_" + batchLowerBound + "-" + (batchUpperBound - 1);
-					if (server.put(batchKey, nextBatch.getStreamedMatrix(), request.getTTL())) {
-						valuesList.addReferenceKey(new ChunkRef(batchKey, batchLowerBound, batchUpperBound));
-						if (!nextBatch.hasMore()) {
-							valuesList.setDone();
-							done = true;
-						}
-					} else {
-						valuesList.setError();
-						error = true;
+					valuesList.addReferenceKey(new ChunkRef(batchKey, batchLowerBound, batchUpperBound));
+					if (!nextBatch.hasMore()) {
+						valuesList.setDone();
+						done = true;
 					}
+					// store the chunk and the updated list together, while reading the next one
+					writer.write(batchKey, nextBatch.getStreamedMatrix(), valuesList);
 				}
-				server.put(request.getKey(), valuesList);
 				this.nbBatches += 1;
 
 			} while (!done && !error && !cancel);
 
+			// wait for the pending writes
+			if (!writer.await() && !error && !cancel) {
+				// the list must not stay DONE if a chunk is missing
+				error = true;
+				valuesList.setError();
+				writer.writeList(valuesList);
+				writer.await();
+			}
+
 			if (cancel && !done) {
 				logger.info("Canceling SQLQuery#" + item.getID() + " jobId " + request.getJobId() + "for userId "+ request.getUserIdandLogin() + " on worker " + workerId
 						+ " duration=" + (end-start) + " ms; read=" + batchUpperBound + " lines; queryid=" + item.getID());
@@ -130,8 +153,12 @@ class CallableChunkedMatrixFetch implements Callable<Boolean> {
 			}
 			return true;
 		} finally {
-			server.decrementLoad();
+			// the load was counted when the fetch started
+			server.decrementLoad(request);
 			server.removeOngoingQuery(request.getKey());
+			if (lease != null) {
+				lease.release();
+			}
 			if (item != null) {
 				item.close();
 			}
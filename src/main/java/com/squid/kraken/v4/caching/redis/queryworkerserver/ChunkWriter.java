@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
+
+/**
+ * Write the chunks of a query to redis in the background, so that reading the
+ * next chunk from the database overlaps with the redis I/O.
+ * 
+ * The writes are applied in submission order. The number of chunks waiting to
+ * be written is bounded: the reader blocks when redis falls behind, which
+ * keeps the memory used by a query to a few chunks. Once a write fails the
+ * next chunks are skipped, but the list updates are always written so that
+ * the final state is stored.
+ *
+ */
+class ChunkWriter {
+
+	static final Logger logger = LoggerFactory.getLogger(ChunkWriter.class);
+
+	public static final int MAX_PENDING_CHUNKS = 2;
+
+	private QueryWorkerServer server;
+	private QueryWorkerJobRequest request;
+
+	private Semaphore pending = new Semaphore(MAX_PENDING_CHUNKS);
+	private CompletableFuture<Boolean> last = CompletableFuture.completedFuture(true);
+	private volatile boolean failed = false;
+
+	public ChunkWriter(QueryWorkerServer server, QueryWorkerJobRequest request) {
+		this.server = server;
+		this.request = request;
+	}
+
+	/**
+	 * queue the chunk and the updated list; block while too many chunks are
+	 * waiting to be written
+	 * 
+	 * @return the write result
+	 */
+	public CompletableFuture<Boolean> write(final String batchKey, final byte[] data, RedisCacheValuesList valuesList) {
+		// the list is still modified by the reader
+		final byte[] list = valuesList.serialize();
+		try {
+			pending.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed = true;
+			return CompletableFuture.completedFuture(false);
+		}
+		return enqueue(() -> {
+			try {
+				return server.put(batchKey, data, request.getTTL(), request.getKey(), list);
+			} finally {
+				pending.release();
+			}
+		}, () -> {
+			pending.release();
+			return false;
+		});
+	}
+
+	/**
+	 * queue the list update, it is written even if a previous write failed
+	 */
+	public CompletableFuture<Boolean> writeList(RedisCacheValuesList valuesList) {
+		final byte[] list = valuesList.serialize();
+		Supplier<Boolean> write = () -> server.putValuesList(request.getKey(), list);
+		return enqueue(write, write);
+	}
+
+	private synchronized CompletableFuture<Boolean> enqueue(Supplier<Boolean> write, Supplier<Boolean> afterFailure) {
+		last = last.thenApplyAsync(ok -> {
+			try {
+				boolean res = failed ? afterFailure.get() : write.get();
+				if (!res) {
+					failed = true;
+				}
+				return res;
+			} catch (RuntimeException e) {
+				logger.error("failed to store the result of jobId " + request.getJobId() + ": " + e.getMessage());
+				failed = true;
+				return false;
+			}
+		}, server.getWriterExecutor());
+		return last;
+	}
+
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	/**
+	 * wait for the pending writes
+	 * 
+	 * @return true if every write succeeded
+	 */
+	public boolean await() {
+		CompletableFuture<Boolean> current;
+		synchronized (this) {
+			current = last;
+		}
+		current.join();
+		return !failed;
+	}
+
+}
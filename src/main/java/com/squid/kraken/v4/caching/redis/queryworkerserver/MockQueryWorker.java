@@ -23,6 +23,7 @@
  *******************************************************************************/
 package com.squid.kraken.v4.caching.redis.queryworkerserver;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -96,9 +97,11 @@ public class MockQueryWorker implements IQueryWorkerServer {
 		} catch (InterruptedException e) {
 			return -1;
 		}
-		boolean ok = redis.put(request.getKey(), res);
-		if (ok && request.getTTL() > 0)
-			redis.setTTL(request.getKey(), request.getTTL());
+		try {
+			redis.put(request.getKey(), res.serialize(), request.getTTL());
+		} catch (IOException e) {
+			return -1;
+		}
 		return id;
 	}
 
@@ -28,6 +28,9 @@ import org.slf4j.LoggerFactory;
 
 import com.squid.kraken.v4.caching.redis.RedisCacheConfig;
 import com.squid.kraken.v4.caching.redis.ServerID;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.rpc.QueryWorkerRpcServer;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.rpc.QueryWorkerRpcStub;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.rpc.SocketRpcChannel;
 
 
 public class QueryWorkerFactory {
@@ -52,9 +55,14 @@ public class QueryWorkerFactory {
 	    		}	
 	    	}else{
 	    		if (onLocalhost ||  id.port==-1 ){
-	    			instServ= new QueryWorkerServer(conf);
+	    			instServ= new QueryWorkerServer(conf, id);
 	    		}else{
-	    			instServ= new QueryWorkerServerStub(id, conf.getAppName());
+	    			if (QueryWorkerRpcServer.isEnabled(conf)) {
+	    				SocketRpcChannel channel = new SocketRpcChannel(id.host, conf.getWorkerRpcPort(), conf.getWorkerRpcPoolSize(), conf.getWorkerRpcSecret());
+	    				instServ= new QueryWorkerRpcStub(id.host + ":" + conf.getWorkerRpcPort(), channel, conf.getWorkerRpcFetchTimeoutInSec() * 1000L);
+	    			}else{
+	    				instServ= new QueryWorkerServerStub(id, conf.getAppName());
+	    			}
 	    		}	    		
 	    	}
     	}
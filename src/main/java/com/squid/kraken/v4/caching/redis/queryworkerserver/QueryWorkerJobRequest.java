@@ -32,6 +32,24 @@ import com.squid.kraken.v4.model.ProjectPK;
  */
 public class QueryWorkerJobRequest {
 	
+	/**
+	 * the query priority; when queued, a lower priority query behaves as if it
+	 * arrived later by the priority delay
+	 */
+	public static enum Priority {
+		INTERACTIVE(0), EXPORT(30 * 1000), BACKGROUND(120 * 1000);
+
+		private long delayInMs;
+
+		private Priority(long delayInMs) {
+			this.delayInMs = delayInMs;
+		}
+
+		public long getDelayInMs() {
+			return delayInMs;
+		}
+	}
+	
 	// provide a simple way to associate the job to user, required for job management
 	private String userID;
 	private String login;//for logging
@@ -48,6 +66,10 @@ public class QueryWorkerJobRequest {
 	private int ttl;
 	private long limit;
 	
+	private Priority priority = Priority.INTERACTIVE;
+	
+	private String leaseToken;
+	
 	public QueryWorkerJobRequest(String userID, String login, ProjectPK projectPK, String key, String sQLQuery, String jobId,
 			String jdbcURL, String username, String pwd, int ttl, long limit) {
 		super();
@@ -116,4 +138,24 @@ public class QueryWorkerJobRequest {
 		return limit;
 	}
 
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * the token of the lease held on the key by the caller, if any
+	 * @return
+	 */
+	public String getLeaseToken() {
+		return leaseToken;
+	}
+
+	public void setLeaseToken(String leaseToken) {
+		this.leaseToken = leaseToken;
+	}
+
 }
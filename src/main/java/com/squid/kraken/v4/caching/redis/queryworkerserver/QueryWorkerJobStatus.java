@@ -155,6 +155,13 @@ public class QueryWorkerJobStatus {
 		return userID;
 	}
 	
+	/**
+	 * @return the login
+	 */
+	public String getLogin() {
+		return login;
+	}
+	
 	/**
 	 * @return the projectPK
 	 */
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.squid.kraken.v4.caching.redis.ServerID;
+
+/**
+ * A load report periodically published by a query worker
+ *
+ */
+public class QueryWorkerLoad {
+
+	public static final String LOAD_PREFIX = "worker-load-";
+
+	private String workerId;
+	private int activeQueries;
+	private long bytesInFlight;
+	private Map<String, Integer> connections = new HashMap<String, Integer>();// per datasource key
+	private long timestamp;
+
+	public QueryWorkerLoad() {
+	}
+
+	public QueryWorkerLoad(String workerId, int activeQueries, long bytesInFlight, Map<String, Integer> connections) {
+		this.workerId = workerId;
+		this.activeQueries = activeQueries;
+		this.bytesInFlight = bytesInFlight;
+		this.connections = connections;
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param worker
+	 *            the address of the worker, as declared in the queries server
+	 *            configuration
+	 * @return the redis key holding the worker load report
+	 */
+	public static String getRegistryKey(ServerID worker) {
+		return LOAD_PREFIX + worker.host + ":" + worker.port;
+	}
+
+	/**
+	 * the report is published in redis and served by the queries server: the
+	 * datasources are identified by a hash of their jdbc URL, which may hold
+	 * credentials
+	 * 
+	 * @param jdbcURL
+	 * @return the key of the datasource in the connections map
+	 */
+	public static String getDatasourceKey(String jdbcURL) {
+		return DigestUtils.sha256Hex(jdbcURL != null ? jdbcURL : "");
+	}
+
+	public String getWorkerId() {
+		return workerId;
+	}
+
+	/**
+	 * number of queries being executed or read by the worker
+	 * @return
+	 */
+	public int getActiveQueries() {
+		return activeQueries;
+	}
+
+	/**
+	 * size of the chunks being written to redis
+	 * @return
+	 */
+	public long getBytesInFlight() {
+		return bytesInFlight;
+	}
+
+	/**
+	 * number of active queries for each datasource, see getDatasourceKey()
+	 * @return
+	 */
+	public Map<String, Integer> getConnections() {
+		return connections;
+	}
+
+	public int getConnections(String jdbcURL) {
+		Integer count = connections.get(getDatasourceKey(jdbcURL));
+		return count != null ? count : 0;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public byte[] serialize() {
+		ByteArrayOutputStream baout = new ByteArrayOutputStream();
+		Output kout = new Output(baout);
+		kout.writeString(workerId);
+		kout.writeInt(activeQueries, true);
+		kout.writeLong(bytesInFlight, true);
+		kout.writeLong(timestamp);
+		kout.writeInt(connections.size(), true);
+		for (Map.Entry<String, Integer> entry : connections.entrySet()) {
+			kout.writeString(entry.getKey());
+			kout.writeInt(entry.getValue(), true);
+		}
+		kout.close();
+		return baout.toByteArray();
+	}
+
+	public static QueryWorkerLoad deserialize(byte[] serialized) {
+		Input in = new Input(serialized);
+		QueryWorkerLoad load = new QueryWorkerLoad();
+		load.workerId = in.readString();
+		load.activeQueries = in.readInt(true);
+		load.bytesInFlight = in.readLong(true);
+		load.timestamp = in.readLong();
+		int size = in.readInt(true);
+		for (int i = 0; i < size; i++) {
+			String datasource = in.readString();
+			load.connections.put(datasource, in.readInt(true));
+		}
+		return load;
+	}
+
+	@Override
+	public String toString() {
+		return workerId + ": active=" + activeQueries + " bytesInFlight=" + bytesInFlight + " connections="
+				+ connections;
+	}
+
+}
@@ -24,16 +24,26 @@
 package com.squid.kraken.v4.caching.redis.queryworkerserver;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,8 +53,10 @@ import com.squid.kraken.v4.caching.redis.IRedisCacheProxy;
 import com.squid.kraken.v4.caching.redis.RedisCacheConfig;
 import com.squid.kraken.v4.caching.redis.RedisCacheException;
 import com.squid.kraken.v4.caching.redis.RedisCacheProxy;
+import com.squid.kraken.v4.caching.redis.RedisLease;
 import com.squid.kraken.v4.caching.redis.ServerID;
 import com.squid.kraken.v4.caching.redis.datastruct.ChunkRef;
+import com.squid.kraken.v4.caching.redis.datastruct.ChunkSizePolicy;
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrixStreamExecRes;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
@@ -66,10 +78,20 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 
 	private int threadPoolSize = 5;
 	private AtomicInteger load;
+	private AtomicLong bytesInFlight;
+	private Map<String, AtomicInteger> connections;// active queries per datasource key, see QueryWorkerLoad
+	private long loadReportPeriodInMs = 1000;
+	private ScheduledExecutorService loadReporter;
 	private ExecutorService executor;
+	private ExecutorService writers;// background chunk writes
 
 	private int defaultTTLinSec = 3600;
 
+	// chunks
+	private long minChunkSizeInBytes;
+	private long maxChunkSizeInBytes;
+	private long chunkTargetDurationInMs;
+
 	// redis
 	private String REDIS_SERVER_HOST;
 	private int REDIS_SERVER_PORT;
@@ -78,9 +100,17 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 	private Map<String, QueryWorkerJob> executingQueries;
 	private Map<String, CallableChunkedMatrixFetch> longRunningQueries;
 
-	public QueryWorkerServer(RedisCacheConfig conf) {
+	public QueryWorkerServer(RedisCacheConfig conf, ServerID self) {
+		// the address under which the queries server knows this worker
+		ServerID id = getWorkerID(conf, self);
+		this.host = id.host;
+		this.port = id.port;
 		this.load = new AtomicInteger(0);
+		this.bytesInFlight = new AtomicLong(0);
+		this.connections = new ConcurrentHashMap<>();
+		this.loadReportPeriodInMs = conf.getWorkerLoadReportPeriodInMs();
 		this.executor = Executors.newFixedThreadPool(threadPoolSize);
+		this.writers = Executors.newCachedThreadPool();
 
 		// redis
 
@@ -90,6 +120,10 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 		this.defaultTTLinSec = conf.getTtlInSecond();
 
 		RawMatrix.setMaxChunkSizeInMB(conf.getMaxChunkSizeInMByte());
+		this.minChunkSizeInBytes = conf.getMinChunkSizeInKByte() * 1024L;
+		this.maxChunkSizeInBytes = conf.getMaxChunkSizeInMByte() * 1048576L;
+		this.chunkTargetDurationInMs = conf.getChunkTargetDurationInMs();
+		RawMatrix.setCompression(conf.isCompressCacheValues());
 
 		this.executingQueries = new ConcurrentHashMap<>();
 		this.longRunningQueries = new ConcurrentHashMap<>();
@@ -97,9 +131,92 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 		logger.info("New Query Worker " + this.host + " " + this.port);
 	}
 
+	/**
+	 * the address of this worker as declared in the workers list of the
+	 * queries server, so that its load report is published under the key the
+	 * queries server reads: the workerID configuration if any, else the only
+	 * worker of the list running on this host
+	 * 
+	 * @param conf
+	 * @param self
+	 * @return
+	 */
+	private static ServerID getWorkerID(RedisCacheConfig conf, ServerID self) {
+		if (conf.getWorkerID() != null) {
+			return conf.getWorkerID();
+		}
+		if (conf.getWorkers() != null) {
+			ServerID local = null;
+			int count = 0;
+			for (ServerID worker : conf.getWorkers()) {
+				if (isLocalHost(worker.host)) {
+					local = worker;
+					count++;
+				}
+			}
+			if (count == 1) {
+				logger.info("workerID is not configured, using " + local.host + ":" + local.port
+						+ " from the workers list");
+				return local;
+			}
+			logger.warn("workerID is not configured and " + count
+					+ " workers of the list run on this host: the load of this worker is published as " + self.host
+					+ ":" + self.port + " and will not be used by the queries server");
+		}
+		return self;
+	}
+
+	private static boolean isLocalHost(String host) {
+		try {
+			InetAddress address = InetAddress.getByName(host);
+			return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+		} catch (UnknownHostException | SocketException e) {
+			return false;
+		}
+	}
+
 	public void start() {
 		logger.info("Starting query worker " + this.host + " " + this.port);
 		redis = RedisCacheProxy.getInstance(new ServerID(this.REDIS_SERVER_HOST, this.REDIS_SERVER_PORT));
+		startLoadReporter();
+	}
+
+	/**
+	 * publish the load report periodically, the report expires if the worker
+	 * stops
+	 */
+	private void startLoadReporter() {
+		final String key = QueryWorkerLoad.getRegistryKey(new ServerID(this.host, this.port));
+		final int ttl = (int) Math.max(1, (3 * loadReportPeriodInMs) / 1000);
+		loadReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "worker-load-reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		loadReporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					redis.put(key, getLoadReport().serialize(), ttl);
+				} catch (RuntimeException e) {
+					logger.warn("failed to publish the load report: " + e.getMessage());
+				}
+			}
+		}, 0, loadReportPeriodInMs, TimeUnit.MILLISECONDS);
+	}
+
+	public QueryWorkerLoad getLoadReport() {
+		HashMap<String, Integer> snapshot = new HashMap<String, Integer>();
+		for (Map.Entry<String, AtomicInteger> entry : connections.entrySet()) {
+			int count = entry.getValue().get();
+			if (count > 0) {
+				snapshot.put(entry.getKey(), count);
+			}
+		}
+		return new QueryWorkerLoad(getWorkerId(), load.get(), bytesInFlight.get(), snapshot);
 	}
 
 	public IRedisCacheProxy getCache() {
@@ -115,6 +232,8 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 	public int fetch(QueryWorkerJobRequest request) {
 		IExecutionItem item = null;
 		String dbKey = request.getUsername() + "\\" + request.getJdbcURL() + "\\" + request.getPwd();
+		boolean continued = false;// the chunked fetch releases the load
+		incrementLoad(request);
 		try {
 			SimpleDatabaseManager db;
 			synchronized (managers) {
@@ -134,7 +253,8 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 
 			long start = System.currentTimeMillis();
 			
-			RawMatrixStreamExecRes serializedRes = RawMatrix.streamExecutionItemToByteArray(item, request.getLimit());
+			ChunkSizePolicy chunkSize = new ChunkSizePolicy(minChunkSizeInBytes, maxChunkSizeInBytes, chunkTargetDurationInMs);
+			RawMatrixStreamExecRes serializedRes = RawMatrix.streamExecutionItemToByteArray(item, request.getLimit(), chunkSize);
 
 			long end = System.currentTimeMillis();
 			
@@ -159,21 +279,26 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 			} else {
 				logger.info("SQLQuery #" + item.getID() + " jobId " + request.getJobId() + " does not fit in one chunk; queryid="
 						+ item.getID());
-				// store first batch
+				// store first batch and the batch list under the main key
 				String batchKey = request.getKey() + "_" + 0 + "-" + (serializedRes.getNbLines() - 1);
-				if (!put(batchKey, serializedRes.getStreamedMatrix(), request.getTTL())) {
-					throw new RedisCacheException("We did not manage to store the result for queryid=" + item.getID()
-							+ " jobId " + request.getJobId() + " in redis");
-				}
-				// save the batch list under the main key
 				RedisCacheValuesList valuesList = new RedisCacheValuesList();
 				valuesList.addReferenceKey(new ChunkRef(batchKey, 0, serializedRes.getNbLines() - 1));
-				put(request.getKey(), valuesList);
-				// process the remaining row in a separate thread
-				CallableChunkedMatrixFetch chunkedMatrixFetch = new CallableChunkedMatrixFetch(this, request, valuesList, item, serializedRes.getNbLines(), start);
+				ChunkWriter writer = new ChunkWriter(this, request);
+				CompletableFuture<Boolean> firstChunk = writer.write(batchKey, serializedRes.getStreamedMatrix(), valuesList);
+				// process the remaining row in a separate thread, while the first chunk is written
+				CallableChunkedMatrixFetch chunkedMatrixFetch = new CallableChunkedMatrixFetch(this, request, valuesList, item, serializedRes.getNbLines(), start, writer, chunkSize);
+				// keep the caller's lease alive until the last chunk is stored
+				chunkedMatrixFetch.setLease(RedisLease.transfer(redis, request.getKey(), request.getLeaseToken()));
 				this.executor.submit(chunkedMatrixFetch);
+				continued = true;
 				this.executingQueries.remove(request.getKey());
 				this.longRunningQueries.put(request.getKey(), chunkedMatrixFetch);
+				// the caller reads the first chunk as soon as we return
+				if (!firstChunk.join()) {
+					// the chunked fetch will stop on the writer failure
+					throw new RedisCacheException("We did not manage to store the result for queryid=" + item.getID()
+							+ " jobId " + request.getJobId() + " in redis");
+				}
 			}
 			return item.getID();
 		} catch (ExecutionException | SQLException | IOException e) {
@@ -182,6 +307,10 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 			}
 			this.executingQueries.remove(request.getKey());
 			throw new RedisCacheException(e);
+		} finally {
+			if (!continued) {
+				decrementLoad(request);
+			}
 		}
 	}
 
@@ -191,27 +320,80 @@ public class QueryWorkerServer implements IQueryWorkerServer {
 	}
 
 	protected boolean put(String batchKey, byte[] data, int ttl) {
-		boolean ok = redis.put(batchKey, data);
+		bytesInFlight.addAndGet(data.length);
+		try {
+			return redis.put(batchKey, data, getTTL(ttl));
+		} finally {
+			bytesInFlight.addAndGet(-data.length);
+		}
+	}
+
+	/**
+	 * store a new chunk and the updated chunk list in one round-trip
+	 */
+	protected boolean put(String batchKey, byte[] data, int ttl, String key, byte[] valuesList) {
+		boolean ok;
+		bytesInFlight.addAndGet(data.length);
+		try {
+			ok = redis.put(Arrays.asList(batchKey, key), Arrays.asList(data, valuesList),
+					new int[] { getTTL(ttl), -1 });
+		} finally {
+			bytesInFlight.addAndGet(-data.length);
+		}
+		if (ok) {
+			// wake up the readers waiting for the next chunk
+			redis.publishUpdate(key);
+		}
+		return ok;
+	}
+
+	/**
+	 * @param ttl
+	 *            the request TTL, -2 for the default, -1 for no expiration
+	 * @return the TTL in seconds, or -1 for no expiration
+	 */
+	private int getTTL(int ttl) {
 		if (ttl == -2) {
-			redis.setTTL(batchKey, defaultTTLinSec);
+			return defaultTTLinSec;
 		} else {
-			if (ttl != -1) {
-				redis.setTTL(batchKey, ttl);
-			}
+			return ttl;
 		}
-		return ok;
 	}
 
 	protected boolean put(String key, RedisCacheValuesList valuesList) {
-		return redis.put(key, valuesList.serialize());
+		return putValuesList(key, valuesList.serialize());
+	}
+
+	protected boolean putValuesList(String key, byte[] valuesList) {
+		boolean ok = redis.put(key, valuesList);
+		if (ok) {
+			// wake up the readers waiting for the next chunk
+			redis.publishUpdate(key);
+		}
+		return ok;
 	}
 
-	protected void incrementLoad() {
+	protected void incrementLoad(QueryWorkerJobRequest request) {
 		load.incrementAndGet();
+		String datasource = QueryWorkerLoad.getDatasourceKey(request.getJdbcURL());
+		AtomicInteger count = connections.get(datasource);
+		if (count == null) {
+			connections.putIfAbsent(datasource, new AtomicInteger(0));
+			count = connections.get(datasource);
+		}
+		count.incrementAndGet();
 	}
 
-	public void decrementLoad() {
+	public void decrementLoad(QueryWorkerJobRequest request) {
 		load.decrementAndGet();
+		AtomicInteger count = connections.get(QueryWorkerLoad.getDatasourceKey(request.getJdbcURL()));
+		if (count != null) {
+			count.decrementAndGet();
+		}
+	}
+
+	protected ExecutorService getWriterExecutor() {
+		return writers;
 	}
 
 	public void removeOngoingQuery(String k) {
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver.rpc;
+
+import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.IQueryWorkerServer;
+
+/**
+ * Decode a request, call the worker and encode the response
+ *
+ */
+public class QueryWorkerRpcDispatcher {
+
+	private IQueryWorkerServer worker;
+
+	public QueryWorkerRpcDispatcher(IQueryWorkerServer worker) {
+		this.worker = worker;
+	}
+
+	public byte[] handle(byte op, byte[] payload) {
+		switch (op) {
+		case QueryWorkerRpcProtocol.FETCH:
+			return QueryWorkerRpcProtocol.writeInt(worker.fetch(QueryWorkerRpcProtocol.readRequest(payload)));
+		case QueryWorkerRpcProtocol.LOAD:
+			return QueryWorkerRpcProtocol.writeInt(worker.getLoad());
+		case QueryWorkerRpcProtocol.ONGOING:
+			return QueryWorkerRpcProtocol
+					.writeBoolean(worker.isQueryOngoing(QueryWorkerRpcProtocol.readString(payload)));
+		case QueryWorkerRpcProtocol.QUERIES:
+			return QueryWorkerRpcProtocol
+					.writeStatusList(worker.getOngoingQueries(QueryWorkerRpcProtocol.readString(payload)));
+		case QueryWorkerRpcProtocol.CANCEL: {
+			String[] args = QueryWorkerRpcProtocol.readStrings(payload, 2);
+			return QueryWorkerRpcProtocol.writeBoolean(worker.cancelOngoingQuery(args[0], args[1]));
+		}
+		case QueryWorkerRpcProtocol.HELLO:
+			return QueryWorkerRpcProtocol.writeString(worker.hello());
+		default:
+			throw new RedisCacheException("unknown operation " + op);
+		}
+	}
+
+}
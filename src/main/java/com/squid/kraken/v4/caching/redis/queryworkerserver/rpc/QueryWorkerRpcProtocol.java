@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver.rpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobStatus;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobStatus.Status;
+import com.squid.kraken.v4.model.ProjectPK;
+
+/**
+ * The binary protocol between the queries server and the remote workers.
+ * 
+ * A frame is: length (int, not including itself), call id (int), code (byte),
+ * payload. The code is the operation for a request, and OK, ERROR or
+ * DATASOURCE_ERROR for a response; the call id is used to match the responses since several calls
+ * share the same connection. Payloads are written with Kryo.
+ * 
+ * A new connection is authenticated first: the worker sends an AUTH frame
+ * with a random challenge, the client answers with an AUTH frame holding the
+ * HMAC-SHA256 of the challenge keyed by the shared secret, and the worker
+ * accepts with an OK frame or closes the connection.
+ *
+ */
+public class QueryWorkerRpcProtocol {
+
+	public static final byte FETCH = 1;
+	public static final byte LOAD = 2;
+	public static final byte ONGOING = 3;
+	public static final byte QUERIES = 4;
+	public static final byte CANCEL = 5;
+	public static final byte HELLO = 6;
+	public static final byte AUTH = 7;
+
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+	public static final byte DATASOURCE_ERROR = 2;// the datasource failed, see QueryScheduler
+
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	public static final int HANDSHAKE_TIMEOUT_IN_MS = 5000;
+
+	private static final int CHALLENGE_SIZE = 32;// also the size of a HMAC-SHA256
+
+	/**
+	 * the frames exchanged before the connection is authenticated are small,
+	 * don't allocate more for them
+	 */
+	public static final int MAX_HANDSHAKE_FRAME_SIZE = 5 + CHALLENGE_SIZE;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	public static class Frame {
+
+		public final int callId;
+		public final byte code;
+		public final byte[] payload;
+
+		public Frame(int callId, byte code, byte[] payload) {
+			this.callId = callId;
+			this.code = code;
+			this.payload = payload;
+		}
+
+	}
+
+	public static void writeFrame(DataOutputStream out, Frame frame) throws IOException {
+		out.writeInt(5 + frame.payload.length);
+		out.writeInt(frame.callId);
+		out.writeByte(frame.code);
+		out.write(frame.payload);
+		out.flush();
+	}
+
+	public static Frame readFrame(DataInputStream in) throws IOException {
+		return readFrame(in, MAX_FRAME_SIZE);
+	}
+
+	public static Frame readFrame(DataInputStream in, int maxFrameSize) throws IOException {
+		int length = in.readInt();
+		if (length < 5 || length > maxFrameSize) {
+			throw new IOException("invalid frame length " + length);
+		}
+		int callId = in.readInt();
+		byte code = in.readByte();
+		byte[] payload = new byte[length - 5];
+		in.readFully(payload);
+		return new Frame(callId, code, payload);
+	}
+
+	// authentication
+
+	public static byte[] newChallenge() {
+		byte[] challenge = new byte[CHALLENGE_SIZE];
+		random.nextBytes(challenge);
+		return challenge;
+	}
+
+	public static byte[] sign(String secret, byte[] challenge) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			return mac.doFinal(challenge);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static boolean verify(String secret, byte[] challenge, byte[] signature) {
+		// constant time comparison
+		return MessageDigest.isEqual(sign(secret, challenge), signature);
+	}
+
+	// payloads
+
+	public static byte[] writeString(String value) {
+		Output out = new Output(64, -1);
+		out.writeString(value);
+		return out.toBytes();
+	}
+
+	public static String readString(byte[] payload) {
+		return new Input(payload).readString();
+	}
+
+	public static byte[] writeInt(int value) {
+		Output out = new Output(8);
+		out.writeInt(value);
+		return out.toBytes();
+	}
+
+	public static int readInt(byte[] payload) {
+		return new Input(payload).readInt();
+	}
+
+	public static byte[] writeBoolean(boolean value) {
+		Output out = new Output(1);
+		out.writeBoolean(value);
+		return out.toBytes();
+	}
+
+	public static boolean readBoolean(byte[] payload) {
+		return new Input(payload).readBoolean();
+	}
+
+	public static byte[] writeStrings(String... values) {
+		Output out = new Output(256, -1);
+		for (String value : values) {
+			out.writeString(value);
+		}
+		return out.toBytes();
+	}
+
+	public static String[] readStrings(byte[] payload, int count) {
+		Input in = new Input(payload);
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readString();
+		}
+		return values;
+	}
+
+	public static byte[] writeRequest(QueryWorkerJobRequest request) {
+		ByteArrayOutputStream baout = new ByteArrayOutputStream();
+		Output out = new Output(baout);
+		out.writeString(request.getUserID());
+		out.writeString(request.getLogin());
+		writeProjectPK(out, request.getProjectPK());
+		out.writeString(request.getKey());
+		out.writeString(request.getSQLQuery());
+		out.writeString(request.getJobId());
+		out.writeString(request.getJdbcURL());
+		out.writeString(request.getUsername());
+		out.writeString(request.getPwd());
+		out.writeInt(request.getTTL());
+		out.writeLong(request.getLimit());
+		out.writeString(request.getPriority().name());
+		out.writeString(request.getLeaseToken());
+		out.close();
+		return baout.toByteArray();
+	}
+
+	public static QueryWorkerJobRequest readRequest(byte[] payload) {
+		Input in = new Input(payload);
+		String userID = in.readString();
+		String login = in.readString();
+		ProjectPK projectPK = readProjectPK(in);
+		String key = in.readString();
+		String SQLQuery = in.readString();
+		String jobId = in.readString();
+		String jdbcURL = in.readString();
+		String username = in.readString();
+		String pwd = in.readString();
+		int ttl = in.readInt();
+		long limit = in.readLong();
+		QueryWorkerJobRequest request = new QueryWorkerJobRequest(userID, login, projectPK, key, SQLQuery, jobId,
+				jdbcURL, username, pwd, ttl, limit);
+		request.setPriority(Priority.valueOf(in.readString()));
+		request.setLeaseToken(in.readString());
+		return request;
+	}
+
+	public static byte[] writeStatusList(List<QueryWorkerJobStatus> statusList) {
+		ByteArrayOutputStream baout = new ByteArrayOutputStream();
+		Output out = new Output(baout);
+		out.writeInt(statusList.size(), true);
+		for (QueryWorkerJobStatus status : statusList) {
+			out.writeString(status.getStatus().name());
+			out.writeString(status.getUserID());
+			out.writeString(status.getLogin());
+			writeProjectPK(out, status.getProjectPK());
+			out.writeString(status.getJobID());
+			out.writeString(status.getKey());
+			out.writeInt(status.getID());
+			out.writeString(status.getSQL());
+			out.writeLong(status.getStart());
+			out.writeLong(status.getElapse());
+			out.writeLong(status.getLineRead());
+			out.writeInt(status.getChunks());
+		}
+		out.close();
+		return baout.toByteArray();
+	}
+
+	public static List<QueryWorkerJobStatus> readStatusList(byte[] payload) {
+		Input in = new Input(payload);
+		int size = in.readInt(true);
+		ArrayList<QueryWorkerJobStatus> statusList = new ArrayList<QueryWorkerJobStatus>(size);
+		for (int i = 0; i < size; i++) {
+			Status status = Status.valueOf(in.readString());
+			String userID = in.readString();
+			String login = in.readString();
+			ProjectPK projectPK = readProjectPK(in);
+			String jobID = in.readString();
+			String key = in.readString();
+			int ID = in.readInt();
+			String SQL = in.readString();
+			long start = in.readLong();
+			long elapse = in.readLong();
+			long lineRead = in.readLong();
+			int chunks = in.readInt();
+			switch (status) {
+			case EXECUTING:
+				statusList.add(new QueryWorkerJobStatus(userID, login, projectPK, jobID, key, ID, SQL, start, elapse));
+				break;
+			case READING:
+				statusList.add(new QueryWorkerJobStatus(userID, login, projectPK, jobID, key, ID, SQL, start, elapse,
+						lineRead, chunks));
+				break;
+			default:
+				statusList.add(new QueryWorkerJobStatus(status, projectPK, jobID, key, ID, SQL, lineRead, start, elapse));
+			}
+		}
+		return statusList;
+	}
+
+	private static void writeProjectPK(Output out, ProjectPK projectPK) {
+		out.writeBoolean(projectPK != null);
+		if (projectPK != null) {
+			out.writeString(projectPK.getCustomerId());
+			out.writeString(projectPK.getProjectId());
+		}
+	}
+
+	private static ProjectPK readProjectPK(Input in) {
+		if (in.readBoolean()) {
+			String customerId = in.readString();
+			String projectId = in.readString();
+			return new ProjectPK(customerId, projectId);
+		} else {
+			return null;
+		}
+	}
+
+}
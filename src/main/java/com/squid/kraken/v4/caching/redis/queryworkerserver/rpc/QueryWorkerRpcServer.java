@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver.rpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squid.kraken.v4.caching.redis.RedisCacheConfig;
+import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.queriesserver.QueryScheduler;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.IQueryWorkerServer;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.rpc.QueryWorkerRpcProtocol.Frame;
+
+/**
+ * Serve the worker binary protocol; the calls received on a connection are
+ * executed concurrently and answered in completion order. The server only
+ * listens on the configured address, and only accepts the connections that
+ * know the shared secret. The number of calls executed at the same time for
+ * one connection is bounded: the connection is not read while the bound is
+ * reached, so a client cannot pile up calls on the worker.
+ *
+ */
+public class QueryWorkerRpcServer implements Runnable {
+
+	static final Logger logger = LoggerFactory.getLogger(QueryWorkerRpcServer.class);
+
+	public static final int MAX_CALLS_PER_CONNECTION = 64;
+
+	private String bindAddress;
+	private int port;
+	private String secret;
+	private QueryWorkerRpcDispatcher dispatcher;
+	private ServerSocket serverSocket;
+	private ExecutorService executor;
+	private int maxCallsPerConnection;
+
+	/**
+	 * @param worker
+	 * @param bindAddress
+	 *            the address to listen on
+	 * @param port
+	 *            the port to listen on, or 0 for any free port
+	 * @param secret
+	 *            the secret shared with the queries server
+	 */
+	public QueryWorkerRpcServer(IQueryWorkerServer worker, String bindAddress, int port, String secret) {
+		this(worker, bindAddress, port, secret, MAX_CALLS_PER_CONNECTION);
+	}
+
+	QueryWorkerRpcServer(IQueryWorkerServer worker, String bindAddress, int port, String secret,
+			int maxCallsPerConnection) {
+		if (secret == null || secret.isEmpty()) {
+			throw new RedisCacheException("the worker binary protocol requires a secret");
+		}
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.secret = secret;
+		this.maxCallsPerConnection = maxCallsPerConnection;
+		this.dispatcher = new QueryWorkerRpcDispatcher(worker);
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "rpc-worker-call");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * check if the binary protocol is configured; it stays off, and the REST
+	 * API is used, unless both the port and the secret are set
+	 * 
+	 * @param conf
+	 * @return
+	 */
+	public static boolean isEnabled(RedisCacheConfig conf) {
+		if (conf.getWorkerRpcPort() <= 0) {
+			return false;
+		}
+		if (conf.getWorkerRpcSecret() == null || conf.getWorkerRpcSecret().isEmpty()) {
+			logger.warn("workerRpcPort is set but workerRpcSecret is not, using the REST API");
+			return false;
+		}
+		return true;
+	}
+
+	public void start() {
+		try {
+			serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+		} catch (IOException e) {
+			throw new RedisCacheException("cannot listen on " + bindAddress + ":" + port, e);
+		}
+		Thread acceptor = new Thread(this, "rpc-worker-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("query worker listening on " + bindAddress + ":" + getPort());
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread reader = new Thread(new ConnectionHandler(socket), "rpc-worker-" + socket.getRemoteSocketAddress());
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					logger.warn("failed to accept connection: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		executor.shutdown();
+	}
+
+	private class ConnectionHandler implements Runnable {
+
+		private Socket socket;
+		private DataOutputStream out;
+		private Semaphore inFlight;
+
+		public ConnectionHandler(Socket socket) {
+			this.socket = socket;
+			this.inFlight = new Semaphore(maxCallsPerConnection);
+		}
+
+		@Override
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				if (!authenticate(in)) {
+					logger.warn("rejected connection from " + socket.getRemoteSocketAddress());
+					return;
+				}
+				while (true) {
+					final Frame request = QueryWorkerRpcProtocol.readFrame(in);
+					// wait for a running call to complete
+					inFlight.acquire();
+					try {
+						executor.submit(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									reply(request);
+								} finally {
+									inFlight.release();
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						// the server is stopping
+						inFlight.release();
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				// client closed the connection
+				logger.debug("connection closed " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		private boolean authenticate(DataInputStream in) throws IOException {
+			socket.setSoTimeout(QueryWorkerRpcProtocol.HANDSHAKE_TIMEOUT_IN_MS);
+			byte[] challenge = QueryWorkerRpcProtocol.newChallenge();
+			QueryWorkerRpcProtocol.writeFrame(out, new Frame(0, QueryWorkerRpcProtocol.AUTH, challenge));
+			// don't let an unauthenticated client make us allocate a large frame
+			Frame answer = QueryWorkerRpcProtocol.readFrame(in, QueryWorkerRpcProtocol.MAX_HANDSHAKE_FRAME_SIZE);
+			if (answer.code != QueryWorkerRpcProtocol.AUTH
+					|| !QueryWorkerRpcProtocol.verify(secret, challenge, answer.payload)) {
+				return false;
+			}
+			QueryWorkerRpcProtocol.writeFrame(out, new Frame(0, QueryWorkerRpcProtocol.OK, new byte[0]));
+			socket.setSoTimeout(0);
+			return true;
+		}
+
+		private void reply(Frame request) {
+			Frame response;
+			try {
+				response = new Frame(request.callId, QueryWorkerRpcProtocol.OK,
+						dispatcher.handle(request.code, request.payload));
+			} catch (RuntimeException e) {
+				String message = e.getLocalizedMessage() != null ? e.getLocalizedMessage() : e.toString();
+				// let the queries server know if the datasource is failing
+				byte code = QueryScheduler.isDatasourceError(e) ? QueryWorkerRpcProtocol.DATASOURCE_ERROR
+						: QueryWorkerRpcProtocol.ERROR;
+				response = new Frame(request.callId, code, QueryWorkerRpcProtocol.writeString(message));
+			}
+			try {
+				synchronized (out) {
+					QueryWorkerRpcProtocol.writeFrame(out, response);
+				}
+			} catch (IOException e) {
+				logger.warn("failed to send the response to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+			}
+		}
+
+	}
+
+}
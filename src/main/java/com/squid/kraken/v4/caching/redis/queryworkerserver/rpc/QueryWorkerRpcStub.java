@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver.rpc;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squid.kraken.v4.caching.redis.queryworkerserver.IQueryWorkerServer;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobStatus;
+
+/**
+ * A remote worker reached through the binary protocol
+ *
+ */
+public class QueryWorkerRpcStub implements IQueryWorkerServer {
+
+	static final Logger logger = LoggerFactory.getLogger(QueryWorkerRpcStub.class);
+
+	private static final long TIMEOUT_IN_MS = 30 * 1000;
+
+	private String name;
+	private RpcChannel channel;
+	private long fetchTimeoutInMs;
+
+	/**
+	 * @param name
+	 * @param channel
+	 * @param fetchTimeoutInMs
+	 *            how long to wait for the worker to start returning a result
+	 */
+	public QueryWorkerRpcStub(String name, RpcChannel channel, long fetchTimeoutInMs) {
+		this.name = name;
+		this.channel = channel;
+		this.fetchTimeoutInMs = fetchTimeoutInMs;
+		logger.info("new Query worker rpc stub " + name);
+	}
+
+	@Override
+	public int fetch(QueryWorkerJobRequest request) {
+		byte[] res = channel.call(QueryWorkerRpcProtocol.FETCH, QueryWorkerRpcProtocol.writeRequest(request),
+				fetchTimeoutInMs);
+		return QueryWorkerRpcProtocol.readInt(res);
+	}
+
+	@Override
+	public void start() {
+		logger.info("starting Query Worker rpc stub " + name);
+	}
+
+	@Override
+	public String hello() {
+		byte[] res = channel.call(QueryWorkerRpcProtocol.HELLO, new byte[0], TIMEOUT_IN_MS);
+		return QueryWorkerRpcProtocol.readString(res);
+	}
+
+	@Override
+	public int getLoad() {
+		byte[] res = channel.call(QueryWorkerRpcProtocol.LOAD, new byte[0], TIMEOUT_IN_MS);
+		return QueryWorkerRpcProtocol.readInt(res);
+	}
+
+	@Override
+	public boolean isQueryOngoing(String k) {
+		byte[] res = channel.call(QueryWorkerRpcProtocol.ONGOING, QueryWorkerRpcProtocol.writeString(k),
+				TIMEOUT_IN_MS);
+		return QueryWorkerRpcProtocol.readBoolean(res);
+	}
+
+	@Override
+	public List<QueryWorkerJobStatus> getOngoingQueries(String customerId) {
+		byte[] res = channel.call(QueryWorkerRpcProtocol.QUERIES, QueryWorkerRpcProtocol.writeString(customerId),
+				TIMEOUT_IN_MS);
+		return QueryWorkerRpcProtocol.readStatusList(res);
+	}
+
+	@Override
+	public boolean cancelOngoingQuery(String customerId, String key) {
+		byte[] res = channel.call(QueryWorkerRpcProtocol.CANCEL, QueryWorkerRpcProtocol.writeStrings(customerId, key),
+				TIMEOUT_IN_MS);
+		return QueryWorkerRpcProtocol.readBoolean(res);
+	}
+
+}
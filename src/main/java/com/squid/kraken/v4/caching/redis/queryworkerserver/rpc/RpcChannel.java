@@ -21,32 +21,28 @@
  * you and Squid Solutions (above licenses and LICENSE.txt included).
  * See http://www.squidsolutions.com/EnterpriseBouquet/
  *******************************************************************************/
-package com.squid.kraken.v4.ESIndexFacade;
+package com.squid.kraken.v4.caching.redis.queryworkerserver.rpc;
 
-import org.elasticsearch.action.bulk.BulkProcessor;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
-
-public class SimpleIndexingListener implements BulkProcessor.Listener{
-	
-	public boolean withError ;
-
-	@Override
-	public void beforeBulk(long executionId, BulkRequest request) {
-		// TODO Auto-generated method stub
-		
-	}
+/**
+ * A request/response channel to a query worker
+ *
+ */
+public interface RpcChannel {
 
-	@Override
-	public void afterBulk(long executionId, BulkRequest request,
-			BulkResponse response) {
-		withError = false;
-	}
+	/**
+	 * send the message and wait for the response
+	 * 
+	 * @param op
+	 *            the operation, see QueryWorkerRpcProtocol
+	 * @param payload
+	 * @param timeoutInMs
+	 *            0 to wait until the worker answers
+	 * @return the response payload
+	 * @throws com.squid.kraken.v4.caching.redis.RedisCacheException
+	 *             if the worker failed or cannot be reached
+	 */
+	public byte[] call(byte op, byte[] payload, long timeoutInMs);
 
-	@Override
-	public void afterBulk(long executionId, BulkRequest request,
-			Throwable failure) {
-		withError = true;
-	}
+	public void close();
 
 }
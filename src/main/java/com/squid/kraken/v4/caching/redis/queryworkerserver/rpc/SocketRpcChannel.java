@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver.rpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.rpc.QueryWorkerRpcProtocol.Frame;
+
+/**
+ * A pool of persistent connections to a worker; each connection is shared by
+ * concurrent calls, the responses being matched by call id. A broken
+ * connection fails its pending calls and is opened again on the next call.
+ * The connections are authenticated with the secret shared with the worker.
+ *
+ */
+public class SocketRpcChannel implements RpcChannel {
+
+	static final Logger logger = LoggerFactory.getLogger(SocketRpcChannel.class);
+
+	private static final int CONNECT_TIMEOUT_IN_MS = 5000;
+
+	private String host;
+	private int port;
+	private String secret;
+
+	private Connection[] pool;
+	private int next = 0;
+
+	private AtomicInteger callIds = new AtomicInteger(0);
+
+	public SocketRpcChannel(String host, int port, int poolSize, String secret) {
+		this.host = host;
+		this.port = port;
+		this.secret = secret;
+		this.pool = new Connection[Math.max(1, poolSize)];
+	}
+
+	@Override
+	public byte[] call(byte op, byte[] payload, long timeoutInMs) {
+		Connection connection = getConnection();
+		int callId = callIds.incrementAndGet();
+		CompletableFuture<Frame> response = connection.send(new Frame(callId, op, payload));
+		try {
+			Frame frame;
+			if (timeoutInMs > 0) {
+				frame = response.get(timeoutInMs, TimeUnit.MILLISECONDS);
+			} else {
+				frame = response.get();
+			}
+			if (frame.code == QueryWorkerRpcProtocol.ERROR) {
+				throw new RedisCacheException(QueryWorkerRpcProtocol.readString(frame.payload));
+			}
+			if (frame.code == QueryWorkerRpcProtocol.DATASOURCE_ERROR) {
+				String message = QueryWorkerRpcProtocol.readString(frame.payload);
+				throw new RedisCacheException(message, new SQLException(message));
+			}
+			return frame.payload;
+		} catch (TimeoutException e) {
+			connection.pending.remove(callId);
+			throw new RedisCacheException("no response from worker " + host + ":" + port + " after " + timeoutInMs + " ms");
+		} catch (InterruptedException e) {
+			connection.pending.remove(callId);
+			Thread.currentThread().interrupt();
+			throw new RedisCacheException("interrupted while waiting for worker " + host + ":" + port);
+		} catch (ExecutionException e) {
+			throw new RedisCacheException("connection to worker " + host + ":" + port + " lost", e.getCause());
+		}
+	}
+
+	private synchronized Connection getConnection() {
+		int index = next;
+		next = (next + 1) % pool.length;
+		Connection connection = pool[index];
+		if (connection == null || connection.closed) {
+			connection = new Connection();
+			pool[index] = connection;
+		}
+		return connection;
+	}
+
+	@Override
+	public synchronized void close() {
+		for (int i = 0; i < pool.length; i++) {
+			if (pool[i] != null) {
+				pool[i].close(new IOException("channel closed"));
+				pool[i] = null;
+			}
+		}
+	}
+
+	private class Connection implements Runnable {
+
+		private Socket socket;
+		private DataOutputStream out;
+		private DataInputStream in;
+		private ConcurrentHashMap<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+		private volatile boolean closed = false;
+
+		public Connection() {
+			try {
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.setKeepAlive(true);
+				socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_IN_MS);
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				authenticate();
+			} catch (IOException e) {
+				close(e);
+				throw new RedisCacheException("cannot connect to worker " + host + ":" + port, e);
+			}
+			Thread reader = new Thread(this, "rpc-" + host + ":" + port);
+			reader.setDaemon(true);
+			reader.start();
+			logger.info("new connection to worker " + host + ":" + port);
+		}
+
+		private void authenticate() throws IOException {
+			socket.setSoTimeout(QueryWorkerRpcProtocol.HANDSHAKE_TIMEOUT_IN_MS);
+			Frame challenge = QueryWorkerRpcProtocol.readFrame(in, QueryWorkerRpcProtocol.MAX_HANDSHAKE_FRAME_SIZE);
+			if (challenge.code != QueryWorkerRpcProtocol.AUTH) {
+				throw new IOException("unexpected handshake");
+			}
+			QueryWorkerRpcProtocol.writeFrame(out, new Frame(0, QueryWorkerRpcProtocol.AUTH,
+					QueryWorkerRpcProtocol.sign(secret, challenge.payload)));
+			Frame answer;
+			try {
+				answer = QueryWorkerRpcProtocol.readFrame(in, QueryWorkerRpcProtocol.MAX_HANDSHAKE_FRAME_SIZE);
+			} catch (IOException e) {
+				// the worker closes the connection if the secret does not match
+				throw new IOException("authentication refused", e);
+			}
+			if (answer.code != QueryWorkerRpcProtocol.OK) {
+				throw new IOException("authentication refused");
+			}
+			socket.setSoTimeout(0);
+		}
+
+		public CompletableFuture<Frame> send(Frame frame) {
+			CompletableFuture<Frame> response = new CompletableFuture<Frame>();
+			pending.put(frame.callId, response);
+			try {
+				synchronized (out) {
+					QueryWorkerRpcProtocol.writeFrame(out, frame);
+				}
+			} catch (IOException e) {
+				close(e);
+				throw new RedisCacheException("connection to worker " + host + ":" + port + " lost", e);
+			}
+			return response;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					Frame frame = QueryWorkerRpcProtocol.readFrame(in);
+					CompletableFuture<Frame> response = pending.remove(frame.callId);
+					if (response != null) {
+						response.complete(frame);
+					}
+				}
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		public void close(Throwable cause) {
+			if (!closed) {
+				logger.info("closing connection to worker " + host + ":" + port + ": " + cause.getMessage());
+			}
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			for (CompletableFuture<Frame> response : pending.values()) {
+				response.completeExceptionally(cause);
+			}
+			pending.clear();
+		}
+
+	}
+
+}
@@ -27,7 +27,6 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -44,6 +43,7 @@ import com.squid.core.domain.operators.ExtendedType;
 import com.squid.core.expression.ExpressionAST;
 import com.squid.core.expression.scope.ScopeException;
 import com.squid.core.sql.render.IOrderByPiece.ORDERING;
+import com.squid.kraken.v4.caching.redis.datastruct.ColumnarRows;
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
 import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
 import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionIndex;
@@ -248,10 +248,36 @@ public class DataMatrix {
 	 * @return
 	 */
 	public Object getAxisValue(int i, RawRow row) {
+		return row.data[getAxisPosition(i)];
+	}
+
+	/**
+	 * return the DimensionMember for the ith axis of the row at this position;
+	 * if the rows are backed by columns, the value is read from the column
+	 * without materializing the row
+	 * 
+	 * @param i
+	 * @param row
+	 *            the row position
+	 * @return
+	 */
+	public Object getAxisValue(int i, int row) {
+		if (rows instanceof ColumnarRows) {
+			return ((ColumnarRows) rows).getValue(getAxisPosition(i), row);
+		} else {
+			return getAxisValue(i, rows.get(row));
+		}
+	}
+
+	/**
+	 * @param i
+	 * @return the position of the ith axis in the raw rows
+	 */
+	int getAxisPosition(int i) {
 		if (this.dataIndirection != null) {
-			return row.data[axesIndirection[i]];
+			return axesIndirection[i];
 		} else {
-			return row.data[i];// identity
+			return i;// identity
 		}
 	}
 
@@ -264,10 +290,29 @@ public class DataMatrix {
 	}
 
 	public Object getDataValue(int i, RawRow row) {
+		return row.data[getDataPosition(i)];
+	}
+
+	/**
+	 * @see #getAxisValue(int, int)
+	 */
+	public Object getDataValue(int i, int row) {
+		if (rows instanceof ColumnarRows) {
+			return ((ColumnarRows) rows).getValue(getDataPosition(i), row);
+		} else {
+			return getDataValue(i, rows.get(row));
+		}
+	}
+
+	/**
+	 * @param i
+	 * @return the position of the ith measure in the raw rows
+	 */
+	int getDataPosition(int i) {
 		if (this.dataIndirection != null) {
-			return row.data[dataIndirection[i]];
+			return dataIndirection[i];
 		} else {
-			return row.data[axes.size() + i];// identity
+			return axes.size() + i;// identity
 		}
 	}
 
@@ -279,6 +324,30 @@ public class DataMatrix {
 		}
 	}
 
+	/**
+	 * @see #getAxisValue(int, int)
+	 */
+	public Object getValue(int i, int row) {
+		if (i < axes.size()) {
+			return getAxisValue(i, row);
+		} else {
+			return getDataValue(i - axes.size(), row);
+		}
+	}
+
+	/**
+	 * @param i
+	 *            the column as used by getValue()
+	 * @return the position of the column in the raw rows
+	 */
+	int getPosition(int i) {
+		if (i < axes.size()) {
+			return getAxisPosition(i);
+		} else {
+			return getDataPosition(i - axes.size());
+		}
+	}
+
 	public int getDataSize() {
 		return this.measures.size();
 	}
@@ -388,7 +457,7 @@ public class DataMatrix {
 				HashSet<Object> objects = new HashSet<>();
 				ArrayList<DimensionMember> members = new ArrayList<>();
 				DimensionIndex index = axis.getIndex();
-				for (RawRow row : rows) {
+				for (int row = 0; row < rows.size(); row++) {
 					Object value = getAxisValue(pos, row);
 					if (!objects.contains(value)) {
 						objects.add(value);
@@ -409,6 +478,35 @@ public class DataMatrix {
 	 * @param orderBy
 	 */
 	public void orderBy(List<OrderBy> orderBy) {
+		// the rows usually come sorted from the SQL, in which case the sorter
+		// only checks the order: the database may not use the same rules (for
+		// instance for nulls or collation), so we cannot just trust the SQL
+		// ORDER BY.
+		createSorter(orderBy).sort();
+	}
+
+	/**
+	 * orderBy this matrix and keep only the rows in the limit & offset range.
+	 * This is the same as orderBy() followed by truncate(), but only the rows
+	 * up to offset+limit are actually sorted.
+	 * 
+	 * @param orderBy
+	 * @param limitValue
+	 * @param offsetValue
+	 */
+	public void orderBy(List<OrderBy> orderBy, Long limitValue, Long offsetValue) {
+		RowSorter sorter = createSorter(orderBy);
+		long count = limitValue != null
+				? Math.max(0, limitValue) + (offsetValue != null ? Math.max(0, offsetValue) : 0) : Long.MAX_VALUE;
+		if (count < rows.size()) {
+			this.rows = sorter.top((int) count);
+		} else {
+			sorter.sort();
+		}
+		truncate(limitValue, offsetValue);
+	}
+
+	private RowSorter createSorter(List<OrderBy> orderBy) {
 		final List<Integer> ordering = new ArrayList<>();
 		final List<ORDERING> direction = new ArrayList<>();
 		for (OrderBy item : orderBy) {
@@ -466,47 +564,26 @@ public class DataMatrix {
 				}
 			}
 		}
-		final int size = ordering.size();
-		Collections.sort(rows, new Comparator<RawRow>() {
-			@Override
-			public int compare(RawRow o1, RawRow o2) {
-				for (int i = 0; i < size; i++) {
-					Object v1 = getValue(ordering.get(i), o1);
-					Object v2 = getValue(ordering.get(i), o2);
-					int cc = compareValues(v1, v2);
-					if (direction.get(i) == ORDERING.DESCENT)
-						cc = -cc;// reverse
-					if (cc != 0)
-						return cc;
-				}
-				// equal !
-				return 0;
-			}
-		});
-	}
-
-	private int compareValues(Object v1, Object v2) {
-		if (v1 == null && v2 != null)
-			return -1;
-		if (v1 != null && v2 == null)
-			return 1;
-		if (v1 == null && v2 == null)
-			return 0;
-		if ((v1 instanceof Comparable) && (v2 instanceof Comparable)) {
-			@SuppressWarnings({ "rawtypes", "unchecked" })
-			int cc = ((Comparable) v1).compareTo(((Comparable) v2));
-			return cc;
-		} else {
-			int cc = v1.toString().compareTo(v2.toString());
-			return cc;
+		int size = ordering.size();
+		int[] columns = new int[size];
+		ORDERING[] directions = new ORDERING[size];
+		for (int i = 0; i < size; i++) {
+			columns[i] = getPosition(ordering.get(i));
+			directions[i] = direction.get(i);
 		}
+		return new RowSorter(rows, columns, directions);
 	}
 
 	public void truncate(Long limitValue, Long offsetValue) {
 		int from = offsetValue != null ? ((int) Math.max(0, offsetValue)) : 0;
 		int to = limitValue != null ? ((int) Math.min(rows.size(), from + limitValue)) : rows.size();
-		this.rows = this.rows.subList(from, to);// this is not a copy, just a
-												// view
+		if (this.rows instanceof ColumnarRows) {
+			// keep the columns
+			this.rows = ((ColumnarRows) this.rows).range(Math.min(from, to), to);
+		} else {
+			this.rows = this.rows.subList(from, to);// this is not a copy, just
+													// a view
+		}
 	}
 
 	/**
@@ -571,18 +648,24 @@ public class DataMatrix {
 		if (automaton.isEmpty()) {
 			return this;
 		} else {
-			DataMatrix result = new DataMatrix(this);
-
-			for (RawRow row : getRows()) {
-				boolean filter = checkRowAND(row, automaton);
-				if (filter) {
-					result.pushRow(row);
-				}
-			}
-			return result;
+			return filterAND(automaton);
 		}
 	}
 
+	/**
+	 * evaluate the conditions column by column and create the matrix with the
+	 * selected rows
+	 * 
+	 * @param automaton
+	 * @return
+	 */
+	private DataMatrix filterAND(Collection<ApplyFilterCondition> automaton) {
+		RowFilter filter = new RowFilter(this, getRows());
+		DataMatrix result = new DataMatrix(this);
+		result.rows = filter.getRows(filter.select(automaton));
+		return result;
+	}
+
 	/**
 	 * Wrap a filter condition and apply it to a row
 	 * 
@@ -595,6 +678,7 @@ public class DataMatrix {
 		public HashSet<Object> items = new HashSet<Object>();
 
 		private boolean isInterval = false;
+		private ArrayList<IntervalleObject> intervals = new ArrayList<IntervalleObject>();
 		private boolean nullIsValid;
 
 		public ApplyFilterCondition(int index, boolean nullIsValid) {
@@ -603,26 +687,55 @@ public class DataMatrix {
 		}
 
 		public boolean filter(RawRow row) {
-			Object m = getAxisValue(index, row);
-			if (isInterval) {
-				if (m == null) {
-					return this.nullIsValid;
-				}
-				for (Object item : items) {
-					if (item instanceof IntervalleObject && m instanceof Date) {
-						IntervalleObject interval = (IntervalleObject) item;
-						if (interval.compareLowerBoundTo(m) <= 0 && interval.compareUpperBoundTo(m) >= 0) {
+			return test(getAxisValue(index, row));
+		}
+
+		/**
+		 * check the axis value against the condition
+		 * 
+		 * @param m
+		 * @return
+		 */
+		public boolean test(Object m) {
+			if (m == null) {
+				return this.nullIsValid;
+			}
+			if (items.contains(m)) {
+				return true;
+			}
+			if (isInterval && m instanceof Date) {
+				Class<?> type = m.getClass();
+				long time = ((Date) m).getTime();
+				for (IntervalleObject interval : intervals) {
+					Object lower = interval.getLowerBound();
+					Object upper = interval.getUpperBound();
+					if (isMillis(lower, type) && isMillis(upper, type)) {
+						// same as comparing the dates, without the dispatch
+						if (((Date) lower).getTime() <= time && ((Date) upper).getTime() >= time) {
 							return true;
 						}
-					} else {
-						if (item.equals(m))
-							return true;
+					} else if (interval.compareLowerBoundTo(m) <= 0 && interval.compareUpperBoundTo(m) >= 0) {
+						return true;
 					}
 				}
-				//
+			}
+			//
+			return false;
+		}
+
+		/**
+		 * true if the bound compares to a value of that type using the
+		 * milliseconds
+		 */
+		private boolean isMillis(Object bound, Class<?> type) {
+			if (bound == null) {
 				return false;
+			} else if (bound.getClass() == Date.class) {
+				return type == Date.class || type == java.sql.Date.class;
+			} else if (bound.getClass() == java.sql.Date.class) {
+				return type == java.sql.Date.class;
 			} else {
-				return (m == null && this.nullIsValid) || (m != null && items.contains(m));
+				return false;
 			}
 		}
 
@@ -631,6 +744,7 @@ public class DataMatrix {
 			items.add(value);
 			if (value instanceof IntervalleObject) {
 				this.isInterval = true;
+				this.intervals.add((IntervalleObject) value);
 			}
 		}
 
@@ -703,39 +817,9 @@ public class DataMatrix {
 		if (automaton.isEmpty()) {
 			return this;
 		} else {
-			DataMatrix result = new DataMatrix(this);
-			for (RawRow row : getRows()) {
-				boolean filter = checkRowOR(row, automaton);
-				if (filter) {
-					result.pushRow(row);
-				}
-			}
-			return result;
-		}
-	}
-
-	private boolean checkRowOR(RawRow row, Collection<ApplyFilterCondition> automaton) {
-		int failed = 0;
-		for (ApplyFilterCondition item : automaton) {
-			if (!item.filter(row)) {
-				failed++;
-				if ((failed >= 1))
-					return false;
-			}
+			// a row is rejected as soon as one condition fails
+			return filterAND(automaton);
 		}
-		return true;
-	}
-
-	private boolean checkRowAND(RawRow row, Collection<ApplyFilterCondition> automaton) {
-
-		boolean filter = true;// challenge it
-		for (ApplyFilterCondition item : automaton) {
-			if (!item.filter(row)) {
-				filter = false;
-				break;
-			}
-		}
-		return filter;
 	}
 
 	/**
@@ -749,12 +833,14 @@ public class DataMatrix {
 			if (!isSorted) {
 				synchronized (this) {
 					if (!isSorted) {
-						Collections.sort(rows, new Comparator<RawRow>() {
-							@Override
-							public int compare(RawRow left, RawRow right) {
-								return compareTo(left, right);
-							}
-						});
+						int size = getAxesSize();
+						int[] columns = new int[size];
+						ORDERING[] directions = new ORDERING[size];
+						for (int i = 0; i < size; i++) {
+							columns[i] = getPosition(i);
+							directions[i] = ORDERING.ASCENT;
+						}
+						new RowSorter(rows, columns, directions).sort();
 						isSorted = true;
 					}
 				}
@@ -765,38 +851,6 @@ public class DataMatrix {
 		}
 	}
 
-	/**
-	 * hypothesis: left and right rows belong to this matrix
-	 * 
-	 * @param left
-	 * @param right
-	 * @return
-	 */
-	private int compareTo(RawRow left, RawRow right) {
-		if (left == right)
-			return 0;
-		for (int i = 0; i < getAxesSize(); i++) {
-			if (getAxisValue(i, left) == null && getAxisValue(i, right) != null)
-				return -1;
-			if (getAxisValue(i, left) != null && getAxisValue(i, right) == null)
-				return 1;
-			if (getAxisValue(i, left) == null && getAxisValue(i, right) == null)
-				return 0;
-			if ((getAxisValue(i, left) instanceof Comparable) && (getAxisValue(i, right) instanceof Comparable)) {
-				@SuppressWarnings({ "unchecked", "rawtypes" })
-				int cc = ((Comparable) getAxisValue(i, left)).compareTo(((Comparable) getAxisValue(i, right)));
-				if (cc != 0)
-					return cc;
-			} else {
-				int cc = getAxisValue(i, left).toString().compareTo(getAxisValue(i, right).toString());
-				if (cc != 0)
-					return cc;
-			}
-		}
-
-		return 0;
-	}
-
 	public void dump() throws InterruptedException {
 		try {
 			dump(100);
@@ -809,7 +863,7 @@ public class DataMatrix {
 	public void dump(int sizeLimit) throws ComputingException, InterruptedException {
 		// dump
 		int count = 0;
-		for (RawRow row : this.getRows()) {
+		for (int row = 0; row < this.getRows().size(); row++) {
 			StringBuilder output = new StringBuilder();
 			//
 			for (int i = 0; i < getAxesSize(); i++) {
@@ -855,7 +909,7 @@ public class DataMatrix {
 		}
 		logger.info(header.toString());
 		// expot data
-		for (RawRow row : this.getRows()) {
+		for (int row = 0; row < this.getRows().size(); row++) {
 			StringBuilder output = new StringBuilder();
 			//
 			for (int i = 0; i < getRowSize(); i++) {
@@ -1046,8 +1100,7 @@ public class DataMatrix {
 		maxResults = Math.max(maxResults, 0);
 		int endIndex = Math.min(rows.size(), startIndex + maxResults);
 		if (startIndex < endIndex) {
-			for (int rowIndex = startIndex; rowIndex < endIndex; rowIndex++) {
-				RawRow row = rows.get(rowIndex);
+			for (int row = startIndex; row < endIndex; row++) {
 				Object[] values = new Object[header.size()];
 				int colIdx = 0;
 				int nbAxesVisibles = -1;
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.datamatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import com.squid.kraken.v4.caching.redis.datastruct.ColumnarRows;
+import com.squid.kraken.v4.caching.redis.datastruct.RawColumn;
+import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
+import com.squid.kraken.v4.core.analysis.datamatrix.DataMatrix.ApplyFilterCondition;
+
+/**
+ * Select the rows of a DataMatrix that match a list of conditions.
+ * 
+ * The conditions are evaluated one column at a time and produce a selection
+ * bitmap; a condition is only evaluated on the rows still selected by the
+ * previous ones, and the evaluation stops as soon as the selection is empty.
+ * The rows are not copied, the result only references the selected ones.
+ * 
+ * When the rows are backed by typed columns, each condition is first compiled
+ * against its column: a dictionary column checks every distinct string once
+ * and then only looks up the row code, and a numeric column checks the
+ * primitive value against the sorted accepted values. Other columns, and row
+ * lists, test the boxed value as before.
+ *
+ */
+class RowFilter {
+
+	private final DataMatrix matrix;
+	private final ColumnarRows columnar;// null if the rows are not columnar
+	private final RawRow[] rows;
+	private final int size;
+
+	RowFilter(DataMatrix matrix, List<RawRow> rows) {
+		this.matrix = matrix;
+		this.size = rows.size();
+		if (rows instanceof ColumnarRows) {
+			this.columnar = (ColumnarRows) rows;
+			this.rows = null;
+		} else {
+			this.columnar = null;
+			this.rows = rows.toArray(new RawRow[size]);
+		}
+	}
+
+	/**
+	 * compute the rows matching all the conditions
+	 * 
+	 * @param automaton
+	 * @return the selection bitmap, indexed by the row position
+	 */
+	BitSet select(Collection<ApplyFilterCondition> automaton) {
+		BitSet selection = new BitSet(size);
+		selection.set(0, size);
+		for (ApplyFilterCondition condition : automaton) {
+			int index = condition.index;
+			if (columnar != null) {
+				ColumnCondition compiled = compile(condition,
+						columnar.getColumn(matrix.getAxisPosition(index)));
+				for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+					if (!compiled.test(columnar.getIndex(i))) {
+						selection.clear(i);
+					}
+				}
+			} else {
+				for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+					if (!condition.test(matrix.getAxisValue(index, rows[i]))) {
+						selection.clear(i);
+					}
+				}
+			}
+			if (selection.isEmpty()) {
+				break;
+			}
+		}
+		return selection;
+	}
+
+	/**
+	 * return the selected rows, in the original order
+	 * 
+	 * @param selection
+	 * @return
+	 */
+	List<RawRow> getRows(BitSet selection) {
+		if (columnar != null) {
+			return columnar.select(selection);
+		}
+		ArrayList<RawRow> selected = new ArrayList<RawRow>(selection.cardinality());
+		for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+			selected.add(rows[i]);
+		}
+		return selected;
+	}
+
+	/**
+	 * compile the condition for this column; the compiled condition gives the
+	 * same result as ApplyFilterCondition.test() on the boxed value
+	 * 
+	 * @param condition
+	 * @param column
+	 * @return
+	 */
+	static ColumnCondition compile(ApplyFilterCondition condition, RawColumn column) {
+		if (column instanceof RawColumn.NullColumn) {
+			return new ConstantCondition(condition.test(null));
+		} else if (column instanceof RawColumn.StringColumn) {
+			return new DictionaryCondition(condition, (RawColumn.StringColumn) column);
+		} else if (column instanceof RawColumn.IntColumn) {
+			// the intervals only apply to dates, so a number is only
+			// matching an item of the same type
+			final RawColumn.IntColumn ints = (RawColumn.IntColumn) column;
+			long[] accepted = new long[condition.items.size()];
+			int count = 0;
+			for (Object item : condition.items) {
+				if (item instanceof Integer) {
+					accepted[count++] = (Integer) item;
+				}
+			}
+			return new PrimitiveCondition(condition.test(null), accepted, count) {
+				@Override
+				boolean isNull(int index) {
+					return ints.isNull(index);
+				}
+
+				@Override
+				long getValue(int index) {
+					return ints.getInt(index);
+				}
+			};
+		} else if (column instanceof RawColumn.LongColumn) {
+			final RawColumn.LongColumn longs = (RawColumn.LongColumn) column;
+			long[] accepted = new long[condition.items.size()];
+			int count = 0;
+			for (Object item : condition.items) {
+				if (item instanceof Long) {
+					accepted[count++] = (Long) item;
+				}
+			}
+			return new PrimitiveCondition(condition.test(null), accepted, count) {
+				@Override
+				boolean isNull(int index) {
+					return longs.isNull(index);
+				}
+
+				@Override
+				long getValue(int index) {
+					return longs.getLong(index);
+				}
+			};
+		} else if (column instanceof RawColumn.DoubleColumn) {
+			// compare the bits, as Double.equals() does
+			final RawColumn.DoubleColumn doubles = (RawColumn.DoubleColumn) column;
+			long[] accepted = new long[condition.items.size()];
+			int count = 0;
+			for (Object item : condition.items) {
+				if (item instanceof Double) {
+					accepted[count++] = Double.doubleToLongBits((Double) item);
+				}
+			}
+			return new PrimitiveCondition(condition.test(null), accepted, count) {
+				@Override
+				boolean isNull(int index) {
+					return doubles.isNull(index);
+				}
+
+				@Override
+				long getValue(int index) {
+					return Double.doubleToLongBits(doubles.getDouble(index));
+				}
+			};
+		} else {
+			return new ObjectCondition(condition, column);
+		}
+	}
+
+	/**
+	 * a condition compiled for a column
+	 */
+	static abstract class ColumnCondition {
+
+		/**
+		 * @param index
+		 *            the physical index of the row in the column
+		 * @return true if the row value is matching the condition
+		 */
+		abstract boolean test(int index);
+
+	}
+
+	private static class ConstantCondition extends ColumnCondition {
+
+		private final boolean result;
+
+		ConstantCondition(boolean result) {
+			this.result = result;
+		}
+
+		@Override
+		boolean test(int index) {
+			return result;
+		}
+
+	}
+
+	/**
+	 * evaluate the condition once per dictionary string, when first met
+	 */
+	private static class DictionaryCondition extends ColumnCondition {
+
+		private static final byte UNKNOWN = 0;
+		private static final byte ACCEPTED = 1;
+		private static final byte REJECTED = 2;
+
+		private final ApplyFilterCondition condition;
+		private final RawColumn.StringColumn column;
+		private final List<String> dictionary;
+		private final boolean nullIsValid;
+		private byte[] states;
+
+		DictionaryCondition(ApplyFilterCondition condition, RawColumn.StringColumn column) {
+			this.condition = condition;
+			this.column = column;
+			this.dictionary = column.getDictionary();
+			this.nullIsValid = condition.test(null);
+			this.states = new byte[dictionary.size()];
+		}
+
+		@Override
+		boolean test(int index) {
+			int code = column.getCode(index);
+			if (code < 0) {
+				return nullIsValid;
+			}
+			if (code >= states.length) {
+				states = Arrays.copyOf(states, dictionary.size());
+			}
+			byte state = states[code];
+			if (state == UNKNOWN) {
+				state = condition.test(dictionary.get(code)) ? ACCEPTED : REJECTED;
+				states[code] = state;
+			}
+			return state == ACCEPTED;
+		}
+
+	}
+
+	/**
+	 * check the primitive value against the sorted accepted values
+	 */
+	private static abstract class PrimitiveCondition extends ColumnCondition {
+
+		private final boolean nullIsValid;
+		private final long[] accepted;
+		private final long min;
+		private final long max;
+
+		PrimitiveCondition(boolean nullIsValid, long[] accepted, int count) {
+			this.nullIsValid = nullIsValid;
+			this.accepted = Arrays.copyOf(accepted, count);
+			Arrays.sort(this.accepted);
+			this.min = count > 0 ? this.accepted[0] : Long.MAX_VALUE;
+			this.max = count > 0 ? this.accepted[count - 1] : Long.MIN_VALUE;
+		}
+
+		@Override
+		boolean test(int index) {
+			if (isNull(index)) {
+				return nullIsValid;
+			}
+			long value = getValue(index);
+			if (value < min || value > max) {
+				return false;
+			}
+			return Arrays.binarySearch(accepted, value) >= 0;
+		}
+
+		abstract boolean isNull(int index);
+
+		abstract long getValue(int index);
+
+	}
+
+	/**
+	 * fallback: test the boxed value
+	 */
+	private static class ObjectCondition extends ColumnCondition {
+
+		private final ApplyFilterCondition condition;
+		private final RawColumn column;
+
+		ObjectCondition(ApplyFilterCondition condition, RawColumn column) {
+			this.condition = condition;
+			this.column = column;
+		}
+
+		@Override
+		boolean test(int index) {
+			return condition.test(column.get(index));
+		}
+
+	}
+
+}
@@ -0,0 +1,528 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.datamatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.squid.core.sql.render.IOrderByPiece.ORDERING;
+import com.squid.kraken.v4.caching.redis.datastruct.ColumnarRows;
+import com.squid.kraken.v4.caching.redis.datastruct.RawColumn;
+import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
+
+/**
+ * Sort the rows of a DataMatrix.
+ * 
+ * The sort keys are extracted once per row and column, and stored in a
+ * primitive array when the column type allows it (integers, decimals, dates
+ * and dictionary strings), so that comparing two rows doesn't have to go
+ * through the matrix indirection nor the generic Comparable dispatch. When the
+ * rows are backed by typed columns the keys are read straight from the column
+ * arrays, without materializing the rows. The row order is the same as with
+ * the generic comparison: nulls first, then natural order, the whole being
+ * reversed for a descending column; ties keep the original order.
+ * 
+ * The rows are sorted through a primitive index with a merge sort, in
+ * parallel for large matrices. When only the first rows are needed, they are
+ * selected with a bounded heap instead.
+ *
+ */
+class RowSorter {
+
+	/**
+	 * above this number of rows sort in parallel
+	 */
+	static final int PARALLEL_SORT_THRESHOLD = 100000;
+
+	private static final int PARALLEL_SORT_GRANULARITY = 8192;
+
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	private final List<RawRow> rows;
+	private final RawRow[] array;// null if the rows are columnar
+	private final int size;
+	private final SortKey[] keys;
+
+	/**
+	 * 
+	 * @param rows
+	 *            the rows to sort
+	 * @param positions
+	 *            the position of the sort columns in the raw rows
+	 * @param directions
+	 */
+	RowSorter(List<RawRow> rows, int[] positions, ORDERING[] directions) {
+		this.rows = rows;
+		this.size = rows.size();
+		ArrayList<SortKey> keys = new ArrayList<SortKey>(positions.length);
+		if (rows instanceof ColumnarRows) {
+			ColumnarRows columnar = (ColumnarRows) rows;
+			this.array = null;
+			for (int i = 0; i < positions.length; i++) {
+				SortKey key = createKey(columnar, columnar.getColumn(positions[i]),
+						directions[i] == ORDERING.DESCENT);
+				if (key != null) {
+					keys.add(key);
+				}
+			}
+		} else {
+			this.array = rows.toArray(new RawRow[size]);
+			for (int i = 0; i < positions.length; i++) {
+				Object[] values = new Object[size];
+				for (int k = 0; k < size; k++) {
+					values[k] = array[k].data[positions[i]];
+				}
+				keys.add(createKey(values, directions[i] == ORDERING.DESCENT));
+			}
+		}
+		this.keys = keys.toArray(new SortKey[keys.size()]);
+	}
+
+	/**
+	 * sort the rows in place; does nothing if the rows are already sorted
+	 */
+	void sort() {
+		if (size < 2 || isSorted()) {
+			return;
+		}
+		int[] index = new int[size];
+		for (int i = 0; i < size; i++) {
+			index[i] = i;
+		}
+		int[] buffer = new int[size];
+		if (size > PARALLEL_SORT_THRESHOLD) {
+			ForkJoinPool.commonPool().invoke(new SortTask(index, buffer, 0, size));
+		} else {
+			mergeSort(index, buffer, 0, size);
+		}
+		if (array == null) {
+			((ColumnarRows) rows).reorder(index);
+		} else {
+			for (int i = 0; i < size; i++) {
+				rows.set(i, array[index[i]]);
+			}
+		}
+	}
+
+	/**
+	 * return the first count rows in sorted order, without sorting the whole
+	 * list: the rows are selected using a bounded heap. The rows are left
+	 * untouched. Same result as sorting and taking the head since ties are
+	 * resolved using the original position.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	List<RawRow> top(int count) {
+		int n = Math.max(0, Math.min(count, size));
+		int[] selected = new int[n];
+		if (isSorted()) {
+			for (int i = 0; i < n; i++) {
+				selected[i] = i;
+			}
+		} else if (n > 0) {
+			// the heap head is the greatest of the selected rows
+			int heapSize = 0;
+			for (int i = 0; i < size; i++) {
+				if (heapSize < n) {
+					selected[heapSize] = i;
+					siftUp(selected, heapSize++);
+				} else if (compare(i, selected[0]) < 0) {
+					selected[0] = i;
+					siftDown(selected, heapSize);
+				}
+			}
+			mergeSort(selected, new int[n], 0, n);
+		}
+		if (array == null) {
+			return ((ColumnarRows) rows).select(selected, n);
+		}
+		ArrayList<RawRow> result = new ArrayList<RawRow>(n);
+		for (int i : selected) {
+			result.add(array[i]);
+		}
+		return result;
+	}
+
+	private boolean isSorted() {
+		for (int i = 1; i < size; i++) {
+			if (compare(i - 1, i) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * compare the rows at these positions; ties are resolved by position
+	 */
+	private int compare(int left, int right) {
+		for (SortKey key : keys) {
+			int cc = key.compare(left, right);
+			if (cc != 0) {
+				return cc;
+			}
+		}
+		return Integer.compare(left, right);
+	}
+
+	// sorting the index
+
+	private void mergeSort(int[] index, int[] buffer, int from, int to) {
+		if (to - from <= INSERTION_SORT_THRESHOLD) {
+			insertionSort(index, from, to);
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(index, buffer, from, middle);
+		mergeSort(index, buffer, middle, to);
+		merge(index, buffer, from, middle, to);
+	}
+
+	private void insertionSort(int[] index, int from, int to) {
+		for (int i = from + 1; i < to; i++) {
+			int value = index[i];
+			int j = i - 1;
+			while (j >= from && compare(index[j], value) > 0) {
+				index[j + 1] = index[j];
+				j--;
+			}
+			index[j + 1] = value;
+		}
+	}
+
+	private void merge(int[] index, int[] buffer, int from, int middle, int to) {
+		if (compare(index[middle - 1], index[middle]) <= 0) {
+			// already in order
+			return;
+		}
+		System.arraycopy(index, from, buffer, from, to - from);
+		int i = from;
+		int j = middle;
+		for (int k = from; k < to; k++) {
+			if (j >= to || (i < middle && compare(buffer[i], buffer[j]) <= 0)) {
+				index[k] = buffer[i++];
+			} else {
+				index[k] = buffer[j++];
+			}
+		}
+	}
+
+	private class SortTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] index;
+		private final int[] buffer;
+		private final int from;
+		private final int to;
+
+		SortTask(int[] index, int[] buffer, int from, int to) {
+			this.index = index;
+			this.buffer = buffer;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_SORT_GRANULARITY) {
+				mergeSort(index, buffer, from, to);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SortTask(index, buffer, from, middle), new SortTask(index, buffer, middle, to));
+				merge(index, buffer, from, middle, to);
+			}
+		}
+
+	}
+
+	// max-heap used by top()
+
+	private void siftUp(int[] heap, int k) {
+		int value = heap[k];
+		while (k > 0) {
+			int parent = (k - 1) >>> 1;
+			if (compare(heap[parent], value) >= 0) {
+				break;
+			}
+			heap[k] = heap[parent];
+			k = parent;
+		}
+		heap[k] = value;
+	}
+
+	private void siftDown(int[] heap, int heapSize) {
+		int value = heap[0];
+		int k = 0;
+		int half = heapSize >>> 1;
+		while (k < half) {
+			int child = 2 * k + 1;
+			if (child + 1 < heapSize && compare(heap[child + 1], heap[child]) > 0) {
+				child++;
+			}
+			if (compare(value, heap[child]) >= 0) {
+				break;
+			}
+			heap[k] = heap[child];
+			k = child;
+		}
+		heap[k] = value;
+	}
+
+	// keys
+
+	/**
+	 * read the keys from the column arrays
+	 * 
+	 * @return the key, or null if the column is always null
+	 */
+	private static SortKey createKey(ColumnarRows rows, RawColumn column, boolean descent) {
+		int size = rows.size();
+		if (column instanceof RawColumn.NullColumn) {
+			return null;
+		} else if (column instanceof RawColumn.IntColumn) {
+			RawColumn.IntColumn ints = (RawColumn.IntColumn) column;
+			long[] primitives = new long[size];
+			boolean[] nulls = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				int index = rows.getIndex(i);
+				nulls[i] = ints.isNull(index);
+				primitives[i] = ints.getInt(index);
+			}
+			return new LongKey(primitives, nulls, descent);
+		} else if (column instanceof RawColumn.LongColumn) {
+			RawColumn.LongColumn longs = (RawColumn.LongColumn) column;
+			long[] primitives = new long[size];
+			boolean[] nulls = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				int index = rows.getIndex(i);
+				nulls[i] = longs.isNull(index);
+				primitives[i] = longs.getLong(index);
+			}
+			return new LongKey(primitives, nulls, descent);
+		} else if (column instanceof RawColumn.DoubleColumn) {
+			RawColumn.DoubleColumn doubles = (RawColumn.DoubleColumn) column;
+			double[] primitives = new double[size];
+			boolean[] nulls = new boolean[size];
+			for (int i = 0; i < size; i++) {
+				int index = rows.getIndex(i);
+				nulls[i] = doubles.isNull(index);
+				primitives[i] = doubles.getDouble(index);
+			}
+			return new DoubleKey(primitives, nulls, descent);
+		} else if (column instanceof RawColumn.StringColumn) {
+			return createKey(rows, (RawColumn.StringColumn) column, descent);
+		} else {
+			Object[] values = new Object[size];
+			for (int i = 0; i < size; i++) {
+				values[i] = column.get(rows.getIndex(i));
+			}
+			return createKey(values, descent);
+		}
+	}
+
+	/**
+	 * rank the dictionary strings used by the rows, and compare the ranks
+	 */
+	private static SortKey createKey(ColumnarRows rows, RawColumn.StringColumn column, boolean descent) {
+		int size = rows.size();
+		List<String> dictionary = column.getDictionary();
+		int[] codes = new int[size];
+		int[] ranks = new int[dictionary.size()];
+		Arrays.fill(ranks, -1);
+		int used = 0;
+		for (int i = 0; i < size; i++) {
+			int code = column.getCode(rows.getIndex(i));
+			codes[i] = code;
+			if (code >= 0 && ranks[code] < 0) {
+				ranks[code] = 0;
+				used++;
+			}
+		}
+		String[] values = new String[used];
+		int k = 0;
+		for (int code = 0; code < ranks.length; code++) {
+			if (ranks[code] == 0) {
+				values[k++] = dictionary.get(code);
+			}
+		}
+		Arrays.sort(values);
+		for (int code = 0; code < ranks.length; code++) {
+			if (ranks[code] == 0) {
+				int rank = Arrays.binarySearch(values, dictionary.get(code));
+				// equal strings must have the same rank
+				while (rank > 0 && values[rank - 1].equals(values[rank])) {
+					rank--;
+				}
+				ranks[code] = rank;
+			}
+		}
+		long[] primitives = new long[size];
+		boolean[] nulls = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			if (codes[i] < 0) {
+				nulls[i] = true;
+			} else {
+				primitives[i] = ranks[codes[i]];
+			}
+		}
+		return new LongKey(primitives, nulls, descent);
+	}
+
+	private static SortKey createKey(Object[] values, boolean descent) {
+		int size = values.length;
+		// check the actual type of the column
+		boolean isLong = true;
+		boolean isDouble = true;
+		boolean isDate = true;
+		boolean[] nulls = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			Object value = values[i];
+			if (value != null) {
+				Class<?> type = value.getClass();
+				isLong &= (type == Integer.class || type == Long.class || type == Short.class
+						|| type == Byte.class);
+				isDouble &= (type == Double.class || type == Float.class);
+				// timestamp comparison is using the nanos
+				isDate &= (type == Date.class || type == java.sql.Date.class);
+			} else {
+				nulls[i] = true;
+			}
+		}
+		if (isLong) {
+			long[] primitives = new long[size];
+			for (int i = 0; i < size; i++) {
+				if (values[i] != null) {
+					primitives[i] = ((Number) values[i]).longValue();
+				}
+			}
+			return new LongKey(primitives, nulls, descent);
+		} else if (isDouble) {
+			double[] primitives = new double[size];
+			for (int i = 0; i < size; i++) {
+				if (values[i] != null) {
+					primitives[i] = ((Number) values[i]).doubleValue();
+				}
+			}
+			return new DoubleKey(primitives, nulls, descent);
+		} else if (isDate) {
+			long[] primitives = new long[size];
+			for (int i = 0; i < size; i++) {
+				if (values[i] != null) {
+					primitives[i] = ((Date) values[i]).getTime();
+				}
+			}
+			return new LongKey(primitives, nulls, descent);
+		} else {
+			return new ObjectKey(values, nulls, descent);
+		}
+	}
+
+	private static abstract class SortKey {
+
+		private final boolean[] nulls;
+		private final boolean descent;
+
+		SortKey(boolean[] nulls, boolean descent) {
+			this.nulls = nulls;
+			this.descent = descent;
+		}
+
+		int compare(int left, int right) {
+			boolean null1 = nulls[left];
+			boolean null2 = nulls[right];
+			int cc;
+			if (null1 || null2) {
+				cc = null1 == null2 ? 0 : (null1 ? -1 : 1);
+			} else {
+				cc = compareNotNull(left, right);
+			}
+			return descent ? -cc : cc;
+		}
+
+		protected abstract int compareNotNull(int left, int right);
+
+	}
+
+	private static class LongKey extends SortKey {
+
+		private final long[] primitives;
+
+		LongKey(long[] primitives, boolean[] nulls, boolean descent) {
+			super(nulls, descent);
+			this.primitives = primitives;
+		}
+
+		@Override
+		protected int compareNotNull(int left, int right) {
+			return Long.compare(primitives[left], primitives[right]);
+		}
+
+	}
+
+	private static class DoubleKey extends SortKey {
+
+		private final double[] primitives;
+
+		DoubleKey(double[] primitives, boolean[] nulls, boolean descent) {
+			super(nulls, descent);
+			this.primitives = primitives;
+		}
+
+		@Override
+		protected int compareNotNull(int left, int right) {
+			return Double.compare(primitives[left], primitives[right]);
+		}
+
+	}
+
+	private static class ObjectKey extends SortKey {
+
+		private final Object[] values;
+
+		ObjectKey(Object[] values, boolean[] nulls, boolean descent) {
+			super(nulls, descent);
+			this.values = values;
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		@Override
+		protected int compareNotNull(int left, int right) {
+			Object v1 = values[left];
+			Object v2 = values[right];
+			if ((v1 instanceof Comparable) && (v2 instanceof Comparable)) {
+				return ((Comparable) v1).compareTo(((Comparable) v2));
+			} else {
+				return v1.toString().compareTo(v2.toString());
+			}
+		}
+
+	}
+
+}
@@ -66,17 +66,53 @@ public class DomainHierarchyManager {
 		//
 	}
 
+	/**
+	 * invalidate the domain hierarchy and clear its indexes, so the next
+	 * hierarchy is computed from scratch: use it when the domain definition or
+	 * the table schema may have changed
+	 * 
+	 * @param domainID
+	 * @throws ScopeException
+	 * @throws InterruptedException
+	 */
 	public void invalidate(DomainPK domainID) throws ScopeException, InterruptedException {
+		invalidate(domainID, false);
+	}
+
+	/**
+	 * invalidate the domain hierarchy when only the domain data changed: the
+	 * indexes of an incremental domain are kept, so the next hierarchy just
+	 * merges the new rows
+	 * 
+	 * @param domainID
+	 * @throws ScopeException
+	 * @throws InterruptedException
+	 */
+	public void refreshData(DomainPK domainID) throws ScopeException, InterruptedException {
+		invalidate(domainID, true);
+	}
+
+	private void invalidate(DomainPK domainID, boolean keepIncrementalIndex)
+			throws ScopeException, InterruptedException {
 		// cancel any running execution
 		DomainHierarchy hierarchy = hierarchies.get(domainID);
+		boolean incremental = false;
 		if (hierarchy != null) {
 			logger.info(
 					"Domain invalidation - Invalidating index for domain" + hierarchy.getRoot().getDomain().getName());
+			incremental = keepIncrementalIndex && DomainHierarchyQueryGenerator
+					.getIncrementalColumn(hierarchy.getRoot(), hierarchy.getStructure()) != null;
 			// cancel any running execution
 			invalidate(hierarchy, true);
 		}
-		// clear the index
-		DimensionStoreManagerFactory.INSTANCE.invalidate(domainID);
+		if (incremental) {
+			// keep the index: the next hierarchy will merge the new rows
+			logger.info("Domain invalidation - Keeping index for incremental refresh of domain "
+					+ hierarchy.getRoot().getDomain().getName());
+		} else {
+			// clear the index
+			DimensionStoreManagerFactory.INSTANCE.invalidate(domainID);
+		}
 	}
 
 	public void setStatesToStale(DomainPK domainId) {
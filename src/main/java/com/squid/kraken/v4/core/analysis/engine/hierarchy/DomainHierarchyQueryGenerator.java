@@ -53,6 +53,8 @@ import com.squid.kraken.v4.core.analysis.engine.query.mapping.AttributeMapping;
 import com.squid.kraken.v4.core.analysis.engine.query.mapping.DimensionMapping;
 import com.squid.kraken.v4.core.analysis.engine.query.mapping.MeasureMapping;
 import com.squid.kraken.v4.core.analysis.model.IntervalleObject;
+import com.squid.kraken.v4.core.analysis.scope.AxisExpression;
+import com.squid.kraken.v4.core.analysis.scope.SpaceScope;
 import com.squid.kraken.v4.core.analysis.universe.Axis;
 import com.squid.kraken.v4.core.analysis.universe.Measure;
 import com.squid.kraken.v4.core.analysis.universe.Space;
@@ -116,6 +118,7 @@ public class DomainHierarchyQueryGenerator {
 		HierarchyQuery main_query = null;
 		HierarchyQuery continuous_query = null;
 		Domain domain = space.getDomain();
+		ExpressionAST incremental = getIncrementalColumn(space, hierarchies);
 		for (List<DimensionIndex> hierarchy : hierarchies) {
 
 			// first handle continuous dimension
@@ -202,7 +205,17 @@ public class DomainHierarchyQueryGenerator {
 					continue;
 				}
 
-				if (needRefresh(hierarchy, renderedQuery)) {
+				if (incremental != null) {
+					// no merge: each hierarchy query has its own high-water mark
+					if (prepareIncrementalQuery(space, select, hierarchy, renderedQuery, incremental)) {
+						String dis = "";
+						for (DimensionIndex di : hierarchy) {
+							this.queries.put(di.getDimension().getId(), select);
+							dis += di.getDimensionName() + " ";
+						}
+						logger.debug(dis + "\nadding incremental " + renderedQuery);
+					}
+				} else if (needRefresh(hierarchy, renderedQuery)) {
 					if (main_query != null && main_query.getQuerySize() + select.getQuerySize() <= 4
 							&& main_query.getEstimatedComplexity() * estimate < 100000) {
 						// merge with the main query instead
@@ -258,6 +271,127 @@ public class DomainHierarchyQueryGenerator {
 		}
 	}
 
+	/**
+	 * check if the domain hierarchy can be refreshed incrementally: the domain
+	 * must define a valid incremental column, and there must be no continuous
+	 * dimension since a range cannot be merged with the new rows
+	 * 
+	 * @param space
+	 * @param hierarchies
+	 * @return the incremental column expression, or null if the hierarchy must
+	 *         be rebuilt
+	 */
+	protected static ExpressionAST getIncrementalColumn(Space space, List<List<DimensionIndex>> hierarchies) {
+		Domain domain = space.getDomain();
+		if (domain.getOptions() == null || domain.getOptions().getIncrementalColumn() == null
+				|| domain.getOptions().getIncrementalColumn().isEmpty()) {
+			return null;
+		}
+		for (List<DimensionIndex> hierarchy : hierarchies) {
+			for (DimensionIndex index : hierarchy) {
+				if (index.getDimension().getType() == Type.CONTINUOUS) {
+					return null;
+				}
+			}
+		}
+		String column = domain.getOptions().getIncrementalColumn();
+		try {
+			SpaceScope scope = new SpaceScope(space);
+			ExpressionAST expr = scope.parseExpression(column);
+			if (expr instanceof AxisExpression) {
+				// compare the raw definition, not the dimension
+				expr = ((AxisExpression) expr).getAxis().getDefinition();
+			}
+			return expr;
+		} catch (ScopeException e) {
+			logger.error("invalid incremental column '" + column + "' for domain " + domain.getName()
+					+ ", using full refresh: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * prepare the hierarchy query for an incremental refresh:
+	 * <li>if the indexes are stale, compute them from scratch
+	 * <li>if the indexes are stored and the high-water mark is known, only
+	 * read the rows since the mark and merge them in the existing indexes
+	 * <li>if the indexes are stored without a mark, rebuild them once
+	 * <p>
+	 * In any case the query also reads the new high-water mark.
+	 * 
+	 * @param space
+	 * @param select
+	 * @param hierarchy
+	 * @param renderedQuery
+	 *            the query without any delta condition
+	 * @param column
+	 * @return true if the query must run
+	 * @throws ScopeException
+	 * @throws SQLScopeException
+	 */
+	protected boolean prepareIncrementalQuery(Space space, HierarchyQuery select, List<DimensionIndex> hierarchy,
+			String renderedQuery, ExpressionAST column) throws ScopeException, SQLScopeException {
+		if (!needRefresh(hierarchy, renderedQuery)) {
+			if (!isStored(hierarchy)) {
+				// the store does not outlive the hierarchy, nothing to merge into
+				return false;
+			}
+			Object mark = readHighWaterMark(renderedQuery);
+			if (mark != null) {
+				selectDelta(select, column, mark);
+				selectHighWaterMark(space, select, column, renderedQuery);
+				// the indexes are still available, so refresh them right away
+				this.eagerIndexing.add(hierarchy.get(0).getDimension().getId());
+				return true;
+			}
+			logger.info("no high-water mark for " + hierarchy.toString() + ", rebuilding the indexes");
+			for (DimensionIndex index : hierarchy) {
+				if (!(index instanceof DimensionIndexProxy) && index.getStatus() == Status.DONE) {
+					index.setStale();
+				}
+			}
+		}
+		selectHighWaterMark(space, select, column, renderedQuery);
+		return true;
+	}
+
+	protected Object readHighWaterMark(String renderedQuery) {
+		return HierarchyHighWaterMark.read(renderedQuery);
+	}
+
+	/**
+	 * only read the rows since the mark
+	 * 
+	 * @param select
+	 * @param column
+	 * @param mark
+	 * @throws ScopeException
+	 * @throws SQLScopeException
+	 */
+	protected void selectDelta(HierarchyQuery select, ExpressionAST column, Object mark)
+			throws ScopeException, SQLScopeException {
+		// the rows at the mark are read again, in case some were
+		// added after the last refresh; re-indexing them is harmless
+		// since members are keyed by id and correlations by the hash
+		// of their member ids
+		select.where(ExpressionMaker.LESSOREQUAL(ExpressionMaker.CONSTANT(mark), column));
+	}
+
+	protected void selectHighWaterMark(Space space, HierarchyQuery select, ExpressionAST column,
+			String renderedQuery) throws ScopeException, SQLScopeException {
+		select.selectHighWaterMark(space, column, renderedQuery);
+	}
+
+	private boolean isStored(List<DimensionIndex> hierarchy) {
+		for (DimensionIndex index : hierarchy) {
+			if (!(index instanceof DimensionIndexProxy) && index.getStatus() != Status.ERROR
+					&& (index.getStore() == null || !index.getStore().isCached())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * build an expression to filter outside of the innerRange
 	 * 
@@ -28,25 +28,38 @@ import java.sql.ResultSetMetaData;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.squid.core.concurrent.CancellableCallable;
 import com.squid.core.concurrent.ExecutionManager;
 import com.squid.core.jdbc.engine.IExecutionItem;
 import com.squid.core.jdbc.formatter.IJDBCDataFormatter;
 import com.squid.core.sql.render.RenderingException;
+import com.squid.kraken.v4.KrakenConfig;
 import com.squid.kraken.v4.caching.redis.RedisCacheManager;
 import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobStatus;
 import com.squid.kraken.v4.core.analysis.datamatrix.AxisValues;
 import com.squid.kraken.v4.core.analysis.engine.index.IndexationException;
 import com.squid.kraken.v4.core.analysis.engine.query.HierarchyQuery;
 import com.squid.kraken.v4.core.analysis.engine.query.mapping.DimensionMapping;
+import com.squid.kraken.v4.core.analysis.engine.query.mapping.MeasureMapping;
 import com.squid.kraken.v4.core.analysis.engine.query.mapping.SimpleMapping;
 import com.squid.kraken.v4.core.analysis.universe.Axis;
 import com.squid.kraken.v4.core.database.impl.DatasourceDefinition;
@@ -60,6 +73,14 @@ import com.squid.kraken.v4.model.ProjectPK;
  * Handles the execution of the HierarchyQuery, and populates the associated
  * DimensionIndexes. It also support non-standard cancellation policy.
  * 
+ * The thread reading the query results does not index: each batch of rows is
+ * handed over through a bounded queue to a set of indexing consumers, each one
+ * owning a subset of the hierarchies so that a given index is always fed in
+ * order by a single thread. Consumers don't wait for the store between the
+ * batches: the last batch of each index is held back until the end of the
+ * results, then flushed and acknowledged along with the previous ones, so the
+ * indexes can be checked as soon as the consumers are done.
+ * 
  * @author sergefantino
  *
  */
@@ -67,6 +88,22 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 
 	static final Logger logger = LoggerFactory.getLogger(ExecuteHierarchyQuery.class);
 
+	// max number of indexing consumers per query
+	private static final int INDEXING_CONSUMERS = Integer
+			.parseInt(KrakenConfig.getProperty("feature.hierarchy.indexing.consumers", "2"));
+
+	// max number of batches waiting for a consumer; the reader blocks beyond
+	private static final int INDEXING_QUEUE_SIZE = 4;
+
+	// how long to wait for the store to report the last acknowledged batch
+	private static final int INDEXING_TIMEOUT_SEC = 5;
+
+	private static final ExecutorService indexingPool = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hierarchy-indexing-%d").build());
+
+	// end of stream marker
+	private static final IndexingBatch END_OF_BATCH = new IndexingBatch(null, null);
+
 	private HierarchyQuery query;
 
 	private ExecuteQueryTask executeQueryTask;
@@ -173,6 +210,7 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 		List<DimensionMapping> dx_map = query.getDimensionMapping();
 		long metter_start = (new Date()).getTime();
 		IExecutionItem item = null;
+		List<IndexingConsumer> consumers = null;
 		//
 		try {
 			SelectUniversal select = query.getSelect();
@@ -202,6 +240,12 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 				m.setAxisData(axisData);
 				indexes.add(m.getDimensionIndex());
 			}
+			// incremental query: keep track of the max value read
+			MeasureMapping hwm = query.getHighWaterMark();
+			Object highWaterMark = null;
+			if (hwm != null) {
+				hwm.setMetadata(result, metadata);
+			}
 			// prepare the hierarchy
 			Map<DimensionIndex, List<Integer>> hierarchies_pos = new HashMap<>();
 			Map<DimensionIndex, List<DimensionIndex>> hierarchies_type = new HashMap<>();
@@ -229,11 +273,10 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 
 			long timeSpentInLoopWithES = 0;
 			long timeSpentInLoopWithBD = 0;
-			
-			// to detected proper end of indexation;
 
-			boolean wait = true;
-			
+			// start indexing in the background
+			consumers = startIndexingConsumers(dx_map, hierarchies_pos, hierarchies_type);
+
 			while ((result.next()) && (count++ < maxRecords || maxRecords < 0)) {
 				if (abort || executeQueryTask.isInterrupted() || Thread.interrupted()) {
 					logger.info("cancelled reading SQLQuery#" + item.getID() + " method=executeQuery" + " duration= "
@@ -294,6 +337,9 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 					i++;// dumb
 				}
 				
+				if (hwm != null) {
+					highWaterMark = max(highWaterMark, hwm.readData(formatter, result));
+				}
 				long endDB =new Date().getTime()  ;
 				timeSpentInLoopWithBD+= (endDB-startDB);
 
@@ -301,22 +347,13 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 				
 				// flush buffer ?
 				if (rowBuffer.size() == bufferCommitSize) {
+					// only blocks if the consumers are lagging behind
 					long startES = new Date().getTime();
-					// commit the index buffers
-					this.flushDimensionBuffer(dx_map, indexBuffer, lastIndexedDimension, wait);
-					// map the correlation
-
-					this.flushCorrelationBuffer(dx_map, hierarchies_pos, hierarchies_type, rowBuffer, indexBuffer,
-							lastIndexedCorrelation, wait);
-					
-					// only check ES state for the first batch
-					if (wait) {
-						wait = false;
-					}
-					// clear buffers
-					rowBuffer.clear();
+					this.enqueue(consumers, new IndexingBatch(rowBuffer, indexBuffer));
+					// the buffers now belong to the consumers
+					rowBuffer = new ArrayList<>(bufferCommitSize);
 					indexBuffer = new ArrayList[dx_map.size()];
-					long endES = new Date().getTime();					
+					long endES = new Date().getTime();
 					timeSpentInLoopWithES += (endES -startES);
 				}
 				// end of while loop
@@ -324,24 +361,31 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 
 			// flush last buffer ?
 			if (!rowBuffer.isEmpty()) {
-				// check ES state for the last batch
-				// commit the index buffers
-				this.flushDimensionBuffer(dx_map, indexBuffer, lastIndexedDimension, true);
-				// map the correlation
-				this.flushCorrelationBuffer(dx_map, hierarchies_pos, hierarchies_type, rowBuffer, indexBuffer,
-						lastIndexedCorrelation, true);
+				this.enqueue(consumers, new IndexingBatch(rowBuffer, indexBuffer));
 			}
 
 			item.close();
 
+			// wait for the consumers to get every batch acknowledged
+			this.enqueue(consumers, END_OF_BATCH);
+			for (IndexingConsumer consumer : consumers) {
+				consumer.join();
+				lastIndexedDimension.putAll(consumer.lastIndexedDimension);
+				lastIndexedCorrelation.putAll(consumer.lastIndexedCorrelation);
+			}
+
 			// check and set Indexes status
-			this.waitForIndexationCompletion(lastIndexedDimension, lastIndexedCorrelation, 5);
+			this.waitForIndexationCompletion(lastIndexedDimension, lastIndexedCorrelation, INDEXING_TIMEOUT_SEC);
 			// check also empty dimensionIndexes
 			for (DimensionIndex index : indexes) {
 				if (!lastIndexedDimension.containsKey(index) && !lastIndexedCorrelation.containsKey(index)) {
 					index.setDone();
 				}
 			}
+			// only move the high-water mark once the rows are safely indexed
+			if (highWaterMark != null && isDone(indexes)) {
+				HierarchyHighWaterMark.write(query.getHighWaterMarkKey(), highWaterMark);
+			}
 
 			long metter_finish = new Date().getTime();
 			// logger.info("SQLQuery#" + item.getID() + " read "+count+" row(s)
@@ -379,30 +423,77 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 					// swallow the exception
 				}
 
+			// stop the indexing if the reading failed
+			if (consumers != null) {
+				for (IndexingConsumer consumer : consumers) {
+					consumer.cancel();
+				}
+			}
+
 			// unregister
 			ExecutionManager.INSTANCE.unregisterTask(this);
 		}
 	}
 
-	private void waitForIndexationCompletion(HashMap<DimensionIndex, String> lastIndexedDimension,
-			HashMap<DimensionIndex, String> lastIndexedCorrelation, int timeOutInSec) {
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object max(Object mark, Object value) {
+		if (value == null) {
+			return mark;
+		} else if (mark == null) {
+			return value;
+		} else if (value instanceof Comparable && ((Comparable) value).compareTo(mark) > 0) {
+			return value;
+		} else {
+			return mark;
+		}
+	}
 
-		try {
-			Thread.sleep(timeOutInSec * 1000);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	private boolean isDone(List<DimensionIndex> indexes) {
+		for (DimensionIndex index : indexes) {
+			if (index.getStatus() != DimensionIndex.Status.DONE) {
+				return false;
+			}
 		}
+		return true;
+	}
 
-		for (DimensionIndex di : lastIndexedCorrelation.keySet()) {
-			if (!di.isCorrelationIndexationDone(lastIndexedCorrelation.get(di))) {
-				logger.info("timeout during correlation indexing " + di.getDimensionName());
-				di.setPermanentError("timeout during correlation indexing");
+	private void waitForIndexationCompletion(HashMap<DimensionIndex, String> lastIndexedDimension,
+			HashMap<DimensionIndex, String> lastIndexedCorrelation, int timeOutInSec) throws InterruptedException {
+
+		// every batch has been acknowledged already, so this is only waiting
+		// for the store to expose the last ones
+		Set<DimensionIndex> pendingDimension = new HashSet<>(lastIndexedDimension.keySet());
+		Set<DimensionIndex> pendingCorrelation = new HashSet<>(lastIndexedCorrelation.keySet());
+		long deadline = System.currentTimeMillis() + timeOutInSec * 1000L;
+		long backoff = 10;
+		while (true) {
+			for (Iterator<DimensionIndex> iter = pendingCorrelation.iterator(); iter.hasNext();) {
+				DimensionIndex di = iter.next();
+				if (di.isCorrelationIndexationDone(lastIndexedCorrelation.get(di))) {
+					iter.remove();
+				}
 			}
+			for (Iterator<DimensionIndex> iter = pendingDimension.iterator(); iter.hasNext();) {
+				DimensionIndex di = iter.next();
+				if (di.isDimensionIndexationDone(lastIndexedDimension.get(di))) {
+					iter.remove();
+				}
+			}
+			if ((pendingDimension.isEmpty() && pendingCorrelation.isEmpty())
+					|| System.currentTimeMillis() >= deadline) {
+				break;
+			}
+			Thread.sleep(backoff);
+			backoff = Math.min(backoff * 2, 500);
+		}
+
+		for (DimensionIndex di : pendingCorrelation) {
+			logger.info("timeout during correlation indexing " + di.getDimensionName());
+			di.setPermanentError("timeout during correlation indexing");
 		}
 
 		for (DimensionIndex di : lastIndexedDimension.keySet()) {
-			if (di.isDimensionIndexationDone(lastIndexedDimension.get(di))) {
+			if (!pendingDimension.contains(di)) {
 				logger.info("indexing  ok " + di.getDimensionName());
 				di.setDone();
 			} else {
@@ -413,31 +504,89 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 
 	}
 
-	private void flushDimensionBuffer(List<DimensionMapping> dx_map, ArrayList<DimensionMember>[] indexBuffer,
-			HashMap<DimensionIndex, String> lastIndexed, boolean wait) throws IndexationException {
-
-		int j = 0;
-		for (DimensionMapping m : dx_map) {
-			if (indexBuffer[j] != null && m.isOption(DimensionMapping.COMPUTE_INDEX)) {// it
-																						// may
-																						// not
-																						// have
-																						// been
-																						// initialized
-				String id = m.getDimensionIndex().index(indexBuffer[j], wait);
-				if (wait) {
-					lastIndexed.put(m.getDimensionIndex(), id);
+	/**
+	 * start the indexing consumers and dispatch the hierarchies between them:
+	 * a hierarchy is always handled by the same consumer, so its indexes are
+	 * fed in the query order
+	 */
+	private List<IndexingConsumer> startIndexingConsumers(List<DimensionMapping> dx_map,
+			Map<DimensionIndex, List<Integer>> hierarchies_pos,
+			Map<DimensionIndex, List<DimensionIndex>> hierarchies_type) {
+		int size = Math.max(1, Math.min(INDEXING_CONSUMERS, hierarchies_pos.size()));
+		List<IndexingConsumer> consumers = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			consumers.add(new IndexingConsumer(dx_map, hierarchies_type));
+		}
+		int k = 0;
+		for (Entry<DimensionIndex, List<Integer>> entry : hierarchies_pos.entrySet()) {
+			consumers.get(k++ % size).hierarchies_pos.put(entry.getKey(), entry.getValue());
+		}
+		for (IndexingConsumer consumer : consumers) {
+			consumer.future = indexingPool.submit(consumer);
+		}
+		return consumers;
+	}
+
+	/**
+	 * hand over the batch to every consumer; blocks while a consumer queue is
+	 * full, but fails as soon as a consumer failed or the query is cancelled
+	 */
+	private void enqueue(List<IndexingConsumer> consumers, IndexingBatch batch) throws Exception {
+		for (IndexingConsumer consumer : consumers) {
+			consumer.check();
+			while (!consumer.queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+				if (abort) {
+					throw new InterruptedException("cancelled while indexing query results");
 				}
+				consumer.check();
 			}
-			j++;
 		}
 	}
 
-	private void flushCorrelationBuffer(List<DimensionMapping> dx_map,
-			Map<DimensionIndex, List<Integer>> hierarchies_pos,
+	/**
+	 * index the members held for each dimension without waiting, and hold the
+	 * new ones instead
+	 */
+	private void flushDimensionBuffer(List<DimensionMapping> dx_map, Map<DimensionIndex, List<Integer>> hierarchies_pos,
+			ArrayList<DimensionMember>[] indexBuffer, ArrayList<DimensionMember>[] held) throws IndexationException {
+
+		for (List<Integer> positions : hierarchies_pos.values()) {
+			for (Integer j : positions) {
+				DimensionMapping m = dx_map.get(j);
+				// it may not have been initialized
+				if (indexBuffer[j] != null && m.isOption(DimensionMapping.COMPUTE_INDEX)) {
+					if (held[j] != null) {
+						m.getDimensionIndex().index(held[j], false);
+					}
+					held[j] = indexBuffer[j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * index the last members of each dimension and wait for the
+	 * acknowledgement, which covers the previous ones too
+	 */
+	private void flushLastDimensionBuffer(List<DimensionMapping> dx_map, ArrayList<DimensionMember>[] held,
+			HashMap<DimensionIndex, String> lastIndexed) throws IndexationException {
+		for (int j = 0; j < held.length; j++) {
+			if (held[j] != null) {
+				DimensionIndex index = dx_map.get(j).getDimensionIndex();
+				String id = index.index(held[j], true);
+				lastIndexed.put(index, id);
+				held[j] = null;
+			}
+		}
+	}
+
+	/**
+	 * index the correlations held for each hierarchy without waiting, and
+	 * hold the new ones instead
+	 */
+	private void flushCorrelationBuffer(Map<DimensionIndex, List<Integer>> hierarchies_pos,
 			Map<DimensionIndex, List<DimensionIndex>> hierarchies_type, ArrayList<DimensionMember[]> rowBuffer,
-			ArrayList<DimensionMember>[] indexBuffer, HashMap<DimensionIndex, String> lastIndexed, boolean wait)
-					throws IndexationException {
+			HashMap<DimensionIndex, ArrayList<List<DimensionMember>>> held) throws IndexationException {
 
 		for (Entry<DimensionIndex, List<Integer>> entry : hierarchies_pos.entrySet()) {
 			if (entry.getValue().size() > 1) {
@@ -449,12 +598,119 @@ public class ExecuteHierarchyQuery implements CancellableCallable<ExecuteHierarc
 					}
 					batch.add(values);
 				}
-				String id = entry.getKey().indexCorrelations(hierarchies_type.get(entry.getKey()), batch, wait);
-				if (wait) {
-					lastIndexed.put(entry.getKey(), id);
+				ArrayList<List<DimensionMember>> previous = held.put(entry.getKey(), batch);
+				if (previous != null) {
+					entry.getKey().indexCorrelations(hierarchies_type.get(entry.getKey()), previous, false);
 				}
 			}
 		}
 	}
 
+	/**
+	 * index the last correlations of each hierarchy and wait for the
+	 * acknowledgement, which covers the previous ones too
+	 */
+	private void flushLastCorrelationBuffer(Map<DimensionIndex, List<DimensionIndex>> hierarchies_type,
+			HashMap<DimensionIndex, ArrayList<List<DimensionMember>>> held, HashMap<DimensionIndex, String> lastIndexed)
+					throws IndexationException {
+		for (Entry<DimensionIndex, ArrayList<List<DimensionMember>>> entry : held.entrySet()) {
+			String id = entry.getKey().indexCorrelations(hierarchies_type.get(entry.getKey()), entry.getValue(), true);
+			lastIndexed.put(entry.getKey(), id);
+		}
+		held.clear();
+	}
+
+	/**
+	 * the rows read from the query and the new members to index
+	 *
+	 */
+	private static class IndexingBatch {
+
+		private ArrayList<DimensionMember[]> rowBuffer;
+		private ArrayList<DimensionMember>[] indexBuffer;
+
+		public IndexingBatch(ArrayList<DimensionMember[]> rowBuffer, ArrayList<DimensionMember>[] indexBuffer) {
+			this.rowBuffer = rowBuffer;
+			this.indexBuffer = indexBuffer;
+		}
+
+	}
+
+	/**
+	 * index the batches for a subset of the hierarchies, until the end of
+	 * batch marker
+	 *
+	 */
+	private class IndexingConsumer implements Callable<Void> {
+
+		private List<DimensionMapping> dx_map;
+		private Map<DimensionIndex, List<Integer>> hierarchies_pos = new HashMap<>();
+		private Map<DimensionIndex, List<DimensionIndex>> hierarchies_type;
+
+		private BlockingQueue<IndexingBatch> queue = new ArrayBlockingQueue<>(INDEXING_QUEUE_SIZE);
+		private Future<Void> future;
+
+		// last acknowledged id, by index
+		private HashMap<DimensionIndex, String> lastIndexedDimension = new HashMap<>();
+		private HashMap<DimensionIndex, String> lastIndexedCorrelation = new HashMap<>();
+
+		// the last batch of each index, indexed at the end of the results
+		private ArrayList<DimensionMember>[] heldMembers;
+		private HashMap<DimensionIndex, ArrayList<List<DimensionMember>>> heldCorrelations = new HashMap<>();
+
+		@SuppressWarnings("unchecked")
+		public IndexingConsumer(List<DimensionMapping> dx_map,
+				Map<DimensionIndex, List<DimensionIndex>> hierarchies_type) {
+			this.dx_map = dx_map;
+			this.hierarchies_type = hierarchies_type;
+			this.heldMembers = new ArrayList[dx_map.size()];
+		}
+
+		@Override
+		public Void call() throws Exception {
+			while (true) {
+				IndexingBatch batch = queue.take();
+				if (abort) {
+					throw new InterruptedException("cancelled while indexing query results");
+				}
+				if (batch == END_OF_BATCH) {
+					flushLastDimensionBuffer(dx_map, heldMembers, lastIndexedDimension);
+					flushLastCorrelationBuffer(hierarchies_type, heldCorrelations, lastIndexedCorrelation);
+					return null;
+				}
+				flushDimensionBuffer(dx_map, hierarchies_pos, batch.indexBuffer, heldMembers);
+				flushCorrelationBuffer(hierarchies_pos, hierarchies_type, batch.rowBuffer, heldCorrelations);
+			}
+		}
+
+		/**
+		 * throw the consumer failure if it is already terminated
+		 */
+		public void check() throws Exception {
+			if (future.isDone()) {
+				join();
+			}
+		}
+
+		public void join() throws Exception {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				} else {
+					throw e;
+				}
+			}
+		}
+
+		public void cancel() {
+			if (!future.isDone()) {
+				future.cancel(true);
+			}
+			queue.clear();
+		}
+
+	}
+
 }
@@ -33,7 +33,20 @@ public class ExecuteHierarchyQueryResult {
 
 		synchronized (di) {
 			if (di.getStatus() != Status.DONE) {
-				Thread.sleep(timeOutInSec * 1000);
+				// poll the store until it exposes the last acknowledged batches,
+				// up to the timeout
+				String lastDimension = lastIndexedDimension.get(di.getDimension().getId());
+				String lastCorrelation = lastIndexedCorrelation.get(di.getDimension().getId());
+				if (lastDimension != null || lastCorrelation != null) {
+					long deadline = System.currentTimeMillis() + timeOutInSec * 1000L;
+					long backoff = 10;
+					while (!(di.isCorrelationIndexationDone(lastCorrelation)
+							&& di.isDimensionIndexationDone(lastDimension))
+							&& System.currentTimeMillis() < deadline) {
+						Thread.sleep(backoff);
+						backoff = Math.min(backoff * 2, 500);
+					}
+				}
 
 				if (!lastIndexedDimension.containsKey(di.getDimension().getId())
 						&& !lastIndexedCorrelation.containsKey(di.getDimension().getId())) {
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.hierarchy;
+
+import java.io.Serializable;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.SerializationException;
+import org.apache.commons.lang3.SerializationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squid.kraken.v4.caching.redis.RedisCacheProxy;
+
+/**
+ * Persist the high-water mark of an incremental hierarchy query, that is the
+ * max value of the incremental column already indexed.
+ * 
+ * The mark is keyed by the query computing the indexes without any delta
+ * condition: if the domain definition changes, so does the query, and the
+ * indexes are rebuilt from scratch.
+ *
+ */
+class HierarchyHighWaterMark {
+
+	static final Logger logger = LoggerFactory.getLogger(HierarchyHighWaterMark.class);
+
+	private static String HIGH_WATER_MARK_REDIS_PREFIX = "DIMENSION_INDEX_HWM-";
+
+	/**
+	 * return the high-water mark recorded for the query, or null if unknown
+	 * 
+	 * @param query
+	 * @return
+	 */
+	static Object read(String query) {
+		byte[] raw = RedisCacheProxy.getInstance().get(getKey(query));
+		if (raw == null) {
+			return null;
+		}
+		try {
+			return SerializationUtils.<Object> deserialize(raw);
+		} catch (SerializationException e) {
+			logger.warn("cannot read the high-water mark, the indexes will be rebuilt: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * record the high-water mark once the query results are indexed
+	 * 
+	 * @param query
+	 * @param mark
+	 */
+	static void write(String query, Object mark) {
+		if (mark instanceof Serializable) {
+			RedisCacheProxy.getInstance().put(getKey(query), SerializationUtils.serialize((Serializable) mark));
+		} else {
+			logger.warn("cannot record high-water mark of type " + mark.getClass().getName());
+		}
+	}
+
+	private static String getKey(String query) {
+		return HIGH_WATER_MARK_REDIS_PREFIX + DigestUtils.sha256Hex(query);
+	}
+
+}
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionIndex;
+import com.squid.kraken.v4.model.DimensionPK;
+
+/**
+ * The correlations of a hierarchy, as seen by an in-process store.
+ * 
+ * Each hierarchy level is identified by a level number, and each member by its
+ * ordinal in the level store. For every member, the index keeps one bitmap per
+ * other level with the ordinals of the members it co-occurs with. The index
+ * is updated incrementally, batch by batch.
+ * 
+ * The correlations themselves are also kept as tuples, with for each member
+ * the posting of the tuples it belongs to. Filtering a level by a single
+ * parent selection ORs the bitmaps of the selected members. Filtering by
+ * several parent selections must find members that co-occur with one member
+ * of each selection within the same correlation, as when querying the
+ * correlation documents: the tuple postings of the selected members are ORed
+ * for each parent level, ANDed across the levels, and the target members are
+ * read from the remaining tuples. Co-occurring pairwise is not enough, a
+ * member may co-occur with each selection through different correlations.
+ * 
+ */
+public class CorrelationIndex {
+
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private HashMap<DimensionPK, Integer> levels = new HashMap<>();
+
+	// cooccurrences.get(source level).get(target level).get(source ordinal)
+	private ArrayList<ArrayList<ArrayList<OrdinalBitmap>>> cooccurrences = new ArrayList<>();
+
+	// the correlations, as ordinals by level; -1 for a missing value
+	private ArrayList<int[]> tuples = new ArrayList<>();
+	private HashSet<Tuple> tupleSet = new HashSet<>();
+
+	// postings.get(level).get(ordinal): the tuples containing the member
+	private ArrayList<ArrayList<OrdinalBitmap>> postings = new ArrayList<>();
+
+	/**
+	 * return the level of each type, registering the new ones
+	 * 
+	 * @param types
+	 * @return
+	 */
+	public int[] getLevels(List<DimensionIndex> types) {
+		DimensionPK[] pks = new DimensionPK[types.size()];
+		for (int k = 0; k < types.size(); k++) {
+			pks[k] = types.get(k).getDimension().getId();
+		}
+		return getLevels(pks);
+	}
+
+	int[] getLevels(DimensionPK... pks) {
+		lock.writeLock().lock();
+		try {
+			int[] result = new int[pks.length];
+			for (int k = 0; k < pks.length; k++) {
+				DimensionPK pk = pks[k];
+				Integer level = levels.get(pk);
+				if (level == null) {
+					level = createLevel(pk);
+				}
+				result[k] = level;
+			}
+			return result;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param type
+	 * @return the type level, or null if it is not part of the hierarchy
+	 */
+	public Integer getLevel(DimensionIndex type) {
+		lock.readLock().lock();
+		try {
+			return levels.get(type.getDimension().getId());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// must hold the write lock
+	private int createLevel(DimensionPK pk) {
+		int level = cooccurrences.size();
+		levels.put(pk, level);
+		for (ArrayList<ArrayList<OrdinalBitmap>> source : cooccurrences) {
+			source.add(new ArrayList<OrdinalBitmap>());
+		}
+		ArrayList<ArrayList<OrdinalBitmap>> source = new ArrayList<>(level + 1);
+		for (int i = 0; i <= level; i++) {
+			source.add(new ArrayList<OrdinalBitmap>());
+		}
+		cooccurrences.add(source);
+		postings.add(new ArrayList<OrdinalBitmap>());
+		return level;
+	}
+
+	/**
+	 * index a batch of correlations
+	 * 
+	 * @param typeLevels
+	 *            the level of each value in a correlation
+	 * @param batch
+	 *            the member ordinals of each correlation; a negative ordinal
+	 *            stands for a missing value
+	 */
+	public void index(int[] typeLevels, List<int[]> batch) {
+		lock.writeLock().lock();
+		try {
+			for (int[] ordinals : batch) {
+				if (!addTuple(typeLevels, ordinals)) {
+					// already indexed, or not a correlation
+					continue;
+				}
+				for (int a = 0; a < typeLevels.length; a++) {
+					if (ordinals[a] < 0) {
+						continue;
+					}
+					ArrayList<ArrayList<OrdinalBitmap>> source = cooccurrences.get(typeLevels[a]);
+					for (int b = 0; b < typeLevels.length; b++) {
+						if (a != b && ordinals[b] >= 0) {
+							getBitmap(source.get(typeLevels[b]), ordinals[a]).add(ordinals[b]);
+						}
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * add the correlation to the tuples, unless it is already there
+	 * 
+	 * @return true if the correlation is new
+	 */
+	// must hold the write lock
+	private boolean addTuple(int[] typeLevels, int[] ordinals) {
+		int length = 0;
+		int count = 0;
+		for (int a = 0; a < typeLevels.length; a++) {
+			if (ordinals[a] >= 0) {
+				length = Math.max(length, typeLevels[a] + 1);
+				count++;
+			}
+		}
+		if (count < 2) {
+			return false;
+		}
+		int[] tuple = new int[length];
+		Arrays.fill(tuple, -1);
+		for (int a = 0; a < typeLevels.length; a++) {
+			if (ordinals[a] >= 0) {
+				tuple[typeLevels[a]] = ordinals[a];
+			}
+		}
+		if (!tupleSet.add(new Tuple(tuple))) {
+			return false;
+		}
+		int id = tuples.size();
+		tuples.add(tuple);
+		for (int level = 0; level < length; level++) {
+			if (tuple[level] >= 0) {
+				getBitmap(postings.get(level), tuple[level]).add(id);
+			}
+		}
+		return true;
+	}
+
+	private OrdinalBitmap getBitmap(ArrayList<OrdinalBitmap> bitmaps, int ordinal) {
+		while (bitmaps.size() <= ordinal) {
+			bitmaps.add(null);
+		}
+		OrdinalBitmap bitmap = bitmaps.get(ordinal);
+		if (bitmap == null) {
+			bitmap = new OrdinalBitmap();
+			bitmaps.set(ordinal, bitmap);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * compute the target level ordinals that co-occur with the selections
+	 * 
+	 * @param targetLevel
+	 * @param selections
+	 *            the selected ordinals, by level
+	 * @return the target ordinals, or null if there is no selection
+	 */
+	public BitSet filter(int targetLevel, Map<Integer, int[]> selections) {
+		int parents = 0;
+		for (Integer level : selections.keySet()) {
+			if (level != targetLevel) {
+				parents++;
+			}
+		}
+		if (parents > 1) {
+			return filterTuples(targetLevel, selections);
+		}
+		lock.readLock().lock();
+		try {
+			BitSet result = null;
+			for (Entry<Integer, int[]> selection : selections.entrySet()) {
+				BitSet union = new BitSet();
+				if (selection.getKey() == targetLevel) {
+					// filtering on the target itself
+					for (int ordinal : selection.getValue()) {
+						if (ordinal >= 0) {
+							union.set(ordinal);
+						}
+					}
+				} else {
+					ArrayList<OrdinalBitmap> bitmaps = cooccurrences.get(selection.getKey()).get(targetLevel);
+					for (int ordinal : selection.getValue()) {
+						if (ordinal >= 0 && ordinal < bitmaps.size() && bitmaps.get(ordinal) != null) {
+							bitmaps.get(ordinal).or(union);
+						}
+					}
+				}
+				if (result == null) {
+					result = union;
+				} else {
+					result.and(union);
+				}
+				if (result.isEmpty()) {
+					break;
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * filter using the correlations containing one selected member of every
+	 * parent level
+	 */
+	private BitSet filterTuples(int targetLevel, Map<Integer, int[]> selections) {
+		lock.readLock().lock();
+		try {
+			BitSet matching = null;
+			for (Entry<Integer, int[]> selection : selections.entrySet()) {
+				if (selection.getKey() == targetLevel) {
+					continue;
+				}
+				BitSet union = new BitSet();
+				ArrayList<OrdinalBitmap> bitmaps = postings.get(selection.getKey());
+				for (int ordinal : selection.getValue()) {
+					if (ordinal >= 0 && ordinal < bitmaps.size() && bitmaps.get(ordinal) != null) {
+						bitmaps.get(ordinal).or(union);
+					}
+				}
+				if (matching == null) {
+					matching = union;
+				} else {
+					matching.and(union);
+				}
+				if (matching.isEmpty()) {
+					return matching;
+				}
+			}
+			BitSet result = new BitSet();
+			for (int id = matching.nextSetBit(0); id >= 0; id = matching.nextSetBit(id + 1)) {
+				int[] tuple = tuples.get(id);
+				if (targetLevel < tuple.length && tuple[targetLevel] >= 0) {
+					result.set(tuple[targetLevel]);
+				}
+			}
+			int[] targets = selections.get(targetLevel);
+			if (targets != null) {
+				// filtering on the target itself
+				BitSet selected = new BitSet();
+				for (int ordinal : targets) {
+					if (ordinal >= 0) {
+						selected.set(ordinal);
+					}
+				}
+				result.and(selected);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * a correlation, compared by value
+	 */
+	private static class Tuple {
+
+		private final int[] ordinals;
+
+		Tuple(int[] ordinals) {
+			this.ordinals = ordinals;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(ordinals);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Tuple && Arrays.equals(ordinals, ((Tuple) obj).ordinals);
+		}
+
+	}
+
+}
@@ -24,16 +24,15 @@
 package com.squid.kraken.v4.core.analysis.engine.index;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentSkipListMap;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,10 +58,27 @@ public class DimensionStore extends DimensionStoreAbstract {
     private ConcurrentSkipListMap<Object, DimensionMember> IDs = 
     		// use a special comparator to avoid classCastExceptions
     		new ConcurrentSkipListMap<Object, DimensionMember>(new PolymorphComparator());
+    // the hierarchy root store, which holds the correlations
+    private DimensionStore rootStore;
+    private CorrelationIndex correlations = new CorrelationIndex();
 
     public DimensionStore(DimensionIndex index) {
         super(index);
         this.generation = getGeneration(getDimensionIndex().getDimension());
+        this.rootStore = getStore(index.getRoot());
+    }
+
+    private DimensionStore getStore(DimensionIndex index) {
+        if (index == getDimensionIndex()) {
+            return this;
+        } else {
+            IDimensionStore store = index.getStore();
+            if (store instanceof DimensionStore) {
+                return (DimensionStore) store;
+            } else {
+                return null;
+            }
+        }
     }
     
     @Override
@@ -75,9 +91,9 @@ public class DimensionStore extends DimensionStoreAbstract {
     }
     
     @Override
-    public String index(List<DimensionMember> members, boolean wait) {
+    public String index(List<DimensionMember> batch, boolean wait) {
         synchronized (this) {
-            for (DimensionMember member : members) {
+            for (DimensionMember member : batch) {
                 DimensionMember check = IDs.get(member.getID());
                 if (check==null) {
                     member.setIndex(size);
@@ -87,6 +103,7 @@ public class DimensionStore extends DimensionStoreAbstract {
                 } else {
                 	if (check.getIndex() >=0){
                     // update values
+                    member.setIndex(check.getIndex());
                     members.set(check.getIndex(), member);
                     IDs.put(member.getID(), member);
                 	}
@@ -224,27 +241,44 @@ public class DimensionStore extends DimensionStoreAbstract {
     
     @Override
     public String indexCorrelations(List<DimensionIndex> types, List<DimensionMember> values) {
-        ArrayList<DimensionMember> accu = new ArrayList<>();
-        for (int i=0;i<values.size();i++) {
-            DimensionMember value = values.get(i);
-            if (!accu.isEmpty()) {
-                addCorrelations(value,accu);
-            }
-            accu.add(value);
-        }
-        return "";
+        return indexCorrelations(types, Collections.singletonList(values), false);
     }
 
     @Override
     public String indexCorrelations(List<DimensionIndex> types, Collection<List<DimensionMember>> batch, boolean wait) {
-        for (List<DimensionMember> value : batch) {
-            indexCorrelations(types,value);
+        if (rootStore!=this) {
+            return rootStore!=null?rootStore.indexCorrelations(types, batch, wait):"";
+        }
+        int[] typeLevels = correlations.getLevels(types);
+        DimensionStore[] stores = new DimensionStore[types.size()];
+        for (int k=0;k<types.size();k++) {
+            stores[k] = getStore(types.get(k));
+        }
+        ArrayList<int[]> encoded = new ArrayList<>(batch.size());
+        for (List<DimensionMember> values : batch) {
+            if (values.size()!=types.size()) {
+                continue;
+            }
+            int[] ordinals = new int[types.size()];
+            for (int k=0;k<types.size();k++) {
+                DimensionMember value = values.get(k);
+                if (value!=null && value.getID()!=null && stores[k]!=null) {
+                    ordinals[k] = stores[k].getMemberByID(value.getID()).getIndex();
+                } else {
+                    ordinals[k] = -1;
+                }
+            }
+            encoded.add(ordinals);
         }
+        correlations.index(typeLevels, encoded);
         return "";
     }
     
     @Override
     public boolean initCorrelationMapping(List<DimensionIndex> hierarchy) {
+        if (rootStore==this) {
+            correlations.getLevels(hierarchy);
+        }
         return true;// always OK
     }
     
@@ -252,19 +286,11 @@ public class DimensionStore extends DimensionStoreAbstract {
     public List<DimensionMember> getMembersFilterByParents(
             Map<DimensionIndex, List<DimensionMember>> selections, int offset,
             int size) {
+        BitSet selection = filterByParents(selections);
         ArrayList<DimensionMember> result = new ArrayList<>();
-        Set<DimensionMember> flatsel = new HashSet<>();
-        int types = 0;
-        for (List<DimensionMember> forType : selections.values()) {
-            flatsel.addAll(forType);
-            types++;
-        }
-        for (DimensionMember member : members) {
-            @SuppressWarnings("unchecked")
-			Collection<DimensionMember> check = CollectionUtils.intersection(getCorrelations(member),flatsel);
-            if (!check.isEmpty() && check.size()>=types) {
-                // ok, in some special cases, the test is not enough - we should check that we have a hit for each type
-                result.add(member);
+        if (selection!=null) {
+            for (int i = selection.nextSetBit(0); i >= 0 && i < this.size; i = selection.nextSetBit(i + 1)) {
+                result.add(members.get(i));
             }
         }
         return result;
@@ -274,50 +300,58 @@ public class DimensionStore extends DimensionStoreAbstract {
     public List<DimensionMember> getMembersFilterByParents(
             Map<DimensionIndex, List<DimensionMember>> selections, 
             String filter, int offset, int size) {
+        BitSet selection = filterByParents(selections);
         ArrayList<DimensionMember> result = new ArrayList<>();
-        Set<DimensionMember> flatsel = new HashSet<>();
-        int types = 0;
-        for (List<DimensionMember> forType : selections.values()) {
-            flatsel.addAll(forType);
-            types++;
-        }
-        String filterLowerCase = filter.toLowerCase();
-        for (DimensionMember member : members) {
-            @SuppressWarnings("unchecked")
-			Collection<DimensionMember> check = CollectionUtils.intersection(getCorrelations(member),flatsel);
-            if (!check.isEmpty() && check.size()>=types && member.match(filterLowerCase)) {
-                // ok, in some special cases, the test is not enough - we should check that we have a hit for each type
-                result.add(member);
-                if (result.size()>=size) {
-                    break;
+        if (selection!=null) {
+            String filterLowerCase = filter.toLowerCase();
+            for (int i = selection.nextSetBit(0); i >= 0 && i < this.size; i = selection.nextSetBit(i + 1)) {
+                DimensionMember member = members.get(i);
+                if (member.match(filterLowerCase)) {
+                    result.add(member);
+                    if (result.size()>=size) {
+                        break;
+                    }
                 }
             }
         }
         return result;
     }
     
-    private ConcurrentHashMap<Object, Set<DimensionMember>> correlationMap = new ConcurrentHashMap<>();
-    
-    private Set<DimensionMember> getCorrelations(DimensionMember member) {
-        Set<DimensionMember> correlations = correlationMap.get(member.getID());
-        if (correlations!=null) {
-            return correlations;
-        } else {
-            return Collections.emptySet();
+    /**
+     * compute the ordinals of the members correlated with the selections, using the root store correlations
+     * @param selections
+     * @return the ordinals, or null if there is no correlation available
+     */
+    private BitSet filterByParents(Map<DimensionIndex, List<DimensionMember>> selections) {
+        if (rootStore==null) {
+            return null;
         }
-    }
-
-    private void addCorrelations(DimensionMember member,
-            Collection<DimensionMember> accu) {
-        Set<DimensionMember> correlations = correlationMap.get(member.getID());
-        if (correlations==null) {
-            correlations = Collections.newSetFromMap(new ConcurrentHashMap<DimensionMember,Boolean>());
-            Set<DimensionMember> previous = correlationMap.putIfAbsent(member.getID(), correlations);
-            if (previous!=null) {
-                correlations = previous;
+        Integer targetLevel = rootStore.correlations.getLevel(getDimensionIndex());
+        if (targetLevel==null) {
+            return null;
+        }
+        HashMap<Integer, int[]> ordinals = new HashMap<>();
+        for (Entry<DimensionIndex, List<DimensionMember>> selection : selections.entrySet()) {
+            Integer level = rootStore.correlations.getLevel(selection.getKey());
+            DimensionStore store = getStore(selection.getKey());
+            if (level==null || store==null) {
+                return null;
             }
+            int[] selected = new int[selection.getValue().size()];
+            int k = 0;
+            for (DimensionMember member : selection.getValue()) {
+                DimensionMember check = store.IDs.get(member.getID());
+                selected[k++] = check!=null?check.getIndex():-1;
+            }
+            ordinals.put(level, selected);
+        }
+        BitSet selection = rootStore.correlations.filter(targetLevel, ordinals);
+        if (selection==null) {
+            // no selection
+            selection = new BitSet();
+            selection.set(0, this.size);
         }
-        correlations.addAll(accu);
+        return selection;
     }
 
 	@Override
@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.squid.kraken.v4.ESIndexFacade.ESIndexFacadeException;
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionIndex;
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionMember;
+
+/**
+ * An in-process and compact alternative to the ES store.
+ * 
+ * Members are dictionary-encoded: each member key is mapped to a dense
+ * ordinal, which is the member position in the store. Ordinals are used by:
+ * - an n-gram index over the member ID and attributes, so that a substring
+ * search only checks the members sharing its rarest n-gram;
+ * - the hierarchy correlations, kept by the root store in a CorrelationIndex
+ * so that filtering by parents evaluates as bitmap operations.
+ * 
+ */
+public class DimensionStoreCompact extends DimensionStoreAbstract {
+
+	// n-grams are indexed from 1 to MAX_NGRAM chars
+	private static final int MAX_NGRAM = 3;
+
+	// the hierarchy root index - used to resolve hierarchy filters
+	private DimensionStoreCompact rootStore;
+
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// the members, by ordinal
+	private ArrayList<DimensionMember> members = new ArrayList<>();
+
+	// the dictionary, from member key to ordinal
+	private HashMap<String, Integer> dictionary = new HashMap<>();
+
+	// the n-gram postings
+	private HashMap<String, IntArray> ngrams = new HashMap<>();
+
+	// the hierarchy correlations, only used by the root store
+	private CorrelationIndex correlations = new CorrelationIndex();
+
+	public DimensionStoreCompact(DimensionIndex index) {
+		super(index);
+		this.rootStore = getStore(index.getRoot());
+	}
+
+	private DimensionStoreCompact getStore(DimensionIndex index) {
+		if (index == getDimensionIndex()) {
+			return this;
+		} else {
+			IDimensionStore store = index.getStore();
+			if (store instanceof DimensionStoreCompact) {
+				return (DimensionStoreCompact) store;
+			} else {
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public void setup(DimensionIndex index, String query) throws ESIndexFacadeException {
+		// nothing to restore, the store always needs to be computed
+	}
+
+	@Override
+	public boolean isCached() {
+		return false;
+	}
+
+	@Override
+	public int getSize() {
+		lock.readLock().lock();
+		try {
+			return members.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String index(List<DimensionMember> batch, boolean wait) {
+		lock.writeLock().lock();
+		try {
+			for (DimensionMember member : batch) {
+				Integer ordinal = dictionary.get(member.getKey());
+				if (ordinal == null) {
+					append(member);
+				} else {
+					// update values
+					member.setIndex(ordinal);
+					members.set(ordinal, member);
+					indexNGrams(member, ordinal);
+				}
+			}
+			return "";
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void index(DimensionMember member) {
+		index(Collections.singletonList(member), false);
+	}
+
+	@Override
+	public DimensionMember index(Object[] raw) {
+		lock.writeLock().lock();
+		try {
+			Integer ordinal = dictionary.get(raw[0].toString());
+			if (ordinal != null) {
+				return members.get(ordinal);
+			} else {
+				DimensionMember member = new DimensionMember(-1, raw[0], getAttributeCount());
+				for (int k = 1; k < raw.length; k++) {
+					member.setAttribute(k - 1, raw[k]);
+				}
+				append(member);
+				return member;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * return the member ordinal, adding the member to the store if needed
+	 * 
+	 * @param member
+	 * @return
+	 */
+	private int encode(DimensionMember member) {
+		lock.writeLock().lock();
+		try {
+			Integer ordinal = dictionary.get(member.getKey());
+			if (ordinal != null) {
+				return ordinal;
+			} else {
+				return append(member);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the member ordinal, or -1 if the key is unknown
+	 */
+	private int lookup(String key) {
+		lock.readLock().lock();
+		try {
+			Integer ordinal = dictionary.get(key);
+			return ordinal != null ? ordinal : -1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// must hold the write lock
+	private int append(DimensionMember member) {
+		int ordinal = members.size();
+		member.setIndex(ordinal);
+		members.add(member);
+		dictionary.put(member.getKey(), ordinal);
+		indexNGrams(member, ordinal);
+		return ordinal;
+	}
+
+	// must hold the write lock
+	private void indexNGrams(DimensionMember member, int ordinal) {
+		indexNGrams(member.getID().toString().toLowerCase(), ordinal);
+		if (member.getAttributes() != null) {
+			for (Object attr : member.getAttributes()) {
+				if (attr != null) {
+					indexNGrams(attr.toString().toLowerCase(), ordinal);
+				}
+			}
+		}
+	}
+
+	private void indexNGrams(String text, int ordinal) {
+		for (int i = 0; i < text.length(); i++) {
+			for (int n = 1; n <= MAX_NGRAM && i + n <= text.length(); n++) {
+				String ngram = text.substring(i, i + n);
+				IntArray posting = ngrams.get(ngram);
+				if (posting == null) {
+					posting = new IntArray();
+					ngrams.put(ngram, posting);
+				}
+				// an updated member may already be in the posting; the n-grams
+				// of its previous values are kept, the postings are only used
+				// to select candidates that are checked against the filter
+				posting.insert(ordinal);
+			}
+		}
+	}
+
+	/**
+	 * return the posting of the filter rarest n-gram, which is a superset of
+	 * the matching members
+	 * 
+	 * @param filterLowerCase
+	 * @return the candidates; empty if some n-gram is unknown
+	 */
+	private IntArray searchCandidates(String filterLowerCase) {
+		IntArray best = null;
+		int n = Math.min(MAX_NGRAM, filterLowerCase.length());
+		for (int i = 0; i + n <= filterLowerCase.length(); i++) {
+			IntArray posting = ngrams.get(filterLowerCase.substring(i, i + n));
+			if (posting == null) {
+				return new IntArray();
+			}
+			if (best == null || posting.size() < best.size()) {
+				best = posting;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public DimensionMember getMember(int index) {
+		lock.readLock().lock();
+		try {
+			if (index >= 0 && index < members.size()) {
+				return members.get(index);
+			} else {
+				return null;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public DimensionMember getMemberByID(Object iD) {
+		if (iD == null) {
+			// handling NULL value
+			return new DimensionMember(-1, iD, getAttributeCount());
+		}
+		DimensionMember member = getMemberByKey(iD.toString());
+		if (member != null) {
+			return member;
+		} else {
+			return new DimensionMember(-1, iD, getAttributeCount());
+		}
+	}
+
+	@Override
+	public DimensionMember getMemberByKey(String key) {
+		lock.readLock().lock();
+		try {
+			Integer ordinal = dictionary.get(key);
+			return ordinal != null ? members.get(ordinal) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<DimensionMember> getMembers() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<>(members);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<DimensionMember> getMembers(int offset, int size) {
+		lock.readLock().lock();
+		try {
+			int fromIndex = Math.min(offset, members.size());
+			int toIndex = Math.min(offset + size, members.size());
+			return new ArrayList<>(members.subList(fromIndex, toIndex));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<DimensionMember> getMembers(String filter, int offset, int size) {
+		return getMembers(null, filter, offset, size);
+	}
+
+	/**
+	 * return a page of the members matching the filter
+	 * 
+	 * @param selection
+	 *            the ordinals to look at, or null for every member
+	 * @param filter
+	 *            a substring to look for, or null
+	 * @param offset
+	 * @param size
+	 * @return
+	 */
+	private List<DimensionMember> getMembers(BitSet selection, String filter, int offset, int size) {
+		lock.readLock().lock();
+		try {
+			BitSet candidates = selection;
+			String filterLowerCase = null;
+			if (filter != null && !filter.isEmpty()) {
+				filterLowerCase = filter.toLowerCase();
+				BitSet search = new BitSet(members.size());
+				searchCandidates(filterLowerCase).or(search);
+				if (candidates != null) {
+					candidates.and(search);
+				} else {
+					candidates = search;
+				}
+			}
+			ArrayList<DimensionMember> result = new ArrayList<>();
+			int skip = offset;
+			int ordinal = candidates != null ? candidates.nextSetBit(0) : 0;
+			while (ordinal >= 0 && ordinal < members.size() && result.size() < size) {
+				DimensionMember member = members.get(ordinal);
+				if (filterLowerCase == null || member.match(filterLowerCase)) {
+					if (skip > 0) {
+						skip--;
+					} else {
+						result.add(member);
+					}
+				}
+				ordinal = candidates != null ? candidates.nextSetBit(ordinal + 1) : ordinal + 1;
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean initCorrelationMapping(List<DimensionIndex> hierarchy) {
+		if (rootStore != this) {
+			return rootStore != null && rootStore.initCorrelationMapping(hierarchy);
+		}
+		correlations.getLevels(hierarchy);
+		return true;
+	}
+
+	@Override
+	public String indexCorrelations(List<DimensionIndex> types, List<DimensionMember> values) {
+		return indexCorrelations(types, Collections.singletonList(values), false);
+	}
+
+	@Override
+	public String indexCorrelations(List<DimensionIndex> types, Collection<List<DimensionMember>> batch,
+			boolean wait) {
+		if (rootStore != this) {
+			return rootStore != null ? rootStore.indexCorrelations(types, batch, wait) : "";
+		}
+		int[] typeLevels = correlations.getLevels(types);
+		DimensionStoreCompact[] stores = new DimensionStoreCompact[types.size()];
+		for (int k = 0; k < types.size(); k++) {
+			stores[k] = getStore(types.get(k));
+		}
+		// encode the values
+		ArrayList<int[]> encoded = new ArrayList<>(batch.size());
+		for (List<DimensionMember> values : batch) {
+			if (values.size() != types.size()) {
+				continue;
+			}
+			int[] ordinals = new int[types.size()];
+			for (int k = 0; k < types.size(); k++) {
+				DimensionMember value = values.get(k);
+				if (value != null && value.getID() != null && stores[k] != null) {
+					ordinals[k] = stores[k].encode(value);
+				} else {
+					ordinals[k] = -1;
+				}
+			}
+			encoded.add(ordinals);
+		}
+		correlations.index(typeLevels, encoded);
+		return "";
+	}
+
+	@Override
+	public List<DimensionMember> getMembersFilterByParents(Map<DimensionIndex, List<DimensionMember>> selections,
+			int offset, int size) {
+		return getMembersFilterByParents(selections, null, offset, size);
+	}
+
+	@Override
+	public List<DimensionMember> getMembersFilterByParents(Map<DimensionIndex, List<DimensionMember>> selections,
+			String filter, int offset, int size) {
+		if (rootStore == null) {
+			return new ArrayList<DimensionMember>();
+		}
+		Integer targetLevel = rootStore.correlations.getLevel(getDimensionIndex());
+		if (targetLevel == null) {
+			return new ArrayList<DimensionMember>();
+		}
+		// resolve the selected ordinals, by level
+		HashMap<Integer, int[]> ordinals = new HashMap<>();
+		for (Entry<DimensionIndex, List<DimensionMember>> selection : selections.entrySet()) {
+			Integer level = rootStore.correlations.getLevel(selection.getKey());
+			DimensionStoreCompact store = getStore(selection.getKey());
+			if (level == null || store == null) {
+				// unknown parent
+				return new ArrayList<DimensionMember>();
+			}
+			int[] selected = new int[selection.getValue().size()];
+			int k = 0;
+			for (DimensionMember member : selection.getValue()) {
+				selected[k++] = store.lookup(member.getKey());
+			}
+			ordinals.put(level, selected);
+		}
+		BitSet selection = rootStore.correlations.filter(targetLevel, ordinals);
+		return getMembers(selection, filter, offset, size);
+	}
+
+	@Override
+	public boolean isDimensionIndexationDone(String lastIndexedDimension) {
+		// indexation is synchronous
+		return true;
+	}
+
+	@Override
+	public boolean isCorrelationIndexationDone(String lastIndexedCorrelation) {
+		// indexation is synchronous
+		return true;
+	}
+
+	/**
+	 * a growable array of int, used for the n-gram postings
+	 *
+	 */
+	private static class IntArray {
+
+		private int[] values = new int[4];
+		private int size = 0;
+
+		/**
+		 * insert the value, keeping the values sorted and unique; appending a
+		 * new greatest value is the common case
+		 * 
+		 * @param value
+		 */
+		public void insert(int value) {
+			int pos = size;
+			if (size > 0 && values[size - 1] >= value) {
+				pos = Arrays.binarySearch(values, 0, size, value);
+				if (pos >= 0) {
+					return;// already there
+				}
+				pos = -pos - 1;
+			}
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			System.arraycopy(values, pos, values, pos + 1, size - pos);
+			values[pos] = value;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * set the bits of the values in the bitmap
+		 * 
+		 * @param bitmap
+		 */
+		public void or(BitSet bitmap) {
+			for (int i = 0; i < size; i++) {
+				bitmap.set(values[i]);
+			}
+		}
+
+	}
+
+}
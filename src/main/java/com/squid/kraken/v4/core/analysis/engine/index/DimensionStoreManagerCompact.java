@@ -21,47 +21,36 @@
  * you and Squid Solutions (above licenses and LICENSE.txt included).
  * See http://www.squidsolutions.com/EnterpriseBouquet/
  *******************************************************************************/
-package com.squid.kraken.v4.ESIndexFacade;
+package com.squid.kraken.v4.core.analysis.engine.index;
 
-import java.util.concurrent.CountDownLatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkProcessor;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionIndex;
+import com.squid.kraken.v4.model.DomainPK;
 
-public class BulkIndexingNotifyListener implements BulkProcessor.Listener {
+/**
+ * Manage the in-process DimensionStoreCompact; it does not require any ES node
+ *
+ */
+public class DimensionStoreManagerCompact implements IDimensionStoreManager {
 
-	private CountDownLatch finish ;
+	static final Logger logger = LoggerFactory.getLogger(DimensionStoreManagerCompact.class);
 
-	public String lastId;
-	public boolean withError;
-	
-	public BulkIndexingNotifyListener(CountDownLatch lock){
-		this.finish = lock;
-	}
-	
 	@Override
-	public void beforeBulk(long executionId, BulkRequest request) {
-		// TODO Auto-generated method stub
-		
+	public IDimensionStore createIndexStore(DimensionIndex index) throws InterruptedException {
+		logger.info("create compact index store for " + index.getDimensionName());
+		return new DimensionStoreCompact(index);
 	}
 
 	@Override
-	public void afterBulk(long executionId, BulkRequest request,
-			BulkResponse response) {
-			BulkItemResponse[] itemsResp = response.getItems();
-			BulkItemResponse lastAction = itemsResp[itemsResp.length  -1];
-			lastId= lastAction.getId();
-			withError = false;
-			finish.countDown();
+	public void invalidate(DomainPK domain) throws InterruptedException {
+		// nothing to do, the stores are released with their indexes
 	}
 
 	@Override
-	public void afterBulk(long executionId, BulkRequest request,
-			Throwable failure) {
-		withError = true;
-		finish.countDown();		
+	public void stop() {
+		// nothing to do
 	}
 
 }
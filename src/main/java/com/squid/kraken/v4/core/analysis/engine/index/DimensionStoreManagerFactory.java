@@ -57,6 +57,9 @@ public class DimensionStoreManagerFactory {
         if (config.equals("ES")) {
             logger.info("using ES implementation for com.squid.dimensionStore");
             return new DimensionStoreManagerES(esConfig);
+        } else if (config.equals("COMPACT")) {
+            logger.info("using in-process compact implementation for com.squid.dimensionStore");
+            return new DimensionStoreManagerCompact();
         } else {
             logger.info("using legacy implementation for com.squid.dimensionStore");
             return new DimensionStoreManager();
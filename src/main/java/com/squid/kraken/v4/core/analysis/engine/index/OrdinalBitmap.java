@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.index;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A set of member ordinals that stays compact whatever its density.
+ * 
+ * The ordinals are kept in a sorted int array, which takes 32 bits per
+ * ordinal, while a bitmap takes one bit per ordinal up to the greatest one. So
+ * the set switches to a bitmap once it holds more than one ordinal out of 32
+ * of its range, and back to an array if a far greater ordinal makes the
+ * bitmap sparse again, with some margin to avoid switching back and forth.
+ *
+ */
+class OrdinalBitmap {
+
+	// the bits taken by an ordinal in the array
+	private static final int ARRAY_BITS = 32;
+
+	// a small set always stays an array
+	private static final int ARRAY_MIN = 64;
+
+	private int[] array = new int[4];
+	private int size = 0;
+
+	private BitSet bitmap = null;
+
+	/**
+	 * add the ordinal to the set
+	 * 
+	 * @param ordinal
+	 * @return true if the ordinal was not already in the set
+	 */
+	public boolean add(int ordinal) {
+		if (bitmap != null) {
+			if (bitmap.get(ordinal)) {
+				return false;
+			}
+			bitmap.set(ordinal);
+			size++;
+			if ((long) size * ARRAY_BITS * 2 < bitmap.length()) {
+				toArray();
+			}
+			return true;
+		}
+		// ordinals mostly come in increasing order
+		int pos = (size == 0 || array[size - 1] < ordinal) ? -(size + 1)
+				: Arrays.binarySearch(array, 0, size, ordinal);
+		if (pos >= 0) {
+			return false;
+		}
+		pos = -(pos + 1);
+		if (size == array.length) {
+			array = Arrays.copyOf(array, size * 2);
+		}
+		System.arraycopy(array, pos, array, pos + 1, size - pos);
+		array[pos] = ordinal;
+		size++;
+		if (size > ARRAY_MIN && (long) size * ARRAY_BITS >= (long) array[size - 1] + 1) {
+			toBitmap();
+		}
+		return true;
+	}
+
+	private void toBitmap() {
+		bitmap = new BitSet(array[size - 1] + 1);
+		for (int i = 0; i < size; i++) {
+			bitmap.set(array[i]);
+		}
+		array = null;
+	}
+
+	private void toArray() {
+		array = new int[size];
+		int k = 0;
+		for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i + 1)) {
+			array[k++] = i;
+		}
+		bitmap = null;
+	}
+
+	boolean isBitmap() {
+		return bitmap != null;
+	}
+
+	public int cardinality() {
+		return size;
+	}
+
+	/**
+	 * add the ordinals of this set to the target bitmap
+	 * 
+	 * @param target
+	 */
+	public void or(BitSet target) {
+		if (bitmap != null) {
+			target.or(bitmap);
+		} else {
+			for (int i = 0; i < size; i++) {
+				target.set(array[i]);
+			}
+		}
+	}
+
+}
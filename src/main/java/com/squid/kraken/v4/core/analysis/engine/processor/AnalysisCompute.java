@@ -33,6 +33,7 @@ import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.squid.kraken.v4.KrakenConfig;
 import com.squid.kraken.v4.api.core.PerfDB;
@@ -64,6 +65,8 @@ import com.squid.kraken.v4.core.analysis.engine.query.QueryRunner;
 import com.squid.kraken.v4.core.analysis.engine.query.SimpleQuery;
 import com.squid.kraken.v4.core.analysis.engine.query.mapping.AxisMapping;
 import com.squid.kraken.v4.core.analysis.engine.query.mapping.MeasureMapping;
+import com.squid.kraken.v4.core.analysis.engine.query.rollup.BaseRollupStrategy;
+import com.squid.kraken.v4.core.analysis.engine.query.rollup.RollupStrategySelector;
 import com.squid.kraken.v4.core.analysis.model.Dashboard;
 import com.squid.kraken.v4.core.analysis.model.DashboardAnalysis;
 import com.squid.kraken.v4.core.analysis.model.DashboardSelection;
@@ -158,9 +161,7 @@ public class AnalysisCompute {
 
 			DataMatrix dm = qw.getDataMatrix();
 			if (dm != null) {
-				for (DataMatrixTransform transform : query.getPostProcessing()) {
-					dm = transform.apply(dm);
-				}
+				dm = DataMatrixTransformPipeline.apply(dm, query.getPostProcessing());
 			}
 			return dm;
 		} else if (analysis.getSelection().hasCompareToSelection()) {
@@ -282,6 +283,12 @@ public class AnalysisCompute {
 			} else {
 				currentAnalysis.setOrders(fixed);
 			}
+		} else if (!currentAnalysis.hasLimit() && !fixed.isEmpty()) {
+			// push the merge ordering into the SQL so that present & past come
+			// back already sorted; the original order is applied after the
+			// merge. If there is a limit we must keep the original order since
+			// it selects the rows.
+			currentAnalysis.setOrders(fixed);
 		}
 		//
 		// compute the past version
@@ -398,19 +405,20 @@ public class AnalysisCompute {
 			boolean computeGrowth = computeGrowthOption != null && computeGrowthOption.equals(true);
 			// T1890: the present & past matrices are sorted in post-processing according to the [fixed] order
 			// the CompareMerger only works if the matrices are fully sorted
+			// (the orderBy() is only checking the order if the SQL already sorted the rows)
 			CompareMerger merger = new CompareMerger(present, past, mergeOrder, joinAxis, offset, computeGrowth);
 			DataMatrix debug = merger.merge(false);
+			List<DataMatrixTransform> postProcessing = new ArrayList<>();
 			// apply the original order by directive (T1039)
 			if (!originalOrders.isEmpty()) {
-				debug.orderBy(originalOrders);
+				postProcessing.add(new DataMatrixTransformOrderBy(originalOrders));
 			}
 			// T1897 - enforce limit & offset
 			if (currentAnalysis.hasLimit() && debug.getRows().size() > currentAnalysis.getLimit()) {
-				DataMatrixTransformTruncate truncate = new DataMatrixTransformTruncate(currentAnalysis.getLimit(),
-						currentAnalysis.getOffset());
-				debug = truncate.apply(debug);
+				postProcessing.add(new DataMatrixTransformTruncate(currentAnalysis.getLimit(),
+						currentAnalysis.getOffset()));
 			}
-			return debug;
+			return DataMatrixTransformPipeline.apply(debug, postProcessing);
 		} catch (ExecutionException e) {
 			if (e.getCause() != null) {
 				if (e.getCause() instanceof RedisCacheException) {
@@ -730,22 +738,125 @@ public class AnalysisCompute {
 	 */
 	private DataMatrix computeAnalysisSimple(DashboardAnalysis analysis, boolean optimize, boolean forceBeyondLimit)
 			throws ScopeException, ComputingException, SQLScopeException, InterruptedException, RenderingException {
-		// select with one or several KPI groups
-		DataMatrix result = null;
-		for (MeasureGroup group : analysis.getGroups()) {
-			//
-			DataMatrix dm = computeAnalysisSimpleForGroup(analysis, group, optimize, forceBeyondLimit);
-			if (dm != null) {
+		List<MeasureGroup> groups = analysis.getGroups();
+		if (groups.size() <= 1) {
+			DataMatrix result = null;
+			for (MeasureGroup group : groups) {
+				result = computeAnalysisSimpleForGroup(analysis, group, optimize, forceBeyondLimit);
+			}
+			return result;
+		}
+		// select with several KPI groups: compute the groups in //
+		ArrayList<GroupTask> tasks = new ArrayList<GroupTask>(groups.size());
+		for (MeasureGroup group : groups) {
+			GroupTask task = new GroupTask(analysis, group, optimize, forceBeyondLimit);
+			if (!tasks.isEmpty()) {
+				// the first group is computed by this thread
+				task.future = ExecutionManager.INSTANCE.submit(universe.getContext().getCustomerId(), task);
+			}
+			tasks.add(task);
+		}
+		try {
+			// merge in the groups order, as soon as each one is available
+			DataMatrix result = null;
+			for (GroupTask task : tasks) {
+				DataMatrix dm = task.get();
+				if (dm != null) {
+					// merge if needed
+					if (result == null) {
+						result = dm;
+					} else {
+						result = result.merge(dm);
+					}
+				}
+			}
+			return result;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RedisCacheException) {
+				throw (RedisCacheException) cause;
+			}
+			if (cause instanceof NotInCacheException) {
+				throw (NotInCacheException) cause;
+			}
+			if (cause instanceof ComputingException) {
+				throw (ComputingException) cause;
+			}
+			if (cause instanceof SQLScopeException) {
+				throw (SQLScopeException) cause;
+			}
+			if (cause instanceof ScopeException) {
+				throw (ScopeException) cause;
+			}
+			if (cause instanceof RenderingException) {
+				throw (RenderingException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			throw new ComputingException(cause);
+		} finally {
+			// if one group failed, do not compute the others
+			for (GroupTask task : tasks) {
+				task.cancel();
+			}
+		}
+	}
 
-				// merge if needed
-				if (result == null) {
-					result = dm;
-				} else {
-					result = result.merge(dm);
+	/**
+	 * compute one measure group; the task is run either by the executor or by
+	 * the thread waiting for it, whichever comes first, so that nested
+	 * analysis cannot starve the customer's executor
+	 */
+	private class GroupTask implements Callable<DataMatrix> {
+
+		private DashboardAnalysis analysis;
+		private MeasureGroup group;
+		private boolean optimize;
+		private boolean forceBeyondLimit;
+
+		private AtomicBoolean started = new AtomicBoolean(false);
+		private Future<DataMatrix> future = null;
+
+		public GroupTask(DashboardAnalysis analysis, MeasureGroup group, boolean optimize, boolean forceBeyondLimit) {
+			this.analysis = analysis;
+			this.group = group;
+			this.optimize = optimize;
+			this.forceBeyondLimit = forceBeyondLimit;
+		}
+
+		@Override
+		public DataMatrix call() throws Exception {
+			if (!started.compareAndSet(false, true)) {
+				// already run by the waiting thread
+				return null;
+			}
+			return computeAnalysisSimpleForGroup(analysis, group, optimize, forceBeyondLimit);
+		}
+
+		public DataMatrix get() throws ExecutionException, InterruptedException {
+			if (started.compareAndSet(false, true)) {
+				if (future != null) {
+					future.cancel(false);
+				}
+				try {
+					return computeAnalysisSimpleForGroup(analysis, group, optimize, forceBeyondLimit);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new ExecutionException(e);
 				}
+			} else {
+				return future.get();
 			}
 		}
-		return result;
+
+		public void cancel() {
+			if (future != null && !future.isDone()) {
+				future.cancel(true);
+			}
+		}
+
 	}
 
 	private DataMatrix computeAnalysisSimple(DashboardAnalysis analysis, boolean optimize)
@@ -803,9 +914,7 @@ public class AnalysisCompute {
 				// run the postprocessing now so it can fails
 				DataMatrix dm = qw.getDataMatrix();
 				if (dm != null) {
-					for (DataMatrixTransform transform : queryBis.getPostProcessing()) {
-						dm = transform.apply(dm);
-					}
+					dm = DataMatrixTransformPipeline.apply(dm, queryBis.getPostProcessing());
 				}
 				long end = System.currentTimeMillis();
 				logger.info("HIT! get analysis from Smart Cache in " + (end - start) + "ms");
@@ -852,6 +961,13 @@ public class AnalysisCompute {
 						// ignore any error in smartCache
 					}
 				}
+				// krkn-59: try to aggregate the detailed rows if available
+				if (SUPPORT_SMART_CACHE && analysis.hasRollup()) {
+					DataMatrix rollup = computeAnalysisRollupFromDetails(analysis, group, query, forceBeyondLimit);
+					if (rollup != null) {
+						return rollup;
+					}
+				}
 				// still not yet, shall we run it?
 				if (!analysis.isLazy()) {
 					// if smart-cache enabled, lets keep a forward reference
@@ -870,9 +986,7 @@ public class AnalysisCompute {
 			// SmartCache
 			DataMatrix dm = qw.getDataMatrix();
 			if (dm != null) {
-				for (DataMatrixTransform transform : query.getPostProcessing()) {
-					dm = transform.apply(dm);
-				}
+				dm = DataMatrixTransformPipeline.apply(dm, query.getPostProcessing());
 			}
 			// if it is a full dataset and no rollup, store the layout in the
 			// smartCache
@@ -909,6 +1023,50 @@ public class AnalysisCompute {
 		}
 	}
 
+	/**
+	 * compute the rollup by aggregating the same analysis without rollup, if it
+	 * is already available from the cache or the smart-cache. This is only
+	 * possible if the rollup strategy would aggregate the detailed rows too.
+	 * 
+	 * @return the rollup matrix, or null if it must be computed by the
+	 *         database
+	 */
+	private DataMatrix computeAnalysisRollupFromDetails(DashboardAnalysis analysis, MeasureGroup group,
+			SimpleQuery query, boolean forceBeyondLimit) throws ComputingException, InterruptedException {
+		if (analysis.hasLimit() || analysis.hasOffset()) {
+			// the limit applies to the rollup rows too
+			return null;
+		}
+		try {
+			if (!RollupStrategySelector.canAggregateDetails(query)) {
+				return null;
+			}
+			DashboardAnalysis detailAnalysis = new DashboardAnalysis(universe);
+			detailAnalysis.setMainDomain(analysis.getMainDomain());
+			for (GroupByAxis groupBy : analysis.getGrouping()) {
+				detailAnalysis.add(groupBy.getAxis());
+			}
+			for (Measure kpi : group.getKPIs()) {
+				detailAnalysis.add(kpi);
+			}
+			detailAnalysis.setOrders(analysis.getOrders());
+			detailAnalysis.setSelection(analysis.getSelection());
+			detailAnalysis.lazy(true);// never run the detailed query
+			DataMatrix detail = computeAnalysisSimpleForGroup(detailAnalysis, group, false, forceBeyondLimit);
+			if (detail == null || !detail.isFullset()) {
+				return null;
+			}
+			Axis groupingAxis = BaseRollupStrategy.createGroupingAxis(universe, query.getSubject());
+			DataMatrixTransformRollup rollup = new DataMatrixTransformRollup(universe, groupingAxis,
+					analysis.getRollup(), analysis.isRollupGrandTotal(), analysis.getOrders());
+			DataMatrix dm = DataMatrixTransformPipeline.apply(rollup.apply(detail), query.getPostProcessing());
+			logger.info("HIT! compute rollup from the detailed analysis");
+			return dm;
+		} catch (NotInCacheException | ScopeException | SQLScopeException | RenderingException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * execute the analysis but does not read the result: this method can be
 	 * used to stream the result back to client, for instance to export the
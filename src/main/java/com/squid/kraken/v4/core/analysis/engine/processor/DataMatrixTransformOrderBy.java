@@ -40,6 +40,10 @@ public class DataMatrixTransformOrderBy implements DataMatrixTransform {
 	public DataMatrixTransformOrderBy(List<OrderBy> orderBy) {
 		this.orderBy = orderBy;
 	}
+
+	public List<OrderBy> getOrderBy() {
+		return orderBy;
+	}
 	
 	@Override
 	public DataMatrix apply(DataMatrix input) {
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.squid.core.expression.scope.ScopeException;
+import com.squid.kraken.v4.core.analysis.datamatrix.DataMatrix;
+
+/**
+ * plan and apply a list of post-processing transformations as a whole.
+ * 
+ * An orderBy followed by a truncate is fused into a single top-N selection,
+ * so that we don't have to sort the full matrix to only keep the first rows.
+ * Hiding columns does not change the rows, so it can sit in between.
+ *
+ */
+public class DataMatrixTransformPipeline {
+
+	/**
+	 * apply the transformations to the matrix
+	 * 
+	 * @param input
+	 * @param transforms
+	 * @return
+	 * @throws ScopeException
+	 */
+	public static DataMatrix apply(DataMatrix input, List<DataMatrixTransform> transforms) throws ScopeException {
+		DataMatrix dm = input;
+		for (DataMatrixTransform transform : plan(transforms)) {
+			dm = transform.apply(dm);
+		}
+		return dm;
+	}
+
+	/**
+	 * compute the transformations to apply; the result is equivalent to the
+	 * input list
+	 * 
+	 * @param transforms
+	 * @return
+	 */
+	public static List<DataMatrixTransform> plan(List<DataMatrixTransform> transforms) {
+		List<DataMatrixTransform> plan = new ArrayList<>(transforms);
+		for (int i = 0; i < plan.size(); i++) {
+			if (plan.get(i) instanceof DataMatrixTransformOrderBy) {
+				DataMatrixTransformOrderBy orderBy = (DataMatrixTransformOrderBy) plan.get(i);
+				// look for the truncate
+				int j = i + 1;
+				while (j < plan.size() && plan.get(j) instanceof DataMatrixTransformHideColumns) {
+					j++;
+				}
+				if (j < plan.size() && plan.get(j) instanceof DataMatrixTransformTruncate) {
+					DataMatrixTransformTruncate truncate = (DataMatrixTransformTruncate) plan.get(j);
+					if (truncate.getLimit() != null) {
+						plan.remove(j);
+						plan.set(i, new DataMatrixTransformTopN(orderBy.getOrderBy(), truncate.getLimit(),
+								truncate.getOffset()));
+					}
+				}
+			}
+		}
+		return plan;
+	}
+
+}
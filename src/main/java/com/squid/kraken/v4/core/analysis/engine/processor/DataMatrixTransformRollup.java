@@ -0,0 +1,458 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.processor;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.squid.core.domain.associative.AssociativeDomainInformation;
+import com.squid.core.domain.operators.OperatorDefinition;
+import com.squid.core.expression.ExpressionAST;
+import com.squid.core.expression.scope.ScopeException;
+import com.squid.core.sql.render.IOrderByPiece.ORDERING;
+import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
+import com.squid.kraken.v4.core.analysis.datamatrix.AxisValues;
+import com.squid.kraken.v4.core.analysis.datamatrix.DataMatrix;
+import com.squid.kraken.v4.core.analysis.datamatrix.MeasureValues;
+import com.squid.kraken.v4.core.analysis.model.GroupByAxis;
+import com.squid.kraken.v4.core.analysis.model.OrderBy;
+import com.squid.kraken.v4.core.analysis.model.OrderByGrowth;
+import com.squid.kraken.v4.core.analysis.universe.Axis;
+import com.squid.kraken.v4.core.analysis.universe.Universe;
+import com.squid.kraken.v4.model.ProjectAnalysisJob.Position;
+
+/**
+ * compute the rollup of a detailed matrix (same grouping, no rollup) in memory,
+ * by aggregating the measures using their associative operator.
+ * 
+ * The result has the same layout and rows as the associative rollup strategies:
+ * the GROUPING_ID axis in first position, null for the detailed rows, and the
+ * level number for the totals (0 for the grand-total, then 1 for the first
+ * rollup axis...); the rows are ordered the same way, using the level flags.
+ * 
+ * The transformation fails with a ScopeException if the matrix cannot be
+ * aggregated; in that case the rollup must be computed by the database.
+ *
+ */
+public class DataMatrixTransformRollup implements DataMatrixTransform {
+
+	private Universe universe;
+	private Axis groupingAxis;
+	private List<GroupByAxis> rollup;
+	private boolean grandTotal;
+	private List<OrderBy> orderBy;
+
+	public DataMatrixTransformRollup(Universe universe, Axis groupingAxis, List<GroupByAxis> rollup,
+			boolean grandTotal, List<OrderBy> orderBy) {
+		this.universe = universe;
+		this.groupingAxis = groupingAxis;
+		this.rollup = rollup;
+		this.grandTotal = grandTotal;
+		this.orderBy = orderBy;
+	}
+
+	@Override
+	public DataMatrix apply(DataMatrix input) throws ScopeException {
+		// rollup axes index in the input
+		int[] rollupIndexes = new int[rollup.size()];
+		for (int i = 0; i < rollup.size(); i++) {
+			AxisValues column = input.getAxisColumn(rollup.get(i).getAxis());
+			if (column == null) {
+				throw new ScopeException("unable to rollup on '" + rollup.get(i).getAxis().getName() + "'");
+			}
+			rollupIndexes[i] = input.getAxes().indexOf(column);
+		}
+		// measures associative operator
+		Aggregate[] aggregates = new Aggregate[input.getDataSize()];
+		for (int i = 0; i < input.getDataSize(); i++) {
+			aggregates[i] = getAggregate(input.getKPIs().get(i));
+		}
+		//
+		DataMatrix result = createMatrix(input);
+		List<RawRow> rows = new ArrayList<>();
+		int axesSize = input.getAxesSize();
+		// detailed rows
+		for (RawRow row : input.getRows()) {
+			RawRow copy = new RawRow(result.getRowSize());
+			for (int i = 0; i < axesSize; i++) {
+				copy.data[1 + i] = input.getAxisValue(i, row);
+			}
+			for (int i = 0; i < aggregates.length; i++) {
+				copy.data[1 + axesSize + i] = input.getDataValue(i, row);
+			}
+			rows.add(copy);
+		}
+		// totals
+		if (grandTotal) {
+			rows.addAll(aggregate(input, 0, new int[0], aggregates));
+		}
+		for (int level = 1; level <= rollupIndexes.length; level++) {
+			rows.addAll(aggregate(input, level, Arrays.copyOf(rollupIndexes, level), aggregates));
+		}
+		for (int i = 0; i < aggregates.length; i++) {
+			if (aggregates[i] == SUM) {
+				normalize(rows, 1 + axesSize + i);
+			}
+		}
+		Collections.sort(rows, createComparator(result));
+		for (RawRow row : rows) {
+			result.pushRow(row);
+		}
+		return result;
+	}
+
+	private DataMatrix createMatrix(DataMatrix input) {
+		DataMatrix result = new DataMatrix(input.getDatabase());
+		result.setFromCache(input.isFromCache());
+		result.setFromSmartCache(true);
+		result.setExecutionDate(input.getExecutionDate());
+		result.setFullset(input.isFullset());
+		result.add(new AxisValues(groupingAxis));
+		for (AxisValues axis : input.getAxes()) {
+			result.add(new AxisValues(axis));
+		}
+		result.getKPIs().addAll(input.getKPIs());
+		return result;
+	}
+
+	/**
+	 * compute the totals for a level, grouping by the given axes
+	 */
+	private List<RawRow> aggregate(DataMatrix input, int level, int[] keys, Aggregate[] aggregates)
+			throws ScopeException {
+		int axesSize = input.getAxesSize();
+		Map<List<Object>, RawRow> totals = new LinkedHashMap<>();
+		for (RawRow row : input.getRows()) {
+			Object[] key = new Object[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				key[i] = input.getAxisValue(keys[i], row);
+			}
+			List<Object> hash = Arrays.asList(key);
+			RawRow total = totals.get(hash);
+			if (total == null) {
+				total = new RawRow(1 + axesSize + aggregates.length);
+				total.data[0] = level;
+				for (int i = 0; i < keys.length; i++) {
+					total.data[1 + keys[i]] = key[i];
+				}
+				totals.put(hash, total);
+			}
+			for (int i = 0; i < aggregates.length; i++) {
+				int pos = 1 + axesSize + i;
+				total.data[pos] = aggregates[i].apply(total.data[pos], input.getDataValue(i, row));
+			}
+		}
+		if (totals.isEmpty() && keys.length == 0) {
+			// the grand total always exists
+			RawRow total = new RawRow(1 + axesSize + aggregates.length);
+			total.data[0] = level;
+			return Collections.singletonList(total);
+		}
+		return new ArrayList<>(totals.values());
+	}
+
+	/**
+	 * replicate the rollup strategy ordering: the level flags are interleaved
+	 * with the orderBy, before the first orderBy that is not a parent of the
+	 * rollup axis
+	 */
+	private Comparator<RawRow> createComparator(DataMatrix result) throws ScopeException {
+		final List<SortKey> keys = new ArrayList<>();
+		if (grandTotal) {
+			keys.add(new LevelKey(0, ORDERING.DESCENT));
+		}
+		int next_rollup = 0;
+		int next_orderBy = 0;
+		while (next_rollup < rollup.size() && next_orderBy < orderBy.size()) {
+			ExpressionAST expr = orderBy.get(next_orderBy).getExpression();
+			Axis axis = universe.asAxis(expr);
+			if (axis == null || !isParentDimension(axis, rollup.get(next_rollup).getAxis())) {
+				GroupByAxis groupBy = rollup.get(next_rollup++);
+				keys.add(new LevelKey(next_rollup, ordering(groupBy.getRollupPosition())));
+			} else {
+				keys.add(createColumnKey(result, orderBy.get(next_orderBy++)));
+			}
+		}
+		while (next_rollup < rollup.size()) {
+			GroupByAxis groupBy = rollup.get(next_rollup++);
+			keys.add(new LevelKey(next_rollup, ordering(groupBy.getRollupPosition())));
+		}
+		while (next_orderBy < orderBy.size()) {
+			keys.add(createColumnKey(result, orderBy.get(next_orderBy++)));
+		}
+		return new Comparator<RawRow>() {
+			@Override
+			public int compare(RawRow o1, RawRow o2) {
+				for (SortKey key : keys) {
+					int cc = key.compare(o1, o2);
+					if (cc != 0) {
+						return cc;
+					}
+				}
+				return 0;
+			}
+		};
+	}
+
+	private boolean isParentDimension(Axis axis, Axis child) throws ScopeException {
+		try {
+			return axis.isParentDimension(child);
+		} catch (ComputingException e) {
+			throw new ScopeException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ScopeException(e);
+		}
+	}
+
+	private ORDERING ordering(Position position) {
+		if (position == Position.FIRST) {
+			return ORDERING.DESCENT;
+		} else {
+			return ORDERING.ASCENT;
+		}
+	}
+
+	private SortKey createColumnKey(DataMatrix result, OrderBy order) throws ScopeException {
+		if (!(order instanceof OrderByGrowth)) {
+			int pos = 0;
+			for (AxisValues axis : result.getAxes()) {
+				if (axis.getAxis().getReference().equals(order.getExpression())) {
+					return new ColumnKey(pos, order.getOrdering());
+				}
+				pos++;
+			}
+			for (MeasureValues measure : result.getKPIs()) {
+				if (measure.getMeasure().getReference().equals(order.getExpression())) {
+					return new ColumnKey(pos, order.getOrdering());
+				}
+				pos++;
+			}
+		}
+		throw new ScopeException("unable to sort the rollup by " + order.getExpression().prettyPrint());
+	}
+
+	private interface SortKey {
+		int compare(RawRow o1, RawRow o2);
+	}
+
+	/**
+	 * level_N flag of the rollup strategy: 1 if the row is a total at level N
+	 * or below, 0 otherwise
+	 */
+	private class LevelKey implements SortKey {
+
+		private int level;
+		private ORDERING ordering;
+
+		public LevelKey(int level, ORDERING ordering) {
+			this.level = level;
+			this.ordering = ordering;
+		}
+
+		private int flag(RawRow row) {
+			Integer rowLevel = (Integer) row.data[0];
+			return rowLevel != null && level >= rowLevel ? 1 : 0;
+		}
+
+		@Override
+		public int compare(RawRow o1, RawRow o2) {
+			int cc = Integer.compare(flag(o1), flag(o2));
+			return ordering == ORDERING.DESCENT ? -cc : cc;
+		}
+
+	}
+
+	private class ColumnKey implements SortKey {
+
+		private int pos;
+		private ORDERING ordering;
+
+		public ColumnKey(int pos, ORDERING ordering) {
+			this.pos = pos;
+			this.ordering = ordering;
+		}
+
+		@Override
+		public int compare(RawRow o1, RawRow o2) {
+			int cc = compareValues(o1.data[pos], o2.data[pos]);
+			return ordering == ORDERING.DESCENT ? -cc : cc;
+		}
+
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static int compareValues(Object v1, Object v2) {
+		if (v1 == null && v2 != null)
+			return -1;
+		if (v1 != null && v2 == null)
+			return 1;
+		if (v1 == null && v2 == null)
+			return 0;
+		if (v1 instanceof Number && v2 instanceof Number && v1.getClass() != v2.getClass()) {
+			return toBigDecimal((Number) v1).compareTo(toBigDecimal((Number) v2));
+		} else if ((v1 instanceof Comparable) && (v2 instanceof Comparable)) {
+			return ((Comparable) v1).compareTo(((Comparable) v2));
+		} else {
+			return v1.toString().compareTo(v2.toString());
+		}
+	}
+
+	private Aggregate getAggregate(MeasureValues measure) throws ScopeException {
+		ExpressionAST definition = measure.getMeasure().getDefinitionSafe();
+		OperatorDefinition op = AssociativeDomainInformation.getAssociativeOperator(definition.getImageDomain());
+		if (op != null) {
+			String symbol = op.getSymbol();
+			if ("SUM".equalsIgnoreCase(symbol)) {
+				return SUM;
+			} else if ("MIN".equalsIgnoreCase(symbol)) {
+				return MIN;
+			} else if ("MAX".equalsIgnoreCase(symbol)) {
+				return MAX;
+			}
+		}
+		throw new ScopeException("unable to aggregate measure: " + definition.prettyPrint());
+	}
+
+	interface Aggregate {
+		Object apply(Object total, Object value) throws ScopeException;
+	}
+
+	/**
+	 * integral values are summed as long, and widened to BigDecimal on
+	 * overflow
+	 */
+	static final Aggregate SUM = new Aggregate() {
+		@Override
+		public Object apply(Object total, Object value) throws ScopeException {
+			if (value == null) {
+				return total;
+			} else if (!(value instanceof Number)) {
+				throw new ScopeException("unable to sum value: " + value);
+			} else if (total == null) {
+				return value;
+			} else if (isIntegral(total) && isIntegral(value)) {
+				try {
+					return Math.addExact(((Number) total).longValue(), ((Number) value).longValue());
+				} catch (ArithmeticException e) {
+					return toBigDecimal((Number) total).add(toBigDecimal((Number) value));
+				}
+			} else if (total instanceof Double || total instanceof Float || value instanceof Double
+					|| value instanceof Float) {
+				return ((Number) total).doubleValue() + ((Number) value).doubleValue();
+			} else {
+				return toBigDecimal((Number) total).add(toBigDecimal((Number) value));
+			}
+		}
+	};
+
+	private static final Aggregate MIN = new Aggregate() {
+		@Override
+		public Object apply(Object total, Object value) {
+			if (value == null) {
+				return total;
+			} else if (total == null) {
+				return value;
+			} else {
+				return compareValues(value, total) < 0 ? value : total;
+			}
+		}
+	};
+
+	private static final Aggregate MAX = new Aggregate() {
+		@Override
+		public Object apply(Object total, Object value) {
+			if (value == null) {
+				return total;
+			} else if (total == null) {
+				return value;
+			} else {
+				return compareValues(value, total) > 0 ? value : total;
+			}
+		}
+	};
+
+	private static final int LONG_TYPE = 0;
+	private static final int DECIMAL_TYPE = 1;
+	private static final int DOUBLE_TYPE = 2;
+
+	/**
+	 * a sum may be a long, a BigDecimal or a double depending on the values
+	 * and on the overflows; convert all the values of the column to the widest
+	 * type, the same way SUM is combining them, so that the column has a
+	 * single type like the database rollup result
+	 * 
+	 * @param rows
+	 * @param pos
+	 *            the position of the column in the rows
+	 */
+	static void normalize(List<RawRow> rows, int pos) {
+		int type = LONG_TYPE;
+		for (RawRow row : rows) {
+			Object value = row.data[pos];
+			if (value instanceof Double || value instanceof Float) {
+				type = DOUBLE_TYPE;
+				break;
+			} else if (value instanceof Number && !isIntegral(value)) {
+				type = DECIMAL_TYPE;
+			}
+		}
+		for (RawRow row : rows) {
+			Object value = row.data[pos];
+			if (value instanceof Number) {
+				if (type == DOUBLE_TYPE) {
+					row.data[pos] = ((Number) value).doubleValue();
+				} else if (type == DECIMAL_TYPE) {
+					row.data[pos] = toBigDecimal((Number) value);
+				} else {
+					row.data[pos] = ((Number) value).longValue();
+				}
+			}
+		}
+	}
+
+	private static boolean isIntegral(Object value) {
+		return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+	}
+
+	private static BigDecimal toBigDecimal(Number value) {
+		if (value instanceof BigDecimal) {
+			return (BigDecimal) value;
+		} else if (value instanceof BigInteger) {
+			return new BigDecimal((BigInteger) value);
+		} else if (isIntegral(value)) {
+			return BigDecimal.valueOf(value.longValue());
+		} else {
+			return BigDecimal.valueOf(value.doubleValue());
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.processor;
+
+import java.util.List;
+
+import com.squid.kraken.v4.core.analysis.datamatrix.DataMatrix;
+import com.squid.kraken.v4.core.analysis.model.OrderBy;
+
+/**
+ * orderBy the matrix and truncate it given limit & offset, without sorting the
+ * rows beyond the limit
+ *
+ */
+public class DataMatrixTransformTopN implements DataMatrixTransform {
+
+	private List<OrderBy> orderBy;
+	private Long limit;
+	private Long offset;
+
+	public DataMatrixTransformTopN(List<OrderBy> orderBy, Long limit, Long offset) {
+		this.orderBy = orderBy;
+		this.limit = limit;
+		this.offset = offset;
+	}
+
+	public List<OrderBy> getOrderBy() {
+		return orderBy;
+	}
+
+	public Long getLimit() {
+		return limit;
+	}
+
+	public Long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public DataMatrix apply(DataMatrix input) {
+		input.orderBy(orderBy, limit, offset);
+		return input;
+	}
+
+}
@@ -39,6 +39,14 @@ public class DataMatrixTransformTruncate implements DataMatrixTransform {
 		this.limit = limit;
 		this.offset = offset;
 	}
+
+	public Long getLimit() {
+		return limit;
+	}
+
+	public Long getOffset() {
+		return offset;
+	}
 	
 	@Override
 	public DataMatrix apply(DataMatrix input) {
@@ -99,6 +99,9 @@ public class HierarchyQuery extends BaseQuery {
 	private float estimatedComplexity = 1;
 	private int querySize = 0;
 
+	private MeasureMapping highWaterMark = null;// for incremental refresh
+	private String highWaterMarkKey = null;
+
 	public HierarchyQuery(Universe universe, Domain domain) throws ScopeException, SQLScopeException, DatabaseServiceException {
 		super(universe,domain);
 		Database database = DatabaseServiceImpl.INSTANCE.getDatabase(universe.getProject());
@@ -275,6 +278,37 @@ public class HierarchyQuery extends BaseQuery {
 		return cx;
 	}
 
+	/**
+	 * select the max of the incremental column: this is the high-water mark
+	 * the next refresh will start from
+	 * @param space
+	 * @param column
+	 * @param key the query identifying the indexes, without any delta condition
+	 * @return
+	 * @throws ScopeException
+	 * @throws SQLScopeException
+	 */
+	public MeasureMapping selectHighWaterMark(Space space, ExpressionAST column, String key) throws ScopeException, SQLScopeException {
+		Measure max = space.M(ExpressionMaker.MAX(column));
+		MeasureMapping mapping = select(max);
+		mapping.getPiece().addComment("high-water mark (Incremental)");
+		this.highWaterMark = mapping;
+		this.highWaterMarkKey = key;
+		return mapping;
+	}
+
+	/**
+	 * return the high-water mark mapping, or null if the query is not incremental
+	 * @return
+	 */
+	public MeasureMapping getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	public String getHighWaterMarkKey() {
+		return highWaterMarkKey;
+	}
+
 	private Axis createAxis(Space space, Dimension dimension) {
 		if (dimension.getParentId()!=null) {
 			AppContext rootUserContext = ServiceUtils.getInstance().getRootUserContext(dimension.getCustomerId());
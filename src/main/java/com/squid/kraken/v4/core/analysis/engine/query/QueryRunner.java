@@ -125,7 +125,8 @@ public class QueryRunner {
 				result = RedisCacheManager.getInstance().getRedisCacheValue(ctx.getUser().getOid(),
 						ctx.getUser().getLogin(), // T2324
 						projectPK, sql,
-						deps, jobId, url, user, pwd, -2, query.getSelect().getStatement().getLimitValue());
+						deps, jobId, url, user, pwd, -2, query.getSelect().getStatement().getLimitValue(),
+						writer.getPriority());
 				if (result == null) {
 					throw new ComputingException("Failed to compute or retrieve the matrix for job " + jobId);
 				} else {
@@ -211,11 +211,22 @@ public abstract class BaseRollupStrategy implements IRollupStrategy {
 	}
 
     protected void addLevelMapping(ISelectPiece levelIDPiece) throws ScopeException {
-        Axis groupingAxis = getUniverse().axis("'"+getSubject().getName()+"'.(grouping_id())").withId("GROUPING_ID");
+        Axis groupingAxis = createGroupingAxis(getUniverse(), getSubject());
         AxisMapping levelMapping = new AxisMapping(levelIDPiece, groupingAxis);
         getMapper().add(0,levelMapping);// add in first place
     }
 
+    /**
+     * create the axis used to report the rollup level, in first position of the result
+     * @param universe
+     * @param subject
+     * @return
+     * @throws ScopeException
+     */
+    public static Axis createGroupingAxis(Universe universe, Domain subject) throws ScopeException {
+        return universe.axis("'"+subject.getName()+"'.(grouping_id())").withId("GROUPING_ID");
+    }
+
     /**
      * add rollup sort inside the original orderBy statement
      * @param subselect
@@ -74,4 +74,28 @@ public class RollupStrategySelector {
 		}
 	}
 
+	/**
+	 * check if the rollup levels of this query can be computed by aggregating
+	 * the detailed rows, giving the same result as the SQL strategy: all the
+	 * measures must be associative, and the levelID must be the plain level
+	 * number (the native strategy is using the GROUPING_ID() bitmask).
+	 * 
+	 * @param query
+	 * @return
+	 * @throws SQLScopeException
+	 */
+	public static boolean canAggregateDetails(SimpleQuery query) throws SQLScopeException {
+		if (!query.isAssociative()) {
+			return false;
+		}
+		SQLSkin skin = SkinFactory.INSTANCE.createSkin(query.getSelect().getDatabase());
+		ISkinFeatureSupport support = skin.getFeatureSupport(IRollupStrategySupport.ID);
+		if (support.equals(ISkinFeatureSupport.IS_NOT_SUPPORTED) || !(support instanceof IRollupStrategySupport)) {
+			return false;
+		} else {
+			IRollupStrategySupport strategy = (IRollupStrategySupport)support;
+			return !strategy.getStrategy().equals(IRollupStrategySupport.Strategy.USE_BUILTIN_SUPPORT);
+		}
+	}
+
 }
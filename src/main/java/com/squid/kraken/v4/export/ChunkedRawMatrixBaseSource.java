@@ -1,6 +1,5 @@
 package com.squid.kraken.v4.export;
 
-import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -11,10 +10,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.squid.core.export.ICol;
+import com.squid.kraken.v4.caching.redis.ChunkedRawMatrixIterator;
 import com.squid.kraken.v4.caching.redis.RedisCacheException;
 import com.squid.kraken.v4.caching.redis.RedisCacheProxy;
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
-import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValue;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
 import com.squid.kraken.v4.core.analysis.engine.processor.ComputingException;
 
@@ -26,6 +25,7 @@ public class ChunkedRawMatrixBaseSource {
 
 	protected String key;
 	protected RedisCacheValuesList refList;
+	protected ChunkedRawMatrixIterator chunks;
 	protected Future<RawMatrix> processingQuery;
 
 	protected ExecutorService executor;
@@ -35,6 +35,7 @@ public class ChunkedRawMatrixBaseSource {
 	public ChunkedRawMatrixBaseSource(RedisCacheValuesList rf) throws InterruptedException, ExecutionException {
 		this.refList = rf;
 		this.key = this.refList.getRedisKey();
+		this.chunks = new ChunkedRawMatrixIterator(RedisCacheProxy.getInstance(), this.refList);
 		this.executor = Executors.newFixedThreadPool(1);
 
 		// get first chunk
@@ -46,62 +47,22 @@ public class ChunkedRawMatrixBaseSource {
 
 	}
 
-	private String getNextChunkKey() throws ClassNotFoundException, IOException, InterruptedException {
-		if (refList.getReferenceKeys().size() > nbChunksRead) {
-			String res = refList.getReferenceKeys().get(nbChunksRead).referencedKey;
-			return res;
-		} else {
-			if (!refList.isDone() && !refList.isError()) {
-				boolean ok = false;
-				int waitingCount = 1;
-				while (!ok) {
-					RedisCacheValue val = RedisCacheValue.deserialize(RedisCacheProxy.getInstance().get(key));
-					if (val instanceof RedisCacheValuesList) {
-						this.refList = (RedisCacheValuesList) val;
-
-						if (this.refList.getReferenceKeys().size() > nbChunksRead) {
-							ok = true;
-						} else {
-							Thread.sleep(waitingCount * 10 * 1000);
-							waitingCount += 1;
-						}
-					} else {
-						throw new RedisCacheException("could not retrieve chunk list");
-					}
-				}
-				String res = refList.getReferenceKeys().get(nbChunksRead).referencedKey;
-				return res;
-			} else {
-				return null;
-			}
-		}
-
-	}
-
 	public class GetChunk implements Callable<RawMatrix> {
 
 		public GetChunk() {
 		}
 
 		public RawMatrix call() throws ComputingException {
-			String chunkKey = "";
 			try {
-				chunkKey = getNextChunkKey();
-				if (chunkKey == null) {
-					logger.info("Full matrix retrieve from cache, " + nbChunksRead + "chunks ");
-					return null;
+				if (chunks.hasNext()) {
+					RawMatrix res = chunks.next();
+					nbChunksRead += 1;
+					return res;
 				} else {
-					RawMatrix res = RedisCacheProxy.getInstance().getRawMatrix(chunkKey);
-
-					if (res == null) {
-						throw new ComputingException("Error retrieving chunk " + chunkKey + " from redis");
-					} else {
-						nbChunksRead += 1;
-						return res;
-					}
+					return null;
 				}
-			} catch (ClassNotFoundException | IOException | InterruptedException e) {
-				throw new ComputingException("Error retrieving chunk " + chunkKey + " from redis");
+			} catch (RedisCacheException e) {
+				throw new ComputingException(e.getMessage());
 			}
 		}
 	}
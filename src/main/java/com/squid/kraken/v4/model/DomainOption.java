@@ -122,6 +122,14 @@ public class DomainOption implements Serializable {
 	@JsonInclude(JsonInclude.Include.NON_DEFAULT)
 	public String linkSource = null;
 
+	/*
+	 * Expression of a monotonic column (date, id...) of the domain: if set the
+	 * hierarchy is refreshed incrementally, reading only the rows added since
+	 * the last computation.
+	 */
+	@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+	private String incrementalColumn = null;
+
 	public DomainOption() {
 		// TODO Auto-generated constructor stub
 	}
@@ -154,6 +162,14 @@ public class DomainOption implements Serializable {
 		dependencies.add(dependency);
 	}
 
+	public String getIncrementalColumn() {
+		return incrementalColumn;
+	}
+
+	public void setIncrementalColumn(String incrementalColumn) {
+		this.incrementalColumn = incrementalColumn;
+	}
+
 	public ProjectAnalysisJob getAnalysisJob() {
 		return analysisJob;
 	}
@@ -203,9 +203,7 @@ public class CXFServletService extends CXFNonSpringJaxrsServlet {
 
 		// DimensionStoreManagerFactory initialization
 		try {
-			String embeddedValue = KrakenConfig.getProperty("elastic.local", "true");
-			boolean embedded = embeddedValue.equals("true");
-			ESIndexFacadeConfiguration esConfig = new ESIndexFacadeConfiguration(embedded, null);
+			ESIndexFacadeConfiguration esConfig = ESIndexFacadeConfiguration.fromKrakenConfig();
 			DimensionStoreManagerFactory.init(esConfig);
 		} catch (Exception e) {
 			logger.error("Failed to initialize DimensionStore with error: " + e.toString());
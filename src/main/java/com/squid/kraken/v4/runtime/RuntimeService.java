@@ -31,7 +31,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.squid.core.database.plugins.PluginsLoader;
-import com.squid.kraken.v4.KrakenConfig;
 import com.squid.kraken.v4.ESIndexFacade.ESIndexFacadeConfiguration;
 import com.squid.kraken.v4.api.core.ServiceUtils;
 import com.squid.kraken.v4.caching.redis.CacheInitPoint;
@@ -92,9 +91,7 @@ public class RuntimeService {
         PluginsLoader.INSTANCE.loadPlugins();
         // DimensionStoreManagerFactory initialization
         try {
-			String embeddedValue = KrakenConfig.getProperty("elastic.local", "true");
-			boolean embedded = embeddedValue.equals("true");
-			ESIndexFacadeConfiguration esConfig = new ESIndexFacadeConfiguration(embedded, null);
+            ESIndexFacadeConfiguration esConfig = ESIndexFacadeConfiguration.fromKrakenConfig();
             DimensionStoreManagerFactory.init(esConfig);
         } catch (Exception e) {
             logger.error("Failed to initialized DImensionStore with error: "+e.toString());
@@ -40,6 +40,7 @@ import com.squid.core.domain.IDomain;
 import com.squid.core.export.Selection;
 import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValuesList;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
 import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionMember;
 import com.squid.kraken.v4.core.analysis.engine.processor.ComputingException;
 import com.squid.kraken.v4.core.analysis.model.DashboardSelection;
@@ -78,6 +79,11 @@ public class ExportQueryWriter extends QueryWriter {
 		this.selectedItems = selectedItems;
 	}
 
+	@Override
+	public Priority getPriority() {
+		return Priority.EXPORT;
+	}
+
 	private static String convertToDate(Date inputString)
 	{
 		return dateFormat.format(inputString);
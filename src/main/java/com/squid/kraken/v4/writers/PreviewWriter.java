@@ -48,7 +48,8 @@ public class PreviewWriter extends QueryWriter {
 				this.dm = new DataMatrix(db, (RawMatrix) val, mapper);
 			} else {
 				if (val instanceof RedisCacheValuesList) {
-					RawMatrix raw = RedisCacheManager.getInstance().getRawMatrix(val.getRedisKey());
+					// we already have the chunk list, stream the chunks directly
+					RawMatrix raw = RedisCacheManager.getInstance().getRawMatrix((RedisCacheValuesList) val);
 					this.dm = new DataMatrix(db, raw, mapper);
 				}
 			}
@@ -26,6 +26,7 @@ package com.squid.kraken.v4.writers;
 import com.squid.core.database.model.Database;
 import com.squid.core.expression.scope.ScopeException;
 import com.squid.kraken.v4.caching.redis.datastruct.RedisCacheValue;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
 import com.squid.kraken.v4.core.analysis.engine.processor.ComputingException;
 import com.squid.kraken.v4.core.analysis.engine.query.mapping.QueryMapper;
 
@@ -47,6 +48,13 @@ public abstract class QueryWriter {
 
 	public abstract void write() throws ScopeException, ComputingException;
 
+	/**
+	 * @return the priority of the query computing the source
+	 */
+	public Priority getPriority() {
+		return Priority.INTERACTIVE;
+	}
+
 	public void setSource(RedisCacheValue val) {
 		this.val = val;
 	};
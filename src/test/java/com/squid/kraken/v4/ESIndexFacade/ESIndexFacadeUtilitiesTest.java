@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.ESIndexFacade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionMember;
+
+public class ESIndexFacadeUtilitiesTest {
+
+	private static DimensionMember member(Object id) {
+		return new DimensionMember(-1, id, 0);
+	}
+
+	@Test
+	public void testCorrelationIDIsStable() {
+		List<String> types = Arrays.asList("country", "city");
+		HashMap<String, Object> source = ESIndexFacadeUtilities.buildSourceIDs(types,
+				Arrays.asList(member("FR"), member("Paris")), null);
+		Map<String, Object> reversed = new LinkedHashMap<String, Object>();
+		reversed.put("city", "Paris");
+		reversed.put("country", "FR");
+		assertEquals(ESIndexFacadeUtilities.buildCorrelationID(source),
+				ESIndexFacadeUtilities.buildCorrelationID(reversed));
+		assertEquals(64, ESIndexFacadeUtilities.buildCorrelationID(source).length());
+	}
+
+	@Test
+	public void testCorrelationIDDependsOnMembers() {
+		List<String> types = Arrays.asList("country", "city");
+		String id = ESIndexFacadeUtilities.buildCorrelationID(
+				ESIndexFacadeUtilities.buildSourceIDs(types, Arrays.asList(member("FR"), member("Paris")), null));
+		assertFalse(id.equals(ESIndexFacadeUtilities.buildCorrelationID(
+				ESIndexFacadeUtilities.buildSourceIDs(types, Arrays.asList(member("FR"), member("Lyon")), null))));
+		assertFalse(id.equals(ESIndexFacadeUtilities.buildCorrelationID(
+				ESIndexFacadeUtilities.buildSourceIDs(types, Arrays.asList(member("FR"), null), null))));
+		// the separators keep the fields apart
+		Map<String, Object> shifted = new HashMap<String, Object>();
+		shifted.put("country", "FRParis");
+		shifted.put("city", "");
+		assertFalse(id.equals(ESIndexFacadeUtilities.buildCorrelationID(shifted)));
+	}
+
+}
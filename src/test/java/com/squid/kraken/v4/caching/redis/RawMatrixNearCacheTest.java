@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.squid.kraken.v4.caching.redis.datastruct.RawMatrix;
+import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
+
+public class RawMatrixNearCacheTest {
+
+	private static RawMatrix createMatrix(int size) {
+		RawMatrix matrix = new RawMatrix();
+		matrix.getColNames().add("name");
+		matrix.getColNames().add("value");
+		matrix.getColTypes().add(java.sql.Types.VARCHAR);
+		matrix.getColTypes().add(java.sql.Types.INTEGER);
+		for (int i = 0; i < size; i++) {
+			matrix.addRow(new RawRow(new Object[] { "row" + i, i }));
+		}
+		return matrix;
+	}
+
+	@Test
+	public void testGetReturnsCopy() {
+		RawMatrixNearCache cache = new RawMatrixNearCache(1000000);
+		RawMatrix matrix = createMatrix(3);
+		cache.put("key", matrix, null);
+		RawMatrix copy = cache.get("key");
+		assertNotNull(copy);
+		assertNotSame(matrix, copy);
+		// the caller may sort or extend the copy
+		Collections.reverse(copy.getRows());
+		copy.addRow(new RawRow(new Object[] { "extra", 3 }));
+		copy.getColNames().add("extra");
+		RawMatrix again = cache.get("key");
+		assertEquals(3, again.getRows().size());
+		assertEquals("row0", again.getRows().get(0).data[0]);
+		assertEquals(2, again.getColNames().size());
+		assertNull(cache.get("unknown"));
+	}
+
+	@Test
+	public void testInvalidate() {
+		RawMatrixNearCache cache = new RawMatrixNearCache(1000000);
+		RawMatrix orphan = createMatrix(4);
+		cache.put("k1", createMatrix(1), Arrays.asList("a", "b"));
+		cache.put("k2", createMatrix(2), Arrays.asList("b"));
+		cache.put("k3", createMatrix(3), Arrays.asList("c"));
+		cache.put("k4", orphan, null);
+		cache.invalidate(Arrays.asList("a"));
+		assertNull(cache.get("k1"));
+		assertNotNull(cache.get("k2"));
+		assertNotNull(cache.get("k3"));
+		cache.invalidate(Arrays.asList("b", "c"));
+		assertNull(cache.get("k2"));
+		assertNull(cache.get("k3"));
+		assertNotNull(cache.get("k4"));
+		assertEquals(1, cache.getStats().getEntries());
+		assertEquals(orphan.getHeapSize(), cache.getStats().getSizeInByte());
+	}
+
+	@Test
+	public void testWeighByHeapSize() {
+		RawMatrix matrix = createMatrix(100);
+		// a compressed chunk can be much smaller than the decoded matrix
+		matrix.setSerializedSize(100);
+		long heapSize = matrix.getHeapSize();
+		assertTrue(heapSize > 100 * 50);
+		RawMatrixNearCache small = new RawMatrixNearCache(heapSize - 1);
+		small.put("key", matrix, null);
+		assertNull(small.get("key"));
+		RawMatrixNearCache large = new RawMatrixNearCache(heapSize * 10);
+		large.put("key", matrix, null);
+		assertNotNull(large.get("key"));
+		assertEquals(heapSize, large.getStats().getSizeInByte());
+	}
+
+	@Test
+	public void testReplace() {
+		RawMatrixNearCache cache = new RawMatrixNearCache(1000000);
+		cache.put("key", createMatrix(10), null);
+		RawMatrix matrix = createMatrix(2);
+		cache.put("key", matrix, null);
+		assertEquals(2, cache.get("key").getRows().size());
+		assertEquals(matrix.getHeapSize(), cache.getStats().getSizeInByte());
+	}
+
+}
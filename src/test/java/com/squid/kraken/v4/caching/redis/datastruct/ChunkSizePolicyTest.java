@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChunkSizePolicyTest {
+
+	private static final long KB = 1024;
+	private static final long MB = 1024 * KB;
+
+	@Test
+	public void testFirstChunkIsSmall() {
+		ChunkSizePolicy policy = new ChunkSizePolicy(512 * KB, 10 * MB, 2000);
+		assertEquals(512 * KB, policy.getChunkSizeInBytes());
+		// a slow first chunk is closed on time too
+		assertFalse(policy.isLate(1000));
+		assertTrue(policy.isLate(2000));
+	}
+
+	@Test
+	public void testNextChunksAdapt() {
+		ChunkSizePolicy policy = new ChunkSizePolicy(512 * KB, 10 * MB, 2000);
+		// 512 KB in 100 ms: grow to 10 MB in 2 s
+		policy.record(512 * KB, 512 * KB, 100, 100);
+		assertEquals(10 * MB, policy.getChunkSizeInBytes());
+		// 10 MB in 10 s: 2 MB in 2 s
+		policy.record(10 * MB, 10 * MB, 1000, 10000);
+		assertEquals(2 * MB, policy.getChunkSizeInBytes());
+		assertTrue(policy.isLate(2000));
+		// very slow: bounded by the min size
+		policy.record(2 * MB, 2 * MB, 100, 100000);
+		assertEquals(512 * KB, policy.getChunkSizeInBytes());
+		// very fast: bounded by the max size
+		policy.record(512 * KB, 512 * KB, 100, 1);
+		assertEquals(10 * MB, policy.getChunkSizeInBytes());
+	}
+
+	@Test
+	public void testEstimateIsCalibrated() {
+		ChunkSizePolicy policy = new ChunkSizePolicy(512 * KB, 10 * MB, 0);
+		// nothing encoded yet
+		assertEquals(512 * KB, policy.getEstimatedSizeLimit());
+		// the chunk compresses 4 times: a 10 MB chunk is 40 MB of estimate
+		policy.record(2 * MB, 512 * KB, 1000, 1000);
+		assertEquals(10 * MB, policy.getChunkSizeInBytes());
+		assertEquals(40 * MB, policy.getEstimatedSizeLimit());
+		// the ratio is computed on all the chunks
+		policy.record(12 * MB, 9 * MB + 512 * KB, 1000, 1000);
+		assertEquals(10 * MB, policy.getChunkSizeInBytes());
+		assertEquals(14 * MB, policy.getEstimatedSizeLimit());
+	}
+
+	@Test
+	public void testFixed() {
+		ChunkSizePolicy policy = ChunkSizePolicy.fixed(10 * MB);
+		assertEquals(10 * MB, policy.getChunkSizeInBytes());
+		policy.record(10 * MB, 10 * MB, 1000, 10000);
+		assertEquals(10 * MB, policy.getChunkSizeInBytes());
+		assertFalse(policy.isLate(60000));
+	}
+
+	@Test
+	public void testFetchSize() {
+		ChunkSizePolicy policy = new ChunkSizePolicy(512 * KB, 10 * MB, 2000);
+		// nothing read yet
+		assertEquals(500, policy.getFetchSize(500, 10000));
+		// the driver reports 0: do not let it fetch everything
+		assertEquals(1000, policy.getFetchSize(0, 10000));
+		assertEquals(200, policy.getFetchSize(0, 200));
+		// special meaning for the driver
+		assertEquals(0, policy.getFetchSize(0, 0));
+		// 1 KB per row, 2 MB chunks in 4 round-trips
+		policy.record(10 * MB, 10 * MB, 10 * 1024, 10000);
+		assertEquals(512, policy.getFetchSize(0, 10000));
+	}
+
+}
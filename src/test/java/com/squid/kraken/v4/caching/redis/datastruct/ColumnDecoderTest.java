@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.squid.core.jdbc.formatter.IJDBCDataFormatter;
+
+public class ColumnDecoderTest {
+
+	/**
+	 * a ResultSet over the rows; the primitive getters fail on values that do
+	 * not fit, as most drivers do
+	 */
+	private static class Rows implements InvocationHandler {
+
+		private Object[][] rows;
+		private int current = -1;
+		private boolean wasNull = false;
+		private int primitiveReads = 0;
+
+		Rows(Object[][] rows) {
+			this.rows = rows;
+		}
+
+		ResultSet create() {
+			return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+					this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("next")) {
+				current++;
+				return current < rows.length;
+			} else if (name.equals("wasNull")) {
+				return wasNull;
+			}
+			Object value = rows[current][(Integer) args[0] - 1];
+			wasNull = value == null;
+			if (name.equals("getObject")) {
+				return value;
+			}
+			primitiveReads++;
+			Number number = value != null ? (Number) value : 0;
+			if (name.equals("getInt")) {
+				if (number.longValue() != number.intValue()) {
+					throw new SQLException("out of range");
+				}
+				return number.intValue();
+			} else if (name.equals("getLong")) {
+				return number.longValue();
+			} else if (name.equals("getDouble")) {
+				return number.doubleValue();
+			}
+			throw new UnsupportedOperationException(name);
+		}
+
+	}
+
+	/**
+	 * @param converting
+	 *            if true, the formatter turns the doubles into BigDecimal
+	 */
+	private static IJDBCDataFormatter formatter(final boolean converting) {
+		return (IJDBCDataFormatter) Proxy.newProxyInstance(ColumnDecoderTest.class.getClassLoader(),
+				new Class<?>[] { IJDBCDataFormatter.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("unboxJDBCObject")) {
+							if (converting && args[0] instanceof Double) {
+								return BigDecimal.valueOf((Double) args[0]);
+							}
+							return args[0];
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static ColumnarRows decode(Rows rows, int[] types, ColumnDecoder[] decoders) throws SQLException {
+		ResultSet result = rows.create();
+		RawColumnsBuilder builder = new RawColumnsBuilder(types.length);
+		while (result.next()) {
+			for (ColumnDecoder decoder : decoders) {
+				decoder.decode(result, builder);
+			}
+			builder.endRow();
+		}
+		return new ColumnarRows(builder.build(), builder.getNbRows());
+	}
+
+	@Test
+	public void testPrimitiveColumns() throws SQLException {
+		Object[][] data = new Object[][] { { null, null, null }, { 1, 10L, 1.5 },
+				{ Integer.MIN_VALUE, Long.MAX_VALUE, -2.0 }, { Integer.MAX_VALUE, null, null } };
+		int[] types = new int[] { Types.INTEGER, Types.BIGINT, Types.DOUBLE };
+		Rows rows = new Rows(data);
+		ColumnDecoder[] decoders = ColumnDecoder.create(types, formatter(false));
+		ColumnarRows columns = decode(rows, types, decoders);
+		for (ColumnDecoder decoder : decoders) {
+			assertTrue(((ColumnDecoder.PrimitiveDecoder) decoder).isPrimitive());
+		}
+		assertTrue(rows.primitiveReads > 0);
+		assertTrue(columns.getColumn(0) instanceof RawColumn.IntColumn);
+		assertTrue(columns.getColumn(1) instanceof RawColumn.LongColumn);
+		assertTrue(columns.getColumn(2) instanceof RawColumn.DoubleColumn);
+		assertRows(data, columns);
+	}
+
+	@Test
+	public void testUnsignedInteger() throws SQLException {
+		// e.g. MySQL INT UNSIGNED is returned as a Long
+		Object[][] data = new Object[][] { { 4000000000L }, { 1L }, { null } };
+		int[] types = new int[] { Types.INTEGER };
+		Rows rows = new Rows(data);
+		ColumnDecoder[] decoders = ColumnDecoder.create(types, formatter(false));
+		ColumnarRows columns = decode(rows, types, decoders);
+		assertFalse(((ColumnDecoder.PrimitiveDecoder) decoders[0]).isPrimitive());
+		assertEquals(0, rows.primitiveReads);
+		assertRows(data, columns);
+	}
+
+	@Test
+	public void testConvertingFormatter() throws SQLException {
+		Object[][] data = new Object[][] { { 1.5 }, { null }, { 2.0 } };
+		int[] types = new int[] { Types.DOUBLE };
+		Rows rows = new Rows(data);
+		ColumnDecoder[] decoders = ColumnDecoder.create(types, formatter(true));
+		ColumnarRows columns = decode(rows, types, decoders);
+		assertFalse(((ColumnDecoder.PrimitiveDecoder) decoders[0]).isPrimitive());
+		assertEquals(0, rows.primitiveReads);
+		assertEquals(BigDecimal.valueOf(1.5), columns.getValue(0, 0));
+		assertEquals(null, columns.getValue(0, 1));
+		assertEquals(BigDecimal.valueOf(2.0), columns.getValue(0, 2));
+	}
+
+	@Test
+	public void testRead() throws SQLException {
+		Object[][] data = new Object[][] { { null, "a" }, { 3, "b" }, { 4, null } };
+		int[] types = new int[] { Types.INTEGER, Types.VARCHAR };
+		ResultSet result = new Rows(data).create();
+		ColumnDecoder[] decoders = ColumnDecoder.create(types, formatter(false));
+		for (Object[] row : data) {
+			assertTrue(result.next());
+			for (int i = 0; i < row.length; i++) {
+				assertEquals(row[i], decoders[i].read(result));
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws SQLException, IOException {
+		Object[][] data = new Object[][] { { 1, 10L, 1.5, "x" }, { null, null, null, null },
+				{ -7, Long.MIN_VALUE, Double.MAX_VALUE, "y" }, { 8, 0L, 0.0, "x" } };
+		int[] types = new int[] { Types.INTEGER, Types.BIGINT, Types.DOUBLE, Types.VARCHAR };
+		ResultSet result = new Rows(data).create();
+		ColumnDecoder[] decoders = ColumnDecoder.create(types, formatter(false));
+		RawColumnsBuilder builder = new RawColumnsBuilder(types.length);
+		while (result.next()) {
+			for (ColumnDecoder decoder : decoders) {
+				decoder.decode(result, builder);
+			}
+			builder.endRow();
+		}
+		Kryo kryo = new Kryo();
+		kryo.setRegistrationRequired(true);
+		ByteArrayOutputStream baout = new ByteArrayOutputStream();
+		Output out = new Output(baout);
+		RawColumnsCodec.write(out, kryo, builder.build(), builder.getNbRows(), builder.getDictionary(), true);
+		out.close();
+		Input in = new Input(baout.toByteArray());
+		ColumnarRows columns = RawColumnsCodec.readColumns(RawColumnsCodec.readBlock(in), kryo, types.length);
+		in.close();
+		assertRows(data, columns);
+	}
+
+	private static void assertRows(Object[][] expected, ColumnarRows rows) {
+		assertEquals(expected.length, rows.size());
+		for (int row = 0; row < expected.length; row++) {
+			for (int col = 0; col < expected[row].length; col++) {
+				assertEquals("row " + row + " column " + col, expected[row][col], rows.getValue(col, row));
+			}
+		}
+	}
+
+}
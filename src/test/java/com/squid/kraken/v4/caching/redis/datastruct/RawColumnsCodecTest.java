@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * round-trip tests for the VERSION 4 columnar encoding, and for reading the
+ * row by row format written by the previous versions
+ *
+ */
+public class RawColumnsCodecTest {
+
+	private static final Object[][] ROWS = new Object[][] {
+			{ "a", 1, 10L, 1.5, new java.sql.Date(1000000L), timestamp(2000000L, 123456789), new BigDecimal("1.10") },
+			{ null, null, null, null, null, null, null },
+			{ "b", Integer.MIN_VALUE, Long.MIN_VALUE, -0.0, new java.sql.Date(0L), timestamp(0L, 0), null },
+			{ "a", Integer.MAX_VALUE, Long.MAX_VALUE, Double.NaN, null, timestamp(-1000L, 1), new BigDecimal("-3") },
+			{ "", 0, 0L, null, new java.sql.Date(-86400000L), null, new BigDecimal("0") } };
+
+	private static Timestamp timestamp(long time, int nanos) {
+		Timestamp timestamp = new Timestamp(time);
+		timestamp.setNanos(nanos);
+		return timestamp;
+	}
+
+	private static Kryo createKryo() {
+		Kryo kryo = new Kryo();
+		kryo.setRegistrationRequired(true);
+		kryo.setReferences(false);
+		kryo.register(BigDecimal.class);
+		return kryo;
+	}
+
+	private static ColumnarRows roundTrip(Object[][] rows, int nbColumns, boolean compress) throws IOException {
+		RawColumnsBuilder builder = new RawColumnsBuilder(nbColumns);
+		for (Object[] row : rows) {
+			for (int i = 0; i < nbColumns; i++) {
+				builder.add(i, row[i]);
+			}
+			builder.endRow();
+		}
+		ByteArrayOutputStream baout = new ByteArrayOutputStream();
+		Output out = new Output(baout);
+		RawColumnsCodec.write(out, createKryo(), builder.build(), builder.getNbRows(), builder.getDictionary(),
+				compress);
+		out.close();
+		Input in = new Input(baout.toByteArray());
+		try {
+			byte[] block = RawColumnsCodec.readBlock(in);
+			return RawColumnsCodec.readColumns(block, createKryo(), nbColumns);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void assertRows(Object[][] expected, ColumnarRows rows) {
+		assertEquals(expected.length, rows.size());
+		for (int row = 0; row < expected.length; row++) {
+			for (int col = 0; col < expected[row].length; col++) {
+				assertEquals("row " + row + " column " + col, expected[row][col], rows.getValue(col, row));
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTripWithNulls() throws IOException {
+		assertRows(ROWS, roundTrip(ROWS, 7, false));
+	}
+
+	@Test
+	public void testRoundTripCompressed() throws IOException {
+		assertRows(ROWS, roundTrip(ROWS, 7, true));
+	}
+
+	@Test
+	public void testTypedColumns() throws IOException {
+		ColumnarRows rows = roundTrip(ROWS, 7, false);
+		assertTrue(rows.getColumn(0) instanceof RawColumn.StringColumn);
+		assertTrue(rows.getColumn(1) instanceof RawColumn.IntColumn);
+		assertTrue(rows.getColumn(2) instanceof RawColumn.LongColumn);
+		assertTrue(rows.getColumn(3) instanceof RawColumn.DoubleColumn);
+		assertTrue(rows.getColumn(1).isNull(1));
+		assertFalse(rows.getColumn(1).isNull(4));
+	}
+
+	@Test
+	public void testTimestampNanos() throws IOException {
+		ColumnarRows rows = roundTrip(ROWS, 7, false);
+		assertEquals(123456789, ((Timestamp) rows.getValue(5, 0)).getNanos());
+		assertEquals(1, ((Timestamp) rows.getValue(5, 3)).getNanos());
+	}
+
+	@Test
+	public void testEmptyChunk() throws IOException {
+		ColumnarRows rows = roundTrip(new Object[0][], 3, true);
+		assertEquals(0, rows.size());
+		assertEquals(3, rows.getColumns().length);
+	}
+
+	@Test
+	public void testNullColumns() throws IOException {
+		Object[][] nulls = new Object[][] { { null, null }, { null, null }, { null, null } };
+		ColumnarRows rows = roundTrip(nulls, 2, false);
+		assertTrue(rows.getColumn(0) instanceof RawColumn.NullColumn);
+		assertRows(nulls, rows);
+	}
+
+	@Test
+	public void testRawMatrixRoundTrip() throws IOException, ClassNotFoundException {
+		RawMatrix matrix = RawMatrix.getTestMatrix();
+		matrix.getRows().get(3).data[0] = null;
+		matrix.getRows().get(4).data[1] = null;
+		matrix.setMoreData(false);
+		matrix.setExecutionDate(new Date(42L));
+		RawMatrix copy = RawMatrix.deserialize(matrix.serialize());
+		assertEquals(matrix.getColNames(), copy.getColNames());
+		assertEquals(matrix.getColTypes(), copy.getColTypes());
+		assertEquals(matrix.getRows().size(), copy.getRows().size());
+		for (int row = 0; row < matrix.getRows().size(); row++) {
+			for (int col = 0; col < 2; col++) {
+				assertEquals(matrix.getRows().get(row).data[col], copy.getRows().get(row).data[col]);
+			}
+		}
+		assertFalse(copy.isMoreData());
+		assertEquals(42L, copy.getExecutionDate().getTime());
+	}
+
+	@Test
+	public void testReadVersion0() throws IOException, ClassNotFoundException {
+		assertLegacy(0);
+	}
+
+	@Test
+	public void testReadVersion1() throws IOException, ClassNotFoundException {
+		assertLegacy(1);
+	}
+
+	@Test
+	public void testReadVersion2() throws IOException, ClassNotFoundException {
+		assertLegacy(2);
+	}
+
+	@Test
+	public void testReadVersion3() throws IOException, ClassNotFoundException {
+		assertLegacy(3);
+	}
+
+	private void assertLegacy(int version) throws IOException, ClassNotFoundException {
+		Object[][] expected = new Object[][] { { "x", 1, null }, { "y", null, "x" }, { "x", 3, "y" }, { null, 4, "x" } };
+		RawMatrix matrix = RawMatrix.deserialize(writeLegacy(version, expected));
+		assertEquals(4, matrix.getRows().size());
+		assertEquals(3, matrix.getColNames().size());
+		assertEquals("c1", matrix.getColNames().get(1));
+		assertEquals(Integer.valueOf(Types.INTEGER), matrix.getColTypes().get(1));
+		for (int row = 0; row < expected.length; row++) {
+			for (int col = 0; col < expected[row].length; col++) {
+				assertEquals(expected[row][col], matrix.getRows().get(row).data[col]);
+			}
+		}
+		assertTrue(matrix.isMoreData());
+		if (version >= 1) {
+			assertEquals(42L, matrix.getExecutionDate().getTime());
+		}
+	}
+
+	/**
+	 * write the row by row format used before VERSION 4
+	 */
+	private byte[] writeLegacy(int version, Object[][] rows) {
+		Kryo kryo = createKryo();
+		ByteArrayOutputStream baout = new ByteArrayOutputStream();
+		Output out = new Output(baout);
+		// no class registration
+		out.writeInt(0);
+		if (version >= 1) {
+			out.writeInt(-1);
+			out.writeInt(version);
+		}
+		if (version >= 2) {
+			out.writeInt(RedisCacheValue.RedisCacheType.RAW_MATRIX.ordinal());
+		}
+		out.writeInt(3);
+		for (int i = 0; i < 3; i++) {
+			out.writeString("c" + i);
+		}
+		out.writeInt(Types.VARCHAR);
+		out.writeInt(Types.INTEGER);
+		out.writeInt(Types.VARCHAR);
+		ArrayList<String> lookup = new ArrayList<String>();
+		for (Object[] row : rows) {
+			out.writeBoolean(true);
+			for (Object value : row) {
+				if (value instanceof String) {
+					int ref = lookup.indexOf(value);
+					if (ref < 0) {
+						lookup.add((String) value);
+						out.writeByte(2);// MEMBER_DEFINITION
+						out.writeString((String) value);
+					} else {
+						out.writeByte(1);// MEMBER_REFERENCE
+						out.writeInt(ref);
+					}
+				} else {
+					out.writeByte(3);// MEMBER_VALUE
+					kryo.writeClassAndObject(out, value);
+				}
+			}
+		}
+		out.writeBoolean(false);
+		out.writeBoolean(true);
+		if (version >= 1) {
+			out.writeLong(42L);
+		}
+		out.close();
+		return baout.toByteArray();
+	}
+
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.datastruct;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StringTableTest {
+
+	@Test
+	public void testCodes() {
+		StringTable table = new StringTable();
+		assertEquals(0, table.add("a"));
+		assertEquals(1, table.add("b"));
+		assertEquals(0, table.add("a"));
+		assertEquals(2, table.add(""));
+		assertEquals(2, table.add(new String("")));
+		assertEquals(3, table.size());
+		assertEquals("b", table.get(1));
+		assertEquals("a", table.getValues().get(0));
+	}
+
+	@Test
+	public void testSameHashCode() {
+		// "Aa" and "BB" have the same hashCode
+		StringTable table = new StringTable();
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		assertEquals(0, table.add("Aa"));
+		assertEquals(1, table.add("BB"));
+		assertEquals(0, table.add("Aa"));
+		assertEquals(1, table.add("BB"));
+	}
+
+	@Test
+	public void testRehash() {
+		StringTable table = new StringTable();
+		int count = 100000;
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, table.add("value" + i));
+		}
+		// the codes are stable after the table grew
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, table.add("value" + i));
+			assertEquals("value" + i, table.get(i));
+		}
+		assertEquals(count, table.size());
+		assertEquals(count, table.getValues().size());
+	}
+
+}
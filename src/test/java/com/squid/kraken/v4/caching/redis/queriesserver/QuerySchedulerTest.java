@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queriesserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
+import com.squid.kraken.v4.core.analysis.engine.processor.ComputingException;
+
+public class QuerySchedulerTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void testLimitGrowsOnSuccess() throws Exception {
+		QueryScheduler scheduler = new QueryScheduler("test", 1, 4, 10, 60000);
+		assertEquals(1, scheduler.submit(new Result(1), Priority.INTERACTIVE).get().intValue());
+		awaitDone(scheduler, 1);
+		// +1/limit
+		assertEquals(2.0, scheduler.getStats().getLimit(), DELTA);
+		assertEquals(1, scheduler.getStats().getCompleted());
+	}
+
+	@Test
+	public void testLimitIsBounded() throws Exception {
+		QueryScheduler scheduler = new QueryScheduler("test", 1, 1, 10, 60000);
+		scheduler.submit(new Result(1), Priority.INTERACTIVE).get();
+		awaitDone(scheduler, 1);
+		assertEquals(1.0, scheduler.getStats().getLimit(), DELTA);
+	}
+
+	@Test
+	public void testLimitShrinksOnDatasourceError() throws Exception {
+		QueryScheduler scheduler = new QueryScheduler("test", 4, 4, 10, 60000);
+		expectFailure(scheduler.submit(new Failure(new RedisCacheException("failed", new SQLException("boom"))),
+				Priority.INTERACTIVE));
+		awaitDone(scheduler, 1);
+		assertEquals(3.0, scheduler.getStats().getLimit(), DELTA);
+		expectFailure(scheduler.submit(new Failure(new RedisCacheException(new ComputingException("boom"))),
+				Priority.INTERACTIVE));
+		awaitDone(scheduler, 2);
+		assertEquals(2.25, scheduler.getStats().getLimit(), DELTA);
+		assertEquals(2, scheduler.getStats().getFailed());
+	}
+
+	@Test
+	public void testOtherErrorsKeepTheLimit() throws Exception {
+		QueryScheduler scheduler = new QueryScheduler("test", 4, 4, 10, 60000);
+		expectFailure(scheduler.submit(new Failure(new RedisCacheException("redis is down")), Priority.INTERACTIVE));
+		awaitDone(scheduler, 1);
+		assertEquals(4.0, scheduler.getStats().getLimit(), DELTA);
+		assertEquals(1, scheduler.getStats().getFailed());
+	}
+
+	@Test
+	public void testIsDatasourceError() {
+		assertTrue(QueryScheduler.isDatasourceError(new SQLException("boom")));
+		assertTrue(QueryScheduler.isDatasourceError(
+				new ExecutionException(new RedisCacheException("failed", new SQLException("boom")))));
+		assertTrue(QueryScheduler.isDatasourceError(new RuntimeException(new ComputingException("boom"))));
+		assertFalse(QueryScheduler.isDatasourceError(new RedisCacheException("failed")));
+		assertFalse(QueryScheduler.isDatasourceError(null));
+	}
+
+	@Test
+	public void testQueueFullIsRejected() throws Exception {
+		QueryScheduler scheduler = new QueryScheduler("test", 1, 1, 1, 60000);
+		Blocking running = new Blocking();
+		Future<Integer> first = scheduler.submit(running, Priority.INTERACTIVE);
+		running.started.await();
+		Future<Integer> queued = scheduler.submit(new Result(2), Priority.INTERACTIVE);
+		try {
+			scheduler.submit(new Result(3), Priority.INTERACTIVE);
+			fail("the queue is full");
+		} catch (RedisCacheException e) {
+			// expected
+		}
+		assertEquals(1, scheduler.getStats().getRejected());
+		assertEquals(1, scheduler.getStats().getQueued());
+		// the queued query runs once the slot is free
+		running.release.countDown();
+		assertEquals(1, first.get().intValue());
+		assertEquals(2, queued.get().intValue());
+	}
+
+	@Test
+	public void testMaxWaitDrop() throws Exception {
+		QueryScheduler scheduler = new QueryScheduler("test", 1, 1, 10, 50);
+		Blocking running = new Blocking();
+		Future<Integer> first = scheduler.submit(running, Priority.INTERACTIVE);
+		running.started.await();
+		Future<Integer> queued = scheduler.submit(new Result(2), Priority.INTERACTIVE);
+		Thread.sleep(200);
+		// the slot is free after the max wait: the queued query is dropped
+		running.release.countDown();
+		assertEquals(1, first.get().intValue());
+		try {
+			queued.get();
+			fail("the query must be dropped");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RedisCacheException);
+		}
+		assertEquals(1, scheduler.getStats().getDropped());
+		assertEquals(0, scheduler.getStats().getQueued());
+	}
+
+	private static void expectFailure(Future<Integer> future) throws InterruptedException {
+		try {
+			future.get();
+			fail("the query must fail");
+		} catch (ExecutionException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * the future is done before the scheduler records the completion
+	 */
+	private static void awaitDone(QueryScheduler scheduler, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			QuerySchedulerStats stats = scheduler.getStats();
+			if (stats.getCompleted() + stats.getFailed() >= count) {
+				return;
+			}
+			Thread.sleep(5);
+		}
+		fail("the scheduler did not record the completion");
+	}
+
+	private static class Result implements Callable<Integer> {
+
+		private int value;
+
+		public Result(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public Integer call() {
+			return value;
+		}
+
+	}
+
+	private static class Failure implements Callable<Integer> {
+
+		private RuntimeException error;
+
+		public Failure(RuntimeException error) {
+			this.error = error;
+		}
+
+		@Override
+		public Integer call() {
+			throw error;
+		}
+
+	}
+
+	private static class Blocking implements Callable<Integer> {
+
+		private CountDownLatch started = new CountDownLatch(1);
+		private CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public Integer call() throws Exception {
+			started.countDown();
+			release.await();
+			return 1;
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class QueryWorkerLoadTest {
+
+	private static final String URL = "jdbc:postgresql://db:5432/sales?user=admin&password=secret";
+
+	@Test
+	public void testRoundTrip() {
+		HashMap<String, Integer> connections = new HashMap<String, Integer>();
+		connections.put(QueryWorkerLoad.getDatasourceKey(URL), 3);
+		QueryWorkerLoad load = QueryWorkerLoad.deserialize(
+				new QueryWorkerLoad("worker:9000", 5, 1024, connections).serialize());
+		assertEquals("worker:9000", load.getWorkerId());
+		assertEquals(5, load.getActiveQueries());
+		assertEquals(1024, load.getBytesInFlight());
+		assertEquals(3, load.getConnections(URL));
+		assertEquals(0, load.getConnections("jdbc:postgresql://other:5432/sales"));
+	}
+
+	@Test
+	public void testJdbcURLIsNotPublished() {
+		HashMap<String, Integer> connections = new HashMap<String, Integer>();
+		connections.put(QueryWorkerLoad.getDatasourceKey(URL), 1);
+		String serialized = new String(new QueryWorkerLoad("worker:9000", 1, 0, connections).serialize(),
+				StandardCharsets.ISO_8859_1);
+		assertFalse(serialized.contains("secret"));
+		assertFalse(serialized.contains("jdbc:"));
+	}
+
+}
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.caching.redis.queryworkerserver.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.squid.kraken.v4.caching.redis.RedisCacheException;
+import com.squid.kraken.v4.caching.redis.queriesserver.QueryScheduler;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.IQueryWorkerServer;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobRequest.Priority;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.QueryWorkerJobStatus;
+import com.squid.kraken.v4.caching.redis.queryworkerserver.rpc.QueryWorkerRpcProtocol.Frame;
+import com.squid.kraken.v4.model.ProjectPK;
+
+/**
+ * round-trip tests of the worker binary protocol over a loopback socket
+ *
+ */
+public class QueryWorkerRpcTest {
+
+	private static final String SECRET = "test-secret";
+
+	private FakeWorker worker;
+	private QueryWorkerRpcServer server;
+	private SocketRpcChannel channel;
+	private QueryWorkerRpcStub stub;
+
+	@Before
+	public void setUp() {
+		worker = new FakeWorker();
+		server = new QueryWorkerRpcServer(worker, "127.0.0.1", 0, SECRET);
+		server.start();
+		channel = new SocketRpcChannel("127.0.0.1", server.getPort(), 2, SECRET);
+		stub = new QueryWorkerRpcStub("test", channel, 1000);
+	}
+
+	@After
+	public void tearDown() {
+		worker.release.countDown();
+		channel.close();
+		server.stop();
+	}
+
+	private static QueryWorkerJobRequest newRequest() {
+		QueryWorkerJobRequest request = new QueryWorkerJobRequest("user", "login", new ProjectPK("customer", "project"),
+				"key", "select 1", "job", "jdbc:test", "username", "pwd", 60, 1000L);
+		request.setPriority(Priority.EXPORT);
+		request.setLeaseToken("token");
+		return request;
+	}
+
+	@Test
+	public void testFetch() {
+		assertEquals(42, stub.fetch(newRequest()));
+		QueryWorkerJobRequest received = worker.received;
+		assertEquals("user", received.getUserID());
+		assertEquals("login", received.getLogin());
+		assertEquals("customer", received.getProjectPK().getCustomerId());
+		assertEquals("project", received.getProjectPK().getProjectId());
+		assertEquals("key", received.getKey());
+		assertEquals("select 1", received.getSQLQuery());
+		assertEquals("job", received.getJobId());
+		assertEquals("jdbc:test", received.getJdbcURL());
+		assertEquals("username", received.getUsername());
+		assertEquals("pwd", received.getPwd());
+		assertEquals(60, received.getTTL());
+		assertEquals(1000L, received.getLimit());
+		assertEquals(Priority.EXPORT, received.getPriority());
+		assertEquals("token", received.getLeaseToken());
+	}
+
+	@Test
+	public void testCalls() {
+		assertEquals("hello", stub.hello());
+		assertEquals(7, stub.getLoad());
+		assertTrue(stub.isQueryOngoing("ongoing"));
+		assertFalse(stub.isQueryOngoing("other"));
+		assertTrue(stub.cancelOngoingQuery("customer", "ongoing"));
+		List<QueryWorkerJobStatus> queries = stub.getOngoingQueries("customer");
+		assertEquals(1, queries.size());
+		assertEquals(QueryWorkerJobStatus.Status.READING, queries.get(0).getStatus());
+		assertEquals("job", queries.get(0).getJobID());
+		assertEquals(100L, queries.get(0).getLineRead());
+		assertEquals(3, queries.get(0).getChunks());
+	}
+
+	@Test
+	public void testConcurrentCalls() throws InterruptedException {
+		final int nbThreads = 8;
+		final CountDownLatch done = new CountDownLatch(nbThreads);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		for (int i = 0; i < nbThreads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++) {
+							assertEquals(7, stub.getLoad());
+							assertEquals("hello", stub.hello());
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	@Test
+	public void testError() {
+		try {
+			stub.fetch(new QueryWorkerJobRequest("user", "login", null, "fail", "select 1", "job", "jdbc:test",
+					"username", "pwd", 60, 1000L));
+			fail("the worker error must be reported");
+		} catch (RedisCacheException e) {
+			assertEquals("query failed", e.getMessage());
+			assertFalse(QueryScheduler.isDatasourceError(e));
+		}
+		// the connection is still usable
+		assertEquals(7, stub.getLoad());
+	}
+
+	@Test
+	public void testDatasourceError() {
+		try {
+			stub.fetch(new QueryWorkerJobRequest("user", "login", null, "sqlfail", "select 1", "job", "jdbc:test",
+					"username", "pwd", 60, 1000L));
+			fail("the worker error must be reported");
+		} catch (RedisCacheException e) {
+			assertEquals("query failed", e.getMessage());
+			// the scheduler must see the SQL failure on the caller side too
+			assertTrue(QueryScheduler.isDatasourceError(e));
+		}
+	}
+
+	@Test
+	public void testFetchTimeout() {
+		try {
+			stub.fetch(new QueryWorkerJobRequest("user", "login", null, "block", "select 1", "job", "jdbc:test",
+					"username", "pwd", 60, 1000L));
+			fail("the fetch must time out");
+		} catch (RedisCacheException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("no response"));
+		}
+	}
+
+	@Test
+	public void testWrongSecret() {
+		SocketRpcChannel other = new SocketRpcChannel("127.0.0.1", server.getPort(), 1, "wrong");
+		try {
+			other.call(QueryWorkerRpcProtocol.HELLO, new byte[0], 1000);
+			fail("the connection must be refused");
+		} catch (RedisCacheException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("cannot connect"));
+		} finally {
+			other.close();
+		}
+		assertEquals(0, worker.calls);
+	}
+
+	@Test
+	public void testLargeHandshakeFrameIsRefused() throws IOException {
+		Socket socket = new Socket("127.0.0.1", server.getPort());
+		try {
+			socket.setSoTimeout(2000);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			Frame challenge = QueryWorkerRpcProtocol.readFrame(in);
+			assertEquals(QueryWorkerRpcProtocol.AUTH, challenge.code);
+			// announce a large answer: the worker must close the connection
+			// rather than wait for it
+			out.writeInt(QueryWorkerRpcProtocol.MAX_FRAME_SIZE);
+			out.flush();
+			assertEquals(-1, in.read());
+		} finally {
+			socket.close();
+		}
+		assertEquals(0, worker.calls);
+	}
+
+	@Test
+	public void testCallsPerConnectionAreBounded() throws Exception {
+		QueryWorkerRpcServer bounded = new QueryWorkerRpcServer(worker, "127.0.0.1", 0, SECRET, 1);
+		bounded.start();
+		SocketRpcChannel single = new SocketRpcChannel("127.0.0.1", bounded.getPort(), 1, SECRET);
+		final QueryWorkerRpcStub blocking = new QueryWorkerRpcStub("test", single, 0);
+		try {
+			final AtomicInteger result = new AtomicInteger();
+			Thread fetch = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					result.set(blocking.fetch(new QueryWorkerJobRequest("user", "login", null, "block", "select 1",
+							"job", "jdbc:test", "username", "pwd", 60, 1000L)));
+				}
+			});
+			fetch.start();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (worker.calls == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertEquals(1, worker.calls);
+			// the connection is not read until the running call completes
+			try {
+				single.call(QueryWorkerRpcProtocol.LOAD, new byte[0], 300);
+				fail("the call must wait for the running one");
+			} catch (RedisCacheException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("no response"));
+			}
+			worker.release.countDown();
+			fetch.join(10000);
+			assertEquals(42, result.get());
+			assertEquals(7, blocking.getLoad());
+		} finally {
+			single.close();
+			bounded.stop();
+		}
+	}
+
+	@Test(expected = RedisCacheException.class)
+	public void testSecretIsRequired() {
+		new QueryWorkerRpcServer(worker, "127.0.0.1", 0, "");
+	}
+
+	private static class FakeWorker implements IQueryWorkerServer {
+
+		private volatile QueryWorkerJobRequest received;
+		private volatile int calls = 0;
+		private CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public int fetch(QueryWorkerJobRequest request) {
+			calls++;
+			received = request;
+			if (request.getKey().equals("fail")) {
+				throw new RedisCacheException("query failed");
+			}
+			if (request.getKey().equals("sqlfail")) {
+				throw new RedisCacheException("query failed", new SQLException("table not found"));
+			}
+			if (request.getKey().equals("block")) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return 42;
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public int getLoad() {
+			calls++;
+			return 7;
+		}
+
+		@Override
+		public String hello() {
+			calls++;
+			return "hello";
+		}
+
+		@Override
+		public boolean isQueryOngoing(String k) {
+			calls++;
+			return k.equals("ongoing");
+		}
+
+		@Override
+		public List<QueryWorkerJobStatus> getOngoingQueries(String customerId) {
+			calls++;
+			List<QueryWorkerJobStatus> queries = new ArrayList<QueryWorkerJobStatus>();
+			queries.add(new QueryWorkerJobStatus("user", "login", new ProjectPK(customerId, "project"), "job", "key",
+					1, "select 1", 0, 10, 100, 3));
+			return queries;
+		}
+
+		@Override
+		public boolean cancelOngoingQuery(String customerId, String key) {
+			calls++;
+			return key.equals("ongoing");
+		}
+
+	}
+
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.datamatrix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.squid.core.database.model.Database;
+import com.squid.kraken.v4.caching.redis.datastruct.ColumnarRows;
+import com.squid.kraken.v4.caching.redis.datastruct.RawColumn;
+import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
+import com.squid.kraken.v4.core.analysis.datamatrix.DataMatrix.ApplyFilterCondition;
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionMember;
+
+/**
+ * check that the conditions compiled for the typed columns select the same
+ * rows as ApplyFilterCondition.test() on the boxed values
+ *
+ */
+public class RowFilterTest {
+
+	private static final List<String> DICTIONARY = Arrays.asList("b", "a", "c", "d");
+
+	// columns: string, int, long, double, object, null
+	private static final Object[][] DATA = new Object[][] { //
+			{ "a", 1, 10L, 1.5, "x", null }, //
+			{ null, null, null, null, null, null }, //
+			{ "b", -1, Long.MIN_VALUE, -0.0, 1, null }, //
+			{ "c", Integer.MAX_VALUE, Long.MAX_VALUE, Double.NaN, 2L, null }, //
+			{ "a", 0, 0L, 0.0, "y", null }, //
+			{ "d", 2, 20L, 2.5, null, null } };
+
+	private static ColumnarRows createColumnarRows() {
+		RawColumn[] columns = new RawColumn[6];
+		for (Object[] values : DATA) {
+			for (int i = 0; i < values.length; i++) {
+				if (i == 0) {
+					int code = values[i] == null ? -1 : DICTIONARY.indexOf(values[i]);
+					columns[i] = RawColumn.appendString(columns[i], code, DICTIONARY);
+				} else {
+					columns[i] = RawColumn.append(columns[i], values[i]);
+				}
+			}
+		}
+		return new ColumnarRows(columns, DATA.length);
+	}
+
+	private static List<RawRow> createRows() {
+		ArrayList<RawRow> rows = new ArrayList<RawRow>();
+		for (Object[] values : DATA) {
+			rows.add(new RawRow(values.clone()));
+		}
+		return rows;
+	}
+
+	private static ApplyFilterCondition condition(DataMatrix matrix, int index, boolean nullIsValid,
+			Object... items) {
+		ApplyFilterCondition condition = matrix.new ApplyFilterCondition(index, nullIsValid);
+		for (Object item : items) {
+			condition.add(new DimensionMember(-1, item, 0));
+		}
+		return condition;
+	}
+
+	private static final Object[][] ITEMS = new Object[][] { //
+			{ "a", "d", "unknown" }, //
+			{ 1, 2L, Integer.MAX_VALUE, 3 }, //
+			{ 10L, 10, Long.MIN_VALUE }, //
+			{ 0.0, Double.NaN, 2.5, 1 }, //
+			{ "x", 1L, 1 }, //
+			{ "a" } };
+
+	@Test
+	public void testCompiledConditions() {
+		ColumnarRows rows = createColumnarRows();
+		DataMatrix matrix = new DataMatrix((Database) null, rows);
+		assertTrue(rows.getColumn(0) instanceof RawColumn.StringColumn);
+		assertTrue(rows.getColumn(1) instanceof RawColumn.IntColumn);
+		assertTrue(rows.getColumn(2) instanceof RawColumn.LongColumn);
+		assertTrue(rows.getColumn(3) instanceof RawColumn.DoubleColumn);
+		assertTrue(rows.getColumn(5) instanceof RawColumn.NullColumn);
+		for (int col = 0; col < ITEMS.length; col++) {
+			for (boolean nullIsValid : new boolean[] { true, false }) {
+				ApplyFilterCondition condition = condition(matrix, col, nullIsValid, ITEMS[col]);
+				RawColumn column = rows.getColumn(col);
+				RowFilter.ColumnCondition compiled = RowFilter.compile(condition, column);
+				for (int i = 0; i < DATA.length; i++) {
+					assertEquals("column " + col + " row " + i, condition.test(column.get(i)), compiled.test(i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testNoMatchingType() {
+		ColumnarRows rows = createColumnarRows();
+		DataMatrix matrix = new DataMatrix((Database) null, rows);
+		ApplyFilterCondition condition = condition(matrix, 1, false, 1L, "1");
+		RowFilter.ColumnCondition compiled = RowFilter.compile(condition, rows.getColumn(1));
+		for (int i = 0; i < DATA.length; i++) {
+			assertEquals(false, compiled.test(i));
+		}
+	}
+
+	@Test
+	public void testSelect() {
+		ColumnarRows columnar = createColumnarRows();
+		List<RawRow> list = createRows();
+		DataMatrix columnarMatrix = new DataMatrix((Database) null, columnar);
+		DataMatrix listMatrix = new DataMatrix((Database) null, list);
+		List<ApplyFilterCondition> columnarAutomaton = new ArrayList<ApplyFilterCondition>();
+		List<ApplyFilterCondition> listAutomaton = new ArrayList<ApplyFilterCondition>();
+		columnarAutomaton.add(condition(columnarMatrix, 0, true, "a", "b", "d"));
+		listAutomaton.add(condition(listMatrix, 0, true, "a", "b", "d"));
+		columnarAutomaton.add(condition(columnarMatrix, 3, true, 1.5, -0.0, 2.5));
+		listAutomaton.add(condition(listMatrix, 3, true, 1.5, -0.0, 2.5));
+		RowFilter columnarFilter = new RowFilter(columnarMatrix, columnar);
+		RowFilter listFilter = new RowFilter(listMatrix, list);
+		BitSet selection = columnarFilter.select(columnarAutomaton);
+		assertEquals(listFilter.select(listAutomaton), selection);
+		BitSet expected = new BitSet();
+		expected.set(0);
+		expected.set(1);
+		expected.set(2);
+		expected.set(5);
+		assertEquals(expected, selection);
+		List<RawRow> selected = columnarFilter.getRows(selection);
+		assertTrue(selected instanceof ColumnarRows);
+		assertEquals(4, selected.size());
+		assertEquals("d", selected.get(3).data[0]);
+	}
+
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.datamatrix;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.squid.core.sql.render.IOrderByPiece.ORDERING;
+import com.squid.kraken.v4.caching.redis.datastruct.ColumnarRows;
+import com.squid.kraken.v4.caching.redis.datastruct.RawColumn;
+import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
+
+/**
+ * check the RowSorter against a plain stable sort of the values, for both the
+ * row list and the columnar representation
+ *
+ */
+public class RowSorterTest {
+
+	// columns: id, string, int, double, long
+	private static final int ID = 0;
+	private static final int STRING = 1;
+	private static final int INT = 2;
+	private static final int DOUBLE = 3;
+	private static final int LONG = 4;
+
+	// not sorted, and with unused entries
+	private static final List<String> DICTIONARY = Arrays.asList("d", "b", "unused", "a", "c", "");
+
+	private static Object[][] createData(int size, long seed) {
+		Random random = new Random(seed);
+		Object[][] data = new Object[size][];
+		for (int i = 0; i < size; i++) {
+			String string = null;
+			int code = random.nextInt(DICTIONARY.size() + 1) - 1;
+			if (code >= 0 && code != 2) {
+				string = DICTIONARY.get(code);
+			}
+			data[i] = new Object[] { i, string, random.nextInt(8) == 0 ? null : random.nextInt(5) - 2,
+					random.nextInt(8) == 0 ? null : (double) random.nextInt(7) / 2,
+					random.nextInt(8) == 0 ? null : (long) random.nextInt(5) * Integer.MAX_VALUE };
+		}
+		return data;
+	}
+
+	private static List<RawRow> createRows(Object[][] data) {
+		ArrayList<RawRow> rows = new ArrayList<RawRow>(data.length);
+		for (Object[] values : data) {
+			rows.add(new RawRow(values.clone()));
+		}
+		return rows;
+	}
+
+	private static ColumnarRows createColumnarRows(Object[][] data) {
+		RawColumn[] columns = new RawColumn[5];
+		for (Object[] values : data) {
+			for (int i = 0; i < values.length; i++) {
+				if (i == STRING) {
+					int code = values[i] == null ? -1 : DICTIONARY.indexOf(values[i]);
+					columns[i] = RawColumn.appendString(columns[i], code, DICTIONARY);
+				} else {
+					columns[i] = RawColumn.append(columns[i], values[i]);
+				}
+			}
+		}
+		return new ColumnarRows(columns, data.length);
+	}
+
+	/**
+	 * nulls first, natural order, reversed if descending; Collections.sort()
+	 * is stable
+	 */
+	private static List<Integer> expected(Object[][] data, final int[] columns, final ORDERING[] directions) {
+		List<Object[]> sorted = new ArrayList<Object[]>(Arrays.asList(data));
+		Collections.sort(sorted, new Comparator<Object[]>() {
+			@SuppressWarnings({ "rawtypes", "unchecked" })
+			@Override
+			public int compare(Object[] o1, Object[] o2) {
+				for (int i = 0; i < columns.length; i++) {
+					Object v1 = o1[columns[i]];
+					Object v2 = o2[columns[i]];
+					int cc;
+					if (v1 == null || v2 == null) {
+						cc = v1 == v2 ? 0 : (v1 == null ? -1 : 1);
+					} else {
+						cc = ((Comparable) v1).compareTo(v2);
+					}
+					if (cc != 0) {
+						return directions[i] == ORDERING.DESCENT ? -cc : cc;
+					}
+				}
+				return 0;
+			}
+		});
+		return ids(sorted);
+	}
+
+	private static List<Integer> ids(List<Object[]> data) {
+		ArrayList<Integer> ids = new ArrayList<Integer>(data.size());
+		for (Object[] values : data) {
+			ids.add((Integer) values[ID]);
+		}
+		return ids;
+	}
+
+	private static List<Integer> rowIds(List<RawRow> rows) {
+		ArrayList<Integer> ids = new ArrayList<Integer>(rows.size());
+		for (RawRow row : rows) {
+			ids.add((Integer) row.data[ID]);
+		}
+		return ids;
+	}
+
+	private static final int[][] KEYS = new int[][] { { STRING }, { INT }, { DOUBLE }, { LONG }, { INT, STRING },
+			{ DOUBLE, LONG, INT }, { STRING, DOUBLE } };
+
+	private static ORDERING[] directions(int length, int variant) {
+		ORDERING[] directions = new ORDERING[length];
+		for (int i = 0; i < length; i++) {
+			directions[i] = ((variant >> i) & 1) == 0 ? ORDERING.ASCENT : ORDERING.DESCENT;
+		}
+		return directions;
+	}
+
+	@Test
+	public void testSort() {
+		Object[][] data = createData(500, 17);
+		for (int[] columns : KEYS) {
+			for (int variant = 0; variant < (1 << columns.length); variant++) {
+				ORDERING[] directions = directions(columns.length, variant);
+				List<Integer> expected = expected(data, columns, directions);
+				List<RawRow> rows = createRows(data);
+				new RowSorter(rows, columns, directions).sort();
+				assertEquals(expected, rowIds(rows));
+				ColumnarRows columnar = createColumnarRows(data);
+				new RowSorter(columnar, columns, directions).sort();
+				assertEquals(expected, rowIds(columnar));
+			}
+		}
+	}
+
+	@Test
+	public void testTop() {
+		Object[][] data = createData(300, 42);
+		int[] counts = new int[] { 0, 1, 7, 100, 299, 300, 1000 };
+		for (int[] columns : KEYS) {
+			ORDERING[] directions = directions(columns.length, 1);
+			List<Integer> expected = expected(data, columns, directions);
+			for (int count : counts) {
+				List<Integer> head = expected.subList(0, Math.min(count, expected.size()));
+				List<RawRow> rows = createRows(data);
+				assertEquals(head, rowIds(new RowSorter(rows, columns, directions).top(count)));
+				// the rows are left untouched
+				assertEquals(ids(Arrays.asList(data)), rowIds(rows));
+				ColumnarRows columnar = createColumnarRows(data);
+				assertEquals(head, rowIds(new RowSorter(columnar, columns, directions).top(count)));
+			}
+		}
+	}
+
+	@Test
+	public void testTopAlreadySorted() {
+		Object[][] data = createData(200, 3);
+		int[] columns = new int[] { INT, ID };
+		ORDERING[] directions = directions(2, 0);
+		ColumnarRows columnar = createColumnarRows(data);
+		new RowSorter(columnar, columns, directions).sort();
+		List<Integer> expected = rowIds(columnar);
+		assertEquals(expected.subList(0, 10), rowIds(new RowSorter(columnar, columns, directions).top(10)));
+	}
+
+	@Test
+	public void testSortReordered() {
+		// sort a selection of a columnar list, so that positions and indexes
+		// differ
+		Object[][] data = createData(400, 5);
+		ColumnarRows columnar = createColumnarRows(data);
+		new RowSorter(columnar, new int[] { DOUBLE }, directions(1, 1)).sort();
+		ColumnarRows range = columnar.range(50, 350);
+		List<RawRow> rows = new ArrayList<RawRow>(range);
+		int[] columns = new int[] { STRING, INT };
+		ORDERING[] directions = directions(2, 2);
+		new RowSorter(range, columns, directions).sort();
+		new RowSorter(rows, columns, directions).sort();
+		assertEquals(rowIds(rows), rowIds(range));
+	}
+
+	@Test
+	public void testParallelSort() {
+		Object[][] data = createData(RowSorter.PARALLEL_SORT_THRESHOLD + 1000, 11);
+		int[] columns = new int[] { LONG, STRING, INT };
+		ORDERING[] directions = directions(3, 5);
+		List<Integer> expected = expected(data, columns, directions);
+		List<RawRow> rows = createRows(data);
+		new RowSorter(rows, columns, directions).sort();
+		assertEquals(expected, rowIds(rows));
+		ColumnarRows columnar = createColumnarRows(data);
+		new RowSorter(columnar, columns, directions).sort();
+		assertEquals(expected, rowIds(columnar));
+	}
+
+}
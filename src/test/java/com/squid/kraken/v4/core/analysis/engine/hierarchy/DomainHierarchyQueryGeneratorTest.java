@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.hierarchy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.squid.core.expression.ExpressionAST;
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionIndex.Status;
+import com.squid.kraken.v4.core.analysis.engine.index.DimensionStoreMock;
+import com.squid.kraken.v4.core.analysis.engine.query.HierarchyQuery;
+import com.squid.kraken.v4.core.analysis.universe.Space;
+import com.squid.kraken.v4.model.Dimension;
+import com.squid.kraken.v4.model.DimensionPK;
+
+public class DomainHierarchyQueryGeneratorTest {
+
+	private static final String QUERY = "SELECT city FROM customers";
+
+	/**
+	 * a bare index with a given store status, that does not persist it
+	 */
+	private static class TestIndex extends DimensionIndex {
+
+		private Dimension dimension;
+
+		private Status status;
+
+		public TestIndex(String name, Status status, final boolean cached) {
+			this.dimension = new Dimension(new DimensionPK("c", "p", "d", name));
+			this.status = status;
+			setStore(new DimensionStoreMock() {
+				@Override
+				public boolean isCached() {
+					return cached;
+				}
+			});
+		}
+
+		@Override
+		public Dimension getDimension() {
+			return dimension;
+		}
+
+		@Override
+		public String getDimensionName() {
+			return dimension.getId().getDimensionId();
+		}
+
+		@Override
+		public Status initStore(String select) {
+			return status;
+		}
+
+		@Override
+		public Status getStatus() {
+			return status;
+		}
+
+		@Override
+		public void setStale() {
+			this.status = Status.STALE;
+		}
+
+		@Override
+		public String toString() {
+			return "TestIndex:[" + getDimensionName() + "]";
+		}
+
+	}
+
+	/**
+	 * record the query changes instead of applying them
+	 */
+	private static class TestGenerator extends DomainHierarchyQueryGenerator {
+
+		private Object mark;
+
+		private boolean markRead = false;
+
+		private Object delta = null;
+
+		private String highWaterMarkKey = null;
+
+		public TestGenerator(Object mark) {
+			super(null);
+			this.mark = mark;
+			this.eagerIndexing = new ArrayList<DimensionPK>();
+		}
+
+		@Override
+		protected Object readHighWaterMark(String renderedQuery) {
+			markRead = true;
+			return mark;
+		}
+
+		@Override
+		protected void selectDelta(HierarchyQuery select, ExpressionAST column, Object mark) {
+			this.delta = mark;
+		}
+
+		@Override
+		protected void selectHighWaterMark(Space space, HierarchyQuery select, ExpressionAST column,
+				String renderedQuery) {
+			this.highWaterMarkKey = renderedQuery;
+		}
+
+	}
+
+	private static boolean prepare(TestGenerator generator, List<DimensionIndex> hierarchy) throws Exception {
+		return generator.prepareIncrementalQuery(null, null, hierarchy, QUERY, null);
+	}
+
+	@Test
+	public void testMarkPresentReadsTheDelta() throws Exception {
+		TestIndex country = new TestIndex("country", Status.DONE, true);
+		TestIndex city = new TestIndex("city", Status.DONE, true);
+		TestGenerator generator = new TestGenerator(42);
+		assertTrue(prepare(generator, Arrays.<DimensionIndex> asList(country, city)));
+		assertEquals(Integer.valueOf(42), generator.delta);
+		assertEquals(QUERY, generator.highWaterMarkKey);
+		// the stored indexes are refreshed right away
+		assertEquals(Collections.singletonList(country.getDimension().getId()), generator.eagerIndexing);
+		assertEquals(Status.DONE, country.getStatus());
+		assertEquals(Status.DONE, city.getStatus());
+	}
+
+	@Test
+	public void testMarkMissingRebuildsTheIndexes() throws Exception {
+		TestIndex country = new TestIndex("country", Status.DONE, true);
+		TestIndex city = new TestIndex("city", Status.DONE, true);
+		TestGenerator generator = new TestGenerator(null);
+		assertTrue(prepare(generator, Arrays.<DimensionIndex> asList(country, city)));
+		assertTrue(generator.markRead);
+		assertNull(generator.delta);
+		assertEquals(QUERY, generator.highWaterMarkKey);
+		assertTrue(generator.eagerIndexing.isEmpty());
+		assertEquals(Status.STALE, country.getStatus());
+		assertEquals(Status.STALE, city.getStatus());
+	}
+
+	@Test
+	public void testStaleIndexesAreComputedFromScratch() throws Exception {
+		TestIndex country = new TestIndex("country", Status.DONE, true);
+		TestIndex city = new TestIndex("city", Status.STALE, false);
+		TestGenerator generator = new TestGenerator(42);
+		assertTrue(prepare(generator, Arrays.<DimensionIndex> asList(country, city)));
+		// the mark is irrelevant since nothing is merged
+		assertFalse(generator.markRead);
+		assertNull(generator.delta);
+		assertEquals(QUERY, generator.highWaterMarkKey);
+		assertTrue(generator.eagerIndexing.isEmpty());
+	}
+
+	@Test
+	public void testIndexesNotStoredAreSkipped() throws Exception {
+		TestIndex country = new TestIndex("country", Status.DONE, false);
+		TestGenerator generator = new TestGenerator(42);
+		assertFalse(prepare(generator, Arrays.<DimensionIndex> asList(country)));
+		assertFalse(generator.markRead);
+		assertNull(generator.highWaterMarkKey);
+	}
+
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.squid.kraken.v4.model.DimensionPK;
+
+public class CorrelationIndexTest {
+
+	private static final DimensionPK COUNTRY = new DimensionPK("c", "p", "d", "country");
+	private static final DimensionPK YEAR = new DimensionPK("c", "p", "d", "year");
+	private static final DimensionPK CITY = new DimensionPK("c", "p", "d", "city");
+
+	private static List<int[]> batch(int[]... correlations) {
+		List<int[]> batch = new ArrayList<int[]>();
+		for (int[] correlation : correlations) {
+			batch.add(correlation);
+		}
+		return batch;
+	}
+
+	private static BitSet bits(int... ordinals) {
+		BitSet bits = new BitSet();
+		for (int ordinal : ordinals) {
+			bits.set(ordinal);
+		}
+		return bits;
+	}
+
+	private static CorrelationIndex createIndex() {
+		CorrelationIndex index = new CorrelationIndex();
+		int[] levels = index.getLevels(COUNTRY, YEAR, CITY);
+		// country, year, city
+		index.index(levels, batch(new int[] { 0, 0, 0 }, // FR 2015 Paris
+				new int[] { 0, 1, 1 }, // FR 2016 Lyon
+				new int[] { 1, 1, 2 }, // US 2016 NY
+				new int[] { 1, 0, 1 }, // US 2015 Lyon
+				new int[] { 1, 0, -1 }, // US 2015 (no city)
+				new int[] { 0, 0, 0 }));// duplicate
+		return index;
+	}
+
+	@Test
+	public void testSingleParent() {
+		CorrelationIndex index = createIndex();
+		Map<Integer, int[]> selections = new HashMap<Integer, int[]>();
+		selections.put(0, new int[] { 0 });
+		assertEquals(bits(0, 1), index.filter(2, selections));
+		selections.put(0, new int[] { 0, 1 });
+		assertEquals(bits(0, 1, 2), index.filter(2, selections));
+		assertNull(index.filter(2, new HashMap<Integer, int[]>()));
+	}
+
+	@Test
+	public void testParentsInTheSameCorrelation() {
+		CorrelationIndex index = createIndex();
+		Map<Integer, int[]> selections = new HashMap<Integer, int[]>();
+		// Lyon co-occurs with FR and with 2015, but not in the same
+		// correlation
+		selections.put(0, new int[] { 0 });
+		selections.put(1, new int[] { 0 });
+		assertEquals(bits(0), index.filter(2, selections));
+		selections.put(1, new int[] { 0, 1 });
+		assertEquals(bits(0, 1), index.filter(2, selections));
+		// the target selection itself
+		selections.put(2, new int[] { 1, 2 });
+		assertEquals(bits(1), index.filter(2, selections));
+		// the correlation without a city is ignored
+		selections.remove(2);
+		selections.put(0, new int[] { 1 });
+		selections.put(1, new int[] { 0 });
+		assertEquals(bits(1), index.filter(2, selections));
+	}
+
+	@Test
+	public void testUnknownOrdinals() {
+		CorrelationIndex index = createIndex();
+		Map<Integer, int[]> selections = new HashMap<Integer, int[]>();
+		selections.put(0, new int[] { -1, 5 });
+		selections.put(1, new int[] { 1 });
+		assertEquals(bits(), index.filter(2, selections));
+	}
+
+}
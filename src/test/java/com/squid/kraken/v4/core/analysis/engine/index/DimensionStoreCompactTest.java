@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionIndex;
+import com.squid.kraken.v4.core.analysis.engine.hierarchy.DimensionMember;
+import com.squid.kraken.v4.model.Dimension;
+import com.squid.kraken.v4.model.DimensionPK;
+
+public class DimensionStoreCompactTest {
+
+	/**
+	 * a bare index with one attribute, backed by a compact store
+	 */
+	private static class TestIndex extends DimensionIndex {
+
+		private Dimension dimension;
+
+		public TestIndex(TestIndex parent, String name) {
+			this.dimension = new Dimension(new DimensionPK("c", "p", "d", name));
+			setParent(parent);
+			setStore(new DimensionStoreCompact(this));
+		}
+
+		public DimensionStoreCompact getCompactStore() {
+			return (DimensionStoreCompact) getStore();
+		}
+
+		@Override
+		public Dimension getDimension() {
+			return dimension;
+		}
+
+		@Override
+		public int getAttributeCount() {
+			return 1;
+		}
+
+	}
+
+	private static DimensionMember member(String id, String attribute) {
+		DimensionMember member = new DimensionMember(-1, id, 1);
+		member.setAttribute(0, attribute);
+		return member;
+	}
+
+	private static List<String> ids(List<DimensionMember> members) {
+		List<String> ids = new ArrayList<String>();
+		for (DimensionMember member : members) {
+			ids.add(member.getKey());
+		}
+		return ids;
+	}
+
+	private static DimensionStoreCompact createCities() {
+		DimensionStoreCompact store = new TestIndex(null, "city").getCompactStore();
+		store.index(Arrays.asList(member("Paris", "north"), member("Lyon", "east"), member("Marseille", "south"),
+				member("Nice", "south")), false);
+		return store;
+	}
+
+	@Test
+	public void testSearchShorterThanNGram() {
+		DimensionStoreCompact store = createCities();
+		assertEquals(Arrays.asList("Paris", "Marseille"), ids(store.getMembers("ar", 0, 10)));
+		assertEquals(Arrays.asList("Lyon"), ids(store.getMembers("y", 0, 10)));
+	}
+
+	@Test
+	public void testSearchEqualToNGram() {
+		DimensionStoreCompact store = createCities();
+		assertEquals(Arrays.asList("Lyon"), ids(store.getMembers("lyo", 0, 10)));
+		assertEquals(Arrays.asList("Nice"), ids(store.getMembers("ICE", 0, 10)));
+	}
+
+	@Test
+	public void testSearchLongerThanNGram() {
+		DimensionStoreCompact store = createCities();
+		assertEquals(Arrays.asList("Marseille"), ids(store.getMembers("seille", 0, 10)));
+		// matches the attribute
+		assertEquals(Arrays.asList("Marseille", "Nice"), ids(store.getMembers("South", 0, 10)));
+		// unknown n-gram
+		assertEquals(Collections.emptyList(), ids(store.getMembers("parisx", 0, 10)));
+	}
+
+	@Test
+	public void testUpdateKeepsOrdinal() {
+		DimensionStoreCompact store = createCities();
+		store.index(Arrays.asList(member("Lyon", "gastronomy")), false);
+		assertEquals(4, store.getSize());
+		DimensionMember lyon = store.getMemberByKey("Lyon");
+		assertEquals(1, lyon.getIndex());
+		assertSame(lyon, store.getMember(1));
+		assertEquals("gastronomy", lyon.getAttributes()[0]);
+		// searchable with the new value only
+		assertEquals(Arrays.asList("Lyon"), ids(store.getMembers("gastro", 0, 10)));
+		assertEquals(Arrays.asList("Lyon"), ids(store.getMembers("lyon", 0, 10)));
+		assertEquals(Collections.emptyList(), ids(store.getMembers("east", 0, 10)));
+	}
+
+	@Test
+	public void testPaging() {
+		DimensionStoreCompact store = new TestIndex(null, "code").getCompactStore();
+		List<DimensionMember> members = new ArrayList<DimensionMember>();
+		for (int i = 0; i < 10; i++) {
+			members.add(member("m" + i, i % 2 == 0 ? "even" : "odd"));
+		}
+		store.index(members, false);
+		assertEquals(Arrays.asList("m2", "m3", "m4"), ids(store.getMembers(2, 3)));
+		assertEquals(Arrays.asList("m8", "m9"), ids(store.getMembers(8, 5)));
+		assertEquals(Collections.emptyList(), ids(store.getMembers(20, 5)));
+		// the offset counts the matching members only
+		assertEquals(Arrays.asList("m4", "m6"), ids(store.getMembers("even", 2, 2)));
+		assertEquals(Arrays.asList("m9"), ids(store.getMembers("odd", 4, 10)));
+	}
+
+	@Test
+	public void testFilterByParents() {
+		TestIndex country = new TestIndex(null, "country");
+		TestIndex city = new TestIndex(country, "city");
+		List<DimensionIndex> hierarchy = Arrays.<DimensionIndex> asList(country, city);
+		city.getCompactStore().initCorrelationMapping(hierarchy);
+		List<List<DimensionMember>> batch = new ArrayList<List<DimensionMember>>();
+		batch.add(Arrays.asList(member("France", ""), member("Paris", "")));
+		batch.add(Arrays.asList(member("France", ""), member("Lyon", "")));
+		batch.add(Arrays.asList(member("France", ""), member("Lille", "")));
+		batch.add(Arrays.asList(member("USA", ""), member("New York", "")));
+		// through the child store, the correlations are kept by the root
+		city.getCompactStore().indexCorrelations(hierarchy, batch, false);
+		assertEquals(2, country.getCompactStore().getSize());
+		assertEquals(4, city.getCompactStore().getSize());
+
+		Map<DimensionIndex, List<DimensionMember>> selections = new HashMap<DimensionIndex, List<DimensionMember>>();
+		selections.put(country, Arrays.asList(member("France", "")));
+		assertEquals(Arrays.asList("Paris", "Lyon", "Lille"),
+				ids(city.getCompactStore().getMembersFilterByParents(selections, 0, 10)));
+		assertEquals(Arrays.asList("Lyon", "Lille"),
+				ids(city.getCompactStore().getMembersFilterByParents(selections, "l", 0, 10)));
+		assertEquals(Arrays.asList("Lille"), ids(city.getCompactStore().getMembersFilterByParents(selections, "l", 1, 10)));
+
+		selections.put(country, Arrays.asList(member("USA", "")));
+		assertEquals(Arrays.asList("New York"), ids(city.getCompactStore().getMembersFilterByParents(selections, 0, 10)));
+		assertEquals(Collections.emptyList(), ids(city.getCompactStore().getMembersFilterByParents(selections, "l", 0, 10)));
+	}
+
+}
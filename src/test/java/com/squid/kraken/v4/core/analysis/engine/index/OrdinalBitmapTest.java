@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class OrdinalBitmapTest {
+
+	private static void assertContent(TreeSet<Integer> expected, OrdinalBitmap set) {
+		assertEquals(expected.size(), set.cardinality());
+		BitSet bits = new BitSet();
+		set.or(bits);
+		BitSet expectedBits = new BitSet();
+		for (int ordinal : expected) {
+			expectedBits.set(ordinal);
+		}
+		assertEquals(expectedBits, bits);
+	}
+
+	@Test
+	public void testRandom() {
+		Random random = new Random(7);
+		OrdinalBitmap set = new OrdinalBitmap();
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int i = 0; i < 20000; i++) {
+			int ordinal = random.nextInt(i < 10000 ? 5000 : 1000000);
+			assertEquals(expected.add(ordinal), set.add(ordinal));
+		}
+		assertContent(expected, set);
+	}
+
+	@Test
+	public void testSparseStaysArray() {
+		OrdinalBitmap set = new OrdinalBitmap();
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int i = 0; i < 10000; i++) {
+			set.add(i * 1000);
+			expected.add(i * 1000);
+		}
+		assertFalse(set.isBitmap());
+		assertContent(expected, set);
+	}
+
+	@Test
+	public void testDenseSwitchesToBitmap() {
+		OrdinalBitmap set = new OrdinalBitmap();
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int i = 0; i < 1000; i += 2) {
+			set.add(i);
+			expected.add(i);
+		}
+		assertTrue(set.isBitmap());
+		assertFalse(set.add(10));
+		// a far ordinal makes the bitmap sparse again
+		set.add(10000000);
+		expected.add(10000000);
+		assertFalse(set.isBitmap());
+		assertContent(expected, set);
+	}
+
+}
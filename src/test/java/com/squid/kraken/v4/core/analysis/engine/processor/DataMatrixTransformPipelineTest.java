@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.squid.core.database.model.Database;
+import com.squid.core.sql.render.IOrderByPiece.ORDERING;
+import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
+import com.squid.kraken.v4.core.analysis.datamatrix.DataMatrix;
+import com.squid.kraken.v4.core.analysis.model.OrderBy;
+import com.squid.kraken.v4.core.analysis.universe.Property;
+
+/**
+ * check which transformations are fused by the pipeline planning
+ *
+ */
+public class DataMatrixTransformPipelineTest {
+
+	private static List<OrderBy> orderBy() {
+		return Collections.singletonList(new OrderBy(0, null, ORDERING.DESCENT));
+	}
+
+	private static DataMatrixTransformHideColumns<Property> hide() {
+		return new DataMatrixTransformHideColumns<Property>(Collections.<Property> emptyList());
+	}
+
+	private static List<DataMatrixTransform> list(DataMatrixTransform... transforms) {
+		return new ArrayList<DataMatrixTransform>(Arrays.asList(transforms));
+	}
+
+	private static void assertTopN(DataMatrixTransform transform, List<OrderBy> orderBy, Long limit, Long offset) {
+		assertTrue(transform instanceof DataMatrixTransformTopN);
+		DataMatrixTransformTopN topN = (DataMatrixTransformTopN) transform;
+		assertSame(orderBy, topN.getOrderBy());
+		assertEquals(limit, topN.getLimit());
+		assertEquals(offset, topN.getOffset());
+	}
+
+	@Test
+	public void testFuseOrderByTruncate() {
+		List<OrderBy> orderBy = orderBy();
+		List<DataMatrixTransform> transforms = list(new DataMatrixTransformOrderBy(orderBy),
+				new DataMatrixTransformTruncate(10L, 5L));
+		List<DataMatrixTransform> plan = DataMatrixTransformPipeline.plan(transforms);
+		assertEquals(1, plan.size());
+		assertTopN(plan.get(0), orderBy, 10L, 5L);
+		// the input is left untouched
+		assertEquals(2, transforms.size());
+	}
+
+	@Test
+	public void testFuseAcrossHideColumns() {
+		List<OrderBy> orderBy = orderBy();
+		DataMatrixTransform hide1 = hide();
+		DataMatrixTransform hide2 = hide();
+		List<DataMatrixTransform> plan = DataMatrixTransformPipeline.plan(list(new DataMatrixTransformOrderBy(orderBy),
+				hide1, hide2, new DataMatrixTransformTruncate(10L, null)));
+		assertEquals(3, plan.size());
+		assertTopN(plan.get(0), orderBy, 10L, null);
+		assertSame(hide1, plan.get(1));
+		assertSame(hide2, plan.get(2));
+	}
+
+	@Test
+	public void testTruncateWithoutLimit() {
+		List<DataMatrixTransform> transforms = list(new DataMatrixTransformOrderBy(orderBy()),
+				new DataMatrixTransformTruncate(null, 5L));
+		assertEquals(transforms, DataMatrixTransformPipeline.plan(transforms));
+	}
+
+	@Test
+	public void testTruncateBeforeOrderBy() {
+		List<DataMatrixTransform> transforms = list(new DataMatrixTransformTruncate(10L, null),
+				new DataMatrixTransformOrderBy(orderBy()));
+		assertEquals(transforms, DataMatrixTransformPipeline.plan(transforms));
+	}
+
+	@Test
+	public void testOtherTransformInBetween() {
+		DataMatrixTransform other = new Recorder(new ArrayList<DataMatrixTransform>());
+		List<DataMatrixTransform> transforms = list(new DataMatrixTransformOrderBy(orderBy()), other,
+				new DataMatrixTransformTruncate(10L, null));
+		assertEquals(transforms, DataMatrixTransformPipeline.plan(transforms));
+	}
+
+	@Test
+	public void testOnlyLastOrderByIsFused() {
+		DataMatrixTransform first = new DataMatrixTransformOrderBy(orderBy());
+		List<OrderBy> orderBy = orderBy();
+		List<DataMatrixTransform> plan = DataMatrixTransformPipeline.plan(
+				list(first, new DataMatrixTransformOrderBy(orderBy), new DataMatrixTransformTruncate(3L, 1L)));
+		assertEquals(2, plan.size());
+		assertSame(first, plan.get(0));
+		assertTopN(plan.get(1), orderBy, 3L, 1L);
+	}
+
+	@Test
+	public void testEmpty() {
+		assertTrue(DataMatrixTransformPipeline.plan(new ArrayList<DataMatrixTransform>()).isEmpty());
+	}
+
+	@Test
+	public void testApplyInOrder() throws Exception {
+		List<DataMatrixTransform> applied = new ArrayList<DataMatrixTransform>();
+		Recorder first = new Recorder(applied);
+		Recorder second = new Recorder(applied);
+		DataMatrix input = new DataMatrix((Database) null, new ArrayList<RawRow>());
+		assertSame(input, DataMatrixTransformPipeline.apply(input, list(first, second)));
+		assertEquals(Arrays.<DataMatrixTransform> asList(first, second), applied);
+	}
+
+	private static class Recorder implements DataMatrixTransform {
+
+		private final List<DataMatrixTransform> applied;
+
+		Recorder(List<DataMatrixTransform> applied) {
+			this.applied = applied;
+		}
+
+		@Override
+		public DataMatrix apply(DataMatrix input) {
+			applied.add(this);
+			return input;
+		}
+
+	}
+
+}
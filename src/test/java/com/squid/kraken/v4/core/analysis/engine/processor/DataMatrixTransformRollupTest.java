@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright © Squid Solutions, 2016
+ *
+ * This file is part of Open Bouquet software.
+ *  
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation (version 3 of the License).
+ *
+ * There is a special FOSS exception to the terms and conditions of the 
+ * licenses as they are applied to this program. See LICENSE.txt in
+ * the directory of this program distribution.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Squid Solutions also offers commercial licenses with additional warranties,
+ * professional functionalities or services. If you purchase a commercial
+ * license, then it supersedes and replaces any other agreement between
+ * you and Squid Solutions (above licenses and LICENSE.txt included).
+ * See http://www.squidsolutions.com/EnterpriseBouquet/
+ *******************************************************************************/
+package com.squid.kraken.v4.core.analysis.engine.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.squid.kraken.v4.caching.redis.datastruct.RawRow;
+
+/**
+ * check the SUM aggregate used by the in-memory rollup
+ *
+ */
+public class DataMatrixTransformRollupTest {
+
+	private static Object sum(Object... values) throws Exception {
+		Object total = null;
+		for (Object value : values) {
+			total = DataMatrixTransformRollup.SUM.apply(total, value);
+		}
+		return total;
+	}
+
+	@Test
+	public void testSumIntegral() throws Exception {
+		assertEquals(6L, sum(1, 2L, null, (short) 3));
+		assertEquals(5, sum(null, 5));
+		assertNull(sum(null, null));
+	}
+
+	@Test
+	public void testSumOverflow() throws Exception {
+		assertEquals(new BigDecimal(Long.MAX_VALUE).add(BigDecimal.ONE), sum(Long.MAX_VALUE, 1));
+		assertEquals(new BigDecimal(Long.MAX_VALUE).add(new BigDecimal(Long.MAX_VALUE)).subtract(BigDecimal.TEN),
+				sum(Long.MAX_VALUE, Long.MAX_VALUE, -10L));
+		assertEquals(BigDecimal.valueOf(Long.MIN_VALUE).subtract(BigDecimal.ONE), sum(Long.MIN_VALUE, -1));
+	}
+
+	@Test
+	public void testSumDecimal() throws Exception {
+		assertEquals(new BigDecimal("3.5"), sum(new BigDecimal("1.5"), 2));
+		assertEquals(4.0, sum(new BigDecimal("1.5"), 2L, 0.5));
+	}
+
+	private static List<RawRow> column(Object... values) {
+		List<RawRow> rows = new ArrayList<RawRow>();
+		for (Object value : values) {
+			rows.add(new RawRow(new Object[] { "key", value }));
+		}
+		return rows;
+	}
+
+	@Test
+	public void testNormalize() {
+		List<RawRow> rows = column(1, null, 2L);
+		DataMatrixTransformRollup.normalize(rows, 1);
+		assertEquals(1L, rows.get(0).data[1]);
+		assertNull(rows.get(1).data[1]);
+		assertEquals(2L, rows.get(2).data[1]);
+		// a total widened on overflow
+		rows = column(1, new BigDecimal("9223372036854775808"), 3L);
+		DataMatrixTransformRollup.normalize(rows, 1);
+		assertEquals(BigDecimal.valueOf(1), rows.get(0).data[1]);
+		assertEquals(new BigDecimal("9223372036854775808"), rows.get(1).data[1]);
+		assertEquals(BigDecimal.valueOf(3), rows.get(2).data[1]);
+		// double wins, as in SUM
+		rows = column(new BigDecimal("1.5"), 2.5, 3);
+		DataMatrixTransformRollup.normalize(rows, 1);
+		assertEquals(1.5, rows.get(0).data[1]);
+		assertEquals(2.5, rows.get(1).data[1]);
+		assertEquals(3.0, rows.get(2).data[1]);
+		assertEquals("key", rows.get(0).data[0]);
+	}
+
+}